@@ -84,6 +84,9 @@ public class WhisperServerConfiguration extends Configuration {
   @JsonProperty
   private RedisClusterConfiguration clientPresenceCluster;
 
+  @JsonProperty
+  private boolean keyspaceNotificationPatternSubscriptions = false;
+
   @Valid
   @NotNull
   @JsonProperty
@@ -124,6 +127,36 @@ public class WhisperServerConfiguration extends Configuration {
   @JsonProperty
   private WebSocketConfiguration webSocket = new WebSocketConfiguration();
 
+  @Valid
+  @NotNull
+  @JsonProperty
+  private MessageDeliveryConfiguration messageDelivery = new MessageDeliveryConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private MessagePayloadCompressionConfiguration messagePayloadCompression = new MessagePayloadCompressionConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private LocalAccountCacheConfiguration localAccountCache = new LocalAccountCacheConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private DeviceLastSeenConfiguration deviceLastSeen = new DeviceLastSeenConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private DeviceAuthenticationConfiguration deviceAuthentication = new DeviceAuthenticationConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private AccountStorageConfiguration accountStorage = new AccountStorageConfiguration();
+
   @Valid
   @NotNull
   @JsonProperty
@@ -206,6 +239,30 @@ public class WhisperServerConfiguration extends Configuration {
     return webSocket;
   }
 
+  public MessageDeliveryConfiguration getMessageDeliveryConfiguration() {
+    return messageDelivery;
+  }
+
+  public MessagePayloadCompressionConfiguration getMessagePayloadCompressionConfiguration() {
+    return messagePayloadCompression;
+  }
+
+  public LocalAccountCacheConfiguration getLocalAccountCacheConfiguration() {
+    return localAccountCache;
+  }
+
+  public DeviceLastSeenConfiguration getDeviceLastSeenConfiguration() {
+    return deviceLastSeen;
+  }
+
+  public DeviceAuthenticationConfiguration getDeviceAuthenticationConfiguration() {
+    return deviceAuthentication;
+  }
+
+  public AccountStorageConfiguration getAccountStorageConfiguration() {
+    return accountStorage;
+  }
+
   public PushConfiguration getPushConfiguration() {
     return push;
   }
@@ -246,6 +303,10 @@ public class WhisperServerConfiguration extends Configuration {
     return clientPresenceCluster;
   }
 
+  public boolean isKeyspaceNotificationPatternSubscriptions() {
+    return keyspaceNotificationPatternSubscriptions;
+  }
+
   public RedisClusterConfiguration getPushSchedulerCluster() {
     return pushSchedulerCluster;
   }
@@ -55,11 +55,13 @@ import io.lettuce.core.resource.ClientResources;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
 import io.minio.MinioClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import su.sres.dispatch.DispatchManager;
 import su.sres.shadowserver.auth.AccountAuthenticator;
 import su.sres.shadowserver.auth.WebsocketRefreshApplicationEventListener;
 import su.sres.shadowserver.auth.AuthenticatedAccount;
+import su.sres.shadowserver.auth.AuthenticationCredentials;
 import su.sres.shadowserver.auth.CertificateGenerator;
 import su.sres.shadowserver.auth.ExternalServiceCredentialGenerator;
 import su.sres.shadowserver.auth.GroupUser;
@@ -68,8 +70,10 @@ import su.sres.shadowserver.auth.DisabledPermittedAccountAuthenticator;
 import su.sres.shadowserver.auth.DisabledPermittedAuthenticatedAccount;
 import su.sres.shadowserver.auth.ExternalGroupCredentialGenerator;
 import su.sres.shadowserver.auth.TurnTokenGenerator;
+import su.sres.shadowserver.auth.VerifiedCredentialsCache;
 import su.sres.shadowserver.badges.ConfiguredProfileBadgeConverter;
 import su.sres.shadowserver.badges.ProfileBadgeConverter;
+import su.sres.shadowserver.configuration.DeviceAuthenticationConfiguration;
 import su.sres.shadowserver.configuration.LocalParametersConfiguration;
 import su.sres.shadowserver.configuration.MinioConfiguration;
 import su.sres.shadowserver.configuration.ScyllaDbConfiguration;
@@ -89,6 +93,7 @@ import su.sres.shadowserver.limits.RateLimitResetMetricsManager;
 import su.sres.shadowserver.limits.RateLimiters;
 import su.sres.shadowserver.limits.UnsealedSenderRateLimiter;
 import su.sres.shadowserver.liquibase.NameableMigrationsBundle;
+import su.sres.shadowserver.mappers.CompletionExceptionMapper;
 import su.sres.shadowserver.mappers.DeviceLimitExceededExceptionMapper;
 import su.sres.shadowserver.mappers.IOExceptionMapper;
 import su.sres.shadowserver.mappers.InvalidWebsocketAddressExceptionMapper;
@@ -346,6 +351,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     ScyllaDbConfiguration scyllaConfig = config.getScyllaDbConfiguration();
 
     DynamoDbClient scyllaDbClient = ScyllaDbFromConfig.client(scyllaConfig);
+    DynamoDbAsyncClient scyllaDbAsyncClient = ScyllaDbFromConfig.asyncClient(scyllaConfig, null);
 
     AmazonDynamoDBClientBuilder scyllaDbClientBuilder = AmazonDynamoDBClientBuilder
         .standard()
@@ -359,13 +365,19 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
 
     DeletedAccounts deletedAccounts = new DeletedAccounts(scyllaDbClient, scyllaConfig.getDeletedAccountsTableName());
 
-    Accounts accounts = new Accounts(scyllaDbClient, scyllaConfig.getAccountsTableName(), scyllaConfig.getUserLoginTableName(), scyllaConfig.getMiscTableName(), scyllaConfig.getScanPageSize());
+    AccountCodec.Format accountFormat = config.getAccountStorageConfiguration().isBinaryFormat()
+        ? AccountCodec.Format.BINARY
+        : AccountCodec.Format.JSON;
+    Accounts accounts = new Accounts(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getAccountsTableName(), scyllaConfig.getUserLoginTableName(), scyllaConfig.getMiscTableName(), scyllaConfig.getScanPageSize(),
+        accountFormat);
 
     Usernames usernames = new Usernames(accountDatabase);
     ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
     Profiles profiles = new Profiles(accountDatabase);
-    KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaConfig.getKeysTableName());
-    MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive());
+    KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getKeysTableName(), scyllaConfig.getBatchWriteParallelism());
+    MessagePayloadCodec messagePayloadCodec = new MessagePayloadCodec(config.getMessagePayloadCompressionConfiguration());
+    MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive(),
+        scyllaConfig.getBatchWriteParallelism(), messagePayloadCodec);
     GroupsScyllaDb groupsScyllaDb = new GroupsScyllaDb(groupsDynamoDb, scyllaConfig.getGroupsTableName());
     GroupLogsScyllaDb groupLogsScyllaDb = new GroupLogsScyllaDb(groupLogsDynamoDb, scyllaConfig.getGroupLogsTableName());
     AbusiveHostRules abusiveHostRules = new AbusiveHostRules(abuseDatabase);
@@ -418,21 +430,35 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     // "apnSender-%d")).maxThreads(1).minThreads(1).build();
     ExecutorService gcmSenderExecutor = environment.lifecycle().executorService(name(getClass(), "gcmSender-%d")).maxThreads(1).minThreads(1).build();
     ExecutorService multiRecipientMessageExecutor = environment.lifecycle().executorService(name(getClass(), "multiRecipientMessage-%d")).minThreads(64).maxThreads(64).build();
+    ExecutorService persistedMessageExecutor = environment.lifecycle().executorService(name(getClass(), "persistedMessage-%d")).minThreads(16).maxThreads(16).build();
 
-    ClientPresenceManager clientPresenceManager = new ClientPresenceManager(clientPresenceCluster, recurringJobExecutor, keyspaceNotificationDispatchExecutor);
+    ClientPresenceManager clientPresenceManager = new ClientPresenceManager(clientPresenceCluster, recurringJobExecutor, keyspaceNotificationDispatchExecutor,
+        config.isKeyspaceNotificationPatternSubscriptions());
 
     DynamicConfiguration dynamicConfig = new DynamicConfiguration();
     DirectoryManager directory = new DirectoryManager(directoryClient);
+    DirectorySnapshotCache directorySnapshotCache = new DirectorySnapshotCache(DirectorySnapshotCache.DEFAULT_MAX_SNAPSHOT_BYTES);
     final int lifetime = localParams.getVerificationCodeLifetime();
     StoredVerificationCodeManager pendingAccountsManager = new StoredVerificationCodeManager(pendingAccounts, lifetime);
     StoredVerificationCodeManager pendingDevicesManager = new StoredVerificationCodeManager(pendingDevices, lifetime);
     UsernamesManager usernamesManager = new UsernamesManager(usernames, reservedUsernames, cacheCluster);
     ProfilesManager profilesManager = new ProfilesManager(profiles, cacheCluster);
-    MessagesCache messagesCache = new MessagesCache(messagesCluster, messagesCluster, keyspaceNotificationDispatchExecutor);
+    MessagesCache messagesCache = new MessagesCache(messagesCluster, messagesCluster, keyspaceNotificationDispatchExecutor,
+        config.isKeyspaceNotificationPatternSubscriptions(), messagePayloadCodec);
     PushLatencyManager pushLatencyManager = new PushLatencyManager(metricsCluster);
     ReportMessageManager reportMessageManager = new ReportMessageManager(reportMessageScyllaDb, Metrics.globalRegistry);
-    MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager);
-    AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager);
+    MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager, persistedMessageExecutor,
+        scyllaConfig.getMessageDeletionBatchWindow());
+    LocalAccountCache localAccountCache = config.getLocalAccountCacheConfiguration().isEnabled()
+        ? new LocalAccountCache(cacheCluster, config.getLocalAccountCacheConfiguration())
+        : null;
+    DeviceLastSeenWriter deviceLastSeenWriter = new DeviceLastSeenWriter(accounts, recurringJobExecutor, config.getDeviceLastSeenConfiguration());
+    DeviceAuthenticationConfiguration deviceAuthenticationConfig = config.getDeviceAuthenticationConfiguration();
+    AuthenticationCredentials.Version credentialsVersion = deviceAuthenticationConfig.isMigrateCredentials()
+        ? AuthenticationCredentials.CURRENT_VERSION
+        : AuthenticationCredentials.DEFAULT_VERSION;
+    AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager, localAccountCache,
+        deviceLastSeenWriter, credentialsVersion, accountFormat);
     RemoteConfigsManager remoteConfigsManager = new RemoteConfigsManager(remoteConfigs);
     DeadLetterHandler deadLetterHandler = new DeadLetterHandler(accountsManager, messagesManager);
     DispatchManager dispatchManager = new DispatchManager(pubSubClientFactory, Optional.of(deadLetterHandler));
@@ -447,8 +473,13 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     TorExitNodeManager torExitNodeManager = new TorExitNodeManager(recurringJobExecutor, minioConfig);
     AsnManager asnManager = new AsnManager(recurringJobExecutor, minioConfig);
 
-    AccountAuthenticator accountAuthenticator = new AccountAuthenticator(accountsManager);
-    DisabledPermittedAccountAuthenticator disabledPermittedAccountAuthenticator = new DisabledPermittedAccountAuthenticator(accountsManager);
+    VerifiedCredentialsCache verifiedCredentialsCache = deviceAuthenticationConfig.isCacheEnabled()
+        ? new VerifiedCredentialsCache(deviceAuthenticationConfig)
+        : null;
+    AccountAuthenticator accountAuthenticator = new AccountAuthenticator(accountsManager, verifiedCredentialsCache,
+        deviceAuthenticationConfig.isMigrateCredentials());
+    DisabledPermittedAccountAuthenticator disabledPermittedAccountAuthenticator = new DisabledPermittedAccountAuthenticator(accountsManager,
+        verifiedCredentialsCache, deviceAuthenticationConfig.isMigrateCredentials());
 
     RateLimitResetMetricsManager rateLimitResetMetricsManager = new RateLimitResetMetricsManager(metricsCluster, Metrics.globalRegistry);
 
@@ -508,6 +539,10 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     environment.lifecycle().manage(messagesCache);
     environment.lifecycle().manage(messagePersister);
     environment.lifecycle().manage(clientPresenceManager);
+    if (localAccountCache != null) {
+      environment.lifecycle().manage(localAccountCache);
+    }
+    environment.lifecycle().manage(deviceLastSeenWriter);
     if (serviceConfig.isPaymentsEnabled())
       environment.lifecycle().manage(currencyManager);
     environment.lifecycle().manage(torExitNodeManager);
@@ -540,7 +575,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     environment.jersey().register(ProtocolBufferMessageBodyProvider.class);
     environment.jersey().register(ProtocolBufferValidationErrorMessageBodyWriter.class);
     environment.jersey().register(InvalidProtocolBufferExceptionMapper.class);
-    // environment.jersey().register(CompletionExceptionMapper.class);
+    environment.jersey().register(CompletionExceptionMapper.class);
 
     environment.jersey().register(new ContentLengthFilter(TrafficSource.HTTP));
     environment.jersey().register(MultiRecipientMessageProvider.class);
@@ -557,7 +592,8 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     ///
     WebSocketEnvironment<AuthenticatedAccount> webSocketEnvironment = new WebSocketEnvironment<>(environment, config.getWebSocketConfiguration(), 90000);
     webSocketEnvironment.setAuthenticator(new WebSocketAccountAuthenticator(accountAuthenticator));
-    webSocketEnvironment.setConnectListener(new AuthenticatedConnectListener(receiptSender, messagesManager, messageSender, null, clientPresenceManager, retrySchedulingExecutor));
+    webSocketEnvironment.setConnectListener(new AuthenticatedConnectListener(receiptSender, messagesManager, messageSender, null, clientPresenceManager, retrySchedulingExecutor,
+        config.getMessageDeliveryConfiguration()));
     webSocketEnvironment.jersey().register(new WebsocketRefreshApplicationEventListener(clientPresenceManager));
     webSocketEnvironment.jersey().register(new ContentLengthFilter(TrafficSource.WEBSOCKET));
     webSocketEnvironment.jersey().register(MultiRecipientMessageProvider.class);
@@ -576,8 +612,9 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
         new AttachmentControllerV2(rateLimiters, minioConfig.getAccessKey(), minioConfig.getAccessSecret(), minioConfig.getRegion(), minioConfig.getAttachmentBucket()),
         new CertificateController(new CertificateGenerator(config.getDeliveryCertificate().getCertificate(), config.getDeliveryCertificate().getPrivateKey(), config.getDeliveryCertificate().getExpiresDays()), zkAuthOperations),
         new ChallengeController(rateLimitChallengeManager),
-        new DeviceController(pendingDevicesManager, accountsManager, messagesManager, keysScyllaDb, rateLimiters, config.getMaxDevices(), localParams.getVerificationCodeLifetime()),
-        new PlainDirectoryController(rateLimiters, accountsManager),
+        new DeviceController(pendingDevicesManager, accountsManager, messagesManager, keysScyllaDb, rateLimiters, config.getMaxDevices(), localParams.getVerificationCodeLifetime(),
+            credentialsVersion),
+        new PlainDirectoryController(rateLimiters, accountsManager, directorySnapshotCache),
         new MessageController(rateLimiters, messageSender, receiptSender, accountsManager, messagesManager, unsealedSenderRateLimiter, null, dynamicConfig, rateLimitChallengeManager, reportMessageManager, metricsCluster, declinedMessageReceiptExecutor, multiRecipientMessageExecutor),
         new ProfileController(clock, rateLimiters, accountsManager, profilesManager, usernamesManager, profileBadgeConverter, config.getBadges(), minioClient, profileCdnPolicyGenerator, profileCdnPolicySigner, minioConfig.getProfileBucket(), zkProfileOperations),
         new ProvisioningController(rateLimiters, provisioningManager),
@@ -665,6 +702,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     webSocketEnvironment.jersey().register(new DeviceLimitExceededExceptionMapper());
     webSocketEnvironment.jersey().register(new RetryLaterExceptionMapper());
     webSocketEnvironment.jersey().register(new ServerRejectedExceptionMapper());
+    webSocketEnvironment.jersey().register(new CompletionExceptionMapper());
 
     provisioningEnvironment.jersey().register(new LoggingUnhandledExceptionMapper());
     provisioningEnvironment.jersey().register(new IOExceptionMapper());
@@ -673,6 +711,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     provisioningEnvironment.jersey().register(new DeviceLimitExceededExceptionMapper());
     provisioningEnvironment.jersey().register(new RetryLaterExceptionMapper());
     provisioningEnvironment.jersey().register(new ServerRejectedExceptionMapper());
+    provisioningEnvironment.jersey().register(new CompletionExceptionMapper());
   }
 
   private void registerCorsFilter(Environment environment) {
@@ -7,6 +7,8 @@ package su.sres.shadowserver.auth;
 
 import java.util.Optional;
 
+import javax.annotation.Nullable;
+
 import io.dropwizard.auth.Authenticator;
 import io.dropwizard.auth.basic.BasicCredentials;
 import io.micrometer.core.instrument.Metrics;
@@ -24,6 +26,11 @@ Authenticator<BasicCredentials, AuthenticatedAccount> {
     super(accountsManager);
   }
 
+  public AccountAuthenticator(AccountsManager accountsManager, @Nullable VerifiedCredentialsCache verifiedCredentialsCache,
+      boolean migrateCredentials) {
+    super(accountsManager, verifiedCredentialsCache, migrateCredentials);
+  }
+
   @Override
   public Optional<AuthenticatedAccount> authenticate(BasicCredentials basicCredentials) {
     final Optional<AuthenticatedAccount> maybeAuthenticatedAccount = super.authenticate(basicCredentials, true);
@@ -1,6 +1,6 @@
 /*
  * Original software: Copyright 2013-2020 Signal Messenger, LLC
- * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * Modified software: Copyright 2019-2023 Anton Alipov, sole trader
  * SPDX-License-Identifier: AGPL-3.0-only
  */
 package su.sres.shadowserver.auth;
@@ -8,12 +8,50 @@ package su.sres.shadowserver.auth;
 import org.apache.commons.codec.binary.Hex;
 
 import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import su.sres.shadowserver.util.Util;
+
 public class AuthenticationCredentials {
-  
+
+  public enum Version {
+    // SHA-1 of the decimal salt followed by the token
+    V1,
+    // HMAC-SHA256 of the token, keyed with a 128-bit random salt
+    V2,
+  }
+
+  // the newest format; only created once every server can verify it
+  public static final Version CURRENT_VERSION = Version.V2;
+
+  // the format created unless the current one is explicitly requested; servers that predate V2 can only verify V1
+  public static final Version DEFAULT_VERSION = Version.V1;
+
+  // V1 hashes are plain hex, so they never contain the separator
+  private static final String V2_PREFIX = "2.";
+
+  private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  });
+
+  private static final ThreadLocal<Mac> HMAC_SHA256 = ThreadLocal.withInitial(() -> {
+    try {
+      return Mac.getInstance("HmacSHA256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  });
+
   private final String hashedAuthenticationToken;
   private final String salt;
 
@@ -23,8 +61,22 @@ public class AuthenticationCredentials {
   }
 
   public AuthenticationCredentials(String authenticationToken) {
-    this.salt                      = String.valueOf(Math.abs(new SecureRandom().nextInt()));
-    this.hashedAuthenticationToken = getHashedValue(salt, authenticationToken);
+    this(authenticationToken, DEFAULT_VERSION);
+  }
+
+  public AuthenticationCredentials(String authenticationToken, Version version) {
+    switch (version) {
+      case V1:
+        this.salt = String.valueOf(Math.abs(new SecureRandom().nextInt()));
+        break;
+      case V2:
+        this.salt = Hex.encodeHexString(Util.generateSecretBytes(16));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown version: " + version);
+    }
+
+    this.hashedAuthenticationToken = getHashedValue(version, salt, authenticationToken);
   }
 
   public String getHashedAuthenticationToken() {
@@ -35,18 +87,33 @@ public class AuthenticationCredentials {
     return salt;
   }
 
+  public Version getVersion() {
+    return hashedAuthenticationToken != null && hashedAuthenticationToken.startsWith(V2_PREFIX) ? Version.V2 : Version.V1;
+  }
+
   public boolean verify(String authenticationToken) {
-    String theirValue = getHashedValue(salt, authenticationToken);
+    String theirValue = getHashedValue(getVersion(), salt, authenticationToken);
 
     return MessageDigest.isEqual(theirValue.getBytes(StandardCharsets.UTF_8), this.hashedAuthenticationToken.getBytes(StandardCharsets.UTF_8));
   }
 
-  private static String getHashedValue(String salt, String token) {
-    
-    try {
-    	return new String(Hex.encodeHex(MessageDigest.getInstance("SHA1").digest((salt + token).getBytes(StandardCharsets.UTF_8))));
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
+  private static String getHashedValue(Version version, String salt, String token) {
+    switch (version) {
+      case V1:
+        return new String(Hex.encodeHex(SHA1.get().digest((salt + token).getBytes(StandardCharsets.UTF_8))));
+
+      case V2:
+        try {
+          final Mac mac = HMAC_SHA256.get();
+          mac.init(new SecretKeySpec(salt.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+
+          return V2_PREFIX + Hex.encodeHexString(mac.doFinal(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (InvalidKeyException e) {
+          throw new AssertionError(e);
+        }
+
+      default:
+        throw new IllegalArgumentException("Unknown version: " + version);
     }
   }
 
@@ -21,6 +21,11 @@ import java.time.temporal.ChronoUnit;
 import java.util.Optional;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.auth.basic.BasicCredentials;
 import io.micrometer.core.instrument.Metrics;
@@ -36,17 +41,44 @@ public class BaseAccountAuthenticator {
   private static final String DAYS_SINCE_LAST_SEEN_DISTRIBUTION_NAME = name(BaseAccountAuthenticator.class, "daysSinceLastSeen");
   private static final String IS_PRIMARY_DEVICE_TAG = "isPrimary";
 
+  private static final String CREDENTIALS_MIGRATION_COUNTER_NAME = name(BaseAccountAuthenticator.class, "credentialsMigration");
+  private static final String FROM_VERSION_TAG_NAME = "fromVersion";
+
+  private static final Logger logger = LoggerFactory.getLogger(BaseAccountAuthenticator.class);
+
   private final AccountsManager accountsManager;
   private final Clock clock;
+  @Nullable
+  private final VerifiedCredentialsCache verifiedCredentialsCache;
+  private final boolean migrateCredentials;
 
   public BaseAccountAuthenticator(AccountsManager accountsManager) {
-    this(accountsManager, Clock.systemUTC());
+    this(accountsManager, null, false);
+  }
+
+  /**
+   * @param verifiedCredentialsCache if not {@code null}, passwords verified recently aren't checked against the stored
+   *                                 credentials again
+   * @param migrateCredentials       whether credentials stored in an older format are re-hashed with
+   *                                 {@link AuthenticationCredentials#CURRENT_VERSION} after a successful login
+   */
+  public BaseAccountAuthenticator(AccountsManager accountsManager,
+      @Nullable VerifiedCredentialsCache verifiedCredentialsCache, boolean migrateCredentials) {
+    this(accountsManager, Clock.systemUTC(), verifiedCredentialsCache, migrateCredentials);
   }
 
   @VisibleForTesting
   public BaseAccountAuthenticator(AccountsManager accountsManager, Clock clock) {
+    this(accountsManager, clock, null, false);
+  }
+
+  @VisibleForTesting
+  BaseAccountAuthenticator(AccountsManager accountsManager, Clock clock,
+      @Nullable VerifiedCredentialsCache verifiedCredentialsCache, boolean migrateCredentials) {
     this.accountsManager = accountsManager;
     this.clock = clock;
+    this.verifiedCredentialsCache = verifiedCredentialsCache;
+    this.migrateCredentials = migrateCredentials;
   }
   
   static Pair<String, Long> getIdentifierAndDeviceId(final String basicUsername) {
@@ -106,9 +138,24 @@ public class BaseAccountAuthenticator {
         }
       }
 
-      if (device.get().getAuthenticationCredentials().verify(basicCredentials.getPassword())) {
+      final AuthenticationCredentials credentials = device.get().getAuthenticationCredentials();
+      final boolean verified = verifiedCredentialsCache != null
+          ? verifiedCredentialsCache.verify(accountUuid, deviceId, credentials, basicCredentials.getPassword())
+          : credentials.verify(basicCredentials.getPassword());
+
+      if (verified) {
         succeeded = true;
-        final Account authenticatedAccount = updateLastSeen(account.get(), device.get());
+        Account authenticatedAccount = account.get();
+        Device authenticatedDevice = device.get();
+
+        if (migrateCredentials && credentials.getVersion() != AuthenticationCredentials.CURRENT_VERSION) {
+          authenticatedAccount = migrateCredentials(authenticatedAccount, deviceId, credentials.getVersion(),
+              basicCredentials.getPassword());
+          authenticatedDevice = authenticatedAccount.getDevice(deviceId).orElse(authenticatedDevice);
+        }
+
+        authenticatedAccount = updateLastSeen(authenticatedAccount, authenticatedDevice);
+
         return Optional.of(new AuthenticatedAccount(
             new RefreshingAccountAndDeviceSupplier(authenticatedAccount, device.get().getId(), accountsManager)));
       }
@@ -130,6 +177,24 @@ public class BaseAccountAuthenticator {
     }
   }
 
+  private Account migrateCredentials(final Account account, final long deviceId,
+      final AuthenticationCredentials.Version fromVersion, final String password) {
+
+    try {
+      final Account updatedAccount = accountsManager.updateDevice(account, deviceId,
+          d -> d.setAuthenticationCredentials(new AuthenticationCredentials(password, AuthenticationCredentials.CURRENT_VERSION)));
+
+      Metrics.counter(CREDENTIALS_MIGRATION_COUNTER_NAME, FROM_VERSION_TAG_NAME, fromVersion.name()).increment();
+
+      return updatedAccount;
+    } catch (final RuntimeException e) {
+      // the old credentials still work; try again with the next login
+      logger.warn("Failed to migrate credentials", e);
+
+      return account;
+    }
+  }
+
   @VisibleForTesting
   public Account updateLastSeen(Account account, Device device) {
     final long lastSeenOffsetSeconds = Math.abs(account.getUuid().getLeastSignificantBits()) % ChronoUnit.DAYS.getDuration().toSeconds();
@@ -9,6 +9,8 @@ import su.sres.shadowserver.storage.AccountsManager;
 
 import java.util.Optional;
 
+import javax.annotation.Nullable;
+
 import io.dropwizard.auth.Authenticator;
 import io.dropwizard.auth.basic.BasicCredentials;
 
@@ -19,6 +21,11 @@ public class DisabledPermittedAccountAuthenticator extends BaseAccountAuthentica
     super(accountsManager);
   }
 
+  public DisabledPermittedAccountAuthenticator(AccountsManager accountsManager, @Nullable VerifiedCredentialsCache verifiedCredentialsCache,
+      boolean migrateCredentials) {
+    super(accountsManager, verifiedCredentialsCache, migrateCredentials);
+  }
+
   @Override
   public Optional<DisabledPermittedAuthenticatedAccount> authenticate(BasicCredentials credentials) {
     Optional<AuthenticatedAccount> account = super.authenticate(credentials, false);
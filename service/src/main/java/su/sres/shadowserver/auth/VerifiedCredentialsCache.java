@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.auth;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import su.sres.shadowserver.configuration.DeviceAuthenticationConfiguration;
+import su.sres.shadowserver.util.Util;
+
+/**
+ * Remembers recently verified device passwords, so that repeated requests from the same device (e.g. websocket
+ * reconnects) don't hash the password against the stored credentials every time. Entries are keyed by account, device
+ * and stored credentials, so they stop matching as soon as the credentials change. Only a digest of each verified
+ * password, keyed with a secret generated at startup, is kept, never the password itself.
+ */
+public class VerifiedCredentialsCache {
+
+  private final Cache<CacheKey, byte[]> verifiedPasswords;
+  private final ThreadLocal<Mac> passwordDigest;
+
+  private static final String LOOKUP_COUNTER_NAME = name(VerifiedCredentialsCache.class, "lookup");
+  private static final String OUTCOME_TAG_NAME = "outcome";
+
+  private static final Counter hitCounter = Metrics.counter(LOOKUP_COUNTER_NAME, OUTCOME_TAG_NAME, "hit");
+  private static final Counter missCounter = Metrics.counter(LOOKUP_COUNTER_NAME, OUTCOME_TAG_NAME, "miss");
+
+  public VerifiedCredentialsCache(final DeviceAuthenticationConfiguration configuration) {
+    this(configuration.getCacheMaxSize(), configuration.getCacheTimeToLive());
+  }
+
+  @VisibleForTesting
+  VerifiedCredentialsCache(final int maxSize, final Duration timeToLive) {
+    this.verifiedPasswords = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(timeToLive.toMillis(), TimeUnit.MILLISECONDS)
+        .build();
+
+    final SecretKeySpec digestKey = new SecretKeySpec(Util.generateSecretBytes(32), "HmacSHA256");
+
+    this.passwordDigest = ThreadLocal.withInitial(() -> {
+      try {
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(digestKey);
+
+        return mac;
+      } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    });
+  }
+
+  /**
+   * Checks the given password against the device's stored credentials, skipping the check if the same password was
+   * verified against the same credentials recently.
+   */
+  public boolean verify(final UUID accountUuid, final long deviceId, final AuthenticationCredentials credentials,
+      final String password) {
+
+    final CacheKey key = new CacheKey(accountUuid, deviceId, credentials.getHashedAuthenticationToken());
+    final byte[] digest = passwordDigest.get().doFinal(password.getBytes(StandardCharsets.UTF_8));
+    final byte[] verifiedDigest = verifiedPasswords.getIfPresent(key);
+
+    if (verifiedDigest != null && MessageDigest.isEqual(verifiedDigest, digest)) {
+      hitCounter.increment();
+      return true;
+    }
+
+    missCounter.increment();
+
+    if (credentials.verify(password)) {
+      verifiedPasswords.put(key, digest);
+      return true;
+    }
+
+    return false;
+  }
+
+  private static final class CacheKey {
+
+    private final UUID accountUuid;
+    private final long deviceId;
+    private final String hashedAuthenticationToken;
+
+    private CacheKey(final UUID accountUuid, final long deviceId, final String hashedAuthenticationToken) {
+      this.accountUuid = accountUuid;
+      this.deviceId = deviceId;
+      this.hashedAuthenticationToken = hashedAuthenticationToken;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      final CacheKey that = (CacheKey) o;
+
+      return deviceId == that.deviceId && accountUuid.equals(that.accountUuid)
+          && Objects.equals(hashedAuthenticationToken, that.hashedAuthenticationToken);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(accountUuid, deviceId, hashedAuthenticationToken);
+    }
+  }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class AccountStorageConfiguration {
+
+    // whether accounts are written to the accounts table and the Redis account cache in the compact binary form
+    // instead of JSON, and single devices are written on their own instead of with the whole account; both forms are
+    // always read, so only enable once every server can read the binary form
+    @JsonProperty
+    private boolean binaryFormat = false;
+
+    public boolean isBinaryFormat() {
+	return binaryFormat;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class DeviceAuthenticationConfiguration {
+
+    @JsonProperty
+    private boolean cacheEnabled = true;
+
+    // the maximum number of verified device credentials each server remembers
+    @JsonProperty
+    @Min(1)
+    private int cacheMaxSize = 100_000;
+
+    // how long a verified password is remembered; changed credentials never match an earlier entry anyway
+    @JsonProperty
+    @NotNull
+    private Duration cacheTimeToLive = Duration.ofMinutes(10);
+
+    // whether new devices get credentials in the current format and credentials stored in an older format are
+    // re-hashed with it after a successful login; only enable once every server can verify the current format
+    @JsonProperty
+    private boolean migrateCredentials = false;
+
+    public boolean isCacheEnabled() {
+	return cacheEnabled;
+    }
+
+    public int getCacheMaxSize() {
+	return cacheMaxSize;
+    }
+
+    public Duration getCacheTimeToLive() {
+	return cacheTimeToLive;
+    }
+
+    public boolean isMigrateCredentials() {
+	return migrateCredentials;
+    }
+}
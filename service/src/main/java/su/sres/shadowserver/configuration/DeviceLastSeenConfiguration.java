@@ -0,0 +1,33 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class DeviceLastSeenConfiguration {
+
+    // how long last seen updates are held and coalesced before they're written
+    @JsonProperty
+    @NotNull
+    private Duration flushInterval = Duration.ofSeconds(5);
+
+    // the maximum number of accounts written per flush; the rest wait for the next one
+    @JsonProperty
+    @Min(1)
+    private int maxBatchSize = 1_000;
+
+    public Duration getFlushInterval() {
+	return flushInterval;
+    }
+
+    public int getMaxBatchSize() {
+	return maxBatchSize;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class LocalAccountCacheConfiguration {
+
+    @JsonProperty
+    private boolean enabled = false;
+
+    // the maximum number of parsed accounts each server keeps
+    @JsonProperty
+    @Min(1)
+    private int maxSize = 100_000;
+
+    // bounds how long a server may keep serving an account if it misses an invalidation (e.g. during a reconnect)
+    @JsonProperty
+    @NotNull
+    private Duration timeToLive = Duration.ofSeconds(10);
+
+    public boolean isEnabled() {
+	return enabled;
+    }
+
+    public int getMaxSize() {
+	return maxSize;
+    }
+
+    public Duration getTimeToLive() {
+	return timeToLive;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import su.sres.shadowserver.util.ua.ClientPlatform;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+public class MessageDeliveryConfiguration {
+
+    // the number of stored messages a websocket connection may have sent but not yet had acknowledged
+    @JsonProperty
+    @Min(1)
+    private int defaultWindowSize = 100;
+
+    @JsonProperty
+    @NotNull
+    private Map<ClientPlatform, Integer> windowSizes = Collections.emptyMap();
+
+    public int getDefaultWindowSize() {
+	return defaultWindowSize;
+    }
+
+    public Map<ClientPlatform, Integer> getWindowSizes() {
+	return windowSizes;
+    }
+
+    public int getWindowSize(final Optional<ClientPlatform> platform) {
+	return Math.max(1, platform.map(windowSizes::get).orElse(defaultWindowSize));
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+public class MessagePayloadCompressionConfiguration {
+
+    // stored messages are always readable whether or not they were compressed, so this may be toggled at any time
+    @JsonProperty
+    private boolean enabled = false;
+
+    // payloads smaller than this many bytes are stored as they are
+    @JsonProperty
+    @Min(0)
+    private int minimumSize = 1024;
+
+    // the deflate compression level, from 1 (fastest) to 9 (smallest)
+    @JsonProperty
+    @Min(1)
+    @Max(9)
+    private int level = 1;
+
+    public boolean isEnabled() {
+	return enabled;
+    }
+
+    public int getMinimumSize() {
+	return minimumSize;
+    }
+
+    public int getLevel() {
+	return level;
+    }
+}
@@ -74,6 +74,9 @@ public class RateLimitsConfiguration {
   @JsonProperty
   private RateLimitConfiguration licenseRequest = new RateLimitConfiguration(2, 2);
 
+  @JsonProperty
+  private LocalDenialCacheConfiguration localDenialCache = new LocalDenialCacheConfiguration();
+
   public RateLimitConfiguration getAutoBlock() {
     return autoBlock;
   }
@@ -158,6 +161,10 @@ public class RateLimitsConfiguration {
     return licenseRequest;
   }
 
+  public LocalDenialCacheConfiguration getLocalDenialCache() {
+    return localDenialCache;
+  }
+
   public static class RateLimitConfiguration {
     @JsonProperty
     private int bucketSize;
@@ -205,4 +212,36 @@ public class RateLimitsConfiguration {
       return ttl;
     }    
   }
+
+  public static class LocalDenialCacheConfiguration {
+    @JsonProperty
+    private boolean enabled = false;
+
+    @JsonProperty
+    private int maxKeysPerLimiter = 10_000;
+
+    @JsonProperty
+    private Duration maxDenialDuration = Duration.ofMinutes(1);
+
+    public LocalDenialCacheConfiguration() {
+    }
+
+    public LocalDenialCacheConfiguration(boolean enabled, int maxKeysPerLimiter, Duration maxDenialDuration) {
+      this.enabled = enabled;
+      this.maxKeysPerLimiter = maxKeysPerLimiter;
+      this.maxDenialDuration = maxDenialDuration;
+    }
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public int getMaxKeysPerLimiter() {
+      return maxKeysPerLimiter;
+    }
+
+    public Duration getMaxDenialDuration() {
+      return maxDenialDuration;
+    }
+  }
 }
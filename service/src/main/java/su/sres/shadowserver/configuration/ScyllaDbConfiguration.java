@@ -42,6 +42,10 @@ public class ScyllaDbConfiguration {
     
     // used by messages
     private Duration timeToLive = Duration.ofDays(14);
+    private Duration messageDeletionBatchWindow = Duration.ofMillis(20);
+    
+    // used by messages and keys
+    private int batchWriteParallelism = 4;
     
     @Valid
     @NotEmpty
@@ -84,11 +88,21 @@ public class ScyllaDbConfiguration {
     return timeToLive;
     }
     
+    @JsonProperty
+    public Duration getMessageDeletionBatchWindow() {
+      return messageDeletionBatchWindow;
+    }
+    
     @JsonProperty
     public int getScanPageSize() {
       return scanPageSize;
     }
     
+    @JsonProperty
+    public int getBatchWriteParallelism() {
+      return batchWriteParallelism;
+    }
+    
     @JsonProperty
     public String getUserLoginTableName() {
       return userLoginTableName;
@@ -63,6 +63,7 @@ public class DeviceController {
   private final RateLimiters rateLimiters;
   private final Map<String, Integer> maxDeviceConfiguration;
   private final int verificationCodeLifetime;
+  private final AuthenticationCredentials.Version credentialsVersion;
 
   public DeviceController(StoredVerificationCodeManager pendingDevices,
       AccountsManager accounts,
@@ -71,6 +72,21 @@ public class DeviceController {
       RateLimiters rateLimiters,
       Map<String, Integer> maxDeviceConfiguration,
       int verificationCodeLifetime) {
+    this(pendingDevices, accounts, messages, keys, rateLimiters, maxDeviceConfiguration, verificationCodeLifetime,
+        AuthenticationCredentials.DEFAULT_VERSION);
+  }
+
+  /**
+   * @param credentialsVersion the format of the credentials of newly linked devices
+   */
+  public DeviceController(StoredVerificationCodeManager pendingDevices,
+      AccountsManager accounts,
+      MessagesManager messages,
+      KeysScyllaDb keys,
+      RateLimiters rateLimiters,
+      Map<String, Integer> maxDeviceConfiguration,
+      int verificationCodeLifetime,
+      AuthenticationCredentials.Version credentialsVersion) {
     this.pendingDevices = pendingDevices;
     this.accounts = accounts;
     this.messages = messages;
@@ -78,6 +94,7 @@ public class DeviceController {
     this.rateLimiters = rateLimiters;
     this.maxDeviceConfiguration = maxDeviceConfiguration;
     this.verificationCodeLifetime = verificationCodeLifetime;
+    this.credentialsVersion = credentialsVersion;
   }
 
   @Timed
@@ -189,7 +206,7 @@ public class DeviceController {
 
     Device device = new Device();
     device.setName(accountAttributes.getName());
-    device.setAuthenticationCredentials(new AuthenticationCredentials(password));
+    device.setAuthenticationCredentials(new AuthenticationCredentials(password, credentialsVersion));
     device.setFetchesMessages(accountAttributes.getFetchesMessages());
     device.setRegistrationId(accountAttributes.getRegistrationId());
     device.setLastSeen(Util.todayInMillis());
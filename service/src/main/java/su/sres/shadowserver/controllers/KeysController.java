@@ -33,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import io.dropwizard.auth.Auth;
 import io.micrometer.core.instrument.Metrics;
@@ -77,14 +78,9 @@ public class KeysController {
 
   @GET
   @Produces(MediaType.APPLICATION_JSON)
-  public PreKeyCount getStatus(@Auth AuthenticatedAccount auth) {
-    int count = keysScyllaDb.getCount(auth.getAccount(), auth.getAuthenticatedDevice().getId());
-
-    if (count > 0) {
-      count = count - 1;
-    }
-
-    return new PreKeyCount(count);
+  public CompletableFuture<PreKeyCount> getStatus(@Auth AuthenticatedAccount auth) {
+    return keysScyllaDb.getCountAsync(auth.getAccount(), auth.getAuthenticatedDevice().getId())
+        .thenApply(count -> new PreKeyCount(count > 0 ? count - 1 : count));
   }
 
   @Timed
@@ -117,7 +113,7 @@ public class KeysController {
   @GET
   @Path("/{identifier}/{device_id}")
   @Produces(MediaType.APPLICATION_JSON)
-  public Response getDeviceKeys(@Auth Optional<AuthenticatedAccount> auth,
+  public CompletableFuture<Response> getDeviceKeys(@Auth Optional<AuthenticatedAccount> auth,
       @HeaderParam(OptionalAccess.UNIDENTIFIED) Optional<Anonymous> accessKey,
       @PathParam("identifier") UUID targetUuid, @PathParam("device_id") String deviceId, @HeaderParam("User-Agent") String userAgent)
       throws RateLimitExceededException, RateLimitChallengeException, ServerRejectedException {
@@ -126,16 +122,14 @@ public class KeysController {
       throw new WebApplicationException(Response.Status.UNAUTHORIZED);
     }
 
+    final Optional<Long> targetDeviceId = parseDeviceIdSelector(deviceId);
     final Optional<Account> account = auth.map(AuthenticatedAccount::getAccount);
 
-    Optional<Account> target = accounts.get(targetUuid);
-    OptionalAccess.verify(account, accessKey, target, deviceId);
-
-    assert (target.isPresent());
-
+    // rate limits are checked before the target is looked up; they only depend on the requested identifier, and
+    // checking them here keeps the rest of the request free of blocking calls
     if (account.isPresent()) {
       rateLimiters.getPreKeysLimiter().validate(
-          account.get().getUuid() + "." + auth.get().getAuthenticatedDevice().getId() + "__" + target.get().getUuid()
+          account.get().getUuid() + "." + auth.get().getAuthenticatedDevice().getId() + "__" + targetUuid
               + "." + deviceId);
 
       try {
@@ -155,10 +149,20 @@ public class KeysController {
       }
     }
 
-    Map<Long, PreKey> preKeysByDeviceId = getLocalKeys(target.get(), deviceId);
+    return accounts.getAsync(targetUuid).thenCompose(target -> {
+      OptionalAccess.verify(account, accessKey, target, deviceId);
+
+      assert (target.isPresent());
+
+      return getLocalKeys(target.get(), targetDeviceId)
+          .thenApply(preKeysByDeviceId -> buildPreKeyResponse(target.get(), deviceId, preKeysByDeviceId));
+    });
+  }
+
+  private static Response buildPreKeyResponse(Account target, String deviceId, Map<Long, PreKey> preKeysByDeviceId) {
     List<PreKeyResponseItem> responseItems = new LinkedList<>();
 
-    for (Device device : target.get().getDevices()) {
+    for (Device device : target.getDevices()) {
       if (device.isEnabled() && (deviceId.equals("*") || device.getId() == Long.parseLong(deviceId))) {
         SignedPreKey signedPreKey = device.getSignedPreKey();
         PreKey preKey = preKeysByDeviceId.get(device.getId());
@@ -173,7 +177,7 @@ public class KeysController {
       // this triggers mark unregistered on the client side
       return Response.status(404).build();
     } else
-      return Response.ok().entity(new PreKeyResponse(target.get().getIdentityKey(), responseItems)).build();
+      return Response.ok().entity(new PreKeyResponse(target.getIdentityKey(), responseItems)).build();
   }
 
   @Timed
@@ -200,20 +204,35 @@ public class KeysController {
       return Optional.empty();
   }
 
-  private Map<Long, PreKey> getLocalKeys(Account destination, String deviceIdSelector) {
+  private CompletableFuture<Map<Long, PreKey>> getLocalKeys(Account destination, Optional<Long> maybeDeviceId) {
 // excluded federation (?), reserved for future use 
     // throws NoSuchUserException
 
-    try {
-      if (deviceIdSelector.equals("*")) {
-        return keysScyllaDb.take(destination);
-      }
+    if (maybeDeviceId.isEmpty()) {
+      return keysScyllaDb.takeAsync(destination);
+    }
+
+    final long deviceId = maybeDeviceId.get();
+
+    return keysScyllaDb.takeAsync(destination, deviceId)
+        .thenApply(maybePreKey -> maybePreKey
+            .map(preKey -> Map.of(deviceId, preKey))
+            .orElse(Collections.emptyMap()));
+  }
 
-      long deviceId = Long.parseLong(deviceIdSelector);
+  /**
+   * Parses a device selector before any asynchronous work is started, so a malformed selector is rejected with a 422
+   * on the request thread.
+   *
+   * @return the selected device ID, or empty if all devices are selected
+   */
+  private static Optional<Long> parseDeviceIdSelector(String deviceIdSelector) {
+    if (deviceIdSelector.equals("*")) {
+      return Optional.empty();
+    }
 
-      return keysScyllaDb.take(destination, deviceId)
-          .map(preKey -> Map.of(deviceId, preKey))
-          .orElse(Collections.emptyMap());
+    try {
+      return Optional.of(Long.parseLong(deviceIdSelector));
     } catch (NumberFormatException e) {
       throw new WebApplicationException(Response.status(422).build());
     }
@@ -12,7 +12,9 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.annotation.Timed;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -52,7 +54,10 @@ import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -95,6 +100,7 @@ import su.sres.shadowserver.providers.MultiRecipientMessageProvider;
 import su.sres.shadowserver.push.ApnFallbackManager;
 import su.sres.shadowserver.push.NotPushRegisteredException;
 import su.sres.shadowserver.push.MessageSender;
+import su.sres.shadowserver.push.MessageSender.Delivery;
 import su.sres.shadowserver.push.ReceiptSender;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.redis.RedisOperation;
@@ -123,7 +129,7 @@ public class MessageController {
   private final Meter rejectOver256kibMessageMeter = metricRegistry.meter(name(getClass(), "rejectOver256kibMessage"));
   private final Meter rejectUnsealedSenderLimit = metricRegistry.meter(name(getClass(), "rejectUnsealedSenderLimit"));
   private final Timer sendMessageInternalTimer = metricRegistry.timer(name(getClass(), "sendMessageInternal"));
-  private final Timer sendCommonMessageInternalTimer = metricRegistry.timer(name(getClass(), "sendCommonMessageInternal"));
+  private final Timer sendCommonMessageBatchTimer = metricRegistry.timer(name(getClass(), "sendCommonMessageBatch"));
   private final Histogram outgoingMessageListSizeHistogram = metricRegistry.histogram(name(getClass(), "outgoingMessageListSize"));
 
   private final RateLimiters rateLimiters;
@@ -154,6 +160,14 @@ public class MessageController {
  
   private static final long MAX_MESSAGE_SIZE = DataSize.kibibytes(256).toBytes();
 
+  // recipients of a multi-recipient message are queued in batches of this size, each on its own executor thread
+  private static final int MULTI_RECIPIENT_BATCH_SIZE = 100;
+
+  // the common payload of a multi-recipient message at least this large is stored once and referred to by each
+  // recipient's message, rather than copied into every recipient's queue
+  @VisibleForTesting
+  static final int SHARED_PAYLOAD_MINIMUM_SIZE = 1024;
+
   public MessageController(RateLimiters rateLimiters,
       MessageSender messageSender,
       ReceiptSender receiptSender,
@@ -355,6 +369,9 @@ public class MessageController {
         }));
     checkAccessKeys(accessKeys, uuidToAccountMap);
 
+    // the shared payload is stored while the device lists are checked; it expires on its own if they don't match
+    final CompletableFuture<Optional<ByteString>> sharedPayloadIdFuture = storeSharedPayload(multiRecipientMessage, online);
+
     final Map<Account, HashSet<Pair<Long, Integer>>> accountToDeviceIdAndRegistrationIdMap = Arrays
         .stream(multiRecipientMessage.getRecipients())
         .collect(Collectors.toMap(
@@ -403,26 +420,31 @@ public class MessageController {
         Tag.of(SENDER_TYPE_TAG_NAME, "unidentified"));
     List<UUID> uuids404 = Collections.synchronizedList(new ArrayList<>());
     final Counter counter = Metrics.counter(SENT_MESSAGE_COUNTER_NAME, tags);
+    final Optional<ByteString> sharedPayloadId = sharedPayloadIdFuture.join();
+    int failedDeliveries = 0;
     try {
-      multiRecipientMessageExecutor.invokeAll(Arrays.stream(multiRecipientMessage.getRecipients())
-          .map(recipient -> (Callable<Void>) () -> {
-            Account destinationAccount = uuidToAccountMap.get(recipient.getUuid());
-         // we asserted this must exist in validateCompleteDeviceList
-            Device destinationDevice = destinationAccount.getDevice(recipient.getDeviceId()).orElseThrow();
-            counter.increment();
-            try {
-              sendMessage(destinationAccount, destinationDevice, timestamp, online, recipient,
-                  multiRecipientMessage.getCommonPayload());
-            } catch (NoSuchUserException e) {
-              uuids404.add(destinationAccount.getUuid());
-            }
-            return null;
-          })
+      final List<Future<Integer>> batchFutures = multiRecipientMessageExecutor.invokeAll(Lists.partition(Arrays.asList(multiRecipientMessage.getRecipients()), MULTI_RECIPIENT_BATCH_SIZE)
+          .stream()
+          .map(recipients -> (Callable<Integer>) () -> sendCommonMessages(uuidToAccountMap, recipients, timestamp, online,
+              multiRecipientMessage.getCommonPayload(), sharedPayloadId, counter, uuids404))
           .collect(Collectors.toList()));
+
+      for (final Future<Integer> batchFuture : batchFutures) {
+        try {
+          failedDeliveries += batchFuture.get();
+        } catch (ExecutionException e) {
+          logger.error("failed to deliver a batch of multi-recipient messages", e.getCause());
+          failedDeliveries++;
+        }
+      }
     } catch (InterruptedException e) {
       logger.error("interrupted while delivering multi-recipient messages", e);
       return Response.serverError().entity("interrupted during delivery").build();
     }
+    if (failedDeliveries > 0) {
+      // every other recipient has been sent its message; the sender has no way to tell which ones didn't get theirs
+      return Response.serverError().entity("failed to deliver to some recipients").build();
+    }
     return Response.ok(new SendMultiRecipientMessageResponse(uuids404)).build();
   }
 
@@ -540,8 +562,8 @@ public class MessageController {
     long size = 0;
 
     for (final OutgoingMessageEntity message : messageList.getMessages()) {
-      size += message.getContent() == null ? 0 : message.getContent().length;
-      size += message.getMessage() == null ? 0 : message.getMessage().length;
+      size += message.getContentBytes() == null ? 0 : message.getContentBytes().size();
+      size += message.getMessageBytes() == null ? 0 : message.getMessageBytes().size();
       size += Util.isEmpty(message.getSource()) ? 0 : message.getSource().length();
       size += Util.isEmpty(message.getRelay()) ? 0 : message.getRelay().length();
     }
@@ -610,35 +632,79 @@ public class MessageController {
     }
   }
 
-  private void sendMessage(Account destinationAccount, Device destinationDevice, long timestamp, boolean online,
-      Recipient recipient, byte[] commonPayload) throws NoSuchUserException {
-    try (final Timer.Context ignored = sendCommonMessageInternalTimer.time()) {
-      Envelope.Builder messageBuilder = Envelope.newBuilder();
-      long serverTimestamp = System.currentTimeMillis();
-      byte[] recipientKeyMaterial = recipient.getPerRecipientKeyMaterial();
+  private CompletableFuture<Optional<ByteString>> storeSharedPayload(MultiRecipientMessage multiRecipientMessage, boolean online) {
+    if (multiRecipientMessage.getRecipients().length < 2 || multiRecipientMessage.getCommonPayload().length < SHARED_PAYLOAD_MINIMUM_SIZE) {
+      return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    return messagesManager.storeSharedPayloadAsync(multiRecipientMessage.getCommonPayload(), online)
+        .thenApply(Optional::of)
+        .exceptionally(throwable -> {
+          // every recipient's message can still carry its own copy of the payload
+          logger.warn("Failed to store shared payload", throwable);
+          return Optional.empty();
+        });
+  }
 
-      byte[] payload = new byte[1 + recipientKeyMaterial.length + commonPayload.length];
-      payload[0] = MultiRecipientMessageProvider.VERSION;
-      System.arraycopy(recipientKeyMaterial, 0, payload, 1, recipientKeyMaterial.length);
-      System.arraycopy(commonPayload, 0, payload, 1 + recipientKeyMaterial.length, commonPayload.length);
+  /**
+   * @return the number of recipients whose message could not be queued
+   */
+  private int sendCommonMessages(Map<UUID, Account> uuidToAccountMap, List<Recipient> recipients, long timestamp,
+      boolean online, byte[] commonPayload, Optional<ByteString> sharedPayloadId, Counter counter, List<UUID> uuids404) {
+    try (final Timer.Context ignored = sendCommonMessageBatchTimer.time()) {
+      final List<Delivery> deliveries = new ArrayList<>(recipients.size());
+
+      for (final Recipient recipient : recipients) {
+        Account destinationAccount = uuidToAccountMap.get(recipient.getUuid());
+        // we asserted this must exist in validateCompleteDeviceList
+        Device destinationDevice = destinationAccount.getDevice(recipient.getDeviceId()).orElseThrow();
+        counter.increment();
+
+        deliveries.add(new Delivery(destinationAccount, destinationDevice, buildCommonMessage(timestamp, recipient, commonPayload, sharedPayloadId)));
+      }
 
-      messageBuilder
-          .setType(Type.UNIDENTIFIED_SENDER)
-          .setTimestamp(timestamp == 0 ? serverTimestamp : timestamp)
-          .setServerTimestamp(serverTimestamp)
-          .setContent(ByteString.copyFrom(payload));
+      final MessageSender.BatchResult result = messageSender.sendMessages(deliveries, online);
 
-      messageSender.sendMessage(destinationAccount, destinationDevice, messageBuilder.build(), online);
-    } catch (NotPushRegisteredException e) {
-      if (destinationDevice.isMaster()) {
-        // this triggers mark unregistered on the client side
-        throw new NoSuchUserException(e);        
-      } else {
-        logger.debug("Not registered", e);
+      for (final Delivery undeliverable : result.getUndeliverable()) {
+        if (undeliverable.getDevice().isMaster()) {
+          // this triggers mark unregistered on the client side
+          uuids404.add(undeliverable.getAccount().getUuid());
+        } else {
+          logger.debug("Not registered: {}.{}", undeliverable.getAccount().getUuid(), undeliverable.getDevice().getId());
+        }
       }
+
+      return result.getFailed().size();
     }
   }
 
+  /**
+   * Builds the message for one recipient of a multi-recipient message. If the common payload was stored as a shared
+   * payload, the message's content holds everything up to it, and the shared payload is appended when the message is
+   * read.
+   */
+  @VisibleForTesting
+  static Envelope buildCommonMessage(long timestamp, Recipient recipient, byte[] commonPayload, Optional<ByteString> sharedPayloadId) {
+    long serverTimestamp = System.currentTimeMillis();
+    byte[] recipientKeyMaterial = recipient.getPerRecipientKeyMaterial();
+    int commonPayloadLength = sharedPayloadId.isPresent() ? 0 : commonPayload.length;
+
+    byte[] payload = new byte[1 + recipientKeyMaterial.length + commonPayloadLength];
+    payload[0] = MultiRecipientMessageProvider.VERSION;
+    System.arraycopy(recipientKeyMaterial, 0, payload, 1, recipientKeyMaterial.length);
+    System.arraycopy(commonPayload, 0, payload, 1 + recipientKeyMaterial.length, commonPayloadLength);
+
+    Envelope.Builder envelopeBuilder = Envelope.newBuilder()
+        .setType(Type.UNIDENTIFIED_SENDER)
+        .setTimestamp(timestamp == 0 ? serverTimestamp : timestamp)
+        .setServerTimestamp(serverTimestamp)
+        .setContent(UnsafeByteOperations.unsafeWrap(payload));
+
+    sharedPayloadId.ifPresent(envelopeBuilder::setSharedPayloadId);
+
+    return envelopeBuilder.build();
+  }
+
   @VisibleForTesting
   public static void validateRegistrationIds(Account account, List<IncomingMessage> messages)
       throws StaleDevicesException {
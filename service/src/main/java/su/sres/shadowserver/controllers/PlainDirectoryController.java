@@ -14,8 +14,14 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import io.dropwizard.auth.Auth;
 import io.dropwizard.jersey.protobuf.ProtocolBufferMediaType;
@@ -23,7 +29,10 @@ import su.sres.shadowserver.auth.AuthenticatedAccount;
 import su.sres.shadowserver.limits.RateLimiters;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.AccountsManager;
+import su.sres.shadowserver.storage.CompactDirectoryEncoder;
+import su.sres.shadowserver.storage.DirectoryEntryFormat;
 import su.sres.shadowserver.storage.DirectoryManager;
+import su.sres.shadowserver.storage.DirectorySnapshotCache;
 import su.sres.shadowserver.storage.protos.DirectoryResponse;
 import su.sres.shadowserver.storage.protos.DirectoryUpdate;
 import su.sres.shadowserver.storage.protos.DirectoryUpdate.Type;
@@ -33,6 +42,12 @@ import static su.sres.shadowserver.storage.DirectoryManager.INCREMENTAL_UPDATES_
 @Path("/v1/dirplain")
 public class PlainDirectoryController {
 
+  // clients opt into the compact entries with e.g. "Accept: application/x-protobuf;entries=compact;compression=deflate"
+  private static final String ENTRIES_PARAMETER = "entries";
+  private static final String COMPACT_ENTRIES = "compact";
+  private static final String COMPRESSION_PARAMETER = "compression";
+  private static final String DEFLATE_COMPRESSION = "deflate";
+
   private final Logger logger = LoggerFactory.getLogger(PlainDirectoryController.class);
 //  private final MetricRegistry metricRegistry    = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
 //  private final Histogram      contactsHistogram = metricRegistry.histogram(name(getClass(), "contacts"));
@@ -40,11 +55,15 @@ public class PlainDirectoryController {
   private final RateLimiters rateLimiters;
   private final DirectoryManager directory;
   private final AccountsManager accountsManager;
+  private final DirectorySnapshotCache snapshotCache;
+  private final CompactDirectoryEncoder compactEncoder;
   private final AtomicInteger directoryReadLock;
 
-  public PlainDirectoryController(RateLimiters rateLimiters, AccountsManager accountsManager) {
+  public PlainDirectoryController(RateLimiters rateLimiters, AccountsManager accountsManager, DirectorySnapshotCache snapshotCache) {
     this.accountsManager = accountsManager;
     this.rateLimiters = rateLimiters;
+    this.snapshotCache = snapshotCache;
+    this.compactEncoder = new CompactDirectoryEncoder();
 
     directory = accountsManager.getDirectoryManager();
     directoryReadLock = new AtomicInteger(0);
@@ -54,11 +73,12 @@ public class PlainDirectoryController {
   @GET
   @Path("/download/{version}")
   @Produces(ProtocolBufferMediaType.APPLICATION_PROTOBUF)
-  public DirectoryResponse downloadDirectory(@PathParam("version") String receivedVersion, @Auth AuthenticatedAccount auth) throws RateLimitExceededException {
+  public Response downloadDirectory(@PathParam("version") String receivedVersion, @Auth AuthenticatedAccount auth, @Context HttpHeaders headers) throws RateLimitExceededException {
     rateLimiters.getDirectoryLimiter().validate(auth.getAccount().getUuid());
 
     long remoteVersion = Long.parseLong(receivedVersion);
     long localVersion = accountsManager.getDirectoryVersion();
+    DirectoryEntryFormat format = negotiateEntryFormat(headers);
 
     if (
     // if directory is write locked, return no-update, whatever the version
@@ -77,44 +97,26 @@ public class PlainDirectoryController {
       throw new WebApplicationException(500);
     }
 
-    directoryReadLock.getAndIncrement();
-    directory.setDirectoryReadLock();
-
-    try {
-
-      if (remoteVersion == 0) {
-
-        return fullDirectoryResponse(localVersion);
-
-      } else {
+    if (remoteVersion == 0) {
 
-        long versionDiff = localVersion - remoteVersion;
+      return fullDirectoryResponse(localVersion, format);
 
-        if (versionDiff > INCREMENTAL_UPDATES_TO_HOLD) {
-
-          return fullDirectoryResponse(localVersion);
-
-        } else {
+    } else {
 
-          HashMap<String, String> incrementalUpdate = directory.retrieveIncrementalUpdate((int) versionDiff);
+      long versionDiff = localVersion - remoteVersion;
 
-          if (!incrementalUpdate.isEmpty()) {
+      if (versionDiff > INCREMENTAL_UPDATES_TO_HOLD) {
 
-            return DirectoryResponse.newBuilder()
-                .setVersion(localVersion)
-                .setDirectoryUpdate(buildIncrementalUpdate(incrementalUpdate))
-                .build();
-          } else {
+        return fullDirectoryResponse(localVersion, format);
 
-            return fullDirectoryResponse(localVersion);
-          }
-        }
+      } else {
 
+        return snapshotCache.getIncremental(localVersion, (int) versionDiff, format,
+            () -> withDirectoryReadLock(() -> buildIncrementalResponse(localVersion, (int) versionDiff, format)),
+            () -> isSnapshotStillValid(localVersion))
+            .map(PlainDirectoryController::snapshotResponse)
+            .orElseGet(() -> fullDirectoryResponse(localVersion, format));
       }
-    } finally {
-
-      if (directoryReadLock.decrementAndGet() == 0)
-        directory.releaseDirectoryReadLock();
     }
   }
 
@@ -122,7 +124,7 @@ public class PlainDirectoryController {
   @GET
   @Path("/download/forcefull")
   @Produces(ProtocolBufferMediaType.APPLICATION_PROTOBUF)
-  public DirectoryResponse downloadFullDirectory(@Auth AuthenticatedAccount auth) throws RateLimitExceededException {
+  public Response downloadFullDirectory(@Auth AuthenticatedAccount auth, @Context HttpHeaders headers) throws RateLimitExceededException {
     rateLimiters.getDirectoryLimiter().validate(auth.getAccount().getUuid());
 
     long localVersion = accountsManager.getDirectoryVersion();
@@ -136,25 +138,19 @@ public class PlainDirectoryController {
       return noUpdateResponse(localVersion);
     }
 
-    directoryReadLock.getAndIncrement();
-    directory.setDirectoryReadLock();
-
-    try {
-      return fullDirectoryResponse(localVersion);
-    } finally {
-      if (directoryReadLock.decrementAndGet() == 0)
-        directory.releaseDirectoryReadLock();
-    }
+    return fullDirectoryResponse(localVersion, negotiateEntryFormat(headers));
   }
 
-  private DirectoryResponse fullDirectoryResponse(long version) {
+  private Response fullDirectoryResponse(long version, DirectoryEntryFormat format) {
 
     if (!accountsManager.getDirectoryRestoreLock()) {
 
-      return DirectoryResponse.newBuilder()
-          .setVersion(version)
-          .setDirectoryUpdate(getFullDirectory())
-          .build();
+      return snapshotResponse(snapshotCache.getFull(version, format,
+          () -> withDirectoryReadLock(() -> DirectoryResponse.newBuilder()
+              .setVersion(version)
+              .setDirectoryUpdate(getFullDirectory(format))
+              .build()),
+          () -> isSnapshotStillValid(version)));
     } else {
 
       // if directory restore is currently in progress, we simply return no-update in
@@ -163,24 +159,87 @@ public class PlainDirectoryController {
     }
   }
 
-  private DirectoryResponse noUpdateResponse(long version) {
+  private Response noUpdateResponse(long version) {
 
-    return DirectoryResponse.newBuilder()
+    return Response.ok(DirectoryResponse.newBuilder()
         .setVersion(version)
         .setIsUpdate(false)
+        .build())
+        .build();
+  }
+
+  // the cached snapshot is already a serialized DirectoryResponse, so it's written to the client as is
+  private static Response snapshotResponse(byte[] snapshot) {
+
+    return Response.ok(snapshot, ProtocolBufferMediaType.APPLICATION_PROTOBUF_TYPE).build();
+  }
+
+  // the JSON map stays the default; the compact format is only served if the client has explicitly asked for it
+  static DirectoryEntryFormat negotiateEntryFormat(HttpHeaders headers) {
+
+    if (headers == null) {
+      return DirectoryEntryFormat.JSON_MAP;
+    }
+
+    List<MediaType> acceptableMediaTypes = headers.getAcceptableMediaTypes();
+
+    for (MediaType mediaType : acceptableMediaTypes) {
+
+      if (mediaType.isCompatible(ProtocolBufferMediaType.APPLICATION_PROTOBUF_TYPE) &&
+          COMPACT_ENTRIES.equalsIgnoreCase(mediaType.getParameters().get(ENTRIES_PARAMETER))) {
+
+        return DEFLATE_COMPRESSION.equalsIgnoreCase(mediaType.getParameters().get(COMPRESSION_PARAMETER))
+            ? DirectoryEntryFormat.COMPACT_DEFLATE
+            : DirectoryEntryFormat.COMPACT;
+      }
+    }
+
+    return DirectoryEntryFormat.JSON_MAP;
+  }
+
+  private DirectoryResponse buildIncrementalResponse(long version, int versionDiff, DirectoryEntryFormat format) {
+
+    HashMap<String, String> incrementalUpdate = directory.retrieveIncrementalUpdate(version, versionDiff);
+
+    if (incrementalUpdate.isEmpty()) {
+      return null;
+    }
+
+    return DirectoryResponse.newBuilder()
+        .setVersion(version)
+        .setDirectoryUpdate(buildDirectoryUpdate(Type.INCREMENTAL, incrementalUpdate, format))
         .build();
   }
 
-  private DirectoryUpdate getFullDirectory() {
+  // a snapshot is only retained if the directory has not moved on or been locked for writing while it was being read
+  private boolean isSnapshotStillValid(long version) {
+
+    return !accountsManager.getAccountCreationLock() &&
+        !accountsManager.getAccountRemovalLock() &&
+        !accountsManager.getDirectoryRestoreLock() &&
+        accountsManager.getDirectoryVersion() == version;
+  }
+
+  private <T> T withDirectoryReadLock(Supplier<T> reader) {
+
+    directoryReadLock.getAndIncrement();
+    directory.setDirectoryReadLock();
+
+    try {
+      return reader.get();
+    } finally {
+      if (directoryReadLock.decrementAndGet() == 0)
+        directory.releaseDirectoryReadLock();
+    }
+  }
+
+  private DirectoryUpdate getFullDirectory(DirectoryEntryFormat format) {
 
     HashMap<String, String> retrievedPlainDirectory = directory.retrievePlainDirectory();
 
     if (!retrievedPlainDirectory.isEmpty()) {
 
-      return DirectoryUpdate.newBuilder()
-          .setType(Type.FULL)
-          .putAllDirectoryEntry(retrievedPlainDirectory)
-          .build();
+      return buildDirectoryUpdate(Type.FULL, retrievedPlainDirectory, format);
 
     } else {
 
@@ -191,18 +250,18 @@ public class PlainDirectoryController {
       // is set, so there should be no race condition here
       accountsManager.restorePlainDirectory();
 
-      return DirectoryUpdate.newBuilder()
-          .setType(Type.FULL)
-          .putAllDirectoryEntry(directory.retrievePlainDirectory())
-          .build();
+      return buildDirectoryUpdate(Type.FULL, directory.retrievePlainDirectory(), format);
     }
   }
 
-  private DirectoryUpdate buildIncrementalUpdate(HashMap<String, String> incrementalUpdate) {
+  private DirectoryUpdate buildDirectoryUpdate(Type type, HashMap<String, String> entries, DirectoryEntryFormat format) {
 
-    return DirectoryUpdate.newBuilder()
-        .setType(Type.INCREMENTAL)
-        .putAllDirectoryEntry(incrementalUpdate)
-        .build();
+    DirectoryUpdate.Builder builder = DirectoryUpdate.newBuilder().setType(type);
+
+    format.getCompactCompression().ifPresentOrElse(
+        compression -> builder.setCompactEntries(compactEncoder.encode(entries, compression)),
+        () -> builder.putAllDirectoryEntry(entries));
+
+    return builder.build();
   }
 }
@@ -7,11 +7,15 @@ package su.sres.shadowserver.entities;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
-import java.util.Arrays;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
 public class OutgoingMessageEntity {
 
     @JsonIgnore
@@ -41,15 +45,23 @@ public class OutgoingMessageEntity {
     @JsonProperty
     private int sourceDevice;
 
-    @JsonProperty
-    private byte[] message;
+    // payloads are kept as ByteStrings so they can share the buffer they were read into; they're only copied to byte
+    // arrays when a caller asks for them as such
+    @JsonIgnore
+    private ByteString message;
 
-    @JsonProperty
-    private byte[] content;
+    @JsonIgnore
+    private ByteString content;
 
     @JsonProperty
     private long serverTimestamp;
 
+    @JsonIgnore
+    private byte[] serializedEnvelope;
+
+    @JsonIgnore
+    private ByteString sharedPayloadId;
+
     public OutgoingMessageEntity() {
     }
 
@@ -66,9 +78,49 @@ public class OutgoingMessageEntity {
 	this.source = source;
 	this.sourceUuid = sourceUuid;
 	this.sourceDevice = sourceDevice;
+	this.message = message != null ? UnsafeByteOperations.unsafeWrap(message) : null;
+	this.content = content != null ? UnsafeByteOperations.unsafeWrap(content) : null;
+	this.serverTimestamp = serverTimestamp;
+    }
+
+    /**
+     * Constructs an entity whose payloads may share a buffer with other objects; neither the payloads nor the serialized
+     * envelope are copied.
+     *
+     * @param serializedEnvelope the envelope exactly as it should be delivered to the recipient, if already available
+     */
+    public OutgoingMessageEntity(long id, boolean cached,
+	    UUID guid, int type, String relay, long timestamp,
+	    String source, UUID sourceUuid, int sourceDevice,
+	    @Nullable ByteString message, @Nullable ByteString content, long serverTimestamp,
+	    @Nullable byte[] serializedEnvelope) {
+	this(id, cached, guid, type, relay, timestamp, source, sourceUuid, sourceDevice, message, content, serverTimestamp,
+		serializedEnvelope, null);
+    }
+
+    /**
+     * Constructs an entity whose content is incomplete until the shared payload with the given ID is appended to it (see
+     * {@link #withSharedPayload(ByteString)}).
+     */
+    public OutgoingMessageEntity(long id, boolean cached,
+	    UUID guid, int type, String relay, long timestamp,
+	    String source, UUID sourceUuid, int sourceDevice,
+	    @Nullable ByteString message, @Nullable ByteString content, long serverTimestamp,
+	    @Nullable byte[] serializedEnvelope, @Nullable ByteString sharedPayloadId) {
+	this.id = id;
+	this.cached = cached;
+	this.guid = guid;
+	this.type = type;
+	this.relay = relay;
+	this.timestamp = timestamp;
+	this.source = source;
+	this.sourceUuid = sourceUuid;
+	this.sourceDevice = sourceDevice;
 	this.message = message;
 	this.content = content;
 	this.serverTimestamp = serverTimestamp;
+	this.serializedEnvelope = serializedEnvelope;
+	this.sharedPayloadId = sharedPayloadId;
     }
 
     public UUID getGuid() {
@@ -99,14 +151,65 @@ public class OutgoingMessageEntity {
 	return sourceDevice;
     }
 
+    @JsonProperty
     public byte[] getMessage() {
-	return message;
+	return message != null ? message.toByteArray() : null;
+    }
+
+    @JsonProperty
+    private void setMessage(byte[] message) {
+	this.message = message != null ? UnsafeByteOperations.unsafeWrap(message) : null;
     }
 
+    @JsonProperty
     public byte[] getContent() {
+	return content != null ? content.toByteArray() : null;
+    }
+
+    @JsonProperty
+    private void setContent(byte[] content) {
+	this.content = content != null ? UnsafeByteOperations.unsafeWrap(content) : null;
+    }
+
+    @JsonIgnore
+    @Nullable
+    public ByteString getMessageBytes() {
+	return message;
+    }
+
+    @JsonIgnore
+    @Nullable
+    public ByteString getContentBytes() {
 	return content;
     }
 
+    /**
+     * Returns this message's envelope, serialized exactly as it should be delivered to the recipient, if it was read in
+     * that form (e.g. from the message cache). Callers must not modify the returned array.
+     */
+    @JsonIgnore
+    public Optional<byte[]> getSerializedEnvelope() {
+	return Optional.ofNullable(serializedEnvelope);
+    }
+
+    /**
+     * Returns the ID of the shared payload that must be appended to this message's content before it's delivered, if
+     * any.
+     */
+    @JsonIgnore
+    public Optional<ByteString> getSharedPayloadId() {
+	return Optional.ofNullable(sharedPayloadId);
+    }
+
+    /**
+     * Returns a copy of this entity whose content is followed by the given shared payload. Neither the content nor the
+     * shared payload is copied.
+     */
+    public OutgoingMessageEntity withSharedPayload(final ByteString sharedPayload) {
+	return new OutgoingMessageEntity(id, cached, guid, type, relay, timestamp, source, sourceUuid, sourceDevice, message,
+		content != null ? content.concat(sharedPayload) : sharedPayload, serverTimestamp, null, null);
+    }
+
     @JsonIgnore
     public long getId() {
 	return id;
@@ -138,15 +241,13 @@ public class OutgoingMessageEntity {
 		Objects.equals(relay, that.relay) &&
 		Objects.equals(source, that.source) &&
 		Objects.equals(sourceUuid, that.sourceUuid) &&
-		Arrays.equals(message, that.message) &&
-		Arrays.equals(content, that.content);
+		Objects.equals(message, that.message) &&
+		Objects.equals(content, that.content) &&
+		Objects.equals(sharedPayloadId, that.sharedPayloadId);
     }
 
     @Override
     public int hashCode() {
-	int result = Objects.hash(id, cached, guid, type, relay, timestamp, source, sourceUuid, sourceDevice, serverTimestamp);
-	result = 31 * result + Arrays.hashCode(message);
-	result = 31 * result + Arrays.hashCode(content);
-	return result;
+	return Objects.hash(id, cached, guid, type, relay, timestamp, source, sourceUuid, sourceDevice, serverTimestamp, message, content, sharedPayloadId);
     }
 }
@@ -5,6 +5,7 @@
  */
 package su.sres.shadowserver.entities;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.annotations.VisibleForTesting;
 
@@ -18,11 +19,20 @@ public class OutgoingMessageEntityList {
   @JsonProperty
   private boolean more;
 
+  // every message read from the queue for this page, including any withheld from delivery; not sent to clients
+  @JsonIgnore
+  private List<OutgoingMessageEntity> readMessages;
+
   public OutgoingMessageEntityList() {}
 
   public OutgoingMessageEntityList(List<OutgoingMessageEntity> messages, boolean more) {
-    this.messages = messages;
-    this.more     = more;
+    this(messages, more, null);
+  }
+
+  public OutgoingMessageEntityList(List<OutgoingMessageEntity> messages, boolean more, List<OutgoingMessageEntity> readMessages) {
+    this.messages     = messages;
+    this.more         = more;
+    this.readMessages = readMessages;
   }
 
   public List<OutgoingMessageEntity> getMessages() {
@@ -32,4 +42,13 @@ public class OutgoingMessageEntityList {
   public boolean hasMore() {
     return more;
   }
+
+  /**
+   * @return the messages read from the queue for this page, which is where the next page starts; this includes
+   *         messages that were withheld from {@link #getMessages()}
+   */
+  @JsonIgnore
+  public List<OutgoingMessageEntity> getReadMessages() {
+    return readMessages != null ? readMessages : messages;
+  }
 }
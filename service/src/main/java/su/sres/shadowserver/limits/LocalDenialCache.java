@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.limits;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers, per key, that a rate limiter has denied a request and until when,
+ * so that retries arriving before then can be rejected without asking Redis.
+ * Denials are kept for at most {@code maxDenialDuration}, since a limit cleared
+ * on another server is only noticed here once the local denial has lapsed.
+ */
+class LocalDenialCache {
+
+  private final Cache<String, Denial> denials;
+  private final Duration maxDenialDuration;
+  private final Clock clock;
+
+  LocalDenialCache(final int maxKeys, final Duration maxDenialDuration, final Clock clock) {
+    this.denials = CacheBuilder.newBuilder()
+        .maximumSize(maxKeys)
+        .expireAfterWrite(maxDenialDuration.toMillis(), TimeUnit.MILLISECONDS)
+        .build();
+
+    this.maxDenialDuration = maxDenialDuration;
+    this.clock = clock;
+  }
+
+  /**
+   * @return the time until {@code amount} permits may be available for
+   *         {@code key} if a request for as many or fewer permits has been denied
+   *         recently, otherwise empty
+   */
+  Optional<Duration> getRemainingDenial(final String key, final int amount) {
+    final Denial denial = denials.getIfPresent(key);
+
+    if (denial == null || amount < denial.amount) {
+      return Optional.empty();
+    }
+
+    final long remainingMillis = denial.deniedUntilMillis - clock.millis();
+
+    if (remainingMillis <= 0) {
+      denials.asMap().remove(key, denial);
+      return Optional.empty();
+    }
+
+    return Optional.of(Duration.ofMillis(remainingMillis));
+  }
+
+  void deny(final String key, final int amount, final Duration timeUntilSpaceAvailable) {
+    final Duration denialDuration = timeUntilSpaceAvailable.compareTo(maxDenialDuration) < 0 ? timeUntilSpaceAvailable : maxDenialDuration;
+
+    denials.put(key, new Denial(amount, clock.millis() + denialDuration.toMillis()));
+  }
+
+  void clear(final String key) {
+    denials.invalidate(key);
+  }
+
+  private static class Denial {
+
+    private final int amount;
+    private final long deniedUntilMillis;
+
+    private Denial(final int amount, final long deniedUntilMillis) {
+      this.amount = amount;
+      this.deniedUntilMillis = deniedUntilMillis;
+    }
+  }
+}
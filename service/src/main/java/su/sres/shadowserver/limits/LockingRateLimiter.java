@@ -15,7 +15,9 @@ import static com.codahale.metrics.MetricRegistry.name;
 
 import java.time.Duration;
 
+import su.sres.shadowserver.configuration.RateLimitsConfiguration.LocalDenialCacheConfiguration;
 import su.sres.shadowserver.controllers.RateLimitExceededException;
+import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.util.Constants;
 
@@ -23,8 +25,9 @@ public class LockingRateLimiter extends RateLimiter {
 
     private final Meter meter;
     
-    public LockingRateLimiter(FaultTolerantRedisCluster cacheCluster, String name, int bucketSize, double leakRatePerMinute) {
-      super(cacheCluster, name, bucketSize, leakRatePerMinute);
+    public LockingRateLimiter(FaultTolerantRedisCluster cacheCluster, ClusterLuaScript validateScript, String name, int bucketSize, double leakRatePerMinute,
+        LocalDenialCacheConfiguration localDenialCacheConfiguration) {
+      super(cacheCluster, validateScript, name, bucketSize, leakRatePerMinute, localDenialCacheConfiguration);
 
       MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
       this.meter = metricRegistry.meter(name(getClass(), name, "locked"));
@@ -32,6 +35,9 @@ public class LockingRateLimiter extends RateLimiter {
 
     @Override
     public void validate(String key, int amount) throws RateLimitExceededException {
+	// a locally known denial spares the lock round trips as well
+	validateLocally(key, amount);
+
 	if (!acquireLock(key)) {
 	    meter.mark();
 	    throw new RateLimitExceededException("Locked", Duration.ZERO);
@@ -9,63 +9,91 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.time.Clock;
 import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 import javax.annotation.Nullable;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
+import su.sres.shadowserver.configuration.RateLimitsConfiguration.LocalDenialCacheConfiguration;
 import su.sres.shadowserver.configuration.RateLimitsConfiguration.RateLimitConfiguration;
 import su.sres.shadowserver.controllers.RateLimitExceededException;
+import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.util.Constants;
-import su.sres.shadowserver.util.SystemMapper;
 
 public class RateLimiter {
 
-  private final Logger logger = LoggerFactory.getLogger(RateLimiter.class);
-  private final ObjectMapper mapper = SystemMapper.getMapper();
-
   private final Meter meter;
   private final Timer validateTimer;
+  private final Meter localDecisionMeter;
+  private final Meter redisDecisionMeter;
   protected final FaultTolerantRedisCluster cacheCluster;
+  private final ClusterLuaScript validateScript;
   protected final String name;
   private final int bucketSize;
   private final double leakRatePerMinute;
   private final double leakRatePerMillis;  
-  
-  public RateLimiter(FaultTolerantRedisCluster cacheCluster, String name, int bucketSize, double leakRatePerMinute)
+
+  @Nullable
+  private final LocalDenialCache localDenialCache;
+
+  public RateLimiter(FaultTolerantRedisCluster cacheCluster, ClusterLuaScript validateScript, String name, int bucketSize, double leakRatePerMinute)
+  {
+    this(cacheCluster, validateScript, name, bucketSize, leakRatePerMinute, new LocalDenialCacheConfiguration());
+  }
+
+  public RateLimiter(FaultTolerantRedisCluster cacheCluster, ClusterLuaScript validateScript, String name, int bucketSize, double leakRatePerMinute,
+      LocalDenialCacheConfiguration localDenialCacheConfiguration)
   {
     MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
 
     this.meter = metricRegistry.meter(name(getClass(), name, "exceeded"));
     this.validateTimer = metricRegistry.timer(name(getClass(), name, "validate"));
-    this.cacheCluster = cacheCluster;    
+    this.localDecisionMeter = metricRegistry.meter(name(getClass(), name, "localDecision"));
+    this.redisDecisionMeter = metricRegistry.meter(name(getClass(), name, "redisDecision"));
+    this.cacheCluster = cacheCluster;
+    this.validateScript = validateScript;
     this.name = name;
     this.bucketSize = bucketSize;
     this.leakRatePerMinute = leakRatePerMinute;
     this.leakRatePerMillis = leakRatePerMinute / (60.0 * 1000.0);    
+    this.localDenialCache = localDenialCacheConfiguration.isEnabled()
+        ? new LocalDenialCache(localDenialCacheConfiguration.getMaxKeysPerLimiter(), localDenialCacheConfiguration.getMaxDenialDuration(), Clock.systemUTC())
+        : null;
   }
 
   public void validate(String key, int amount) throws RateLimitExceededException {
     try (final Timer.Context ignored = validateTimer.time()) {
-      LeakyBucket bucket = getBucket(key);
+      validateLocally(key, amount);
+
+      final Duration timeUntilSpaceAvailable = executeValidateScript(key, amount, true);
 
-      if (bucket.add(amount)) {
-        setBucket(key, bucket);
-      } else {
+      if (!timeUntilSpaceAvailable.isZero()) {
         meter.mark();
-        throw new RateLimitExceededException(key + " , " + amount, bucket.getTimeUntilSpaceAvailable(amount));
+        throw new RateLimitExceededException(key + " , " + amount, timeUntilSpaceAvailable);
       }
     }
   }
+
+  /**
+   * Rejects the request without a round trip to Redis if a request for as many
+   * or fewer permits has been denied recently and the bucket cannot have leaked
+   * enough since.
+   */
+  protected void validateLocally(String key, int amount) throws RateLimitExceededException {
+    final Optional<Duration> remainingDenial = getRemainingLocalDenial(key, amount);
+
+    if (remainingDenial.isPresent()) {
+      meter.mark();
+      throw new RateLimitExceededException(key + " , " + amount, remainingDenial.get());
+    }
+  }
   
   public void validate(final UUID accountUuid) throws RateLimitExceededException {
     validate(accountUuid.toString());
@@ -86,7 +114,7 @@ public class RateLimiter {
   }
   
   public boolean hasAvailablePermits(final String key, final int permits) {
-    return getBucket(key).getTimeUntilSpaceAvailable(permits).equals(Duration.ZERO);
+    return getRemainingLocalDenial(key, permits).isEmpty() && executeValidateScript(key, permits, false).isZero();
   }
   
   public void clear(final UUID accountUuid) {
@@ -94,6 +122,10 @@ public class RateLimiter {
   }
 
   public void clear(String key) {
+    if (localDenialCache != null) {
+      localDenialCache.clear(key);
+    }
+
     cacheCluster.useCluster(connection -> connection.sync().del(getBucketName(key)));   
   }
 
@@ -105,28 +137,50 @@ public class RateLimiter {
     return leakRatePerMinute;
   }
 
-  private void setBucket(String key, LeakyBucket bucket) {
-        
-    try {
-      final String serialized = bucket.serialize(mapper);
-      cacheCluster.useCluster(connection -> connection.sync().setex(getBucketName(key), (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000), serialized));
-    } catch (JsonProcessingException e) {
-      throw new IllegalArgumentException(e);
+  /**
+   * Checks the bucket for {@code key} and, if {@code takePermits} is set and the
+   * permits are available, takes them, all in a single atomic round trip.
+   *
+   * @return zero if the permits are available, otherwise the time until they
+   *         will be
+   */
+  private Duration executeValidateScript(String key, int permits, boolean takePermits) {
+    if (permits > bucketSize) {
+      // This shouldn't happen today but if so we should bubble this to the clients
+      // somehow
+      throw new IllegalArgumentException("Requested permits exceed maximum bucket size");
     }
-  }
 
-  private LeakyBucket getBucket(String key) {
-    try {
-      final String serialized = cacheCluster.withCluster(connection -> connection.sync().get(getBucketName(key)));
+    final long millisUntilSpaceAvailable = (long) validateScript.execute(
+        List.of(getBucketName(key)),
+        List.of(String.valueOf(bucketSize),
+            String.valueOf(leakRatePerMillis),
+            String.valueOf(System.currentTimeMillis()),
+            String.valueOf(permits),
+            String.valueOf(takePermits)));
 
-      if (serialized != null) {
-        return LeakyBucket.fromSerialized(mapper, serialized);
+    final Duration timeUntilSpaceAvailable = Duration.ofMillis(millisUntilSpaceAvailable);
+
+    if (localDenialCache != null) {
+      redisDecisionMeter.mark();
+
+      if (!timeUntilSpaceAvailable.isZero()) {
+        localDenialCache.deny(key, permits, timeUntilSpaceAvailable);
       }
-    } catch (IOException e) {
-      logger.warn("Deserialization error", e);
-    }    
+    }
+
+    return timeUntilSpaceAvailable;
+  }
+
+  private Optional<Duration> getRemainingLocalDenial(String key, int permits) {
+    if (localDenialCache == null) {
+      return Optional.empty();
+    }
+
+    final Optional<Duration> remainingDenial = localDenialCache.getRemainingDenial(key, permits);
+    remainingDenial.ifPresent(ignored -> localDecisionMeter.mark());
 
-    return new LeakyBucket(bucketSize, leakRatePerMillis);
+    return remainingDenial;
   }
 
   private String getBucketName(String key) {
@@ -5,13 +5,18 @@
  */
 package su.sres.shadowserver.limits;
 
+import io.lettuce.core.ScriptOutputType;
+
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 
 import su.sres.shadowserver.configuration.RateLimitsConfiguration;
 import su.sres.shadowserver.configuration.RateLimitsConfiguration.CardinalityRateLimitConfiguration;
+import su.sres.shadowserver.configuration.RateLimitsConfiguration.LocalDenialCacheConfiguration;
 import su.sres.shadowserver.configuration.RateLimitsConfiguration.RateLimitConfiguration;
 import su.sres.shadowserver.configuration.dynamic.DynamicRateLimitsConfiguration;
+import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 
 public class RateLimiters {
@@ -52,77 +57,81 @@ public class RateLimiters {
   private final AtomicReference<RateLimiter> dailyPreKeysLimiter;
 
   private final FaultTolerantRedisCluster cacheCluster;  
+  private final ClusterLuaScript validateScript;
   private final DynamicRateLimitsConfiguration dynamicConfig;
+  private final LocalDenialCacheConfiguration localDenialCacheConfig;
 
-  public RateLimiters(RateLimitsConfiguration config, DynamicRateLimitsConfiguration dynamicConfig, FaultTolerantRedisCluster cacheCluster) {
+  public RateLimiters(RateLimitsConfiguration config, DynamicRateLimitsConfiguration dynamicConfig, FaultTolerantRedisCluster cacheCluster) throws IOException {
     this.cacheCluster = cacheCluster;    
+    this.validateScript = ClusterLuaScript.fromResource(cacheCluster, "lua/validate_rate_limit.lua", ScriptOutputType.INTEGER);
     this.dynamicConfig = dynamicConfig;
+    this.localDenialCacheConfig = config.getLocalDenialCache();
 
-    this.smsDestinationLimiter = new RateLimiter(cacheCluster, "smsDestination",
-        config.getSmsDestination().getBucketSize(), config.getSmsDestination().getLeakRatePerMinute());
+    this.smsDestinationLimiter = new RateLimiter(cacheCluster, validateScript, "smsDestination",
+        config.getSmsDestination().getBucketSize(), config.getSmsDestination().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.smsVoiceIpLimiter = new RateLimiter(cacheCluster, "smsVoiceIp",
+    this.smsVoiceIpLimiter = new RateLimiter(cacheCluster, validateScript, "smsVoiceIp",
         config.getSmsVoiceIp().getBucketSize(),
-        config.getSmsVoiceIp().getLeakRatePerMinute());
+        config.getSmsVoiceIp().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.autoBlockLimiter = new RateLimiter(cacheCluster, "autoBlock",
+    this.autoBlockLimiter = new RateLimiter(cacheCluster, validateScript, "autoBlock",
         config.getAutoBlock().getBucketSize(),
-        config.getAutoBlock().getLeakRatePerMinute());
+        config.getAutoBlock().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.verifyLimiter = new LockingRateLimiter(cacheCluster, "verify",
+    this.verifyLimiter = new LockingRateLimiter(cacheCluster, validateScript, "verify",
         config.getVerifyUserLogin().getBucketSize(),
-        config.getVerifyUserLogin().getLeakRatePerMinute());   
+        config.getVerifyUserLogin().getLeakRatePerMinute(), localDenialCacheConfig);   
 
-    this.attachmentLimiter = new RateLimiter(cacheCluster,  "attachmentCreate",
-        config.getAttachments().getBucketSize(), config.getAttachments().getLeakRatePerMinute());
+    this.attachmentLimiter = new RateLimiter(cacheCluster, validateScript, "attachmentCreate",
+        config.getAttachments().getBucketSize(), config.getAttachments().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.preKeysLimiter = new RateLimiter(cacheCluster, "prekeys",
+    this.preKeysLimiter = new RateLimiter(cacheCluster, validateScript, "prekeys",
         config.getPreKeys().getBucketSize(),
-        config.getPreKeys().getLeakRatePerMinute());
+        config.getPreKeys().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.messagesLimiter = new RateLimiter(cacheCluster,  "messages",
+    this.messagesLimiter = new RateLimiter(cacheCluster, validateScript, "messages",
         config.getMessages().getBucketSize(),
-        config.getMessages().getLeakRatePerMinute());
+        config.getMessages().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.allocateDeviceLimiter = new RateLimiter(cacheCluster,  "allocateDevice",
-        config.getAllocateDevice().getBucketSize(), config.getAllocateDevice().getLeakRatePerMinute());
+    this.allocateDeviceLimiter = new RateLimiter(cacheCluster, validateScript, "allocateDevice",
+        config.getAllocateDevice().getBucketSize(), config.getAllocateDevice().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.verifyDeviceLimiter = new RateLimiter(cacheCluster,  "verifyDevice",
-        config.getVerifyDevice().getBucketSize(), config.getVerifyDevice().getLeakRatePerMinute());
+    this.verifyDeviceLimiter = new RateLimiter(cacheCluster, validateScript, "verifyDevice",
+        config.getVerifyDevice().getBucketSize(), config.getVerifyDevice().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.turnLimiter = new RateLimiter(cacheCluster,  "turnAllocate",
+    this.turnLimiter = new RateLimiter(cacheCluster, validateScript, "turnAllocate",
         config.getTurnAllocations().getBucketSize(),
-        config.getTurnAllocations().getLeakRatePerMinute());
+        config.getTurnAllocations().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.profileLimiter = new RateLimiter(cacheCluster,  "profile",
+    this.profileLimiter = new RateLimiter(cacheCluster, validateScript, "profile",
         config.getProfile().getBucketSize(),
-        config.getProfile().getLeakRatePerMinute());
+        config.getProfile().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.stickerPackLimiter = new RateLimiter(cacheCluster, "stickerPack",
+    this.stickerPackLimiter = new RateLimiter(cacheCluster, validateScript, "stickerPack",
         config.getStickerPack().getBucketSize(),
-        config.getStickerPack().getLeakRatePerMinute());
+        config.getStickerPack().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.usernameLookupLimiter = new RateLimiter(cacheCluster,  "usernameLookup",
-        config.getUsernameLookup().getBucketSize(), config.getUsernameLookup().getLeakRatePerMinute());
+    this.usernameLookupLimiter = new RateLimiter(cacheCluster, validateScript, "usernameLookup",
+        config.getUsernameLookup().getBucketSize(), config.getUsernameLookup().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.usernameSetLimiter = new RateLimiter(cacheCluster, "usernameSet",
+    this.usernameSetLimiter = new RateLimiter(cacheCluster, validateScript, "usernameSet",
         config.getUsernameSet().getBucketSize(),
-        config.getUsernameSet().getLeakRatePerMinute());
+        config.getUsernameSet().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.configLimiter = new RateLimiter(cacheCluster,  "configRequest", config.getConfigRequest().getBucketSize(),
-        config.getConfigRequest().getLeakRatePerMinute());
+    this.configLimiter = new RateLimiter(cacheCluster, validateScript, "configRequest", config.getConfigRequest().getBucketSize(),
+        config.getConfigRequest().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.certLimiter = new RateLimiter(cacheCluster,  "certRequest", config.getCertRequest().getBucketSize(),
-        config.getCertRequest().getLeakRatePerMinute());
+    this.certLimiter = new RateLimiter(cacheCluster, validateScript, "certRequest", config.getCertRequest().getBucketSize(),
+        config.getCertRequest().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.certVerLimiter = new RateLimiter(cacheCluster,  "certVerRequest", config.getCertVerRequest().getBucketSize(),
-        config.getCertVerRequest().getLeakRatePerMinute());
+    this.certVerLimiter = new RateLimiter(cacheCluster, validateScript, "certVerRequest", config.getCertVerRequest().getBucketSize(),
+        config.getCertVerRequest().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.directoryLimiter = new RateLimiter(cacheCluster, "directoryRequest", config.getDirectoryRequest().getBucketSize(),
-        config.getDirectoryRequest().getLeakRatePerMinute());
+    this.directoryLimiter = new RateLimiter(cacheCluster, validateScript, "directoryRequest", config.getDirectoryRequest().getBucketSize(),
+        config.getDirectoryRequest().getLeakRatePerMinute(), localDenialCacheConfig);
 
-    this.licenseLimiter = new RateLimiter(cacheCluster,  "licenseRequest", config.getLicenseRequest().getBucketSize(),
-        config.getLicenseRequest().getLeakRatePerMinute());
+    this.licenseLimiter = new RateLimiter(cacheCluster, validateScript, "licenseRequest", config.getLicenseRequest().getBucketSize(),
+        config.getLicenseRequest().getLeakRatePerMinute(), localDenialCacheConfig);
 
     this.dailyPreKeysLimiter = new AtomicReference<>(createDailyPreKeysLimiter(cacheCluster, dynamicConfig.getDailyPreKeys()));
 
@@ -322,8 +331,8 @@ public class RateLimiters {
   }
 
   private RateLimiter createLimiter(FaultTolerantRedisCluster cacheCluster,  RateLimitConfiguration configuration, String name) {
-    return new RateLimiter(cacheCluster, name,
+    return new RateLimiter(cacheCluster, validateScript, name,
         configuration.getBucketSize(),
-        configuration.getLeakRatePerMinute());
+        configuration.getLeakRatePerMinute(), localDenialCacheConfig);
   }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.mappers;
+
+import java.util.concurrent.CompletionException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Providers;
+
+/**
+ * Unwraps exceptions thrown from the continuations of asynchronous resource methods and maps their cause as if it had
+ * been thrown directly.
+ */
+public class CompletionExceptionMapper implements ExceptionMapper<CompletionException> {
+
+  @Context
+  private Providers providers;
+
+  @Override
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public Response toResponse(final CompletionException exception) {
+    final Throwable cause = exception.getCause();
+
+    if (cause instanceof WebApplicationException) {
+      return ((WebApplicationException) cause).getResponse();
+    }
+
+    if (cause != null && providers != null) {
+      final ExceptionMapper mapper = providers.getExceptionMapper(cause.getClass());
+
+      if (mapper != null) {
+        return mapper.toResponse(cause);
+      }
+    }
+
+    return Response.serverError().build();
+  }
+}
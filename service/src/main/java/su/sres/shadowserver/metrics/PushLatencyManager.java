@@ -11,6 +11,8 @@ import io.lettuce.core.SetArgs;
 import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 
 import java.time.Duration;
@@ -35,6 +37,8 @@ public class PushLatencyManager {
 
     private final FaultTolerantRedisCluster redisCluster;
 
+    private static final Logger logger = LoggerFactory.getLogger(PushLatencyManager.class);
+
     public PushLatencyManager(final FaultTolerantRedisCluster redisCluster) {
 	this.redisCluster = redisCluster;
     }
@@ -48,9 +52,15 @@ public class PushLatencyManager {
 	redisCluster.useCluster(connection -> connection.async().set(getFirstUnacknowledgedPushKey(accountUuid, deviceId), String.valueOf(currentTime), SetArgs.Builder.nx().ex(TTL)));
     }
 
+    /**
+     * Records the latency of the device's first unacknowledged push notification, if any. The Redis calls are issued
+     * asynchronously and this method never blocks; failures are logged and otherwise ignored.
+     */
     public void recordQueueRead(final UUID accountUuid, final long deviceId, final String userAgent) {
-	getLatencyAndClearTimestamp(accountUuid, deviceId, System.currentTimeMillis()).thenAccept(latency -> {
-	    if (latency != null) {
+	getLatencyAndClearTimestamp(accountUuid, deviceId, System.currentTimeMillis()).whenComplete((latency, cause) -> {
+	    if (cause != null) {
+	      logger.warn("Failed to record queue read latency", cause);
+	    } else if (latency != null) {
 	      Metrics.timer(TIMER_NAME, Tags.of(UserAgentTagUtil.getPlatformTag(userAgent))).record(latency, TimeUnit.MILLISECONDS);
 	    }
 	});
@@ -60,7 +70,7 @@ public class PushLatencyManager {
     CompletableFuture<Long> getLatencyAndClearTimestamp(final UUID accountUuid, final long deviceId, final long currentTimeMillis) {
 	final String key = getFirstUnacknowledgedPushKey(accountUuid, deviceId);
 
-	return redisCluster.withCluster(connection -> {
+	return redisCluster.withClusterAsync(connection -> {
 	    final RedisAdvancedClusterAsyncCommands<String, String> commands = connection.async();
 
 	    final CompletableFuture<String> getFuture = commands.get(key).toCompletableFuture();
@@ -11,6 +11,7 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.RedisException;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.cluster.SlotHash;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
@@ -23,14 +24,19 @@ import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantPubSubConnection;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.util.Constants;
+import su.sres.shadowserver.util.Pair;
 
 import java.io.IOException;
 import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
@@ -61,11 +67,14 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
 
   private final ExecutorService keyspaceNotificationExecutorService;
   private final ScheduledExecutorService scheduledExecutorService;
+  private final boolean patternSubscriptions;
   private ScheduledFuture<?> pruneMissingPeersFuture;
 
   private final Map<String, DisplacedPresenceListener> displacementListenersByPresenceKey = new ConcurrentHashMap<>();
 
   private final Timer checkPresenceTimer;
+  private final Timer checkPresenceBatchTimer;
+  private final Meter localPresenceCheckMeter;
   private final Timer setPresenceTimer;
   private final Timer clearPresenceTimer;
   private final Timer prunePeersTimer;
@@ -77,19 +86,35 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
 
   static final String MANAGER_SET_KEY = "presence::managers";
 
+  private static final String KEYSPACE_PREFIX = "__keyspace@0__:";
+  private static final String PRESENCE_KEYSPACE_PATTERN = KEYSPACE_PREFIX + "presence::{*";
+
   private static final Logger log = LoggerFactory.getLogger(ClientPresenceManager.class);
 
   public ClientPresenceManager(final FaultTolerantRedisCluster presenceCluster, final ScheduledExecutorService scheduledExecutorService, final ExecutorService keyspaceNotificationExecutorService) throws IOException {
+    this(presenceCluster, scheduledExecutorService, keyspaceNotificationExecutorService, false);
+  }
+
+  /**
+   * @param patternSubscriptions if {@code true}, the manager subscribes once per upstream node to keyspace
+   *                             notifications for all presence keys and filters them by its locally-connected clients
+   *                             instead of issuing a {@code SUBSCRIBE} for every client that declares its presence
+   */
+  public ClientPresenceManager(final FaultTolerantRedisCluster presenceCluster, final ScheduledExecutorService scheduledExecutorService,
+      final ExecutorService keyspaceNotificationExecutorService, final boolean patternSubscriptions) throws IOException {
     this.presenceCluster = presenceCluster;
     this.pubSubConnection = this.presenceCluster.createPubSubConnection();
     this.clearPresenceScript = ClusterLuaScript.fromResource(presenceCluster, "lua/clear_presence.lua", ScriptOutputType.INTEGER);
     this.scheduledExecutorService = scheduledExecutorService;
     this.keyspaceNotificationExecutorService = keyspaceNotificationExecutorService;
+    this.patternSubscriptions = patternSubscriptions;
 
     final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
     metricRegistry.gauge(name(getClass(), "localClientCount"), () -> displacementListenersByPresenceKey::size);
 
     this.checkPresenceTimer = metricRegistry.timer(name(getClass(), "checkPresence"));
+    this.checkPresenceBatchTimer = metricRegistry.timer(name(getClass(), "checkPresenceBatch"));
+    this.localPresenceCheckMeter = metricRegistry.meter(name(getClass(), "localPresenceCheck"));
     this.setPresenceTimer = metricRegistry.timer(name(getClass(), "setPresence"));
     this.clearPresenceTimer = metricRegistry.timer(name(getClass(), "clearPresence"));
     this.prunePeersTimer = metricRegistry.timer(name(getClass(), "prunePeers"));
@@ -115,6 +140,10 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
       final int slot = SlotHash.getSlot(presenceChannel);
 
       connection.sync().nodes(node -> node.is(RedisClusterNode.NodeFlag.UPSTREAM) && node.hasSlot(slot)).commands().subscribe(presenceChannel);
+
+      if (patternSubscriptions) {
+        connection.sync().upstream().commands().psubscribe(PRESENCE_KEYSPACE_PATTERN);
+      }
     });
 
     presenceCluster.useCluster(connection -> connection.sync().sadd(MANAGER_SET_KEY, managerId));
@@ -145,7 +174,13 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
       connection.sync().del(getConnectedClientSetKey(managerId));
     });
 
-    pubSubConnection.usePubSubConnection(connection -> connection.sync().upstream().commands().unsubscribe(getManagerPresenceChannel(managerId)));
+    pubSubConnection.usePubSubConnection(connection -> {
+      connection.sync().upstream().commands().unsubscribe(getManagerPresenceChannel(managerId));
+
+      if (patternSubscriptions) {
+        connection.sync().upstream().commands().punsubscribe(PRESENCE_KEYSPACE_PATTERN);
+      }
+    });
   }
 
   public void setPresent(final UUID accountUuid, final long deviceId, final DisplacedPresenceListener displacementListener) {
@@ -163,7 +198,9 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
         commands.set(presenceKey, managerId);
       });
 
-      subscribeForRemotePresenceChanges(presenceKey);
+      if (!patternSubscriptions) {
+        subscribeForRemotePresenceChanges(presenceKey);
+      }
     }
   }
   
@@ -187,6 +224,50 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
     }
   }
 
+  /**
+   * Checks the presence of many devices at once. Devices connected to this
+   * server are answered locally; the remaining presence keys are checked with
+   * concurrent asynchronous {@code EXISTS} commands, each covered by the
+   * cluster's circuit breaker and retry.
+   *
+   * @return whether each of the given account/device pairs is present
+   */
+  public Map<Pair<UUID, Long>, Boolean> isPresent(final Collection<Pair<UUID, Long>> accountAndDeviceIds) {
+    try (final Timer.Context ignored = checkPresenceBatchTimer.time()) {
+      final Map<Pair<UUID, Long>, Boolean> presence = new HashMap<>(accountAndDeviceIds.size());
+      final Map<Pair<UUID, Long>, CompletableFuture<Long>> existsFutures = new HashMap<>();
+
+      for (final Pair<UUID, Long> accountAndDeviceId : accountAndDeviceIds) {
+        final String presenceKey = getPresenceKey(accountAndDeviceId.first(), accountAndDeviceId.second());
+
+        if (displacementListenersByPresenceKey.containsKey(presenceKey)) {
+          presence.put(accountAndDeviceId, true);
+        } else {
+          existsFutures.put(accountAndDeviceId,
+              presenceCluster.withClusterAsync(connection -> connection.async().exists(presenceKey)));
+        }
+      }
+
+      localPresenceCheckMeter.mark(presence.size());
+
+      if (!existsFutures.isEmpty()) {
+        try {
+          CompletableFuture.allOf(existsFutures.values().toArray(new CompletableFuture[0])).join();
+        } catch (final CompletionException e) {
+          if (e.getCause() instanceof RedisException) {
+            throw (RedisException) e.getCause();
+          }
+
+          throw new RedisException(e.getCause());
+        }
+
+        existsFutures.forEach((accountAndDeviceId, existsFuture) -> presence.put(accountAndDeviceId, existsFuture.join() == 1));
+      }
+
+      return presence;
+    }
+  }
+
   public boolean isLocallyPresent(final UUID accountUuid, final long deviceId) {
     return displacementListenersByPresenceKey.containsKey(getPresenceKey(accountUuid, deviceId));
   }
@@ -198,7 +279,10 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   private boolean clearPresence(final String presenceKey) {
     try (final Timer.Context ignored = clearPresenceTimer.time()) {
       displacementListenersByPresenceKey.remove(presenceKey);
-      unsubscribeFromRemotePresenceChanges(presenceKey);
+
+      if (!patternSubscriptions) {
+        unsubscribeFromRemotePresenceChanges(presenceKey);
+      }
 
       final boolean removed = clearPresenceScript.execute(List.of(presenceKey), List.of(managerId)) != null;
       presenceCluster.useCluster(connection -> connection.sync().srem(connectedClientSetKey, presenceKey));
@@ -216,6 +300,11 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   }
 
   private void resubscribeAll() {
+    if (patternSubscriptions) {
+      pubSubConnection.usePubSubConnection(connection -> connection.sync().upstream().commands().psubscribe(PRESENCE_KEYSPACE_PATTERN));
+      return;
+    }
+
     for (final String presenceKey : displacementListenersByPresenceKey.keySet()) {
       subscribeForRemotePresenceChanges(presenceKey);
     }
@@ -258,7 +347,7 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   public void message(final RedisClusterNode node, final String channel, final String message) {
     pubSubMessageMeter.mark();
 
-    if ("set".equals(message) && channel.startsWith("__keyspace@0__:presence::{")) {
+    if ("set".equals(message) && channel.startsWith(KEYSPACE_PREFIX + "presence::{")) {
       // Another process has overwritten this presence key, which means the client has
       // connected to another host.
       // At this point, we're on a Lettuce IO thread and need to dispatch to a
@@ -266,7 +355,7 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
       // synchronous Lettuce calls to avoid deadlocking.
       keyspaceNotificationExecutorService.execute(() -> {
         try {
-          displacePresence(channel.substring("__keyspace@0__:".length()));
+          displacePresence(channel.substring(KEYSPACE_PREFIX.length()));
           remoteDisplacementMeter.mark();
         } catch (final Exception e) {
           log.warn("Error displacing presence", e);
@@ -275,13 +364,40 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
     }
   }
 
+  @Override
+  public void message(final RedisClusterNode node, final String pattern, final String channel, final String message) {
+    pubSubMessageMeter.mark();
+
+    if (!"set".equals(message)) {
+      return;
+    }
+
+    final String presenceKey = channel.substring(KEYSPACE_PREFIX.length());
+
+    // Pattern subscriptions deliver every presence change in the cluster, including the ones made by this manager
+    if (!displacementListenersByPresenceKey.containsKey(presenceKey)) {
+      return;
+    }
+
+    keyspaceNotificationExecutorService.execute(() -> {
+      try {
+        if (!managerId.equals(presenceCluster.withCluster(connection -> connection.sync().get(presenceKey)))) {
+          displacePresence(presenceKey);
+          remoteDisplacementMeter.mark();
+        }
+      } catch (final Exception e) {
+        log.warn("Error displacing presence", e);
+      }
+    });
+  }
+
   @VisibleForTesting
   static String getPresenceKey(final UUID accountUuid, final long deviceId) {
     return "presence::{" + accountUuid.toString() + "::" + deviceId + "}";
   }
 
   private static String getKeyspaceNotificationChannel(final String presenceKey) {
-    return "__keyspace@0__:" + presenceKey;
+    return KEYSPACE_PREFIX + presenceKey;
   }
 
   @VisibleForTesting
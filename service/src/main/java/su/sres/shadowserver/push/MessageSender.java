@@ -5,8 +5,15 @@
  */
 package su.sres.shadowserver.push;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,8 +29,10 @@ import su.sres.shadowserver.metrics.PushLatencyManager;
 import su.sres.shadowserver.push.ApnMessage.Type;
 import su.sres.shadowserver.redis.RedisOperation;
 import su.sres.shadowserver.storage.Account;
+import su.sres.shadowserver.storage.DestinationMessage;
 import su.sres.shadowserver.storage.Device;
 import su.sres.shadowserver.storage.MessagesManager;
+import su.sres.shadowserver.util.Pair;
 import su.sres.shadowserver.util.Util;
 
 /**
@@ -74,22 +83,7 @@ public class MessageSender implements Managed {
 
   public void sendMessage(final Account account, final Device device, final Envelope message, boolean online)
       throws NotPushRegisteredException {
-    if (device.getGcmId() == null && device.getApnId() == null && !device.getFetchesMessages()) {
-      throw new NotPushRegisteredException("No delivery possible!");
-    }
-
-    final String channel;
-
-    if (device.getGcmId() != null) {
-      channel = "gcm";
-      ;
-    } else if (device.getApnId() != null) {
-      channel = "apn";
-    } else if (device.getFetchesMessages()) {
-      channel = "websocket";
-    } else {
-      throw new AssertionError();
-    }
+    final String channel = getDeliveryChannel(device);
 
     final boolean clientPresent;
 
@@ -115,6 +109,104 @@ public class MessageSender implements Managed {
       }
     }
 
+    countSentMessage(channel, online, clientPresent);
+  }
+
+  /**
+   * Sends each message to its own destination device, like
+   * {@link #sendMessage(Account, Device, Envelope, boolean)}, but queues all of
+   * them with a single pipelined insert and checks the presence of all
+   * destination devices in one batch. A delivery whose message can't be queued
+   * fails on its own; the others are still completed.
+   */
+  public BatchResult sendMessages(final List<Delivery> deliveries, final boolean online) {
+    final List<Delivery> undeliverable = new ArrayList<>();
+    final List<Delivery> deliverable = new ArrayList<>(deliveries.size());
+    final List<String> channels = new ArrayList<>(deliveries.size());
+
+    for (final Delivery delivery : deliveries) {
+      try {
+        channels.add(getDeliveryChannel(delivery.getDevice()));
+        deliverable.add(delivery);
+      } catch (final NotPushRegisteredException e) {
+        undeliverable.add(delivery);
+      }
+    }
+
+    final List<Delivery> failed = new ArrayList<>();
+
+    if (online) {
+      final Map<Pair<UUID, Long>, Boolean> presence = clientPresenceManager.isPresent(getAccountAndDeviceIds(deliverable));
+      final Map<DestinationMessage, Delivery> deliveriesByMessage = new IdentityHashMap<>(deliverable.size());
+
+      for (int i = 0; i < deliverable.size(); i++) {
+        final Delivery delivery = deliverable.get(i);
+        final boolean clientPresent = presence.get(new Pair<>(delivery.getAccount().getUuid(), delivery.getDevice().getId()));
+
+        if (clientPresent) {
+          deliveriesByMessage.put(new DestinationMessage(delivery.getAccount().getUuid(), delivery.getDevice().getId(),
+              delivery.getMessage().toBuilder().setEphemeral(true).build()), delivery);
+        }
+
+        countSentMessage(channels.get(i), true, clientPresent);
+      }
+
+      for (final DestinationMessage failedMessage : messagesManager.insert(new ArrayList<>(deliveriesByMessage.keySet()))) {
+        failed.add(deliveriesByMessage.get(failedMessage));
+      }
+    } else {
+      final List<DestinationMessage> messages = new ArrayList<>(deliverable.size());
+
+      for (final Delivery delivery : deliverable) {
+        messages.add(new DestinationMessage(delivery.getAccount().getUuid(), delivery.getDevice().getId(), delivery.getMessage()));
+      }
+
+      final Set<DestinationMessage> failedMessages = Collections.newSetFromMap(new IdentityHashMap<>());
+      failedMessages.addAll(messagesManager.insert(messages));
+
+      // As with single messages, presence is checked only once the messages are queued
+      final Map<Pair<UUID, Long>, Boolean> presence = clientPresenceManager.isPresent(getAccountAndDeviceIds(deliverable));
+
+      for (int i = 0; i < deliverable.size(); i++) {
+        final Delivery delivery = deliverable.get(i);
+
+        if (failedMessages.contains(messages.get(i))) {
+          failed.add(delivery);
+          continue;
+        }
+
+        final boolean clientPresent = presence.get(new Pair<>(delivery.getAccount().getUuid(), delivery.getDevice().getId()));
+
+        if (!clientPresent) {
+          sendNewMessageNotification(delivery.getAccount(), delivery.getDevice());
+        }
+
+        countSentMessage(channels.get(i), false, clientPresent);
+      }
+    }
+
+    return new BatchResult(undeliverable, failed);
+  }
+
+  private static List<Pair<UUID, Long>> getAccountAndDeviceIds(final List<Delivery> deliveries) {
+    return deliveries.stream()
+        .map(delivery -> new Pair<>(delivery.getAccount().getUuid(), delivery.getDevice().getId()))
+        .collect(Collectors.toList());
+  }
+
+  private static String getDeliveryChannel(final Device device) throws NotPushRegisteredException {
+    if (device.getGcmId() != null) {
+      return "gcm";
+    } else if (device.getApnId() != null) {
+      return "apn";
+    } else if (device.getFetchesMessages()) {
+      return "websocket";
+    } else {
+      throw new NotPushRegisteredException("No delivery possible!");
+    }
+  }
+
+  private static void countSentMessage(final String channel, final boolean online, final boolean clientPresent) {
     final List<Tag> tags = List.of(
         Tag.of(CHANNEL_TAG_NAME, channel),
         Tag.of(EPHEMERAL_TAG_NAME, String.valueOf(online)),
@@ -165,4 +257,60 @@ public class MessageSender implements Managed {
 
     // apnSender.stop();
   }
+
+  /**
+   * The outcome of {@link #sendMessages(List, boolean)} for the deliveries that were not sent.
+   */
+  public static class BatchResult {
+
+    private final List<Delivery> undeliverable;
+    private final List<Delivery> failed;
+
+    public BatchResult(final List<Delivery> undeliverable, final List<Delivery> failed) {
+      this.undeliverable = undeliverable;
+      this.failed = failed;
+    }
+
+    /**
+     * @return the deliveries that were not attempted because their destination device has no way to receive messages
+     */
+    public List<Delivery> getUndeliverable() {
+      return undeliverable;
+    }
+
+    /**
+     * @return the deliveries whose message could not be queued
+     */
+    public List<Delivery> getFailed() {
+      return failed;
+    }
+  }
+
+  /**
+   * A message addressed to a single destination device.
+   */
+  public static class Delivery {
+
+    private final Account account;
+    private final Device device;
+    private final Envelope message;
+
+    public Delivery(final Account account, final Device device, final Envelope message) {
+      this.account = account;
+      this.device = device;
+      this.message = message;
+    }
+
+    public Account getAccount() {
+      return account;
+    }
+
+    public Device getDevice() {
+      return device;
+    }
+
+    public Envelope getMessage() {
+      return message;
+    }
+  }
 }
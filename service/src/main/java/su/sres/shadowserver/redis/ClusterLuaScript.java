@@ -15,6 +15,10 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
@@ -74,6 +78,40 @@ public class ClusterLuaScript {
     execute(connection, keys.toArray(BYTE_ARRAY_ARRAY), args.toArray(BYTE_ARRAY_ARRAY)));
   }
 
+  /**
+   * Dispatches the script without waiting for its result. Commands dispatched this
+   * way share the cluster connection and are pipelined by Lettuce, so issuing many
+   * of them before waiting on any costs roughly one round trip per node.
+   */
+  public CompletableFuture<Object> executeBinaryAsync(final List<byte[]> keys, final List<byte[]> args) {
+    return redisCluster.withBinaryClusterAsync(connection ->
+    executeAsync(connection, keys.toArray(BYTE_ARRAY_ARRAY), args.toArray(BYTE_ARRAY_ARRAY)));
+  }
+
+  private <T> CompletableFuture<Object> executeAsync(final StatefulRedisClusterConnection<T, T> connection, final T[] keys, final T[] args) {
+    return connection.async().evalsha(sha, scriptOutputType, keys, args)
+        .<CompletionStage<Object>>handle((result, throwable) -> {
+          if (throwable == null) {
+            return CompletableFuture.completedFuture(result);
+          }
+
+          final Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+
+          if (cause instanceof RedisNoScriptException) {
+            return connection.async().eval(script, scriptOutputType, keys, args);
+          }
+
+          return CompletableFuture.failedFuture(cause);
+        })
+        .thenCompose(Function.identity())
+        .whenComplete((result, throwable) -> {
+          if (throwable != null) {
+            log.warn("Failed to execute script", throwable);
+          }
+        })
+        .toCompletableFuture();
+  }
+
   private <T> Object execute(final StatefulRedisClusterConnection<T, T> connection, final T[] keys, final T[] args) {
     try {
       try {
@@ -30,6 +30,10 @@ import su.sres.shadowserver.util.Constants;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -50,6 +54,7 @@ public class FaultTolerantRedisCluster {
 
   private final CircuitBreaker circuitBreaker;
   private final Retry retry;
+  private final ScheduledExecutorService asyncRetryExecutor;
 
   public FaultTolerantRedisCluster(final String name, final RedisClusterConfiguration clusterConfiguration, final ClientResources clientResources) {
     this(name,
@@ -78,6 +83,12 @@ public class FaultTolerantRedisCluster {
 
     this.circuitBreaker = CircuitBreaker.of(name + "-breaker", circuitBreakerConfiguration.toCircuitBreakerConfig());
     this.retry = Retry.of(name + "-retry", retryConfiguration.toRetryConfigBuilder().retryOnException(exception -> exception instanceof RedisCommandTimeoutException).build());
+    this.asyncRetryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, name + "-async-retry");
+      thread.setDaemon(true);
+
+      return thread;
+    });
 
     CircuitBreakerUtil.registerMetrics(SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME), circuitBreaker, FaultTolerantRedisCluster.class);
     CircuitBreakerUtil.registerMetrics(SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME), retry, FaultTolerantRedisCluster.class);
@@ -92,6 +103,7 @@ public class FaultTolerantRedisCluster {
     }
 
     clusterClient.shutdown();
+    asyncRetryExecutor.shutdown();
   }
 
   public String getName() {
@@ -114,6 +126,19 @@ public class FaultTolerantRedisCluster {
     return withConnection(binaryConnection, function);
   }
 
+  /**
+   * Applies the circuit breaker and retry policy to an asynchronous operation.
+   * The returned future completes on a Lettuce I/O thread, so callers must not
+   * block in its callbacks.
+   */
+  public <T> CompletableFuture<T> withClusterAsync(final Function<StatefulRedisClusterConnection<String, String>, CompletionStage<T>> function) {
+    return withConnectionAsync(stringConnection, function);
+  }
+
+  public <T> CompletableFuture<T> withBinaryClusterAsync(final Function<StatefulRedisClusterConnection<byte[], byte[]>, CompletionStage<T>> function) {
+    return withConnectionAsync(binaryConnection, function);
+  }
+
   private <K, V> void useConnection(final StatefulRedisClusterConnection<K, V> connection, final Consumer<StatefulRedisClusterConnection<K, V>> consumer) {
     try {
       circuitBreaker.executeCheckedRunnable(() -> retry.executeRunnable(() -> consumer.accept(connection)));
@@ -138,6 +163,12 @@ public class FaultTolerantRedisCluster {
     }
   }
 
+  private <T, K, V> CompletableFuture<T> withConnectionAsync(final StatefulRedisClusterConnection<K, V> connection, final Function<StatefulRedisClusterConnection<K, V>, CompletionStage<T>> function) {
+    return retry.executeCompletionStage(asyncRetryExecutor,
+        CircuitBreaker.decorateCompletionStage(circuitBreaker, () -> function.apply(connection)))
+        .toCompletableFuture();
+  }
+
   public FaultTolerantPubSubConnection<String, String> createPubSubConnection() {
     final StatefulRedisClusterPubSubConnection<String, String> pubSubConnection = clusterClient.connectPubSub();
     pubSubConnections.add(pubSubConnection);
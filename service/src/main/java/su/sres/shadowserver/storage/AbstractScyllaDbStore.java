@@ -1,35 +1,40 @@
 package su.sres.shadowserver.storage;
 
-import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
-import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
 import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import com.google.common.collect.Lists;
+
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Consumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static com.codahale.metrics.MetricRegistry.name;
-import static io.micrometer.core.instrument.Metrics.counter;
-import static io.micrometer.core.instrument.Metrics.timer;
 
 public class AbstractScyllaDbStore {
 
   private final DynamoDbClient scyllaDbClient;
+  private final DynamoDbAsyncClient scyllaDbAsyncClient;
+  private final int batchWriteParallelism;
 
-  private final Timer batchWriteItemsFirstPass = timer(name(getClass(), "batchWriteItems"), "firstAttempt", "true");
-  private final Timer batchWriteItemsRetryPass = timer(name(getClass(), "batchWriteItems"), "firstAttempt", "false");
-  private final Counter batchWriteItemsUnprocessed = counter(name(getClass(), "batchWriteItemsUnprocessed"));
+  private final String batchWriteItemsTimerName = name(getClass(), "batchWriteItems");
+  private final String batchWriteItemsRetriedCounterName = name(getClass(), "batchWriteItemsRetried");
+  private final String batchWriteItemsUnprocessedCounterName = name(getClass(), "batchWriteItemsUnprocessed");
 
   private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -37,33 +42,141 @@ public class AbstractScyllaDbStore {
   public static final int DYNAMO_DB_MAX_BATCH_SIZE = 25; // This limit comes from Amazon Dynamo DB itself. It will reject batch writes
   // larger than this.
   public static final int RESULT_SET_CHUNK_SIZE = 100;
-    
+
+  public static final int DEFAULT_BATCH_WRITE_PARALLELISM = 4;
+
+  private static final long BATCH_WRITE_BASE_BACKOFF_MILLIS = 25;
+  private static final long BATCH_WRITE_MAX_BACKOFF_MILLIS = 1_000;
+
   public AbstractScyllaDbStore(final DynamoDbClient scyllaDbClient) {
+    this(scyllaDbClient, null, DEFAULT_BATCH_WRITE_PARALLELISM);
+  }
+
+  /**
+   * @param scyllaDbAsyncClient   the client used by {@link #writeAllAsync(String, List)}
+   * @param batchWriteParallelism the maximum number of {@code BatchWriteItem} requests a single
+   *                              {@link #writeAllAsync(String, List)} call keeps in flight
+   */
+  public AbstractScyllaDbStore(final DynamoDbClient scyllaDbClient, final DynamoDbAsyncClient scyllaDbAsyncClient, final int batchWriteParallelism) {
     this.scyllaDbClient = scyllaDbClient;
+    this.scyllaDbAsyncClient = scyllaDbAsyncClient;
+    this.batchWriteParallelism = batchWriteParallelism;
   }
 
   protected DynamoDbClient db() {
     return scyllaDbClient;
   }
 
-  protected void executeTableWriteItemsUntilComplete(final Map<String, List<WriteRequest>> items) {
-    AtomicReference<BatchWriteItemResponse> outcome = new AtomicReference<>();
-    batchWriteItemsFirstPass.record(() -> outcome.set(scyllaDbClient.batchWriteItem(BatchWriteItemRequest.builder().requestItems(items).build())));
+  protected DynamoDbAsyncClient asyncDb() {
+    if (scyllaDbAsyncClient == null) {
+      throw new IllegalStateException(getClass().getSimpleName() + " was created without an async client");
+    }
+
+    return scyllaDbAsyncClient;
+  }
+
+  /**
+   * Records the time until the future returned by the given operation completes, successfully or not, with the given
+   * timer; async variants use the same timers as their blocking counterparts.
+   */
+  protected static <T> CompletableFuture<T> recordAsync(final Timer timer, final Supplier<CompletableFuture<T>> operation) {
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+
+    return operation.get().whenComplete((ignored, throwable) -> sample.stop(timer));
+  }
+
+  /**
+   * Writes all of the given requests to a table, blocking until they've all been applied.
+   *
+   * @see #writeAllAsync(String, List)
+   */
+  protected void writeAll(final String tableName, final List<WriteRequest> writeRequests) {
+    try {
+      writeAllAsync(tableName, writeRequests).join();
+    } catch (final CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw e;
+    }
+  }
 
-    int attemptCount = 0;
-    while (!outcome.get().unprocessedItems().isEmpty() && attemptCount < MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE) {
-      batchWriteItemsRetryPass.record(() -> outcome.set(scyllaDbClient.batchWriteItem(BatchWriteItemRequest.builder()
-          .requestItems(outcome.get().unprocessedItems())
-          .build())));
-      ++attemptCount;
+  /**
+   * Writes all of the given requests to a table in {@code BatchWriteItem} chunks, with up to the configured number of
+   * chunks in flight at once. Unprocessed items are retried after a jittered exponential backoff; if any remain
+   * unprocessed after the maximum number of attempts, the returned future fails with an
+   * {@link UnprocessedBatchWriteItemsException}, and callers must treat the write as incomplete.
+   */
+  protected CompletableFuture<Void> writeAllAsync(final String tableName, final List<WriteRequest> writeRequests) {
+    if (writeRequests.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
     }
-    if (!outcome.get().unprocessedItems().isEmpty()) {
-      int totalItems = outcome.get().unprocessedItems().values().stream().mapToInt(List::size).sum();
-      logger.error("Attempt count ({}) reached max ({}}) before applying all batch writes to scylla. {} unprocessed items remain.", attemptCount, MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE, totalItems);
-      batchWriteItemsUnprocessed.increment(totalItems);
+
+    final List<List<WriteRequest>> batches = Lists.partition(writeRequests, DYNAMO_DB_MAX_BATCH_SIZE);
+    final Iterator<List<WriteRequest>> batchIterator = batches.iterator();
+    final CompletableFuture<?>[] lanes = new CompletableFuture[Math.min(batchWriteParallelism, batches.size())];
+
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = writeRemainingBatches(tableName, batchIterator);
     }
+
+    return CompletableFuture.allOf(lanes);
   }
-  
+
+  private CompletableFuture<Void> writeRemainingBatches(final String tableName, final Iterator<List<WriteRequest>> batchIterator) {
+    final List<WriteRequest> batch;
+
+    synchronized (batchIterator) {
+      if (!batchIterator.hasNext()) {
+        return CompletableFuture.completedFuture(null);
+      }
+
+      batch = batchIterator.next();
+    }
+
+    return writeBatch(tableName, Map.of(tableName, batch), 0)
+        .thenCompose(ignored -> writeRemainingBatches(tableName, batchIterator));
+  }
+
+  private CompletableFuture<Void> writeBatch(final String tableName, final Map<String, List<WriteRequest>> items, final int attempt) {
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+
+    return asyncDb().batchWriteItem(BatchWriteItemRequest.builder().requestItems(items).build())
+        .thenCompose(response -> {
+          sample.stop(Metrics.timer(batchWriteItemsTimerName, "table", tableName, "firstAttempt", String.valueOf(attempt == 0)));
+
+          if (!response.hasUnprocessedItems() || response.unprocessedItems().isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+          }
+
+          final int unprocessedItems = response.unprocessedItems().values().stream().mapToInt(List::size).sum();
+
+          if (attempt + 1 >= MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE) {
+            logger.error("Attempt count ({}) reached max ({}) before applying all batch writes to {}. {} unprocessed items remain.",
+                attempt + 1, MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE, tableName, unprocessedItems);
+            Metrics.counter(batchWriteItemsUnprocessedCounterName, "table", tableName).increment(unprocessedItems);
+
+            return CompletableFuture.failedFuture(new UnprocessedBatchWriteItemsException(
+                unprocessedItems + " items remain unprocessed in " + tableName));
+          }
+
+          Metrics.counter(batchWriteItemsRetriedCounterName, "table", tableName).increment(unprocessedItems);
+
+          return CompletableFuture.supplyAsync(response::unprocessedItems,
+                  CompletableFuture.delayedExecutor(getRetryBackoffMillis(attempt), TimeUnit.MILLISECONDS))
+              .thenCompose(unprocessed -> writeBatch(tableName, unprocessed, attempt + 1));
+        });
+  }
+
+  /**
+   * Returns a "full jitter" backoff: a random delay between zero and an exponentially-growing, capped ceiling.
+   */
+  static long getRetryBackoffMillis(final int attempt) {
+    final long ceiling = Math.min(BATCH_WRITE_MAX_BACKOFF_MILLIS, BATCH_WRITE_BASE_BACKOFF_MILLIS << Math.min(attempt, 20));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
   protected List<Map<String, AttributeValue>> scan(ScanRequest scanRequest, int max) {
 
     return db().scanPaginator(scanRequest)
@@ -72,28 +185,12 @@ public class AbstractScyllaDbStore {
         .limit(max)
         .collect(Collectors.toList());
   }
-  
+
   protected List<Map<String, AttributeValue>> scan(ScanRequest scanRequest) {
 
     return db().scanPaginator(scanRequest)
         .items()
-        .stream()        
+        .stream()
         .collect(Collectors.toList());
   }
-  
-  static <T> void writeInBatches(final Iterable<T> items, final Consumer<List<T>> action) {
-    final List<T> batch = new ArrayList<>(DYNAMO_DB_MAX_BATCH_SIZE);
-
-    for (T item : items) {
-      batch.add(item);
-
-      if (batch.size() == DYNAMO_DB_MAX_BATCH_SIZE) {
-        action.accept(batch);
-        batch.clear();
-      }
-    }
-    if (!batch.isEmpty()) {
-      action.accept(batch);
-    }
-  }
 }
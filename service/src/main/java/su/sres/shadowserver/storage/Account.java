@@ -66,6 +66,10 @@ public class Account {
   @JsonProperty
   private int version;
 
+  // number of device-scoped updates applied on top of the account data, see Accounts#updateDevice
+  @JsonIgnore
+  private int devicesVersion;
+
   @JsonIgnore
   private boolean stale;
 
@@ -414,6 +418,18 @@ public class Account {
     this.version = version;
   }
   
+  int getDevicesVersion() {
+    requireNotStale();
+
+    return devicesVersion;
+  }
+
+  void setDevicesVersion(int devicesVersion) {
+    requireNotStale();
+
+    this.devicesVersion = devicesVersion;
+  }
+
   boolean isStale() {
     return stale;
   }
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.io.IOException;
+import java.time.Instant;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import su.sres.shadowserver.entities.SignedPreKey;
+import su.sres.shadowserver.storage.protos.AccountRecord;
+import su.sres.shadowserver.storage.protos.BadgeRecord;
+import su.sres.shadowserver.storage.protos.CapabilitiesRecord;
+import su.sres.shadowserver.storage.protos.DeviceRecord;
+import su.sres.shadowserver.storage.protos.SignedPreKeyRecord;
+import su.sres.shadowserver.util.SystemMapper;
+
+/**
+ * Converts {@link Account}s (including their devices) to and from the compact binary form in which they're stored in
+ * the accounts table and the Redis account cache. An encoded account is a format version byte followed by a serialized
+ * {@link AccountRecord}; the account's UUID is not part of the encoded form.
+ * <p>
+ * Accounts can also be encoded as JSON objects, the form used before the binary one was introduced, which servers
+ * without this codec can still read. JSON always starts with '{', so anything that doesn't start with a known format
+ * version is read as JSON, and both forms can be decoded whichever one is written.
+ */
+public class AccountCodec {
+
+  /**
+   * The form in which accounts are written.
+   */
+  public enum Format {
+    JSON,
+    BINARY
+  }
+
+  static final byte FORMAT_VERSION_1 = 0x01;
+
+  private static final Counter JSON_DECODE_COUNTER = Metrics.counter(name(AccountCodec.class, "jsonDecode"));
+
+  private AccountCodec() {
+  }
+
+  public static byte[] encode(final Account account) {
+    return withFormatVersion(toRecord(account));
+  }
+
+  /**
+   * Encodes an account in the given form; {@link Format#JSON} is the form servers without this codec can read.
+   */
+  public static byte[] encode(final Account account, final Format format) {
+    if (format == Format.BINARY) {
+      return encode(account);
+    }
+
+    try {
+      return SystemMapper.getMapper().writeValueAsBytes(account);
+    } catch (final JsonProcessingException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static byte[] withFormatVersion(final MessageLite record) {
+    final byte[] encoded = new byte[record.getSerializedSize() + 1];
+
+    encoded[0] = FORMAT_VERSION_1;
+
+    try {
+      final CodedOutputStream outputStream = CodedOutputStream.newInstance(encoded, 1, encoded.length - 1);
+      record.writeTo(outputStream);
+      outputStream.checkNoSpaceLeft();
+    } catch (final IOException e) {
+      // writing to an array of exactly the serialized size can't fail
+      throw new AssertionError(e);
+    }
+
+    return encoded;
+  }
+
+  /**
+   * Decodes an account written in either {@link Format}, or by Jackson before the binary form was introduced. The
+   * returned account's UUID is not set.
+   */
+  public static Account decode(final byte[] encoded) throws IOException {
+    if (encoded.length > 0 && encoded[0] == FORMAT_VERSION_1) {
+      return fromRecord(AccountRecord.parseFrom(CodedInputStream.newInstance(encoded, 1, encoded.length - 1)));
+    }
+
+    JSON_DECODE_COUNTER.increment();
+    return SystemMapper.getMapper().readValue(encoded, Account.class);
+  }
+
+  /**
+   * Encodes a single device in the same way as the devices of an encoded account, for storing it on its own.
+   */
+  public static byte[] encodeDevice(final Device device) {
+    return withFormatVersion(toRecord(device));
+  }
+
+  public static Device decodeDevice(final byte[] encoded) throws IOException {
+    if (encoded.length == 0 || encoded[0] != FORMAT_VERSION_1) {
+      throw new IOException("Unknown device format version");
+    }
+
+    return fromRecord(DeviceRecord.parseFrom(CodedInputStream.newInstance(encoded, 1, encoded.length - 1)));
+  }
+
+  /**
+   * Returns a deep copy of the given account, UUID included, that can be modified without affecting the original.
+   */
+  public static Account copy(final Account account) {
+    final Account copy = fromRecord(toRecord(account));
+    copy.setUuid(account.getUuid());
+
+    return copy;
+  }
+
+  private static AccountRecord toRecord(final Account account) {
+    final AccountRecord.Builder builder = AccountRecord.newBuilder()
+        .setUnrestrictedUnidentifiedAccess(account.isUnrestrictedUnidentifiedAccess())
+        .setDiscoverableByUserLogin(account.isDiscoverableByUserLogin())
+        .setVersion(account.getVersion())
+        .setDevicesVersion(account.getDevicesVersion());
+
+    if (account.getUserLogin() != null) {
+      builder.setUserLogin(account.getUserLogin());
+    }
+
+    if (account.getVD() != null) {
+      builder.setVd(account.getVD());
+    }
+
+    if (account.getIdentityKey() != null) {
+      builder.setIdentityKey(account.getIdentityKey());
+    }
+
+    account.getCurrentProfileVersion().ifPresent(builder::setCurrentProfileVersion);
+
+    if (account.getProfileName() != null) {
+      builder.setName(account.getProfileName());
+    }
+
+    if (account.getAvatar() != null) {
+      builder.setAvatar(account.getAvatar());
+    }
+
+    account.getUnidentifiedAccessKey().ifPresent(key -> builder.setUnidentifiedAccessKey(ByteString.copyFrom(key)));
+
+    for (final Device device : account.getDevices()) {
+      builder.addDevices(toRecord(device));
+    }
+
+    for (final AccountBadge badge : account.getBadges()) {
+      final BadgeRecord.Builder badgeBuilder = BadgeRecord.newBuilder().setVisible(badge.isVisible());
+
+      if (badge.getId() != null) {
+        badgeBuilder.setId(badge.getId());
+      }
+
+      if (badge.getExpiration() != null) {
+        badgeBuilder.setExpirationSeconds(badge.getExpiration().getEpochSecond())
+            .setExpirationNanos(badge.getExpiration().getNano());
+      }
+
+      builder.addBadges(badgeBuilder);
+    }
+
+    return builder.build();
+  }
+
+  private static DeviceRecord toRecord(final Device device) {
+    final DeviceRecord.Builder builder = DeviceRecord.newBuilder()
+        .setId(device.getId())
+        .setPushTimestamp(device.getPushTimestamp())
+        .setUninstalledFeedback(device.getUninstalledFeedbackTimestamp())
+        .setFetchesMessages(device.getFetchesMessages())
+        .setRegistrationId(device.getRegistrationId())
+        .setLastSeen(device.getLastSeen())
+        .setCreated(device.getCreated())
+        .setVersion(device.getVersion());
+
+    if (device.getName() != null) {
+      builder.setName(device.getName());
+    }
+
+    final String authToken = device.getAuthenticationCredentials().getHashedAuthenticationToken();
+    final String salt = device.getAuthenticationCredentials().getSalt();
+
+    if (authToken != null) {
+      builder.setAuthToken(authToken);
+    }
+
+    if (salt != null) {
+      builder.setSalt(salt);
+    }
+
+    if (device.getGcmId() != null) {
+      builder.setGcmId(device.getGcmId());
+    }
+
+    if (device.getApnId() != null) {
+      builder.setApnId(device.getApnId());
+    }
+
+    if (device.getVoipApnId() != null) {
+      builder.setVoipApnId(device.getVoipApnId());
+    }
+
+    if (device.getUserAgent() != null) {
+      builder.setUserAgent(device.getUserAgent());
+    }
+
+    final SignedPreKey signedPreKey = device.getSignedPreKey();
+
+    if (signedPreKey != null) {
+      final SignedPreKeyRecord.Builder signedPreKeyBuilder = SignedPreKeyRecord.newBuilder()
+          .setKeyId(signedPreKey.getKeyId());
+
+      if (signedPreKey.getPublicKey() != null) {
+        signedPreKeyBuilder.setPublicKey(signedPreKey.getPublicKey());
+      }
+
+      if (signedPreKey.getSignature() != null) {
+        signedPreKeyBuilder.setSignature(signedPreKey.getSignature());
+      }
+
+      builder.setSignedPreKey(signedPreKeyBuilder);
+    }
+
+    final Device.DeviceCapabilities capabilities = device.getCapabilities();
+
+    if (capabilities != null) {
+      builder.setCapabilities(CapabilitiesRecord.newBuilder()
+          .setGv2(capabilities.isGv2())
+          .setGv22(capabilities.isGv2_2())
+          .setGv23(capabilities.isGv2_3())
+          .setStorage(capabilities.isStorage())
+          .setTransfer(capabilities.isTransfer())
+          .setGv1Migration(capabilities.isGv1Migration())
+          .setSenderKey(capabilities.isSenderKey())
+          .setAnnouncementGroup(capabilities.isAnnouncementGroup())
+          .setChangeUserLogin(capabilities.isChangeUserLogin()));
+    }
+
+    return builder.build();
+  }
+
+  private static Account fromRecord(final AccountRecord record) {
+    final Account account = new Account();
+
+    account.setUserLogin(record.hasUserLogin() ? record.getUserLogin() : null);
+    account.setVD(record.hasVd() ? record.getVd() : null);
+    account.setIdentityKey(record.hasIdentityKey() ? record.getIdentityKey() : null);
+    account.setCurrentProfileVersion(record.hasCurrentProfileVersion() ? record.getCurrentProfileVersion() : null);
+    account.setProfileName(record.hasName() ? record.getName() : null);
+    account.setAvatar(record.hasAvatar() ? record.getAvatar() : null);
+    account.setUnidentifiedAccessKey(record.hasUnidentifiedAccessKey() ? record.getUnidentifiedAccessKey().toByteArray() : null);
+    account.setUnrestrictedUnidentifiedAccess(record.getUnrestrictedUnidentifiedAccess());
+    account.setDiscoverableByUserLogin(!record.hasDiscoverableByUserLogin() || record.getDiscoverableByUserLogin());
+    account.setVersion(record.getVersion());
+    account.setDevicesVersion(record.getDevicesVersion());
+
+    for (final DeviceRecord deviceRecord : record.getDevicesList()) {
+      account.addDevice(fromRecord(deviceRecord));
+    }
+
+    // added directly rather than through setBadges, which would drop expired badges; decoding shouldn't change the account
+    for (final BadgeRecord badgeRecord : record.getBadgesList()) {
+      account.getBadges().add(new AccountBadge(
+          badgeRecord.hasId() ? badgeRecord.getId() : null,
+          badgeRecord.hasExpirationSeconds()
+              ? Instant.ofEpochSecond(badgeRecord.getExpirationSeconds(), badgeRecord.getExpirationNanos())
+              : null,
+          badgeRecord.getVisible()));
+    }
+
+    return account;
+  }
+
+  private static Device fromRecord(final DeviceRecord record) {
+    final Device device = new Device(record.getId(),
+        record.hasName() ? record.getName() : null,
+        record.hasAuthToken() ? record.getAuthToken() : null,
+        record.hasSalt() ? record.getSalt() : null,
+        record.hasGcmId() ? record.getGcmId() : null,
+        record.hasApnId() ? record.getApnId() : null,
+        record.hasVoipApnId() ? record.getVoipApnId() : null,
+        record.getFetchesMessages(),
+        record.getRegistrationId(),
+        record.hasSignedPreKey() ? fromRecord(record.getSignedPreKey()) : null,
+        record.getLastSeen(),
+        record.getCreated(),
+        record.hasUserAgent() ? record.getUserAgent() : null,
+        record.getUninstalledFeedback(),
+        record.hasCapabilities() ? fromRecord(record.getCapabilities()) : null);
+
+    device.setPushTimestamp(record.getPushTimestamp());
+    device.setVersion(record.getVersion());
+
+    return device;
+  }
+
+  private static SignedPreKey fromRecord(final SignedPreKeyRecord record) {
+    return new SignedPreKey(record.getKeyId(),
+        record.hasPublicKey() ? record.getPublicKey() : null,
+        record.hasSignature() ? record.getSignature() : null);
+  }
+
+  private static Device.DeviceCapabilities fromRecord(final CapabilitiesRecord record) {
+    return new Device.DeviceCapabilities(record.getGv2(), record.getGv22(), record.getGv23(), record.getStorage(),
+        record.getTransfer(), record.getGv1Migration(), record.getSenderKey(), record.getAnnouncementGroup(),
+        record.getChangeUserLogin());
+  }
+}
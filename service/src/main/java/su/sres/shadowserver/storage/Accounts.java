@@ -7,11 +7,11 @@ package su.sres.shadowserver.storage;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.annotations.VisibleForTesting;
 
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
@@ -27,14 +27,16 @@ import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import su.sres.shadowserver.util.AttributeValues;
-import su.sres.shadowserver.util.SystemMapper;
 import su.sres.shadowserver.util.UUIDUtil;
 
 public class Accounts extends AbstractScyllaDbStore {
@@ -43,8 +45,16 @@ public class Accounts extends AbstractScyllaDbStore {
   static final String KEY_ACCOUNT_UUID = "U";
   // user login
   static final String ATTR_ACCOUNT_USER_LOGIN = "P";
-  // account, serialized to JSON
+  // account, encoded by AccountCodec in either of its formats
   static final String ATTR_ACCOUNT_DATA = "D";
+  // prefix of the per-device last seen timestamps, which are written apart from the account data
+  static final String ATTR_DEVICE_LAST_SEEN_PREFIX = "LS";
+  // prefix of devices updated on their own, encoded by AccountCodec; these take precedence over the account data
+  static final String ATTR_DEVICE_DATA_PREFIX = "DD";
+  // prefix of the versions of devices updated on their own
+  static final String ATTR_DEVICE_VERSION_PREFIX = "DV";
+  // number of device updates since the account data was last written
+  static final String ATTR_DEVICES_VERSION = "DVS";
 
   // internal version for optimistic locking
   static final String ATTR_VERSION = "V";
@@ -62,9 +72,12 @@ public class Accounts extends AbstractScyllaDbStore {
   private final String miscTableName;
 
   private final int scanPageSize;
+  private final AccountCodec.Format accountFormat;
 
   private static final Timer CREATE_TIMER = Metrics.timer(name(Accounts.class, "create"));
   private static final Timer UPDATE_TIMER = Metrics.timer(name(Accounts.class, "update"));
+  private static final Timer UPDATE_DEVICE_TIMER = Metrics.timer(name(Accounts.class, "updateDevice"));
+  private static final Timer UPDATE_DEVICE_LAST_SEEN_TIMER = Metrics.timer(name(Accounts.class, "updateDeviceLastSeen"));
   private static final Timer GET_BY_USER_LOGIN_TIMER = Metrics.timer(name(Accounts.class, "getByUserLogin"));
   private static final Timer GET_BY_UUID_TIMER = Metrics.timer(name(Accounts.class, "getByUuid"));
   private static final Timer GET_ALL_FROM_START_TIMER = Metrics.timer(name(Accounts.class, "getAllFrom"));
@@ -72,89 +85,99 @@ public class Accounts extends AbstractScyllaDbStore {
   private static final Timer DELETE_TIMER = Metrics.timer(name(Accounts.class, "delete"));
 
   public Accounts(DynamoDbClient client, String accountsTableName, String userLoginsTableName, String miscTableName, final int scanPageSize) {
-    super(client);
+    this(client, null, accountsTableName, userLoginsTableName, miscTableName, scanPageSize);
+  }
+
+  public Accounts(DynamoDbClient client, DynamoDbAsyncClient asyncClient, String accountsTableName, String userLoginsTableName,
+      String miscTableName, final int scanPageSize) {
+    this(client, asyncClient, accountsTableName, userLoginsTableName, miscTableName, scanPageSize, AccountCodec.Format.JSON);
+  }
+
+  /**
+   * @param accountFormat the form in which account data is written; accounts are read in either form
+   */
+  public Accounts(DynamoDbClient client, DynamoDbAsyncClient asyncClient, String accountsTableName, String userLoginsTableName,
+      String miscTableName, final int scanPageSize, final AccountCodec.Format accountFormat) {
+    super(client, asyncClient, DEFAULT_BATCH_WRITE_PARALLELISM);
 
     this.client = client;
     this.accountsTableName = accountsTableName;
     this.userLoginsTableName = userLoginsTableName;
     this.miscTableName = miscTableName;
     this.scanPageSize = scanPageSize;
+    this.accountFormat = accountFormat;
   }
 
   public boolean create(Account account, long directoryVersion) {
 
     return CREATE_TIMER.record(() -> {
 
-      try {
-        PutItemRequest userLoginConstraintPut = buildPutWriteItemForUserLoginConstraint(account, account.getUuid());
-
-        PutItemRequest accountPut = buildPutWriteItemForAccount(account, account.getUuid(), PutItemRequest.builder()
-            .conditionExpression("attribute_not_exists(#number) OR #number = :number")
-            .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_USER_LOGIN))
-            .expressionAttributeValues(Map.of(":number", AttributeValues.fromString(account.getUserLogin()))));
+      PutItemRequest userLoginConstraintPut = buildPutWriteItemForUserLoginConstraint(account, account.getUuid());
 
-        PutItemRequest miscPut = buildPutWriteItemForMisc(directoryVersion);
-
-        try {
-          client.putItem(accountPut);
-        } catch (ConditionalCheckFailedException e) {
-
-          throw new IllegalArgumentException("uuid present with different user login");
+      PutItemRequest accountPut = buildPutWriteItemForAccount(account, account.getUuid(), PutItemRequest.builder()
+          .conditionExpression("attribute_not_exists(#number) OR #number = :number")
+          .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_USER_LOGIN))
+          .expressionAttributeValues(Map.of(":number", AttributeValues.fromString(account.getUserLogin()))));
 
-        }
-
-        try {
-          client.putItem(userLoginConstraintPut);
-        } catch (ConditionalCheckFailedException e) {
+      PutItemRequest miscPut = buildPutWriteItemForMisc(directoryVersion);
 
-          // if the user login is found with an uuid that differs that means that the
-          // account is not new (rather it's soft-deleted), and the new uuid is reset to
-          // the old one. The fresh entry in the accounts table is removed in favour of
-          // the already existing one.
-          
-          DeleteItemRequest accountDelete = DeleteItemRequest.builder()
-              .tableName(accountsTableName)
-              .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
-              .build();
+      try {
+        client.putItem(accountPut);
+      } catch (ConditionalCheckFailedException e) {
 
-          client.deleteItem(accountDelete);          
+        throw new IllegalArgumentException("uuid present with different user login");
 
-          Optional<Account> exAcc = get(account.getUserLogin());
-          UUID uuid = exAcc.get().getUuid();
-          account.setUuid(uuid);
+      }
 
-          final int version = exAcc.get().getVersion();
-          account.setVersion(version);
+      try {
+        client.putItem(userLoginConstraintPut);
+      } catch (ConditionalCheckFailedException e) {
+
+        // if the user login is found with an uuid that differs that means that the
+        // account is not new (rather it's soft-deleted), and the new uuid is reset to
+        // the old one. The fresh entry in the accounts table is removed in favour of
+        // the already existing one.
+        
+        DeleteItemRequest accountDelete = DeleteItemRequest.builder()
+            .tableName(accountsTableName)
+            .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
+            .build();
 
-          update(account);
-          client.putItem(miscPut);
+        client.deleteItem(accountDelete);          
 
-          return false;
+        Optional<Account> exAcc = get(account.getUserLogin());
+        UUID uuid = exAcc.get().getUuid();
+        account.setUuid(uuid);
 
-        } catch (TransactionConflictException e) {
-          // this should only happen if two clients manage to make concurrent create()
-          // calls
-          throw new ContestedOptimisticLockException();
-        }
+        final int version = exAcc.get().getVersion();
+        account.setVersion(version);
+        account.setDevicesVersion(exAcc.get().getDevicesVersion());
 
+        update(account);
         client.putItem(miscPut);
 
-      } catch (JsonProcessingException e) {
-        throw new IllegalArgumentException(e);
+        return false;
+
+      } catch (TransactionConflictException e) {
+        // this should only happen if two clients manage to make concurrent create()
+        // calls
+        throw new ContestedOptimisticLockException();
       }
 
+      client.putItem(miscPut);
+
       return true;
     });
   }
 
-  private PutItemRequest buildPutWriteItemForAccount(Account account, UUID uuid, PutItemRequest.Builder putBuilder) throws JsonProcessingException {
+  private PutItemRequest buildPutWriteItemForAccount(Account account, UUID uuid, PutItemRequest.Builder putBuilder) {
     return putBuilder
         .tableName(accountsTableName)
         .item(Map.of(
             KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid),
             ATTR_ACCOUNT_USER_LOGIN, AttributeValues.fromString(account.getUserLogin()),
             ATTR_ACCOUNT_VD, AttributeValues.fromString("default"),
-            ATTR_ACCOUNT_DATA, AttributeValues.fromByteArray(SystemMapper.getMapper().writeValueAsBytes(account)),
+            ATTR_ACCOUNT_DATA, AttributeValues.fromByteArray(AccountCodec.encode(account, accountFormat)),
             ATTR_VERSION, AttributeValues.fromInt(account.getVersion())))
         .build();
   }
@@ -186,33 +209,53 @@ public class Accounts extends AbstractScyllaDbStore {
   }
 
   // TODO: VD change
+  /**
+   * Writes the whole account, folding in any devices that were updated on their own since the account was read. Fails
+   * if the account or any of its devices was updated in the meantime.
+   */
   public void update(Account account) throws ContestedOptimisticLockException {
     UPDATE_TIMER.record(() -> {
-      UpdateItemRequest updateItemRequest;
-      try {
-        updateItemRequest = UpdateItemRequest.builder()
-            .tableName(accountsTableName)
-            .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
-            .updateExpression("SET #data = :data ADD #version :version_increment")
-            .conditionExpression("attribute_exists(#number) AND #version = :version")
-            .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_USER_LOGIN,
-                "#data", ATTR_ACCOUNT_DATA,
-                "#version", ATTR_VERSION))
-            .expressionAttributeValues(Map.of(
-                ":data", AttributeValues.fromByteArray(SystemMapper.getMapper().writeValueAsBytes(account)),
-                ":version", AttributeValues.fromInt(account.getVersion()),
-                ":version_increment", AttributeValues.fromInt(1)))
-            .returnValues(ReturnValue.UPDATED_NEW)
-            .build();
+      final Map<String, String> attributeNames = new HashMap<>();
+      final Map<String, AttributeValue> attributeValues = new HashMap<>();
+      final List<String> removals = new ArrayList<>();
+
+      attributeNames.put("#number", ATTR_ACCOUNT_USER_LOGIN);
+      attributeNames.put("#data", ATTR_ACCOUNT_DATA);
+      attributeNames.put("#version", ATTR_VERSION);
+      attributeNames.put("#devices_version", ATTR_DEVICES_VERSION);
+
+      attributeValues.put(":data", AttributeValues.fromByteArray(AccountCodec.encode(account, accountFormat)));
+      attributeValues.put(":version", AttributeValues.fromInt(account.getVersion()));
+      attributeValues.put(":version_increment", AttributeValues.fromInt(1));
+
+      removals.add("#devices_version");
+
+      // the devices' own attributes are superseded by the account data written here
+      for (final Device device : account.getDevices()) {
+        attributeNames.put("#dd" + device.getId(), getDeviceDataAttributeName(device.getId()));
+        attributeNames.put("#dv" + device.getId(), getDeviceVersionAttributeName(device.getId()));
 
-      } catch (JsonProcessingException e) {
-        throw new IllegalArgumentException(e);
+        removals.add("#dd" + device.getId());
+        removals.add("#dv" + device.getId());
       }
 
+      final UpdateItemRequest updateItemRequest = UpdateItemRequest.builder()
+          .tableName(accountsTableName)
+          .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
+          .updateExpression("SET #data = :data ADD #version :version_increment REMOVE " + String.join(", ", removals))
+          .conditionExpression("attribute_exists(#number) AND #version = :version AND "
+              + getVersionCondition("#devices_version", ":devices_version", account.getDevicesVersion(), attributeValues))
+          .expressionAttributeNames(attributeNames)
+          .expressionAttributeValues(attributeValues)
+          .returnValues(ReturnValue.UPDATED_NEW)
+          .build();
+
       try {
         UpdateItemResponse response = client.updateItem(updateItemRequest);
 
         account.setVersion(AttributeValues.getInt(response.attributes(), "V", account.getVersion() + 1));
+        account.setDevicesVersion(0);
+        account.getDevices().forEach(device -> device.setVersion(0));
       } catch (final TransactionConflictException e) {
 
         throw new ContestedOptimisticLockException();
@@ -226,6 +269,127 @@ public class Accounts extends AbstractScyllaDbStore {
     });
   }
 
+  /**
+   * Writes a single device of the account on its own, leaving the account data and version alone. This only conflicts
+   * with updates of the same device and with {@link #update(Account)}, so different devices of an account can be
+   * updated concurrently. The device is merged into the account whenever it's read.
+   * <p>
+   * Servers that can't read the binary account form don't know about devices written on their own either: they would
+   * ignore them when reading the account and leave them behind when rewriting it, after which the stale devices would
+   * override newer account data here. Until the binary form is enabled, the whole account is written instead.
+   */
+  public void updateDevice(Account account, Device device) throws ContestedOptimisticLockException {
+    if (accountFormat != AccountCodec.Format.BINARY) {
+      update(account);
+      return;
+    }
+
+    UPDATE_DEVICE_TIMER.record(() -> {
+      final Map<String, AttributeValue> attributeValues = new HashMap<>();
+
+      attributeValues.put(":device", AttributeValues.fromByteArray(AccountCodec.encodeDevice(device)));
+      attributeValues.put(":version", AttributeValues.fromInt(account.getVersion()));
+      attributeValues.put(":version_increment", AttributeValues.fromInt(1));
+
+      final UpdateItemRequest updateItemRequest = UpdateItemRequest.builder()
+          .tableName(accountsTableName)
+          .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
+          .updateExpression("SET #device = :device ADD #device_version :version_increment, #devices_version :version_increment")
+          .conditionExpression("attribute_exists(#number) AND #version = :version AND "
+              + getVersionCondition("#device_version", ":device_version", device.getVersion(), attributeValues))
+          .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_USER_LOGIN,
+              "#version", ATTR_VERSION,
+              "#device", getDeviceDataAttributeName(device.getId()),
+              "#device_version", getDeviceVersionAttributeName(device.getId()),
+              "#devices_version", ATTR_DEVICES_VERSION))
+          .expressionAttributeValues(attributeValues)
+          .returnValues(ReturnValue.UPDATED_NEW)
+          .build();
+
+      try {
+        UpdateItemResponse response = client.updateItem(updateItemRequest);
+
+        device.setVersion(AttributeValues.getInt(response.attributes(), getDeviceVersionAttributeName(device.getId()),
+            device.getVersion() + 1));
+        account.setDevicesVersion(AttributeValues.getInt(response.attributes(), ATTR_DEVICES_VERSION,
+            account.getDevicesVersion() + 1));
+      } catch (final TransactionConflictException e) {
+
+        throw new ContestedOptimisticLockException();
+
+      } catch (final ConditionalCheckFailedException e) {
+
+        throw get(account.getUuid()).isPresent() ? new ContestedOptimisticLockException() : e;
+      }
+    });
+  }
+
+  /**
+   * Version attributes are only written once something was updated, so an expected version of 0 means "not yet
+   * written".
+   */
+  private static String getVersionCondition(final String attributeName, final String valueName, final int version,
+      final Map<String, AttributeValue> attributeValues) {
+
+    if (version == 0) {
+      return "attribute_not_exists(" + attributeName + ")";
+    }
+
+    attributeValues.put(valueName, AttributeValues.fromInt(version));
+
+    return attributeName + " = " + valueName;
+  }
+
+  /**
+   * Sets the last seen timestamps of the given devices without rewriting the account data or changing its version, so
+   * it never contends with {@link #update(Account)}. The timestamps are merged into the devices whenever the account
+   * is read; nothing is written if the account no longer exists.
+   */
+  public void updateDeviceLastSeen(final UUID uuid, final Map<Long, Long> lastSeenByDeviceId) {
+    if (lastSeenByDeviceId.isEmpty()) {
+      return;
+    }
+
+    UPDATE_DEVICE_LAST_SEEN_TIMER.record(() -> {
+      final Map<String, String> attributeNames = new HashMap<>();
+      final Map<String, AttributeValue> attributeValues = new HashMap<>();
+      final List<String> assignments = new ArrayList<>(lastSeenByDeviceId.size());
+
+      attributeNames.put("#number", ATTR_ACCOUNT_USER_LOGIN);
+
+      lastSeenByDeviceId.forEach((deviceId, lastSeen) -> {
+        attributeNames.put("#ls" + deviceId, getDeviceLastSeenAttributeName(deviceId));
+        attributeValues.put(":ls" + deviceId, AttributeValues.fromLong(lastSeen));
+        assignments.add("#ls" + deviceId + " = :ls" + deviceId);
+      });
+
+      try {
+        client.updateItem(UpdateItemRequest.builder()
+            .tableName(accountsTableName)
+            .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid)))
+            .updateExpression("SET " + String.join(", ", assignments))
+            .conditionExpression("attribute_exists(#number)")
+            .expressionAttributeNames(attributeNames)
+            .expressionAttributeValues(attributeValues)
+            .build());
+      } catch (final ConditionalCheckFailedException e) {
+        // the account was deleted in the meantime
+      }
+    });
+  }
+
+  private static String getDeviceLastSeenAttributeName(final long deviceId) {
+    return ATTR_DEVICE_LAST_SEEN_PREFIX + deviceId;
+  }
+
+  private static String getDeviceDataAttributeName(final long deviceId) {
+    return ATTR_DEVICE_DATA_PREFIX + deviceId;
+  }
+
+  private static String getDeviceVersionAttributeName(final long deviceId) {
+    return ATTR_DEVICE_VERSION_PREFIX + deviceId;
+  }
+
   public Optional<Account> get(String userLogin) {
 
     return GET_BY_USER_LOGIN_TIMER.record(() -> {
@@ -243,12 +407,16 @@ public class Accounts extends AbstractScyllaDbStore {
   }
 
   private Map<String, AttributeValue> accountByUuid(AttributeValue uuid) {
-    GetItemResponse r = client.getItem(GetItemRequest.builder()
+    GetItemResponse r = client.getItem(getAccountByUuidRequest(uuid));
+    return r.item().isEmpty() ? null : r.item();
+  }
+
+  private GetItemRequest getAccountByUuidRequest(AttributeValue uuid) {
+    return GetItemRequest.builder()
         .tableName(accountsTableName)
         .key(Map.of(KEY_ACCOUNT_UUID, uuid))
         .consistentRead(true)
-        .build());
-    return r.item().isEmpty() ? null : r.item();
+        .build();
   }
 
   public Optional<Account> get(UUID uuid) {
@@ -256,6 +424,11 @@ public class Accounts extends AbstractScyllaDbStore {
         .map(Accounts::fromItem));
   }
 
+  public CompletableFuture<Optional<Account>> getAsync(UUID uuid) {
+    return recordAsync(GET_BY_UUID_TIMER, () -> asyncDb().getItem(getAccountByUuidRequest(AttributeValues.fromUUID(uuid)))
+        .thenApply(r -> r.item().isEmpty() ? Optional.<Account>empty() : Optional.of(fromItem(r.item()))));
+  }
+
   public AccountCrawlChunk getAllFrom(final UUID from, final int maxCount) {
     final ScanRequest.Builder scanRequestBuilder = ScanRequest.builder()
         .limit(scanPageSize)
@@ -319,11 +492,35 @@ public class Accounts extends AbstractScyllaDbStore {
       throw new RuntimeException("item missing values");
     }
     try {
-      Account account = SystemMapper.getMapper().readValue(item.get(ATTR_ACCOUNT_DATA).b().asByteArray(), Account.class);
+      Account account = AccountCodec.decode(item.get(ATTR_ACCOUNT_DATA).b().asByteArray());
       account.setUserLogin(item.get(ATTR_ACCOUNT_USER_LOGIN).s());
       // account.setVD(item.get(ATTR_ACCOUNT_VD).s());
       account.setUuid(UUIDUtil.fromByteBuffer(item.get(KEY_ACCOUNT_UUID).b().asByteBuffer()));
       account.setVersion(Integer.parseInt(item.get(ATTR_VERSION).n()));
+      account.setDevicesVersion(AttributeValues.getInt(item, ATTR_DEVICES_VERSION, 0));
+
+      final List<Device> updatedDevices = new ArrayList<>();
+
+      for (final Device device : account.getDevices()) {
+        final AttributeValue deviceData = item.get(getDeviceDataAttributeName(device.getId()));
+
+        if (deviceData != null) {
+          updatedDevices.add(AccountCodec.decodeDevice(deviceData.b().asByteArray()));
+        }
+      }
+
+      // devices updated on their own take precedence over the versions in the account data
+      updatedDevices.forEach(account::addDevice);
+
+      for (final Device device : account.getDevices()) {
+        device.setVersion(AttributeValues.getInt(item, getDeviceVersionAttributeName(device.getId()), 0));
+
+        final long lastSeen = AttributeValues.getLong(item, getDeviceLastSeenAttributeName(device.getId()), 0);
+
+        if (lastSeen > device.getLastSeen()) {
+          device.setLastSeen(lastSeen);
+        }
+      }
 
       return account;
 
@@ -13,7 +13,6 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.lettuce.core.RedisException;
-import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tags;
 
@@ -21,14 +20,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 
@@ -73,6 +75,9 @@ public class AccountsManager {
   private static final String CREATE_COUNTER_NAME = name(AccountsManager.class, "createCounter");
   private static final String DELETE_COUNTER_NAME = name(AccountsManager.class, "deleteCounter");
   private static final String DELETION_REASON_TAG_NAME = "reason";
+  private static final String UPDATE_RETRY_COUNTER_NAME = name(AccountsManager.class, "updateRetry");
+  private static final String UPDATE_RETRY_LIMIT_EXCEEDED_COUNTER_NAME = name(AccountsManager.class, "updateRetryLimitExceeded");
+  private static final String UPDATE_TYPE_TAG_NAME = "type";
   
   private final Logger logger = LoggerFactory.getLogger(AccountsManager.class);
 
@@ -86,6 +91,12 @@ public class AccountsManager {
   private final ProfilesManager profilesManager;
   private final StoredVerificationCodeManager pendingAccounts;
   private final ClientPresenceManager clientPresenceManager;
+  @Nullable
+  private final LocalAccountCache localAccountCache;
+  @Nullable
+  private final DeviceLastSeenWriter deviceLastSeenWriter;
+  private final AuthenticationCredentials.Version credentialsVersion;
+  private final AccountCodec.Format accountFormat;
   private final ObjectMapper mapper;
 
   public enum DeletionReason {
@@ -109,7 +120,43 @@ public class AccountsManager {
   private final AtomicInteger accountCreateLock;
   
   public AccountsManager(Accounts accounts, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final DeletedAccounts deletedAccounts, final KeysScyllaDb keysScyllaDb, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager,
-      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager) {    
+      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager) {
+    this(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccounts,
+        clientPresenceManager, null);
+  }
+
+  public AccountsManager(Accounts accounts, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final DeletedAccounts deletedAccounts, final KeysScyllaDb keysScyllaDb, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager,
+      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager, @Nullable final LocalAccountCache localAccountCache) {
+    this(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccounts,
+        clientPresenceManager, localAccountCache, null);
+  }
+
+  public AccountsManager(Accounts accounts, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final DeletedAccounts deletedAccounts, final KeysScyllaDb keysScyllaDb, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager,
+      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager, @Nullable final LocalAccountCache localAccountCache,
+      @Nullable final DeviceLastSeenWriter deviceLastSeenWriter) {
+    this(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccounts,
+        clientPresenceManager, localAccountCache, deviceLastSeenWriter, AuthenticationCredentials.DEFAULT_VERSION);
+  }
+
+  public AccountsManager(Accounts accounts, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final DeletedAccounts deletedAccounts, final KeysScyllaDb keysScyllaDb, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager,
+      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager, @Nullable final LocalAccountCache localAccountCache,
+      @Nullable final DeviceLastSeenWriter deviceLastSeenWriter, final AuthenticationCredentials.Version credentialsVersion) {
+    this(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccounts,
+        clientPresenceManager, localAccountCache, deviceLastSeenWriter, credentialsVersion, AccountCodec.Format.JSON);
+  }
+
+  /**
+   * @param localAccountCache if not {@code null}, accounts read by UUID are served from this in-process cache in front
+   *                          of the Redis account cache
+   * @param deviceLastSeenWriter if not {@code null}, device last seen updates are written in the background by this
+   *                             writer instead of updating the whole account
+   * @param credentialsVersion the format of the credentials of newly registered accounts
+   * @param accountFormat the form in which accounts are written to the Redis account cache; either form is read
+   */
+  public AccountsManager(Accounts accounts, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final DeletedAccounts deletedAccounts, final KeysScyllaDb keysScyllaDb, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager,
+      final StoredVerificationCodeManager pendingAccounts, final ClientPresenceManager clientPresenceManager, @Nullable final LocalAccountCache localAccountCache,
+      @Nullable final DeviceLastSeenWriter deviceLastSeenWriter, final AuthenticationCredentials.Version credentialsVersion,
+      final AccountCodec.Format accountFormat) {
     this.accounts = accounts;
     this.directory = directory;
     this.cacheCluster = cacheCluster;
@@ -120,7 +167,16 @@ public class AccountsManager {
     this.profilesManager = profilesManager;
     this.pendingAccounts = pendingAccounts;
     this.clientPresenceManager = clientPresenceManager;
+    this.localAccountCache = localAccountCache;
+    this.deviceLastSeenWriter = deviceLastSeenWriter;
+    this.credentialsVersion = credentialsVersion;
+    this.accountFormat = accountFormat;
     this.mapper = SystemMapper.getMapper();
+
+    if (deviceLastSeenWriter != null) {
+      // cached copies don't include the written timestamps; the next read loads them from the database
+      deviceLastSeenWriter.setFlushListener(this::evictCachedAccount);
+    }
       
     accountCreateLock = new AtomicInteger(0);
   }
@@ -146,7 +202,7 @@ public class AccountsManager {
 
       Device device = new Device();
       device.setId(Device.MASTER_ID);
-      device.setAuthenticationCredentials(new AuthenticationCredentials(password));
+      device.setAuthenticationCredentials(new AuthenticationCredentials(password, credentialsVersion));
       device.setFetchesMessages(accountAttributes.getFetchesMessages());
       device.setRegistrationId(accountAttributes.getRegistrationId());
       device.setName(accountAttributes.getName());
@@ -184,9 +240,7 @@ public class AccountsManager {
       final UUID actualUuid = account.getUuid();     
 
       redisSet(account);
-
-      // building historic directories
-      directory.buildHistoricDirectories(directoryVersion);
+      invalidateLocalAccountCache(actualUuid);
 
       // incrementing the directory version in Redis
       directory.setDirectoryVersion(newDirectoryVersion);
@@ -194,8 +248,8 @@ public class AccountsManager {
       // writing the account into the plain directory
       directory.redisUpdatePlainDirectory(account);
 
-      // building incremental updates
-      directory.buildIncrementalUpdates(newDirectoryVersion);
+      // logging the change for incremental updates
+      directory.recordDirectoryChanges(newDirectoryVersion, List.of(account.getUserLogin()));
 
       final Tags tags;
 
@@ -241,24 +295,33 @@ public class AccountsManager {
   /**
    * Specialized version of {@link #updateDevice(Account, long, Consumer)} that
    * minimizes potentially contentious and redundant updates of
-   * {@code device.lastSeen}
+   * {@code device.lastSeen}. If a {@link DeviceLastSeenWriter} is configured,
+   * the account itself isn't updated; the timestamp is written in the background
+   * and the returned copy of the account already reflects it.
    */
   public Account updateDeviceLastSeen(Account account, Device device, final long lastSeen) {
 
-    return update(account, a -> {
+    if (deviceLastSeenWriter != null) {
+      if (device.getLastSeen() >= lastSeen) {
+        return account;
+      }
 
-      final Optional<Device> maybeDevice = a.getDevice(device.getId());
+      deviceLastSeenWriter.record(account.getUuid(), device.getId(), lastSeen);
 
-      return maybeDevice.map(d -> {
-        if (d.getLastSeen() >= lastSeen) {
-          return false;
-        }
+      final Account updatedAccount = copy(account);
+      updatedAccount.getDevice(device.getId()).ifPresent(d -> d.setLastSeen(lastSeen));
 
-        d.setLastSeen(lastSeen);
+      return updatedAccount;
+    }
+
+    return updateDevice(account, device.getId(), d -> {
+      if (d.getLastSeen() >= lastSeen) {
+        return false;
+      }
 
-        return true;
+      d.setLastSeen(lastSeen);
 
-      }).orElse(false);
+      return true;
     });
   }
 
@@ -267,26 +330,57 @@ public class AccountsManager {
    * @param updater must return {@code true} if the account was actually updated
    */
   private Account update(Account account, Function<Account, Boolean> updater) {
+    return update(account, updater, this::scyllaUpdate, "account");
+  }
+
+  /**
+   * Updates a single device of the account without rewriting the rest of it, so that updates of different devices
+   * don't contend with each other.
+   *
+   * @param deviceUpdater must return {@code true} if the device was actually updated
+   */
+  private Account updateDevice(Account account, long deviceId, Function<Device, Boolean> deviceUpdater) {
+    return update(account,
+        a -> a.getDevice(deviceId).map(deviceUpdater).orElse(false),
+        a -> scyllaUpdateDevice(a, a.getDevice(deviceId).orElseThrow()),
+        "device");
+  }
+
+  private Account update(Account account, Function<Account, Boolean> updater, Consumer<Account> persister,
+      final String updateType) {
 
     final Account updatedAccount;
+    final Account callerAccount = account;
 
     try (Timer.Context ignored = updateTimer.time()) {
 
+      if (localAccountCache != null) {
+        // accounts served from the local cache are shared between requests, so they're updated through a copy
+        account = copy(account);
+      }
+
       redisDelete(account);
 
       final UUID uuid = account.getUuid();
 
       // isRemoval hardcoded to false for now, tbc in future
-      updatedAccount = updateWithRetries(account, updater, this::scyllaUpdate, () -> scyllaGet(uuid).get());
+      updatedAccount = updateWithRetries(account, updater, persister, () -> scyllaGet(uuid).get(), updateType);
+
+      if (updatedAccount != account) {
+        // the update may have gone to a copy or to a re-read account; either way, holders of the caller's instance
+        // (like RefreshingAccountAndDeviceSupplier) need to know that it's out of date
+        callerAccount.markStale();
+      }
 
       redisSet(updatedAccount);
+      invalidateLocalAccountCache(uuid);
     }
 
     return updatedAccount;
   }
 
   private Account updateWithRetries(Account account, Function<Account, Boolean> updater, Consumer<Account> persister,
-      Supplier<Account> retriever) {
+      Supplier<Account> retriever, final String updateType) {
 
     if (!updater.apply(account)) {
       return account;
@@ -300,20 +394,15 @@ public class AccountsManager {
       try {
         persister.accept(account);
 
-        final Account updatedAccount;
-        try {
-          updatedAccount = mapper.readValue(mapper.writeValueAsBytes(account), Account.class);
-          updatedAccount.setUuid(account.getUuid());
-        } catch (final IOException e) {
-          // this should really, truly, never happen
-          throw new IllegalArgumentException(e);
-        }
+        final Account updatedAccount = copy(account);
 
         account.markStale();
 
         return updatedAccount;
       } catch (final ContestedOptimisticLockException e) {
         tries++;
+        Metrics.counter(UPDATE_RETRY_COUNTER_NAME, UPDATE_TYPE_TAG_NAME, updateType).increment();
+
         account = retriever.get();
         if (!updater.apply(account)) {
           return account;
@@ -322,12 +411,22 @@ public class AccountsManager {
 
     }
 
+    Metrics.counter(UPDATE_RETRY_LIMIT_EXCEEDED_COUNTER_NAME, UPDATE_TYPE_TAG_NAME, updateType).increment();
+
     throw new OptimisticLockRetryLimitExceededException();
   }
 
+  private Account copy(Account account) {
+    return AccountCodec.copy(account);
+  }
+
+  /**
+   * Updates a single device of the account. The updater must only modify the device; changes that also touch the rest
+   * of the account need to go through {@link #update(Account, Consumer)}.
+   */
   public Account updateDevice(Account account, long deviceId, Consumer<Device> deviceUpdater) {
-    return update(account, a -> {
-      a.getDevice(deviceId).ifPresent(deviceUpdater);
+    return updateDevice(account, deviceId, d -> {
+      deviceUpdater.accept(d);
       // assume that all updaters passed to the public method actually modify the
       // device
       return true;
@@ -349,16 +448,39 @@ public class AccountsManager {
 
   public Optional<Account> get(UUID uuid) {
     try (Timer.Context ignored = getByUuidTimer.time()) {
-      Optional<Account> account = redisGet(uuid);
+      return localAccountCache != null ? localAccountCache.get(uuid, () -> load(uuid)) : load(uuid);
+    }
+  }
 
-      if (account.isEmpty()) {
-        account = scyllaGet(uuid);
-        account.ifPresent(this::redisSet);
-      }
+  private Optional<Account> load(UUID uuid) {
+    Optional<Account> account = redisGet(uuid);
 
-      return account;
+    if (account.isEmpty()) {
+      account = scyllaGet(uuid);
+      account.ifPresent(this::redisSet);
     }
-  }  
+
+    return account;
+  }
+
+  /**
+   * Async variant of {@link #get(UUID)} that doesn't block the calling thread on either the cache or the database.
+   */
+  public CompletableFuture<Optional<Account>> getAsync(UUID uuid) {
+    final Timer.Context timerContext = getByUuidTimer.time();
+
+    return (localAccountCache != null ? localAccountCache.getAsync(uuid, () -> loadAsync(uuid)) : loadAsync(uuid))
+        .whenComplete((ignored, throwable) -> timerContext.close());
+  }
+
+  private CompletableFuture<Optional<Account>> loadAsync(UUID uuid) {
+    return redisGetAsync(uuid)
+        .thenCompose(maybeAccount -> maybeAccount.isPresent()
+            ? CompletableFuture.completedFuture(maybeAccount)
+            : accounts.getAsync(uuid).thenCompose(maybeStoredAccount -> maybeStoredAccount
+                .map(account -> redisSetAsync(account).thenApply(ignored -> maybeStoredAccount))
+                .orElseGet(() -> CompletableFuture.completedFuture(maybeStoredAccount))));
+  }
 
   public AccountCrawlChunk getAllFromScylla(int length) {    
     return accounts.getAllFromStart(length);
@@ -385,6 +507,7 @@ public class AccountsManager {
         messagesManager.clear(account.getUuid());
         redisDelete(account);
         scyllaDelete(account, newDirectoryVersion);
+        invalidateLocalAccountCache(account.getUuid());
         
         RedisOperation.unchecked(() ->
         account.getDevices().forEach(device ->
@@ -396,16 +519,13 @@ public class AccountsManager {
 
       }
 
-      // building historic directories
-      directory.buildHistoricDirectories(directoryVersion);
-
       // incrementing directory version in Redis and deleting the account from the
       // plain directory
       directory.setDirectoryVersion(newDirectoryVersion);
       directory.redisRemoveFromPlainDirectory(accountsToDelete);
 
-      // building incremental updates
-      directory.buildIncrementalUpdates(newDirectoryVersion);
+      // logging the changes for incremental updates
+      directory.recordDirectoryChanges(newDirectoryVersion, accountsToDelete.stream().map(Account::getUserLogin).collect(Collectors.toList()));
 
     } catch (final Exception e) {
       logger.warn("Failed to delete account(s)", e);
@@ -424,11 +544,10 @@ public class AccountsManager {
     
     setAccountRemovalLock();    
     
-    if(directory.retrievePlainDirectory().containsKey(userLogin)) {
-      directory.buildHistoricDirectories(directoryVersion);
+    if(directory.isInPlainDirectory(userLogin)) {
       directory.setDirectoryVersion(newDirectoryVersion);
       directory.redisRemoveFromPlainDirectory(userLogin);
-      directory.buildIncrementalUpdates(newDirectoryVersion);
+      directory.recordDirectoryChanges(newDirectoryVersion, List.of(userLogin));
       
       setDirectoryVersionInScylla(newDirectoryVersion);
       
@@ -448,20 +567,36 @@ public class AccountsManager {
     return "Account3::" + uuid.toString();
   }
 
+  private byte[] getAccountEntityKeyBytes(UUID uuid) {
+    return getAccountEntityKey(uuid).getBytes(StandardCharsets.UTF_8);
+  }
+
   private void redisSet(Account account) {
     try (Timer.Context ignored = redisSetTimer.time()) {
-      final String accountJson = mapper.writeValueAsString(account);
+      final byte[] encodedAccount = AccountCodec.encode(account, accountFormat);
 
-      cacheCluster.useCluster(connection -> {
-        final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
+      cacheCluster.useCluster(connection -> connection.sync()
+          .set(getAccountMapKey(account.getUserLogin()), account.getUuid().toString()));
+      cacheCluster.useBinaryCluster(connection -> connection.sync()
+          .set(getAccountEntityKeyBytes(account.getUuid()), encodedAccount));
+    }
+  }
 
-        commands.set(getAccountMapKey(account.getUserLogin()), account.getUuid().toString());
-        commands.set(getAccountEntityKey(account.getUuid()), accountJson);
-      });
+  private CompletableFuture<Void> redisSetAsync(Account account) {
+    final Timer.Context timerContext = redisSetTimer.time();
+    final byte[] encodedAccount = AccountCodec.encode(account, accountFormat);
 
-    } catch (JsonProcessingException e) {
-      throw new IllegalStateException(e);
-    }
+    return CompletableFuture.allOf(
+            cacheCluster.withClusterAsync(connection -> connection.async()
+                .set(getAccountMapKey(account.getUserLogin()), account.getUuid().toString())),
+            cacheCluster.withBinaryClusterAsync(connection -> connection.async()
+                .set(getAccountEntityKeyBytes(account.getUuid()), encodedAccount)))
+        .exceptionally(throwable -> {
+          // the account was found in the database; failing to cache it shouldn't fail the lookup
+          logger.warn("Redis failure", throwable);
+          return null;
+        })
+        .whenComplete((ignored, throwable) -> timerContext.close());
   }
 
   private Optional<Account> redisGet(String userLogin) {
@@ -484,9 +619,9 @@ public class AccountsManager {
 
   private Optional<Account> redisGet(UUID uuid) {
     try (Timer.Context ignored = redisUuidGetTimer.time()) {
-      final String json = cacheCluster.withCluster(connection -> connection.sync().get(getAccountEntityKey(uuid)));
-      if (json != null) {
-        Account account = mapper.readValue(json, Account.class);
+      final byte[] encodedAccount = cacheCluster.withBinaryCluster(connection -> connection.sync().get(getAccountEntityKeyBytes(uuid)));
+      if (encodedAccount != null) {
+        Account account = AccountCodec.decode(encodedAccount);
         account.setUuid(uuid);
         return Optional.of(account);
       }
@@ -500,6 +635,45 @@ public class AccountsManager {
     }
   }
 
+  private CompletableFuture<Optional<Account>> redisGetAsync(UUID uuid) {
+    final Timer.Context timerContext = redisUuidGetTimer.time();
+
+    return cacheCluster.withBinaryClusterAsync(connection -> connection.async().get(getAccountEntityKeyBytes(uuid)))
+        .thenApply(encodedAccount -> {
+          if (encodedAccount != null) {
+            try {
+              Account account = AccountCodec.decode(encodedAccount);
+              account.setUuid(uuid);
+              return Optional.of(account);
+            } catch (IOException e) {
+              logger.warn("Deserialization error", e);
+            }
+          }
+          return Optional.<Account>empty();
+        })
+        .exceptionally(throwable -> {
+          logger.warn("Redis failure", throwable);
+          return Optional.empty();
+        })
+        .whenComplete((ignored, throwable) -> timerContext.close());
+  }
+
+  private void invalidateLocalAccountCache(final UUID uuid) {
+    if (localAccountCache != null) {
+      localAccountCache.invalidate(uuid);
+    }
+  }
+
+  private void evictCachedAccount(final UUID uuid) {
+    try (final Timer.Context ignored = redisDeleteTimer.time()) {
+      cacheCluster.useCluster(connection -> connection.sync().del(getAccountEntityKey(uuid)));
+    } catch (final RedisException e) {
+      logger.warn("Redis failure", e);
+    }
+
+    invalidateLocalAccountCache(uuid);
+  }
+
   private void redisDelete(final Account account) {
     try (final Timer.Context ignored = redisDeleteTimer.time()) {
       cacheCluster.useCluster(connection -> connection.sync()
@@ -656,6 +830,10 @@ public class AccountsManager {
     accounts.update(account);
   }
 
+  private void scyllaUpdateDevice(Account account, Device device) {
+    accounts.updateDevice(account, device);
+  }
+
   private void scyllaDelete(final Account account, long directoryVersion) {
     accounts.delete(account.getUuid(), directoryVersion);
   }  
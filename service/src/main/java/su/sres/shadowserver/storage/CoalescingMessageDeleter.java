@@ -0,0 +1,148 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Coalesces deletions of persisted messages whose primary key is already known—typically messages that were loaded for
+ * delivery and then acknowledged by the recipient—into {@code BatchWriteItem} requests. Deletions from all callers
+ * share a batch, which is written as soon as it's full or once its oldest deletion has waited for the configured
+ * window, whichever comes first.
+ */
+public class CoalescingMessageDeleter {
+
+  private final MessagesScyllaDb messagesScyllaDb;
+  private final Duration window;
+  private final Executor windowExecutor;
+
+  private List<PendingDeletion> pendingDeletions = new ArrayList<>();
+
+  public static final Duration DEFAULT_WINDOW = Duration.ofMillis(20);
+
+  private static final int MAX_BATCH_SIZE = AbstractScyllaDbStore.DYNAMO_DB_MAX_BATCH_SIZE;
+
+  private static final DistributionSummary BATCH_SIZE_DISTRIBUTION = Metrics.summary(name(CoalescingMessageDeleter.class, "batchSize"));
+
+  /**
+   * @param window   the longest time a deletion waits for others to share its batch; a zero window disables coalescing
+   * @param executor the executor on which batches that reach the end of their window are written
+   */
+  public CoalescingMessageDeleter(final MessagesScyllaDb messagesScyllaDb, final Duration window, final Executor executor) {
+    this.messagesScyllaDb = messagesScyllaDb;
+    this.window = window;
+    this.windowExecutor = CompletableFuture.delayedExecutor(window.toMillis(), TimeUnit.MILLISECONDS, executor);
+  }
+
+  /**
+   * Schedules the deletion of a persisted message.
+   *
+   * @return a future that completes once the batch containing the deletion has been written
+   */
+  public CompletableFuture<Void> delete(final UUID destinationUuid, final long destinationDeviceId, final long serverTimestamp, final UUID messageGuid) {
+    final MessagesScyllaDb.MessageKey messageKey = new MessagesScyllaDb.MessageKey(destinationUuid, destinationDeviceId, serverTimestamp, messageGuid);
+
+    if (window.isZero()) {
+      BATCH_SIZE_DISTRIBUTION.record(1);
+      return messagesScyllaDb.deleteMessagesAsync(List.of(messageKey));
+    }
+
+    final PendingDeletion pendingDeletion = new PendingDeletion(messageKey);
+    final List<PendingDeletion> fullBatch;
+
+    synchronized (this) {
+      pendingDeletions.add(pendingDeletion);
+
+      if (pendingDeletions.size() >= MAX_BATCH_SIZE) {
+        fullBatch = takePendingDeletions();
+      } else {
+        fullBatch = null;
+
+        if (pendingDeletions.size() == 1) {
+          final List<PendingDeletion> batch = pendingDeletions;
+          windowExecutor.execute(() -> flushIfPending(batch));
+        }
+      }
+    }
+
+    if (fullBatch != null) {
+      write(fullBatch);
+    }
+
+    return pendingDeletion.future;
+  }
+
+  private void flushIfPending(final List<PendingDeletion> batch) {
+    synchronized (this) {
+      // the batch may already have been written because it filled up before its window ended
+      if (pendingDeletions != batch) {
+        return;
+      }
+
+      takePendingDeletions();
+    }
+
+    write(batch);
+  }
+
+  private List<PendingDeletion> takePendingDeletions() {
+    assert Thread.holdsLock(this);
+
+    final List<PendingDeletion> batch = pendingDeletions;
+    pendingDeletions = new ArrayList<>();
+
+    return batch;
+  }
+
+  private void write(final List<PendingDeletion> batch) {
+    // the same message may be deleted more than once in a window (e.g. by a retried acknowledgement), but a
+    // BatchWriteItem request that names the same key twice is rejected as a whole
+    final List<MessagesScyllaDb.MessageKey> messageKeys = batch.stream()
+        .map(pendingDeletion -> pendingDeletion.messageKey)
+        .distinct()
+        .collect(Collectors.toList());
+
+    BATCH_SIZE_DISTRIBUTION.record(messageKeys.size());
+
+    final CompletableFuture<Void> writeFuture;
+
+    try {
+      writeFuture = messagesScyllaDb.deleteMessagesAsync(messageKeys);
+    } catch (final RuntimeException e) {
+      batch.forEach(pendingDeletion -> pendingDeletion.future.completeExceptionally(e));
+      return;
+    }
+
+    writeFuture.whenComplete((ignored, throwable) -> batch.forEach(pendingDeletion -> {
+      if (throwable == null) {
+        pendingDeletion.future.complete(null);
+      } else {
+        pendingDeletion.future.completeExceptionally(throwable);
+      }
+    }));
+  }
+
+  private static final class PendingDeletion {
+    private final MessagesScyllaDb.MessageKey messageKey;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private PendingDeletion(final MessagesScyllaDb.MessageKey messageKey) {
+      this.messageKey = messageKey;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+
+import su.sres.shadowserver.storage.protos.CompactDirectoryEntries;
+import su.sres.shadowserver.storage.protos.CompactDirectoryEntries.Compression;
+import su.sres.shadowserver.util.UUIDUtil;
+
+/**
+ * Encodes plain directory entries (user login to JSON
+ * {@link PlainDirectoryEntryValue}, or {@code "-1"} for a removed login) into
+ * {@link CompactDirectoryEntries}: logins sorted in UTF-8 byte order and
+ * prefix-compressed against their predecessor, with the value reduced to a raw
+ * 16 byte UUID or a removal marker.
+ */
+public class CompactDirectoryEncoder {
+
+  private static final Logger logger = LoggerFactory.getLogger(CompactDirectoryEncoder.class);
+
+  static final String REMOVED_ENTRY = "-1";
+
+  private static final int PRESENT = 0;
+  private static final int REMOVED = 1;
+
+  private final ObjectReader entryValueReader;
+
+  public CompactDirectoryEncoder() {
+    this.entryValueReader = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+        .readerFor(PlainDirectoryEntryValue.class);
+  }
+
+  public CompactDirectoryEntries encode(final Map<String, String> directoryEntries, final Compression compression) {
+
+    final List<EncodableEntry> encodableEntries = new ArrayList<>(directoryEntries.size());
+
+    for (final Map.Entry<String, String> entry : directoryEntries.entrySet()) {
+
+      // the empty login is only a filler for an empty incremental update
+      if (entry.getKey().isEmpty()) {
+        continue;
+      }
+
+      final UUID uuid;
+
+      if (REMOVED_ENTRY.equals(entry.getValue())) {
+        uuid = null;
+      } else {
+        try {
+          final PlainDirectoryEntryValue entryValue = entryValueReader.readValue(entry.getValue());
+          uuid = entryValue.getUuid();
+        } catch (final IOException e) {
+          logger.warn("Skipping malformed directory entry for {}", entry.getKey(), e);
+          continue;
+        }
+
+        if (uuid == null) {
+          logger.warn("Skipping directory entry without UUID for {}", entry.getKey());
+          continue;
+        }
+      }
+
+      encodableEntries.add(new EncodableEntry(entry.getKey().getBytes(StandardCharsets.UTF_8), uuid));
+    }
+
+    encodableEntries.sort((a, b) -> Arrays.compareUnsigned(a.login, b.login));
+
+    final ByteString.Output entries = ByteString.newOutput();
+
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    try {
+      final OutputStream outputStream = compression == Compression.DEFLATE
+          ? new DeflaterOutputStream(entries, deflater, 64 * 1024)
+          : entries;
+
+      final CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(outputStream);
+
+      byte[] previousLogin = new byte[0];
+
+      for (final EncodableEntry entry : encodableEntries) {
+        final byte[] login = entry.login;
+        final int sharedPrefixLength = sharedPrefixLength(previousLogin, login);
+
+        codedOutputStream.writeUInt32NoTag(sharedPrefixLength);
+        codedOutputStream.writeUInt32NoTag(login.length - sharedPrefixLength);
+        codedOutputStream.writeRawBytes(login, sharedPrefixLength, login.length - sharedPrefixLength);
+
+        if (entry.uuid != null) {
+          codedOutputStream.writeRawByte(PRESENT);
+          codedOutputStream.writeRawBytes(UUIDUtil.toBytes(entry.uuid));
+        } else {
+          codedOutputStream.writeRawByte(REMOVED);
+        }
+
+        previousLogin = login;
+      }
+
+      codedOutputStream.flush();
+      outputStream.close();
+    } catch (final IOException e) {
+      // writing to memory, so this should never happen
+      throw new UncheckedIOException(e);
+    } finally {
+      deflater.end();
+    }
+
+    return CompactDirectoryEntries.newBuilder()
+        .setCompression(compression)
+        .setCount(encodableEntries.size())
+        .setEntries(entries.toByteString())
+        .build();
+  }
+
+  /**
+   * Reverses {@link #encode(Map, Compression)}; removed logins are mapped to an
+   * empty optional.
+   */
+  public static Map<String, Optional<UUID>> decode(final CompactDirectoryEntries compactEntries) throws IOException {
+
+    final Map<String, Optional<UUID>> directoryEntries = new LinkedHashMap<>(compactEntries.getCount());
+
+    try (final InputStream inputStream = compactEntries.getCompression() == Compression.DEFLATE
+        ? new InflaterInputStream(compactEntries.getEntries().newInput())
+        : compactEntries.getEntries().newInput()) {
+
+      final CodedInputStream codedInputStream = CodedInputStream.newInstance(inputStream);
+      codedInputStream.setSizeLimit(Integer.MAX_VALUE);
+
+      byte[] previousLogin = new byte[0];
+
+      for (int i = 0; i < compactEntries.getCount(); i++) {
+        final int sharedPrefixLength = codedInputStream.readUInt32();
+        final byte[] suffix = codedInputStream.readRawBytes(codedInputStream.readUInt32());
+
+        final byte[] login = Arrays.copyOf(previousLogin, sharedPrefixLength + suffix.length);
+        System.arraycopy(suffix, 0, login, sharedPrefixLength, suffix.length);
+
+        final Optional<UUID> uuid = codedInputStream.readRawByte() == PRESENT
+            ? Optional.of(UUIDUtil.fromBytes(codedInputStream.readRawBytes(16)))
+            : Optional.empty();
+
+        directoryEntries.put(new String(login, StandardCharsets.UTF_8), uuid);
+        previousLogin = login;
+      }
+    }
+
+    return directoryEntries;
+  }
+
+  private static class EncodableEntry {
+
+    private final byte[] login;
+
+    @Nullable
+    private final UUID uuid;
+
+    private EncodableEntry(final byte[] login, @Nullable final UUID uuid) {
+      this.login = login;
+      this.uuid = uuid;
+    }
+  }
+
+  private static int sharedPrefixLength(final byte[] a, final byte[] b) {
+    final int mismatch = Arrays.mismatch(a, b);
+    return mismatch == -1 ? a.length : mismatch;
+  }
+}
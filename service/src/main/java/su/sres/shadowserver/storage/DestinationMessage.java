@@ -0,0 +1,37 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import java.util.UUID;
+
+import su.sres.shadowserver.entities.MessageProtos.Envelope;
+
+/**
+ * A message together with the device queue it is to be inserted into.
+ */
+public class DestinationMessage {
+
+  private final UUID destinationUuid;
+  private final long destinationDevice;
+  private final Envelope message;
+
+  public DestinationMessage(final UUID destinationUuid, final long destinationDevice, final Envelope message) {
+    this.destinationUuid = destinationUuid;
+    this.destinationDevice = destinationDevice;
+    this.message = message;
+  }
+
+  public UUID getDestinationUuid() {
+    return destinationUuid;
+  }
+
+  public long getDestinationDevice() {
+    return destinationDevice;
+  }
+
+  public Envelope getMessage() {
+    return message;
+  }
+}
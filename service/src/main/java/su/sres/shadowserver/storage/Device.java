@@ -5,6 +5,7 @@
  */
 package su.sres.shadowserver.storage;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import su.sres.shadowserver.auth.AuthenticationCredentials;
@@ -66,6 +67,10 @@ public class Device {
   @JsonProperty
   private DeviceCapabilities capabilities;
 
+  // version of the device's own attributes in the accounts table, see Accounts#updateDevice
+  @JsonIgnore
+  private int version;
+
   public Device() {
   }
 
@@ -217,6 +222,18 @@ public class Device {
     return pushTimestamp;
   }
 
+  void setPushTimestamp(long pushTimestamp) {
+    this.pushTimestamp = pushTimestamp;
+  }
+
+  int getVersion() {
+    return version;
+  }
+
+  void setVersion(int version) {
+    this.version = version;
+  }
+
   public void setUserAgent(String userAgent) {
     this.userAgent = userAgent;
   }
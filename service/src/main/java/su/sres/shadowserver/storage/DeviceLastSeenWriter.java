@@ -0,0 +1,210 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import io.dropwizard.lifecycle.Managed;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import su.sres.shadowserver.configuration.DeviceLastSeenConfiguration;
+
+/**
+ * Collects device last seen updates in memory and writes them to the accounts table in the background, so that
+ * marking a device as seen doesn't rewrite (and contend for) the whole account. Updates for the same account are
+ * coalesced until the next flush, and each flush writes at most a configured number of accounts; the written
+ * timestamps are merged into the account's devices whenever it is read from the database.
+ * <p>
+ * Updates still pending when a server crashes are lost. Last seen timestamps have a resolution of a day, and the device
+ * is marked as seen again on its next request.
+ */
+public class DeviceLastSeenWriter implements Managed {
+
+  private final Accounts accounts;
+  private final ScheduledExecutorService executorService;
+  private final Duration flushInterval;
+  private final int maxBatchSize;
+
+  private final Map<UUID, Map<Long, Long>> pendingLastSeen = new ConcurrentHashMap<>();
+
+  @Nullable
+  private volatile Consumer<UUID> flushListener;
+
+  @Nullable
+  private ScheduledFuture<?> flushFuture;
+
+  private static final Counter recordedCounter = Metrics.counter(name(DeviceLastSeenWriter.class, "recorded"));
+  private static final Counter coalescedCounter = Metrics.counter(name(DeviceLastSeenWriter.class, "coalesced"));
+  private static final Counter writtenCounter = Metrics.counter(name(DeviceLastSeenWriter.class, "written"));
+  private static final Counter writeFailureCounter = Metrics.counter(name(DeviceLastSeenWriter.class, "writeFailure"));
+  private static final Timer flushTimer = Metrics.timer(name(DeviceLastSeenWriter.class, "flush"));
+
+  private static final Logger logger = LoggerFactory.getLogger(DeviceLastSeenWriter.class);
+
+  public DeviceLastSeenWriter(final Accounts accounts, final ScheduledExecutorService executorService,
+      final DeviceLastSeenConfiguration configuration) {
+
+    this(accounts, executorService, configuration.getFlushInterval(), configuration.getMaxBatchSize());
+  }
+
+  @VisibleForTesting
+  DeviceLastSeenWriter(final Accounts accounts, final ScheduledExecutorService executorService,
+      final Duration flushInterval, final int maxBatchSize) {
+
+    this.accounts = accounts;
+    this.executorService = executorService;
+    this.flushInterval = flushInterval;
+    this.maxBatchSize = maxBatchSize;
+
+    Metrics.gauge(name(DeviceLastSeenWriter.class, "pendingAccounts"), pendingLastSeen, Map::size);
+  }
+
+  @Override
+  public synchronized void start() {
+    if (flushFuture != null) {
+      return;
+    }
+
+    flushFuture = executorService.scheduleWithFixedDelay(() -> {
+      try {
+        flush();
+      } catch (final Exception e) {
+        logger.warn("Failed to flush device last seen updates", e);
+      }
+    }, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (flushFuture != null) {
+      flushFuture.cancel(false);
+      flushFuture = null;
+    }
+
+    // write whatever is left rather than dropping it on a clean shutdown
+    while (!pendingLastSeen.isEmpty()) {
+      if (flush() == 0) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Sets the listener that is called with an account's UUID after its devices' last seen timestamps have been written,
+   * e.g. to evict copies of the account that were cached before the write.
+   */
+  void setFlushListener(final Consumer<UUID> flushListener) {
+    this.flushListener = flushListener;
+  }
+
+  /**
+   * Queues a last seen timestamp for the given device. If several are queued for the same device before the next flush,
+   * only the latest is written.
+   */
+  public void record(final UUID accountUuid, final long deviceId, final long lastSeen) {
+    recordedCounter.increment();
+
+    pendingLastSeen.compute(accountUuid, (uuid, lastSeenByDeviceId) -> {
+      if (lastSeenByDeviceId == null) {
+        lastSeenByDeviceId = new ConcurrentHashMap<>();
+      } else {
+        coalescedCounter.increment();
+      }
+
+      lastSeenByDeviceId.merge(deviceId, lastSeen, Math::max);
+
+      return lastSeenByDeviceId;
+    });
+  }
+
+  private void requeue(final UUID accountUuid, final Map<Long, Long> lastSeenByDeviceId) {
+    pendingLastSeen.compute(accountUuid, (uuid, pending) -> {
+      if (pending == null) {
+        return lastSeenByDeviceId;
+      }
+
+      lastSeenByDeviceId.forEach((deviceId, lastSeen) -> pending.merge(deviceId, lastSeen, Math::max));
+
+      return pending;
+    });
+  }
+
+  /**
+   * Writes the pending updates of up to the maximum batch size of accounts. Updates that fail to be written are kept
+   * for the next flush.
+   *
+   * @return the number of accounts written
+   */
+  @VisibleForTesting
+  int flush() {
+    return flushTimer.record(() -> {
+      int attempted = 0;
+      int written = 0;
+
+      final Map<UUID, Map<Long, Long>> failed = new HashMap<>();
+      final Iterator<UUID> uuids = pendingLastSeen.keySet().iterator();
+
+      while (uuids.hasNext() && attempted < maxBatchSize) {
+        final UUID uuid = uuids.next();
+        final Map<Long, Long> lastSeenByDeviceId = pendingLastSeen.remove(uuid);
+
+        if (lastSeenByDeviceId == null) {
+          continue;
+        }
+
+        attempted++;
+
+        try {
+          accounts.updateDeviceLastSeen(uuid, lastSeenByDeviceId);
+
+          written++;
+          writtenCounter.increment();
+        } catch (final RuntimeException e) {
+          writeFailureCounter.increment();
+          logger.warn("Failed to write device last seen for {}", uuid, e);
+
+          failed.put(uuid, lastSeenByDeviceId);
+          continue;
+        }
+
+        final Consumer<UUID> listener = flushListener;
+
+        if (listener != null) {
+          listener.accept(uuid);
+        }
+      }
+
+      // try again with the next flush, along with anything recorded in the meantime
+      failed.forEach(this::requeue);
+
+      return written;
+    });
+  }
+
+  @VisibleForTesting
+  boolean isPending(final UUID accountUuid) {
+    return pendingLastSeen.containsKey(accountUuid);
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import java.util.Optional;
+
+import su.sres.shadowserver.storage.protos.CompactDirectoryEntries.Compression;
+
+/**
+ * The ways plain directory entries can be shipped to a client in a
+ * {@code DirectoryUpdate}.
+ */
+public enum DirectoryEntryFormat {
+
+  /**
+   * {@code directory_entry} map of user logins to JSON entry values; the default
+   */
+  JSON_MAP(null),
+
+  /**
+   * {@code compact_entries}, uncompressed
+   */
+  COMPACT(Compression.NONE),
+
+  /**
+   * {@code compact_entries}, deflated
+   */
+  COMPACT_DEFLATE(Compression.DEFLATE);
+
+  private final Compression compression;
+
+  DirectoryEntryFormat(final Compression compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * @return the compression of the compact entries, or empty for the JSON map
+   */
+  public Optional<Compression> getCompactCompression() {
+    return Optional.ofNullable(compression);
+  }
+}
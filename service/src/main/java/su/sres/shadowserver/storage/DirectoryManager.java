@@ -11,10 +11,15 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
 import su.sres.shadowserver.redis.ReplicatedJedisPool;
@@ -26,12 +31,14 @@ public class DirectoryManager {
   static final String DIRECTORY_PLAIN = "DirectoryPlain";
   public static final String DIRECTORY_VERSION = "DirectoryVersion";
 
-  // TODO: to be deprecated
-  private static final String CURRENT_UPDATE = "CurrentUpdate";
-
-  private static final String INCREMENTAL_UPDATE = "UpdateDiff::";
+  private static final String DIRECTORY_CHANGE_LOG = "DirectoryChangeLog";
+  private static final String DIRECTORY_CHANGE_LOG_START = "DirectoryChangeLogStart";
 
-  private static final String DIRECTORY_HISTORIC = "DirectoryHistoric::";
+  // keys of the previous implementation of incremental updates, removed as soon
+  // as the change log takes over
+  private static final String LEGACY_CURRENT_UPDATE = "CurrentUpdate";
+  private static final String LEGACY_INCREMENTAL_UPDATE = "UpdateDiff::";
+  private static final String LEGACY_DIRECTORY_HISTORIC = "DirectoryHistoric::";
 
   public static final int INCREMENTAL_UPDATES_TO_HOLD = 100;
   private static final String DIRECTORY_ACCESS_LOCK_KEY = "DirectoryAccessLock";
@@ -103,165 +110,124 @@ public class DirectoryManager {
     }
   }
 
-  public HashMap<String, String> retrieveIncrementalUpdate(int backoff) {
+  public boolean isInPlainDirectory(String userLogin) {
 
     try (Jedis jedis = redisPool.getWriteResource()) {
 
-      return (HashMap<String, String>) jedis.hgetAll(getIncrementalUpdateKey(backoff));
+      return jedis.hexists(DIRECTORY_PLAIN, userLogin);
     }
   }
 
-  public void setDirectoryVersion(long version) {
-    Jedis jedis = redisPool.getWriteResource();
-    jedis.set(DIRECTORY_VERSION, String.valueOf(version));
-    jedis.close();
-  }
-
-  public String getIncrementalUpdateKey(int backoff) {
-
-    return INCREMENTAL_UPDATE + String.valueOf(backoff);
-  }
-
-  public String getDirectoryHistoricKey(int backoff) {
+  /**
+   * Records that the plain directory entries of the given logins have been
+   * changed (added, updated or removed) in the given directory version.
+   * 
+   * The change log is a sorted set of logins scored by the version of their
+   * latest change, so repeated changes of the same login are compacted in place
+   * and the log grows with churn rather than with the directory size. Entries
+   * too old to be served as an incremental update are trimmed here as well.
+   */
+  public void recordDirectoryChanges(long directoryVersion, Collection<String> userLogins) {
 
-    if (backoff == 0) {
-      return DIRECTORY_PLAIN;
-    } else {
-      return DIRECTORY_HISTORIC + String.valueOf(backoff);
-    }
-  }
+    try (Jedis jedis = redisPool.getWriteResource()) {
 
-  public void buildIncrementalUpdates(long directoryVersion) {
+      // the log is complete for every version from the one preceding its first
+      // recorded change onwards
+      if (jedis.setnx(DIRECTORY_CHANGE_LOG_START, String.valueOf(directoryVersion - 1L)) == 1L) {
+        removeLegacyIncrementalUpdates(jedis);
+      }
 
-    Jedis jedis = redisPool.getWriteResource();
+      if (!userLogins.isEmpty()) {
 
-    HashMap<String, String> freshDirectory = retrievePlainDirectory();
+        Map<String, Double> scoredLogins = new HashMap<>(userLogins.size());
 
-    // this is 1 or more, since this method is not invoked until the directory
-    // version is incremented from 0;
-    int backoff = calculateBackoff(directoryVersion);
+        for (String userLogin : userLogins) {
+          scoredLogins.put(userLogin, (double) directoryVersion);
+        }
 
-    for (int i = backoff; i > 0; i--) {
+        jedis.zadd(DIRECTORY_CHANGE_LOG, scoredLogins);
+      }
 
-      // here we are making best effort to build the incremental update of depth i
+      jedis.zremrangeByScore(DIRECTORY_CHANGE_LOG, Double.NEGATIVE_INFINITY, directoryVersion - INCREMENTAL_UPDATES_TO_HOLD);
+    }
+  }
 
-      String targetIncrementalUpdateKey = getIncrementalUpdateKey(i);
+  /**
+   * Builds the incremental update from {@code directoryVersion - backoff} to
+   * {@code directoryVersion} by scanning the change log for that version range
+   * and looking up the current entry of each changed login; a login missing
+   * from the plain directory is reported as removed. Since the log only keeps
+   * the latest change of each login, {@code directoryVersion} must be the
+   * current directory version.
+   * 
+   * @return the incremental update, or an empty map if the change log does not
+   *         reach back far enough
+   */
+  public HashMap<String, String> retrieveIncrementalUpdate(long directoryVersion, int backoff) {
+
+    long baseVersion = directoryVersion - backoff;
 
-      // deleting since we need to rewrite it;
-      jedis.del(targetIncrementalUpdateKey);
+    try (Jedis jedis = redisPool.getWriteResource()) {
 
-      String directoryHistoricKey = getDirectoryHistoricKey(i);
+      @Nullable
+      String logStart = jedis.get(DIRECTORY_CHANGE_LOG_START);
 
-      // if a historic directory is missing, we can't calculate the target incremental
-      // update; so just nullifying it
-      if (!jedis.exists(directoryHistoricKey)) {
-        logger.debug(directoryHistoricKey + " is missing in Redis. Therefore nullifying " + targetIncrementalUpdateKey + " as it's impossible to calculate it");
-        continue;
+      if (logStart == null || baseVersion < Long.parseLong(logStart)) {
+        return new HashMap<>();
       }
 
-      HashMap<String, String> directoryHistoric = (HashMap<String, String>) jedis.hgetAll(directoryHistoricKey);
+      Set<String> changedLogins = jedis.zrangeByScore(DIRECTORY_CHANGE_LOG, "(" + baseVersion, String.valueOf(directoryVersion));
 
-      HashMap<String, String> updatedIncrementalUpdate = calculateIncrementalUpdate(directoryHistoric, freshDirectory);
+      HashMap<String, String> incrementalUpdate = new HashMap<>(changedLogins.size());
 
-      if (!updatedIncrementalUpdate.isEmpty()) {
-        jedis.hmset(targetIncrementalUpdateKey, updatedIncrementalUpdate);
-      } else {
+      if (changedLogins.isEmpty()) {
         // just a filler for the case when the incremental update is empty
-        jedis.hset(targetIncrementalUpdateKey, "", "");
+        incrementalUpdate.put("", "");
+        return incrementalUpdate;
       }
-    }
-
-    jedis.close();
-  }
-
-  public HashMap<String, String> calculateIncrementalUpdate(HashMap<String, String> directoryHistoric, HashMap<String, String> directoryCurrent) {
-
-    Jedis jedis = redisPool.getWriteResource();
 
-    Set<String> olderFields = directoryHistoric.keySet();
-    Set<String> newerFields = directoryCurrent.keySet();
+      String[] logins = changedLogins.toArray(new String[0]);
+      List<String> entryValues = jedis.hmget(DIRECTORY_PLAIN, logins);
 
-    HashMap<String, String> merge = new HashMap<String, String>();
+      for (int i = 0; i < logins.length; i++) {
+        String entryValue = entryValues.get(i);
 
-    for (String field : olderFields) {
-
-      if (!newerFields.contains(field)) {
         // if current directory does not contain the login, means remove it
-        merge.put(field, "-1");
-      } else {
-        // if current directory does contain the login, we need to compare the contents;
-        // the difference means there's been a re-insertion of an account with a
-        // previously deleted login
-
-        String currentValue = directoryCurrent.get(field);
-
-        if (!directoryHistoric.get(field).equals(currentValue)) {
-          merge.put(field, currentValue);
-        }
+        incrementalUpdate.put(logins[i], entryValue != null ? entryValue : "-1");
       }
-    }
-
-    for (String field : newerFields) {
 
-      // now checking fields absent in the historic directory but present in the
-      // current one, and copying those
-      if (!olderFields.contains(field)) {
-        merge.put(field, directoryCurrent.get(field));
-      }
+      return incrementalUpdate;
     }
-
-    jedis.close();
-
-    return merge;
   }
 
-  public void buildHistoricDirectories(long directoryVersion) {
-
+  public void setDirectoryVersion(long version) {
     Jedis jedis = redisPool.getWriteResource();
-    int backoff = calculateBackoff(directoryVersion);
-
-    for (int i = backoff; i > 0; i--) {
-
-      String runningKey = getDirectoryHistoricKey(i);
-      String upstreamKey = getDirectoryHistoricKey(i - 1);
-
-      // delete the running historic directory since we need to recreate it
-      jedis.del(runningKey);
-
-      HashMap<String, String> upstream = (HashMap<String, String>) jedis.hgetAll(upstreamKey);
-
-      // if the next in line historic directory exists, then the running directory is
-      // rewritten with the next in line, otherwise the running one would now be
-      // missing as well
-      if (!upstream.isEmpty()) {
-        jedis.hmset(runningKey, upstream);
-      }
-    }
-
+    jedis.set(DIRECTORY_VERSION, String.valueOf(version));
     jedis.close();
   }
 
-  public void flushIncrementalUpdates(int backoff, Jedis jedis) {
+  public void flushIncrementalUpdates(Jedis jedis) {
 
-    for (int i = 1; i <= backoff; i++) {
-      jedis.del(getIncrementalUpdateKey(i));
-    }
-    
-    for (int i = 1; i <= backoff; i++) {
-      jedis.del(getDirectoryHistoricKey(i));
-    }
-
-    // TODO: to be deprecated
-    jedis.del(CURRENT_UPDATE);
+    jedis.del(DIRECTORY_CHANGE_LOG, DIRECTORY_CHANGE_LOG_START);
   }
 
-  public int calculateBackoff(long directoryVersion) {
+  /**
+   * Removes the directory snapshots and diffs kept by the previous implementation
+   * of incremental updates. Called whenever a new change log is started, which
+   * covers both the first start after an upgrade and every flush.
+   */
+  private void removeLegacyIncrementalUpdates(Jedis jedis) {
 
-    if (directoryVersion < INCREMENTAL_UPDATES_TO_HOLD) {
-      return (int) directoryVersion;
-    } else {
-      return INCREMENTAL_UPDATES_TO_HOLD;
+    String[] legacyKeys = new String[INCREMENTAL_UPDATES_TO_HOLD * 2 + 1];
+
+    for (int i = 1; i <= INCREMENTAL_UPDATES_TO_HOLD; i++) {
+      legacyKeys[i * 2 - 2] = LEGACY_INCREMENTAL_UPDATE + i;
+      legacyKeys[i * 2 - 1] = LEGACY_DIRECTORY_HISTORIC + i;
     }
+
+    legacyKeys[legacyKeys.length - 1] = LEGACY_CURRENT_UPDATE;
+
+    jedis.del(legacyKeys);
   }
 
   public ReplicatedJedisPool accessDirectoryCache() {
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import su.sres.shadowserver.storage.protos.DirectoryResponse;
+
+/**
+ * Keeps serialized {@link DirectoryResponse} snapshots (the full directory and
+ * the incremental updates of depth 1 to
+ * {@link DirectoryManager#INCREMENTAL_UPDATES_TO_HOLD}) keyed by directory
+ * version and {@link DirectoryEntryFormat}, so that each of them is read from
+ * Redis and serialized only once per version, format and server. Concurrent requests for a snapshot which is being
+ * built wait for the single build in progress instead of issuing their own.
+ */
+public class DirectorySnapshotCache {
+
+  public static final long DEFAULT_MAX_SNAPSHOT_BYTES = 256L * 1024 * 1024;
+
+  private static final String LOOKUP_COUNTER_NAME = name(DirectorySnapshotCache.class, "lookup");
+  private static final String OUTCOME_TAG_NAME = "outcome";
+
+  private static final Counter hitCounter = Metrics.counter(LOOKUP_COUNTER_NAME, OUTCOME_TAG_NAME, "hit");
+  private static final Counter missCounter = Metrics.counter(LOOKUP_COUNTER_NAME, OUTCOME_TAG_NAME, "miss");
+  private static final Counter uncacheableCounter = Metrics.counter(name(DirectorySnapshotCache.class, "uncacheable"));
+  private static final Counter bytesServedCounter = Metrics.counter(name(DirectorySnapshotCache.class, "bytesServed"));
+  private static final Timer buildTimer = Metrics.timer(name(DirectorySnapshotCache.class, "build"));
+
+  // marks an incremental update which could not be built, so that callers fall back to the full directory
+  private static final byte[] UNAVAILABLE = new byte[0];
+
+  private final Cache<SnapshotKey, byte[]> snapshots;
+  private final ConcurrentMap<SnapshotKey, CompletableFuture<byte[]>> snapshotsInFlight = new ConcurrentHashMap<>();
+
+  public DirectorySnapshotCache(final long maxSnapshotBytes) {
+    this.snapshots = CacheBuilder.newBuilder()
+        .maximumWeight(maxSnapshotBytes)
+        .<SnapshotKey, byte[]>weigher((key, snapshot) -> snapshot.length)
+        .build();
+  }
+
+  /**
+   * Returns the serialized full directory of the given version, building it with
+   * {@code builder} if it is not cached yet.
+   *
+   * @param stillValid checked after a build; if it returns {@code false} the
+   *                   snapshot is served to the waiting callers but not retained
+   */
+  public byte[] getFull(final long version, final DirectoryEntryFormat format, final Supplier<DirectoryResponse> builder, final BooleanSupplier stillValid) {
+    return get(new SnapshotKey(version, 0, format), builder, stillValid);
+  }
+
+  /**
+   * Returns the serialized incremental update from {@code version - depth} to
+   * {@code version}, building it with {@code builder} if it is not cached yet.
+   * The builder may return {@code null} if the update is not available, in which
+   * case an empty optional is returned (and remembered) for this version and
+   * depth.
+   */
+  public Optional<byte[]> getIncremental(final long version, final int depth, final DirectoryEntryFormat format, final Supplier<DirectoryResponse> builder, final BooleanSupplier stillValid) {
+    if (depth <= 0) {
+      throw new IllegalArgumentException("Incremental update depth must be positive");
+    }
+
+    final byte[] snapshot = get(new SnapshotKey(version, depth, format), builder, stillValid);
+
+    return snapshot == UNAVAILABLE ? Optional.empty() : Optional.of(snapshot);
+  }
+
+  @VisibleForTesting
+  long size() {
+    return snapshots.size();
+  }
+
+  private byte[] get(final SnapshotKey key, final Supplier<DirectoryResponse> builder, final BooleanSupplier stillValid) {
+    final byte[] cached = snapshots.getIfPresent(key);
+
+    if (cached != null) {
+      hitCounter.increment();
+      return served(cached);
+    }
+
+    missCounter.increment();
+
+    final CompletableFuture<byte[]> pending = new CompletableFuture<>();
+    final CompletableFuture<byte[]> existing = snapshotsInFlight.putIfAbsent(key, pending);
+
+    if (existing != null) {
+      try {
+        return served(existing.join());
+      } catch (final CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+
+        throw e;
+      }
+    }
+
+    try {
+      // another caller may have finished the same build right before we registered ours
+      final byte[] raced = snapshots.getIfPresent(key);
+
+      if (raced != null) {
+        pending.complete(raced);
+        return served(raced);
+      }
+
+      final byte[] snapshot = buildTimer.record(() -> {
+        final DirectoryResponse response = builder.get();
+        return response != null ? response.toByteArray() : UNAVAILABLE;
+      });
+
+      if (stillValid.getAsBoolean()) {
+        snapshots.put(key, snapshot);
+      } else {
+        uncacheableCounter.increment();
+      }
+
+      pending.complete(snapshot);
+
+      return served(snapshot);
+    } catch (final RuntimeException e) {
+      pending.completeExceptionally(e);
+      throw e;
+    } finally {
+      snapshotsInFlight.remove(key, pending);
+    }
+  }
+
+  private static byte[] served(final byte[] snapshot) {
+    bytesServedCounter.increment(snapshot.length);
+    return snapshot;
+  }
+
+  private static class SnapshotKey {
+
+    private final long version;
+    private final int depth;
+    private final DirectoryEntryFormat format;
+
+    private SnapshotKey(final long version, final int depth, final DirectoryEntryFormat format) {
+      this.version = version;
+      this.depth = depth;
+      this.format = format;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      final SnapshotKey that = (SnapshotKey) o;
+      return version == that.version && depth == that.depth && format == that.format;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(version, depth, format);
+    }
+  }
+}
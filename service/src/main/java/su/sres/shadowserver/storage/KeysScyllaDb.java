@@ -9,6 +9,7 @@ import com.google.common.annotations.VisibleForTesting;
 import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
@@ -32,6 +33,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
@@ -52,8 +56,8 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
   private static final DistributionSummary CONTESTED_KEY_DISTRIBUTION = Metrics.summary(name(KeysScyllaDb.class, "contestedKeys"));
   private static final DistributionSummary KEY_COUNT_DISTRIBUTION        = Metrics.summary(name(KeysScyllaDb.class, "keyCount"));
 
-  public KeysScyllaDb(final DynamoDbClient scyllaDB, final String tableName) {
-    super(scyllaDB);
+  public KeysScyllaDb(final DynamoDbClient scyllaDB, final DynamoDbAsyncClient scyllaDBAsync, final String tableName, final int batchWriteParallelism) {
+    super(scyllaDB, scyllaDBAsync, batchWriteParallelism);
     this.tableName = tableName;
   }
 
@@ -61,47 +65,28 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
     STORE_KEYS_TIMER.record(() -> {
       delete(account.getUuid(), deviceId);
 
-      writeInBatches(keys, batch -> {
-        List<WriteRequest> items = new ArrayList<>();
-        for (final PreKey preKey : batch) {
-          items.add(WriteRequest.builder()
-              .putRequest(PutRequest.builder()
-                  .item(getItemFromPreKey(account.getUuid(), deviceId, preKey))
-                  .build())
-              .build());
-        }
-        executeTableWriteItemsUntilComplete(Map.of(tableName, items));
-      });
+      List<WriteRequest> items = new ArrayList<>(keys.size());
+      for (final PreKey preKey : keys) {
+        items.add(WriteRequest.builder()
+            .putRequest(PutRequest.builder()
+                .item(getItemFromPreKey(account.getUuid(), deviceId, preKey))
+                .build())
+            .build());
+      }
+      writeAll(tableName, items);
     });
   }
 
   public Optional<PreKey> take(final Account account, final long deviceId) {
     return TAKE_KEY_FOR_DEVICE_TIMER.record(() -> {
       final AttributeValue partitionKey = getPartitionKey(account.getUuid());
-      QueryRequest queryRequest = QueryRequest.builder()
-          .tableName(tableName)
-          .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
-          .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID))
-          .expressionAttributeValues(Map.of(
-              ":uuid", partitionKey,
-              ":sortprefix", getSortKeyPrefix(deviceId)))
-          .projectionExpression(KEY_DEVICE_ID_KEY_ID)
-          .consistentRead(false)
-          .build(); 
 
       int contestedKeys = 0;
 
       try {
-        QueryResponse response = db().query(queryRequest);
+        QueryResponse response = db().query(getTakeQueryRequest(partitionKey, deviceId));
         for (Map<String, AttributeValue> candidate : response.items()) {
-          DeleteItemRequest deleteItemRequest = DeleteItemRequest.builder()
-              .tableName(tableName)
-              .key(Map.of(
-                  KEY_ACCOUNT_UUID, partitionKey,
-                  KEY_DEVICE_ID_KEY_ID, candidate.get(KEY_DEVICE_ID_KEY_ID)))
-              .returnValues(ReturnValue.ALL_OLD)
-              .build();
-          DeleteItemResponse deleteItemResponse = db().deleteItem(deleteItemRequest);
+          DeleteItemResponse deleteItemResponse = db().deleteItem(getTakeDeleteRequest(partitionKey, candidate));
           if (deleteItemResponse.hasAttributes()) {
             return Optional.of(getPreKeyFromItem(deleteItemResponse.attributes()));
           }
@@ -116,6 +101,35 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  /**
+   * Async variant of {@link #take(Account, long)}; candidates are still claimed one at a time, in order.
+   */
+  public CompletableFuture<Optional<PreKey>> takeAsync(final Account account, final long deviceId) {
+    final AttributeValue partitionKey = getPartitionKey(account.getUuid());
+
+    return recordAsync(TAKE_KEY_FOR_DEVICE_TIMER, () -> asyncDb().query(getTakeQueryRequest(partitionKey, deviceId))
+        .thenCompose(response -> takeFirstAvailableAsync(partitionKey, response.items(), 0)));
+  }
+
+  private CompletableFuture<Optional<PreKey>> takeFirstAvailableAsync(final AttributeValue partitionKey,
+      final List<Map<String, AttributeValue>> candidates, final int index) {
+
+    if (index >= candidates.size()) {
+      CONTESTED_KEY_DISTRIBUTION.record(index);
+      return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    return asyncDb().deleteItem(getTakeDeleteRequest(partitionKey, candidates.get(index)))
+        .thenCompose(deleteItemResponse -> {
+          if (deleteItemResponse.hasAttributes()) {
+            CONTESTED_KEY_DISTRIBUTION.record(index);
+            return CompletableFuture.completedFuture(Optional.of(getPreKeyFromItem(deleteItemResponse.attributes())));
+          }
+
+          return takeFirstAvailableAsync(partitionKey, candidates, index + 1);
+        });
+  }
+
   public Map<Long, PreKey> take(final Account account) {
     return TAKE_KEYS_FOR_ACCOUNT_TIMER.record(() -> {
       final Map<Long, PreKey> preKeysByDeviceId = new HashMap<>();
@@ -128,26 +142,30 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  /**
+   * Async variant of {@link #take(Account)}; keys for all of the account's devices are taken concurrently.
+   */
+  public CompletableFuture<Map<Long, PreKey>> takeAsync(final Account account) {
+    return recordAsync(TAKE_KEYS_FOR_ACCOUNT_TIMER, () -> {
+      final Map<Long, PreKey> preKeysByDeviceId = new ConcurrentHashMap<>();
+
+      return CompletableFuture.allOf(account.getDevices().stream()
+              .map(device -> takeAsync(account, device.getId())
+                  .thenAccept(maybePreKey -> maybePreKey.ifPresent(preKey -> preKeysByDeviceId.put(device.getId(), preKey))))
+              .toArray(CompletableFuture[]::new))
+          .thenApply(ignored -> preKeysByDeviceId);
+    });
+  }
+
   public int getCount(final Account account, final long deviceId) {
     return GET_KEY_COUNT_TIMER.record(() -> {
-      QueryRequest queryRequest = QueryRequest.builder()
-          .tableName(tableName)
-          .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
-          .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID))
-          .expressionAttributeValues(Map.of(
-              ":uuid", getPartitionKey(account.getUuid()),
-              ":sortprefix", getSortKeyPrefix(deviceId)))
-          .select(Select.COUNT)
-          .consistentRead(false)
-          .build();
-
       int keyCount = 0;
       // This is very confusing, but does appear to be the intended behavior. See:
       //
       // - https://github.com/aws/aws-sdk-java/issues/693
       // - https://github.com/aws/aws-sdk-java/issues/915
       // - https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/Query.html#Query.Count
-      for (final QueryResponse page : db().queryPaginator(queryRequest)) {
+      for (final QueryResponse page : db().queryPaginator(getCountQueryRequest(account.getUuid(), deviceId))) {
         keyCount += page.count();
       }
       KEY_COUNT_DISTRIBUTION.record(keyCount);
@@ -155,6 +173,55 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  public CompletableFuture<Integer> getCountAsync(final Account account, final long deviceId) {
+    return recordAsync(GET_KEY_COUNT_TIMER, () -> {
+      final AtomicInteger keyCount = new AtomicInteger();
+
+      return asyncDb().queryPaginator(getCountQueryRequest(account.getUuid(), deviceId))
+          .subscribe(page -> keyCount.addAndGet(page.count()))
+          .thenApply(ignored -> {
+            KEY_COUNT_DISTRIBUTION.record(keyCount.get());
+            return keyCount.get();
+          });
+    });
+  }
+
+  private QueryRequest getTakeQueryRequest(final AttributeValue partitionKey, final long deviceId) {
+    return QueryRequest.builder()
+        .tableName(tableName)
+        .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
+        .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID))
+        .expressionAttributeValues(Map.of(
+            ":uuid", partitionKey,
+            ":sortprefix", getSortKeyPrefix(deviceId)))
+        .projectionExpression(KEY_DEVICE_ID_KEY_ID)
+        .consistentRead(false)
+        .build();
+  }
+
+  private DeleteItemRequest getTakeDeleteRequest(final AttributeValue partitionKey, final Map<String, AttributeValue> candidate) {
+    return DeleteItemRequest.builder()
+        .tableName(tableName)
+        .key(Map.of(
+            KEY_ACCOUNT_UUID, partitionKey,
+            KEY_DEVICE_ID_KEY_ID, candidate.get(KEY_DEVICE_ID_KEY_ID)))
+        .returnValues(ReturnValue.ALL_OLD)
+        .build();
+  }
+
+  private QueryRequest getCountQueryRequest(final UUID accountUuid, final long deviceId) {
+    return QueryRequest.builder()
+        .tableName(tableName)
+        .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
+        .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID))
+        .expressionAttributeValues(Map.of(
+            ":uuid", getPartitionKey(accountUuid),
+            ":sortprefix", getSortKeyPrefix(deviceId)))
+        .select(Select.COUNT)
+        .consistentRead(false)
+        .build();
+  }
+
   public void delete(final UUID accountUuid) {
     DELETE_KEYS_FOR_ACCOUNT_TIMER.record(() -> {
       final QueryRequest queryRequest = QueryRequest.builder()
@@ -191,19 +258,17 @@ public class KeysScyllaDb extends AbstractScyllaDbStore {
   private void deleteItemsForAccountMatchingQuery(final UUID accountUuid, final QueryRequest querySpec) {
     final AttributeValue partitionKey = getPartitionKey(accountUuid);
 
-    writeInBatches(db().query(querySpec).items(), batch -> {
-      List<WriteRequest> deletes = new ArrayList<>();
-      for (final Map<String, AttributeValue> item : batch) {
-        deletes.add(WriteRequest.builder()
-            .deleteRequest(DeleteRequest.builder()
-                .key(Map.of(
-                    KEY_ACCOUNT_UUID, partitionKey,
-                    KEY_DEVICE_ID_KEY_ID, item.get(KEY_DEVICE_ID_KEY_ID)))
-                .build())
-            .build());
-      }
-      executeTableWriteItemsUntilComplete(Map.of(tableName, deletes));
-    });
+    List<WriteRequest> deletes = new ArrayList<>();
+    for (final Map<String, AttributeValue> item : db().queryPaginator(querySpec).items()) {
+      deletes.add(WriteRequest.builder()
+          .deleteRequest(DeleteRequest.builder()
+              .key(Map.of(
+                  KEY_ACCOUNT_UUID, partitionKey,
+                  KEY_DEVICE_ID_KEY_ID, item.get(KEY_DEVICE_ID_KEY_ID)))
+              .build())
+          .build());
+    }
+    writeAll(tableName, deletes);
   }
 
   private static AttributeValue getPartitionKey(final UUID accountUuid) {
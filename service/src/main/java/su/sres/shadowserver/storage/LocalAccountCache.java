@@ -0,0 +1,274 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.cluster.SlotHash;
+import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import su.sres.shadowserver.configuration.LocalAccountCacheConfiguration;
+import su.sres.shadowserver.redis.FaultTolerantPubSubConnection;
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+
+/**
+ * Keeps recently-read, parsed {@link Account}s in memory in front of the Redis account cache, so that authenticating a
+ * request for a hot account costs neither a network round trip nor a decode. A server that changes or removes an
+ * account publishes its UUID on a cluster-wide channel, and every other server drops its copy; entries also expire
+ * after a short time to live, which bounds staleness if an invalidation is missed (e.g. while the pub/sub connection
+ * reconnects).
+ * <p>
+ * Cached accounts are shared by all requests that read them and must not be modified in place; {@link AccountsManager}
+ * updates a copy instead.
+ */
+public class LocalAccountCache extends RedisClusterPubSubAdapter<String, String> implements Managed {
+
+  @VisibleForTesting
+  static final String INVALIDATION_CHANNEL = "account_cache::invalidate";
+
+  private final String cacheId = UUID.randomUUID().toString();
+
+  private final FaultTolerantRedisCluster cacheCluster;
+  private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
+  private final Clock clock;
+
+  private final Cache<UUID, CachedAccount> accounts;
+
+  // the invalidation sequence number at which each recently-invalidated account was last invalidated; a load that
+  // started before then may have read the old account and must not be cached
+  private final Cache<UUID, Long> invalidations;
+  private final AtomicLong invalidationSequence = new AtomicLong();
+
+  private static final String LOOKUP_COUNTER_NAME = name(LocalAccountCache.class, "lookup");
+  private static final String OUTCOME_TAG_NAME = "outcome";
+
+  private static final Counter hitCounter = Metrics.counter(LOOKUP_COUNTER_NAME, OUTCOME_TAG_NAME, "hit");
+  private static final Counter missCounter = Metrics.counter(LOOKUP_COUNTER_NAME, OUTCOME_TAG_NAME, "miss");
+  private static final Counter discardedLoadCounter = Metrics.counter(name(LocalAccountCache.class, "discardedLoad"));
+  private static final Counter publishFailureCounter = Metrics.counter(name(LocalAccountCache.class, "publishFailure"));
+
+  // how old served entries are; an upper bound on how stale a served account may be
+  private static final DistributionSummary servedEntryAge = DistributionSummary
+      .builder(name(LocalAccountCache.class, "servedEntryAge"))
+      .description("Milliseconds since a served account was read from the shared cache or the database")
+      .baseUnit("milliseconds")
+      .publishPercentiles(0.5, 0.95, 0.99)
+      .register(Metrics.globalRegistry);
+
+  // from the publishing server's clock to this server's, so it includes any skew between the two
+  private static final Timer invalidationLagTimer = Timer
+      .builder(name(LocalAccountCache.class, "invalidationLag"))
+      .publishPercentiles(0.5, 0.95, 0.99)
+      .register(Metrics.globalRegistry);
+
+  private static final String REMOTE_INVALIDATION_COUNTER_NAME = name(LocalAccountCache.class, "remoteInvalidation");
+  private static final String EVICTED_TAG_NAME = "evicted";
+
+  private static final Logger logger = LoggerFactory.getLogger(LocalAccountCache.class);
+
+  public LocalAccountCache(final FaultTolerantRedisCluster cacheCluster, final LocalAccountCacheConfiguration configuration) {
+    this(cacheCluster, configuration.getMaxSize(), configuration.getTimeToLive(), Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  LocalAccountCache(final FaultTolerantRedisCluster cacheCluster, final int maxSize, final Duration timeToLive, final Clock clock) {
+    this.cacheCluster = cacheCluster;
+    this.pubSubConnection = cacheCluster.createPubSubConnection();
+    this.clock = clock;
+
+    this.accounts = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(timeToLive.toMillis(), TimeUnit.MILLISECONDS)
+        .build();
+
+    this.invalidations = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(timeToLive.toMillis(), TimeUnit.MILLISECONDS)
+        .build();
+
+    Metrics.gauge(name(LocalAccountCache.class, "size"), accounts, Cache::size);
+  }
+
+  @Override
+  public void start() {
+    pubSubConnection.usePubSubConnection(connection -> {
+      connection.addListener(this);
+      connection.getResources().eventBus().get()
+          .filter(event -> event instanceof ClusterTopologyChangedEvent)
+          .subscribe(event -> subscribe());
+    });
+
+    subscribe();
+  }
+
+  @Override
+  public void stop() {
+    pubSubConnection.usePubSubConnection(connection -> {
+      connection.removeListener(this);
+      connection.sync().upstream().commands().unsubscribe(INVALIDATION_CHANNEL);
+    });
+  }
+
+  private void subscribe() {
+    final int slot = SlotHash.getSlot(INVALIDATION_CHANNEL);
+
+    pubSubConnection.usePubSubConnection(connection -> connection.sync()
+        .nodes(node -> node.is(RedisClusterNode.NodeFlag.UPSTREAM) && node.hasSlot(slot))
+        .commands()
+        .subscribe(INVALIDATION_CHANNEL));
+  }
+
+  /**
+   * Returns the cached account with the given UUID, or the account returned by {@code loader} if it isn't cached.
+   */
+  public Optional<Account> get(final UUID uuid, final Supplier<Optional<Account>> loader) {
+    final Optional<Account> maybeCachedAccount = getIfPresent(uuid);
+
+    if (maybeCachedAccount.isPresent()) {
+      return maybeCachedAccount;
+    }
+
+    final long loadSequence = invalidationSequence.get();
+    final Optional<Account> maybeAccount = loader.get();
+
+    maybeAccount.ifPresent(account -> put(uuid, account, loadSequence));
+
+    return maybeAccount;
+  }
+
+  /**
+   * Async variant of {@link #get(UUID, Supplier)}.
+   */
+  public CompletableFuture<Optional<Account>> getAsync(final UUID uuid, final Supplier<CompletableFuture<Optional<Account>>> loader) {
+    final Optional<Account> maybeCachedAccount = getIfPresent(uuid);
+
+    if (maybeCachedAccount.isPresent()) {
+      return CompletableFuture.completedFuture(maybeCachedAccount);
+    }
+
+    final long loadSequence = invalidationSequence.get();
+
+    return loader.get().thenApply(maybeAccount -> {
+      maybeAccount.ifPresent(account -> put(uuid, account, loadSequence));
+      return maybeAccount;
+    });
+  }
+
+  /**
+   * Drops the given account from this server's cache and from the caches of all other servers. Must be called after
+   * the change has been written to the shared cache, so that peers don't reload the previous version.
+   */
+  public void invalidate(final UUID uuid) {
+    invalidateLocally(uuid);
+
+    final String message = cacheId + ":" + uuid + ":" + clock.millis();
+
+    cacheCluster.withClusterAsync(connection -> connection.async().publish(INVALIDATION_CHANNEL, message))
+        .whenComplete((ignored, throwable) -> {
+          if (throwable != null) {
+            // peers will drop the account once their copy expires
+            publishFailureCounter.increment();
+            logger.warn("Failed to publish account cache invalidation", throwable);
+          }
+        });
+  }
+
+  @VisibleForTesting
+  boolean isCached(final UUID uuid) {
+    return accounts.getIfPresent(uuid) != null;
+  }
+
+  private Optional<Account> getIfPresent(final UUID uuid) {
+    final CachedAccount cachedAccount = accounts.getIfPresent(uuid);
+
+    if (cachedAccount == null) {
+      missCounter.increment();
+      return Optional.empty();
+    }
+
+    hitCounter.increment();
+    servedEntryAge.record(clock.millis() - cachedAccount.cachedAtMillis);
+
+    return Optional.of(cachedAccount.account);
+  }
+
+  private void put(final UUID uuid, final Account account, final long loadSequence) {
+    final Long invalidatedAtSequence = invalidations.getIfPresent(uuid);
+
+    if (invalidatedAtSequence != null && invalidatedAtSequence > loadSequence) {
+      discardedLoadCounter.increment();
+      return;
+    }
+
+    accounts.put(uuid, new CachedAccount(account, clock.millis()));
+  }
+
+  private boolean invalidateLocally(final UUID uuid) {
+    invalidations.put(uuid, invalidationSequence.incrementAndGet());
+    return accounts.asMap().remove(uuid) != null;
+  }
+
+  @Override
+  public void message(final RedisClusterNode node, final String channel, final String message) {
+    if (!INVALIDATION_CHANNEL.equals(channel)) {
+      return;
+    }
+
+    final String[] parts = message.split(":");
+
+    if (parts.length != 3) {
+      logger.warn("Unexpected account cache invalidation: {}", message);
+      return;
+    }
+
+    if (cacheId.equals(parts[0])) {
+      // this server already dropped its copy when it published the invalidation
+      return;
+    }
+
+    try {
+      final boolean evicted = invalidateLocally(UUID.fromString(parts[1]));
+
+      invalidationLagTimer.record(Math.max(0, clock.millis() - Long.parseLong(parts[2])), TimeUnit.MILLISECONDS);
+      Metrics.counter(REMOTE_INVALIDATION_COUNTER_NAME, EVICTED_TAG_NAME, String.valueOf(evicted)).increment();
+    } catch (final IllegalArgumentException e) {
+      logger.warn("Unexpected account cache invalidation: {}", message);
+    }
+  }
+
+  private static class CachedAccount {
+
+    private final Account account;
+    private final long cachedAtMillis;
+
+    private CachedAccount(final Account account, final long cachedAtMillis) {
+      this.account = account;
+      this.cachedAtMillis = cachedAtMillis;
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import su.sres.shadowserver.configuration.MessagePayloadCompressionConfiguration;
+
+/**
+ * Compresses message payloads before they're stored and restores them when they're read. A compressed payload starts
+ * with a byte identifying the codec and the length of the original payload; payloads are only compressed if they're at
+ * least the configured minimum size and if compressing them actually saves space.
+ * <p>
+ * Serialized envelopes (as stored in the message cache) carry compressed payloads behind a leading zero byte. A
+ * serialized protobuf message can never start with a zero byte (it would be a field with tag zero), so envelopes
+ * stored before compression was enabled, or stored while it's disabled, are read back unchanged. Decoding always
+ * works, whether or not compression is enabled.
+ */
+public class MessagePayloadCodec {
+
+  private final boolean compressionEnabled;
+  private final int minimumSize;
+  private final ThreadLocal<Deflater> deflaters;
+
+  private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+  static final byte COMPRESSED_ENVELOPE_MARKER = 0x00;
+  static final byte DEFLATE = 0x01;
+
+  // codec identifier followed by the length of the original payload
+  private static final int HEADER_LENGTH = 1 + Integer.BYTES;
+
+  private static final Timer COMPRESS_CPU_TIMER = Metrics.timer(name(MessagePayloadCodec.class, "compressCpuTime"));
+  private static final Timer DECOMPRESS_CPU_TIMER = Metrics.timer(name(MessagePayloadCodec.class, "decompressCpuTime"));
+  private static final DistributionSummary COMPRESSION_RATIO = DistributionSummary
+      .builder(name(MessagePayloadCodec.class, "compressionRatio"))
+      .description("Size of compressed payloads relative to their original size")
+      .publishPercentiles(0.5, 0.75, 0.95)
+      .register(Metrics.globalRegistry);
+  private static final Counter INCOMPRESSIBLE_PAYLOAD_COUNTER = Metrics.counter(name(MessagePayloadCodec.class, "incompressiblePayload"));
+
+  public MessagePayloadCodec(final boolean compressionEnabled, final int minimumSize, final int level) {
+    this.compressionEnabled = compressionEnabled;
+    this.minimumSize = Math.max(minimumSize, HEADER_LENGTH + 1);
+    this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+  }
+
+  public MessagePayloadCodec(final MessagePayloadCompressionConfiguration configuration) {
+    this(configuration.isEnabled(), configuration.getMinimumSize(), configuration.getLevel());
+  }
+
+  /**
+   * Returns a codec that stores payloads as they are, but still reads payloads that were stored compressed.
+   */
+  public static MessagePayloadCodec withoutCompression() {
+    return new MessagePayloadCodec(false, 0, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Compresses the given payload.
+   *
+   * @return the compressed payload, or empty if the payload should be stored as it is
+   */
+  public Optional<byte[]> compress(final byte[] payload) {
+    return compress(payload, 0);
+  }
+
+  /**
+   * Restores a payload returned by {@link #compress(byte[])}.
+   */
+  public byte[] decompress(final byte[] compressed) throws DataFormatException {
+    return decompress(compressed, 0);
+  }
+
+  /**
+   * Prepares a serialized envelope for storage, compressing it if it's worth it.
+   */
+  public byte[] encodeEnvelope(final byte[] serializedEnvelope) {
+    return compress(serializedEnvelope, 1)
+        .map(compressed -> {
+          compressed[0] = COMPRESSED_ENVELOPE_MARKER;
+          return compressed;
+        })
+        .orElse(serializedEnvelope);
+  }
+
+  /**
+   * Restores a serialized envelope stored by {@link #encodeEnvelope(byte[])}.
+   */
+  public byte[] decodeEnvelope(final byte[] storedEnvelope) throws InvalidProtocolBufferException {
+    if (storedEnvelope.length == 0 || storedEnvelope[0] != COMPRESSED_ENVELOPE_MARKER) {
+      return storedEnvelope;
+    }
+
+    try {
+      return decompress(storedEnvelope, 1);
+    } catch (final DataFormatException e) {
+      throw new InvalidProtocolBufferException("Could not decompress stored envelope: " + e.getMessage());
+    }
+  }
+
+  private Optional<byte[]> compress(final byte[] payload, final int offset) {
+    if (!compressionEnabled || payload.length < minimumSize) {
+      return Optional.empty();
+    }
+
+    final long start = getCurrentThreadCpuTime();
+    final Deflater deflater = deflaters.get();
+
+    try {
+      deflater.setInput(payload);
+      deflater.finish();
+
+      // a compressed payload is only worth storing if it's smaller than the original one
+      final byte[] buffer = new byte[payload.length];
+      buffer[offset] = DEFLATE;
+      ByteBuffer.wrap(buffer, offset + 1, Integer.BYTES).putInt(payload.length);
+
+      int length = offset + HEADER_LENGTH;
+
+      while (!deflater.finished() && length < buffer.length) {
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+
+      if (!deflater.finished()) {
+        INCOMPRESSIBLE_PAYLOAD_COUNTER.increment();
+        return Optional.empty();
+      }
+
+      COMPRESSION_RATIO.record((double) length / payload.length);
+
+      return Optional.of(Arrays.copyOf(buffer, length));
+    } finally {
+      deflater.reset();
+      COMPRESS_CPU_TIMER.record(getCurrentThreadCpuTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private static byte[] decompress(final byte[] compressed, final int offset) throws DataFormatException {
+    if (compressed.length < offset + HEADER_LENGTH || compressed[offset] != DEFLATE) {
+      throw new DataFormatException("Unrecognized payload encoding");
+    }
+
+    final int length = ByteBuffer.wrap(compressed, offset + 1, Integer.BYTES).getInt();
+
+    if (length < 0) {
+      throw new DataFormatException("Invalid payload length: " + length);
+    }
+
+    final long start = getCurrentThreadCpuTime();
+    final Inflater inflater = INFLATERS.get();
+
+    try {
+      inflater.setInput(compressed, offset + HEADER_LENGTH, compressed.length - offset - HEADER_LENGTH);
+
+      final byte[] payload = new byte[length];
+      int inflated = 0;
+
+      while (inflated < length && !inflater.finished()) {
+        final int count = inflater.inflate(payload, inflated, length - inflated);
+
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+
+        inflated += count;
+      }
+
+      if (inflated != length) {
+        throw new DataFormatException("Payload was truncated");
+      }
+
+      return payload;
+    } finally {
+      inflater.reset();
+      DECOMPRESS_CPU_TIMER.record(getCurrentThreadCpuTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private static long getCurrentThreadCpuTime() {
+    return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+}
@@ -11,24 +11,47 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.cluster.SlotHash;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import su.sres.shadowserver.configuration.dynamic.DynamicConfiguration;
 import su.sres.shadowserver.entities.MessageProtos;
 import su.sres.shadowserver.util.Constants;
+import su.sres.shadowserver.util.Pair;
 import su.sres.shadowserver.util.Util;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
+/**
+ * Moves messages that have been waiting in the Redis message cache for longer than the persist delay into ScyllaDB.
+ * <p/>
+ * A few discovery threads claim cluster slots one at a time and hand each overdue queue in the slot to a shared pool
+ * of persist threads. Slots are claimed from an index of slots whose longest-waiting queue is overdue, which is
+ * maintained as messages are inserted, so discovery threads don't spend their time on the many slots that have no
+ * queues at all; every so often (and whenever no indexed slot is overdue) a thread instead sweeps the next slot in
+ * turn, which catches slots whose index updates were lost. The pool grows and shrinks with the estimated number of overdue queues across the cluster, and
+ * the number of queues queued or being persisted at once is bounded. A queue that fails to persist is put back into
+ * the persistence index with its own exponential backoff; other queues carry on unaffected.
+ */
 public class MessagePersister implements Managed {
 
   private final MessagesCache messagesCache;
@@ -41,12 +64,28 @@ public class MessagePersister implements Managed {
   private final Thread[] workerThreads = new Thread[WORKER_THREAD_COUNT];
   private volatile boolean running;
 
+  private final ThreadPoolExecutor persistExecutor;
+  private final Semaphore inFlightQueues = new Semaphore(MAX_IN_FLIGHT_QUEUES);
+  // Queues that are drained or persisted by another instance never report a success here, so entries have to expire
+  // on their own; a queue that keeps failing is retried at least once per persist delay and refreshes its entry
+  private final Cache<String, Integer> consecutiveFailuresByQueue;
+
+  private double estimatedOverdueQueuesPerSlot;
+  private final AtomicLong backlogAgeMillis = new AtomicLong();
+
   private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Timer getQueuesTimer = metricRegistry.timer(name(MessagePersister.class, "getQueues"));
   private final Timer persistQueueTimer = metricRegistry.timer(name(MessagePersister.class, "persistQueue"));  
   private final Meter persistQueueExceptionMeter = metricRegistry.meter(name(MessagePersister.class, "persistQueueException"));
+  private final Meter persistedMessageMeter = metricRegistry.meter(name(MessagePersister.class, "persistedMessages"));
   private final Histogram queueCountHistogram = metricRegistry.histogram(name(MessagePersister.class, "queueCount"));
   private final Histogram queueSizeHistogram = metricRegistry.histogram(name(MessagePersister.class, "queueSize"));
+  private final Meter indexedSlotMeter = metricRegistry.meter(name(MessagePersister.class, "indexedSlots"));
+  private final Meter sweptSlotMeter = metricRegistry.meter(name(MessagePersister.class, "sweptSlots"));
+  private final Meter emptySweptSlotMeter = metricRegistry.meter(name(MessagePersister.class, "emptySweptSlots"));
+  private final Meter emptySlotScansAvoidedMeter = metricRegistry.meter(name(MessagePersister.class, "emptySlotScansAvoided"));
+
+  private final AtomicLong slotClaims = new AtomicLong();
 
   static final int QUEUE_BATCH_LIMIT = 100;
   static final int MESSAGE_BATCH_LIMIT = 100;
@@ -55,6 +94,23 @@ public class MessagePersister implements Managed {
 
   private static final int WORKER_THREAD_COUNT = 4;
 
+  // One slot claim in this many sweeps the next slot in turn rather than claiming an indexed slot
+  @VisibleForTesting
+  static final int SWEEP_INTERVAL = 16;
+
+  private static final int MIN_PERSIST_THREADS = 4;
+  private static final int MAX_PERSIST_THREADS = 64;
+  private static final int MAX_IN_FLIGHT_QUEUES = 256;
+
+  private static final int MAX_TRACKED_FAILING_QUEUES = 100_000;
+  private static final int FAILURE_EXPIRY_PERSIST_DELAYS = 4;
+
+  // Overdue queues across the whole cluster per persist thread
+  private static final int OVERDUE_QUEUES_PER_PERSIST_THREAD = 500;
+
+  // Weight of the newest slot sample in the estimated overdue queue count
+  private static final double BACKLOG_SMOOTHING_FACTOR = 0.05;
+
   private static final Logger logger = LoggerFactory.getLogger(MessagePersister.class);
 
   public MessagePersister(final MessagesCache messagesCache, final MessagesManager messagesManager, final AccountsManager accountsManager, final DynamicConfiguration dynamicConfig, final Duration persistDelay) {
@@ -62,6 +118,21 @@ public class MessagePersister implements Managed {
     this.messagesManager = messagesManager;
     this.accountsManager = accountsManager;
     this.persistDelay = persistDelay;
+
+    this.consecutiveFailuresByQueue = CacheBuilder.newBuilder()
+        .maximumSize(MAX_TRACKED_FAILING_QUEUES)
+        .expireAfterWrite(persistDelay.multipliedBy(FAILURE_EXPIRY_PERSIST_DELAYS).toMillis(), TimeUnit.MILLISECONDS)
+        .build();
+
+    this.persistExecutor = new ThreadPoolExecutor(MIN_PERSIST_THREADS, MAX_PERSIST_THREADS, 1, TimeUnit.MINUTES,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("MessagePersisterPersist-%d").setDaemon(true).build());
+
+    metricRegistry.gauge(name(MessagePersister.class, "persistThreads"), () -> persistExecutor::getCorePoolSize);
+    metricRegistry.gauge(name(MessagePersister.class, "inFlightQueues"), () -> () -> MAX_IN_FLIGHT_QUEUES - inFlightQueues.availablePermits());
+    metricRegistry.gauge(name(MessagePersister.class, "estimatedOverdueQueues"), () -> this::getEstimatedOverdueQueues);
+    metricRegistry.gauge(name(MessagePersister.class, "backlogAgeMillis"), () -> backlogAgeMillis::get);
+
     for (int i = 0; i < workerThreads.length; i++) {
       workerThreads[i] = new Thread(() -> {
         while (running) {
@@ -109,39 +180,121 @@ public class MessagePersister implements Managed {
         logger.warn("Interrupted while waiting for worker thread to complete current operation");
       }
     }
+
+    persistExecutor.shutdown();
   }
 
   @VisibleForTesting
   int persistNextQueues(final Instant currentTime) {
-    final int slot = messagesCache.getNextSlotToPersist();
+    final Instant maxTime = currentTime.minus(persistDelay);
+
+    final Optional<Pair<Integer, Long>> maybeIndexedSlot = slotClaims.incrementAndGet() % SWEEP_INTERVAL == 0
+        ? Optional.empty()
+        : messagesCache.claimSlotToPersist(maxTime);
+
+    final int slot;
+
+    if (maybeIndexedSlot.isPresent()) {
+      slot = maybeIndexedSlot.get().first();
+      indexedSlotMeter.mark();
+
+      // a sweep would, on average, have scanned this many slots without queues to find a slot with queues
+      final long indexedSlotCount = maybeIndexedSlot.get().second();
+      emptySlotScansAvoidedMeter.mark((SlotHash.SLOT_COUNT - indexedSlotCount) / Math.max(indexedSlotCount, 1));
+    } else {
+      slot = messagesCache.getNextSlotToPersist();
+      sweptSlotMeter.mark();
+    }
+
+    try {
+      final int queuesPersisted = persistQueuesInSlot(slot, maxTime, currentTime, maybeIndexedSlot.isEmpty());
+
+      if (maybeIndexedSlot.isEmpty() && queuesPersisted == 0) {
+        emptySweptSlotMeter.mark();
+      }
 
+      return queuesPersisted;
+    } finally {
+      messagesCache.reindexSlotToPersist(slot);
+    }
+  }
+
+  private int persistQueuesInSlot(final int slot, final Instant maxTime, final Instant currentTime, final boolean swept) {
+    // indexed slots are far more likely to have queues than slots in general, so only swept slots are a fair sample of
+    // the backlog across the cluster
+    if (swept) {
+      updateBacklogEstimate(messagesCache.getPersistBacklog(slot, maxTime), currentTime);
+    }
+
+    final List<CompletableFuture<Void>> persistFutures = new ArrayList<>();
     List<String> queuesToPersist;
-    int queuesPersisted = 0;
 
     do {
       try (final Timer.Context ignored = getQueuesTimer.time()) {
-        queuesToPersist = messagesCache.getQueuesToPersist(slot, currentTime.minus(persistDelay), QUEUE_BATCH_LIMIT);
+        queuesToPersist = messagesCache.getQueuesToPersist(slot, maxTime, QUEUE_BATCH_LIMIT);
       }
 
       for (final String queue : queuesToPersist) {
-        final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queue);
-        final long deviceId = MessagesCache.getDeviceIdFromQueueName(queue);
+        inFlightQueues.acquireUninterruptibly();
 
         try {
-          persistQueue(accountUuid, deviceId);
-        } catch (final Exception e) {
-          persistQueueExceptionMeter.mark();
-          logger.warn("Failed to persist queue {}::{}; will schedule for retry", accountUuid, deviceId, e);
-          messagesCache.addQueueToPersist(accountUuid, deviceId);
-          
-          Util.sleep(EXCEPTION_PAUSE_MILLIS);
+          persistFutures.add(CompletableFuture.runAsync(() -> persistQueueWithBackoff(queue), persistExecutor)
+              .whenComplete((ignored, cause) -> inFlightQueues.release()));
+        } catch (final RuntimeException e) {
+          inFlightQueues.release();
+          throw e;
         }
       }
-
-      queuesPersisted += queuesToPersist.size();
     } while (queuesToPersist.size() >= QUEUE_BATCH_LIMIT);
 
-    return queuesPersisted;
+    CompletableFuture.allOf(persistFutures.toArray(new CompletableFuture[0])).join();
+
+    return persistFutures.size();
+  }
+
+  private void persistQueueWithBackoff(final String queue) {
+    final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queue);
+    final long deviceId = MessagesCache.getDeviceIdFromQueueName(queue);
+
+    try {
+      persistQueue(accountUuid, deviceId);
+      consecutiveFailuresByQueue.invalidate(queue);
+    } catch (final Exception e) {
+      persistQueueExceptionMeter.mark();
+
+      final int failures = consecutiveFailuresByQueue.asMap().merge(queue, 1, Integer::sum);
+      final Duration backoff = getRetryBackoff(failures);
+
+      logger.warn("Failed to persist queue {}::{} ({} consecutive failures); will retry in {}", accountUuid, deviceId, failures, backoff, e);
+
+      try {
+        messagesCache.addQueueToPersist(accountUuid, deviceId, Instant.now().minus(persistDelay).plus(backoff));
+      } catch (final Exception addException) {
+        logger.error("Failed to reschedule queue {}::{} for persistence", accountUuid, deviceId, addException);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  Duration getRetryBackoff(final int consecutiveFailures) {
+    final long backoffMillis = EXCEPTION_PAUSE_MILLIS << Math.min(consecutiveFailures - 1, 20);
+    return backoffMillis < persistDelay.toMillis() ? Duration.ofMillis(backoffMillis) : persistDelay;
+  }
+
+  private synchronized void updateBacklogEstimate(final Pair<Long, Optional<Instant>> slotBacklog, final Instant currentTime) {
+    estimatedOverdueQueuesPerSlot += BACKLOG_SMOOTHING_FACTOR * (slotBacklog.first() - estimatedOverdueQueuesPerSlot);
+    backlogAgeMillis.set(slotBacklog.second().map(oldest -> Duration.between(oldest, currentTime).toMillis()).orElse(0L));
+
+    final int targetPersistThreads = (int) Math.max(MIN_PERSIST_THREADS,
+        Math.min(MAX_PERSIST_THREADS, getEstimatedOverdueQueues() / OVERDUE_QUEUES_PER_PERSIST_THREAD));
+
+    if (targetPersistThreads != persistExecutor.getCorePoolSize()) {
+      persistExecutor.setCorePoolSize(targetPersistThreads);
+    }
+  }
+
+  private synchronized long getEstimatedOverdueQueues() {
+    return Math.round(estimatedOverdueQueuesPerSlot * SlotHash.SLOT_COUNT);
   }
 
   @VisibleForTesting
@@ -170,6 +323,7 @@ public class MessagePersister implements Managed {
         } while (!messages.isEmpty());
 
         queueSizeHistogram.update(messageCount);
+        persistedMessageMeter.mark(messageCount);
       } finally {
         messagesCache.unlockQueueForPersistence(accountUuid, deviceId);
       }
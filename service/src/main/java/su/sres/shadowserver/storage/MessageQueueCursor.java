@@ -0,0 +1,124 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+
+/**
+ * An opaque position in a device's message queue, used to read the queue page by page without going back to its start
+ * for every page. Persisted messages come before cached messages, so a cursor tracks the last persisted message read
+ * (if any), whether persisted messages have been exhausted, and the last cached message read (if any).
+ * <p>
+ * A cursor only moves forward. Messages that are persisted behind a cursor after it has passed them (e.g. because they
+ * were moved from the cache to the messages table mid-drain) are found by the next drain, which starts from a new
+ * cursor.
+ */
+public final class MessageQueueCursor {
+
+  private final boolean cachedMessagesOnly;
+
+  @Nullable
+  private final UUID lastPersistedMessageGuid;
+  private final long lastPersistedMessageServerTimestamp;
+
+  private final long lastCachedMessageId;
+
+  // message IDs in the cache are assigned by an incrementing counter that starts at 1
+  static final long NO_CACHED_MESSAGE_ID = 0;
+
+  private MessageQueueCursor(final boolean cachedMessagesOnly,
+      @Nullable final UUID lastPersistedMessageGuid,
+      final long lastPersistedMessageServerTimestamp,
+      final long lastCachedMessageId) {
+
+    this.cachedMessagesOnly = cachedMessagesOnly;
+    this.lastPersistedMessageGuid = lastPersistedMessageGuid;
+    this.lastPersistedMessageServerTimestamp = lastPersistedMessageServerTimestamp;
+    this.lastCachedMessageId = lastCachedMessageId;
+  }
+
+  /**
+   * Returns a cursor positioned at the start of a queue.
+   *
+   * @param cachedMessagesOnly if {@code true}, persisted messages are skipped entirely
+   */
+  public static MessageQueueCursor start(final boolean cachedMessagesOnly) {
+    return new MessageQueueCursor(cachedMessagesOnly, null, 0, NO_CACHED_MESSAGE_ID);
+  }
+
+  /**
+   * Returns a cursor positioned just after the given messages, which must be the page read at this cursor's position.
+   */
+  public MessageQueueCursor advance(final List<OutgoingMessageEntity> messages) {
+    boolean cachedMessagesOnly = this.cachedMessagesOnly;
+    UUID lastPersistedMessageGuid = this.lastPersistedMessageGuid;
+    long lastPersistedMessageServerTimestamp = this.lastPersistedMessageServerTimestamp;
+    long lastCachedMessageId = this.lastCachedMessageId;
+
+    for (final OutgoingMessageEntity message : messages) {
+      if (message.isCached()) {
+        // pages only contain cached messages once persisted messages have been exhausted
+        cachedMessagesOnly = true;
+        lastCachedMessageId = message.getId();
+      } else {
+        lastPersistedMessageGuid = message.getGuid();
+        lastPersistedMessageServerTimestamp = message.getServerTimestamp();
+      }
+    }
+
+    return new MessageQueueCursor(cachedMessagesOnly, lastPersistedMessageGuid, lastPersistedMessageServerTimestamp, lastCachedMessageId);
+  }
+
+  /**
+   * Indicates whether reads at this cursor skip persisted messages, either by request or because they've all been read.
+   */
+  public boolean isCachedMessagesOnly() {
+    return cachedMessagesOnly;
+  }
+
+  boolean hasLastPersistedMessage() {
+    return lastPersistedMessageGuid != null;
+  }
+
+  @Nullable
+  UUID getLastPersistedMessageGuid() {
+    return lastPersistedMessageGuid;
+  }
+
+  long getLastPersistedMessageServerTimestamp() {
+    return lastPersistedMessageServerTimestamp;
+  }
+
+  long getLastCachedMessageId() {
+    return lastCachedMessageId;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final MessageQueueCursor that = (MessageQueueCursor) o;
+    return cachedMessagesOnly == that.cachedMessagesOnly
+        && lastPersistedMessageServerTimestamp == that.lastPersistedMessageServerTimestamp
+        && lastCachedMessageId == that.lastCachedMessageId
+        && Objects.equals(lastPersistedMessageGuid, that.lastPersistedMessageGuid);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(cachedMessagesOnly, lastPersistedMessageGuid, lastPersistedMessageServerTimestamp, lastCachedMessageId);
+  }
+}
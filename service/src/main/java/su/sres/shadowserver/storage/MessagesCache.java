@@ -6,9 +6,14 @@
 package su.sres.shadowserver.storage;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisException;
 import io.lettuce.core.ScoredValue;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.ZAddArgs;
@@ -17,6 +22,7 @@ import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
 import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
 import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
 
@@ -27,6 +33,8 @@ import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantPubSubConnection;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.util.Hex;
+import su.sres.shadowserver.util.Pair;
 import su.sres.shadowserver.util.RedisClusterUtil;
 
 import java.io.IOException;
@@ -35,35 +43,45 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
+
 import static com.codahale.metrics.MetricRegistry.name;
 
 public class MessagesCache extends RedisClusterPubSubAdapter<String, String> implements Managed {
   private final FaultTolerantRedisCluster readDeleteCluster;
   private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
 
+  private final FaultTolerantRedisCluster insertCluster;
+
   private final ExecutorService notificationExecutorService;
+  private final boolean patternSubscriptions;
+  private final MessagePayloadCodec payloadCodec;
 
   private final ClusterLuaScript insertScript;
   private final ClusterLuaScript removeByGuidScript;
   private final ClusterLuaScript getItemsScript;
   private final ClusterLuaScript removeQueueScript;
   private final ClusterLuaScript getQueuesToPersistScript;
+  private final ClusterLuaScript claimSlotToPersistScript;
 
-  private final Map<String, MessageAvailabilityListener> messageListenersByQueueName = new HashMap<>();
-  private final Map<MessageAvailabilityListener, String> queueNamesByMessageListener = new IdentityHashMap<>();
+  private final Map<ListenerKey, MessageAvailabilityListener> messageListenersByKey = new ConcurrentHashMap<>();
+  private final Map<MessageAvailabilityListener, ListenerKey> keysByMessageListener = new ConcurrentHashMap<>();
 
   private final Timer insertTimer = Metrics.timer(name(MessagesCache.class, "insert"));
+  private final Timer insertBatchTimer = Metrics.timer(name(MessagesCache.class, "insertBatch"));
+  private final DistributionSummary batchInsertSizeDistribution = Metrics.summary(name(MessagesCache.class, "insertBatchSize"));
+  private final Counter failedBatchInsertCounter = Metrics.counter(name(MessagesCache.class, "insertBatchFailed"));
   private final Timer getMessagesTimer = Metrics.timer(name(MessagesCache.class, "get"));
   private final Timer getQueuesToPersistTimer = Metrics.timer(name(MessagesCache.class, "getQueuesToPersist"));
   private final Timer clearQueueTimer = Metrics.timer(name(MessagesCache.class, "clear"));
@@ -75,13 +93,24 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
       name(MessagesCache.class, "staleEphemeralMessages"));
 
   static final String NEXT_SLOT_TO_PERSIST_KEY = "user_queue_persist_slot";
+  static final String PERSIST_SLOT_INDEX_KEY = "user_queue_persist_slot_index";
   private static final byte[] LOCK_VALUE = "1".getBytes(StandardCharsets.UTF_8);
 
   private static final String QUEUE_KEYSPACE_PREFIX = "__keyspace@0__:user_queue::";
   private static final String PERSISTING_KEYSPACE_PREFIX = "__keyspace@0__:user_queue_persisting::";
 
+  private static final String[] KEYSPACE_PATTERNS = new String[] {
+      QUEUE_KEYSPACE_PREFIX + "{*",
+      PERSISTING_KEYSPACE_PREFIX + "{*"
+  };
+
   private static final Duration MAX_EPHEMERAL_MESSAGE_DELAY = Duration.ofSeconds(10);
 
+  // queues are usually persisted well within this time; shared payloads that have expired from the cache are read
+  // from ScyllaDB instead
+  @VisibleForTesting
+  static final Duration SHARED_PAYLOAD_TIME_TO_LIVE = Duration.ofHours(1);
+
   private static final String REMOVE_TIMER_NAME = name(MessagesCache.class, "remove");
 
   private static final String REMOVE_METHOD_TAG = "method";
@@ -90,17 +119,43 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   private static final Logger logger = LoggerFactory.getLogger(MessagesCache.class);
 
   public MessagesCache(final FaultTolerantRedisCluster insertCluster, final FaultTolerantRedisCluster readDeleteCluster, final ExecutorService notificationExecutorService) throws IOException {
+    this(insertCluster, readDeleteCluster, notificationExecutorService, false);
+  }
+
+  /**
+   * @param patternSubscriptions if {@code true}, the cache subscribes once per upstream node to keyspace notifications
+   *                             for all message queues and dispatches them to local listeners by queue name instead of
+   *                             issuing a {@code SUBSCRIBE} for every listening device; this trades inbound pub/sub
+   *                             traffic for cheaper listener registration
+   */
+  public MessagesCache(final FaultTolerantRedisCluster insertCluster, final FaultTolerantRedisCluster readDeleteCluster,
+      final ExecutorService notificationExecutorService, final boolean patternSubscriptions) throws IOException {
+
+    this(insertCluster, readDeleteCluster, notificationExecutorService, patternSubscriptions, MessagePayloadCodec.withoutCompression());
+  }
+
+  /**
+   * @param payloadCodec compresses envelopes as they're inserted; envelopes are decoded as they're read regardless of
+   *                     how the codec is configured
+   */
+  public MessagesCache(final FaultTolerantRedisCluster insertCluster, final FaultTolerantRedisCluster readDeleteCluster,
+      final ExecutorService notificationExecutorService, final boolean patternSubscriptions,
+      final MessagePayloadCodec payloadCodec) throws IOException {
 
+    this.insertCluster = insertCluster;
     this.readDeleteCluster = readDeleteCluster;
     this.pubSubConnection = readDeleteCluster.createPubSubConnection();
 
     this.notificationExecutorService = notificationExecutorService;
+    this.patternSubscriptions = patternSubscriptions;
+    this.payloadCodec = payloadCodec;
 
-    this.insertScript = ClusterLuaScript.fromResource(insertCluster, "lua/insert_item.lua", ScriptOutputType.INTEGER);
+    this.insertScript = ClusterLuaScript.fromResource(insertCluster, "lua/insert_item.lua", ScriptOutputType.MULTI);
     this.removeByGuidScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/remove_item_by_guid.lua", ScriptOutputType.MULTI);
     this.getItemsScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/get_items.lua", ScriptOutputType.MULTI);
     this.removeQueueScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/remove_queue.lua", ScriptOutputType.STATUS);
     this.getQueuesToPersistScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/get_queues_to_persist.lua", ScriptOutputType.MULTI);
+    this.claimSlotToPersistScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/claim_slot_to_persist.lua", ScriptOutputType.MULTI);
   }
 
   @Override
@@ -112,114 +167,287 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
           .filter(event -> event instanceof ClusterTopologyChangedEvent)
           .subscribe(event -> resubscribeAll());
     });
+
+    if (patternSubscriptions) {
+      subscribeForKeyspacePatterns();
+    }
   }
 
   @Override
   public void stop() {
-    pubSubConnection.usePubSubConnection(connection -> connection.sync().upstream().commands().unsubscribe());
+    if (patternSubscriptions) {
+      pubSubConnection.usePubSubConnection(connection -> connection.sync().upstream().commands().punsubscribe(KEYSPACE_PATTERNS));
+    } else {
+      pubSubConnection.usePubSubConnection(connection -> connection.sync().upstream().commands().unsubscribe());
+    }
   }
 
   private void resubscribeAll() {
     logger.info("Got topology change event, resubscribing all keyspace notifications");
 
-    final Set<String> queueNames;
-
-    synchronized (messageListenersByQueueName) {
-      queueNames = new HashSet<>(messageListenersByQueueName.keySet());
+    if (patternSubscriptions) {
+      subscribeForKeyspacePatterns();
+      return;
     }
 
-    for (final String queueName : queueNames) {
-      subscribeForKeyspaceNotifications(queueName);
+    for (final ListenerKey listenerKey : messageListenersByKey.keySet()) {
+      subscribeForKeyspaceNotifications(listenerKey.getQueueName());
     }
   }
 
   public long insert(final UUID guid, final UUID destinationUuid, final long destinationDevice, final MessageProtos.Envelope message) {
-    final MessageProtos.Envelope messageWithGuid = message.toBuilder().setServerGuid(guid.toString()).build();
-    return (long) insertTimer.record(() -> insertScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
+    return insertTimer.record(() -> handleInsertResult(insertScript.executeBinary(getInsertKeys(destinationUuid, destinationDevice),
+        getInsertArgs(guid, message)), destinationUuid, destinationDevice, message).join());
+  }
+
+  /**
+   * Inserts a batch of messages, keyed by GUID, and returns once all of them are
+   * stored or have failed. The inserts are dispatched without waiting on one
+   * another, so the cluster connection pipelines them to each node instead of
+   * costing a blocking round trip apiece. A failed insert doesn't affect the
+   * others.
+   *
+   * @return the GUIDs of the messages that could not be inserted
+   */
+  public Set<UUID> insert(final Map<UUID, DestinationMessage> messagesByGuid) {
+    if (messagesByGuid.isEmpty()) {
+      return Collections.emptySet();
+    }
+
+    final Set<UUID> failedGuids = ConcurrentHashMap.newKeySet();
+
+    insertBatchTimer.record(() -> {
+      final List<CompletableFuture<?>> insertFutures = new ArrayList<>(messagesByGuid.size());
+
+      messagesByGuid.forEach((guid, destinationMessage) ->
+          insertFutures.add(insertScript.executeBinaryAsync(
+              getInsertKeys(destinationMessage.getDestinationUuid(), destinationMessage.getDestinationDevice()),
+              getInsertArgs(guid, destinationMessage.getMessage()))
+              .thenCompose(result -> handleInsertResult(result, destinationMessage.getDestinationUuid(),
+                  destinationMessage.getDestinationDevice(), destinationMessage.getMessage()))
+              .whenComplete((ignored, throwable) -> {
+                if (throwable != null) {
+                  failedGuids.add(guid);
+                  logger.warn("Failed to insert message for {}::{}", destinationMessage.getDestinationUuid(),
+                      destinationMessage.getDestinationDevice(), throwable);
+                }
+              })));
+
+      // failures have already been recorded per message
+      CompletableFuture.allOf(insertFutures.toArray(new CompletableFuture[0]))
+          .exceptionally(ignored -> null)
+          .join();
+    });
+
+    batchInsertSizeDistribution.record(messagesByGuid.size());
+    failedBatchInsertCounter.increment(failedGuids.size());
+
+    return failedGuids;
+  }
+
+  /**
+   * Waits for an asynchronous operation, rethrowing its failure as it would have
+   * been thrown by the equivalent synchronous call.
+   */
+  private static <T> T join(final CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (final CompletionException e) {
+      if (e.getCause() instanceof RedisException) {
+        throw (RedisException) e.getCause();
+      }
+
+      throw new RedisException(e.getCause());
+    }
+  }
+
+  /**
+   * Completes the insert of a single message.
+   * <p>
+   * The returned future yields the message's ID from the insert script's result. If the script reports that the
+   * message's queue was the first in its slot to need persisting, the slot is first added to the index of slots with
+   * queues to persist, and the future completes only after that update has finished. Otherwise it completes right away.
+   * <p>
+   * The slot index is stored in a different cluster slot, so the insert script can't update it in the same atomic step.
+   * If the index update fails, the failure is logged and the future still yields the message ID; the persister's sweep
+   * will find the slot anyway.
+   */
+  @SuppressWarnings("unchecked")
+  private CompletableFuture<Long> handleInsertResult(final Object result, final UUID destinationUuid, final long destinationDevice,
+      final MessageProtos.Envelope message) {
+
+    final List<Long> messageIdAndSlotActivated = (List<Long>) result;
+    final long messageId = messageIdAndSlotActivated.get(0);
+
+    if (messageIdAndSlotActivated.get(1) != 1) {
+      return CompletableFuture.completedFuture(messageId);
+    }
+
+    final int slot = getQueueSlot(destinationUuid, destinationDevice);
+
+    return insertCluster.withClusterAsync(connection ->
+        connection.async().zadd(PERSIST_SLOT_INDEX_KEY, ZAddArgs.Builder.nx(), message.getTimestamp(), String.valueOf(slot)))
+        .handle((ignored, throwable) -> {
+          if (throwable != null) {
+            logger.warn("Failed to add slot {} to persistence index", slot, throwable);
+          }
+
+          return messageId;
+        });
+  }
+
+  private static List<byte[]> getInsertKeys(final UUID destinationUuid, final long destinationDevice) {
+    return List.of(getMessageQueueKey(destinationUuid, destinationDevice),
         getMessageQueueMetadataKey(destinationUuid, destinationDevice),
-        getQueueIndexKey(destinationUuid, destinationDevice)),
-        List.of(messageWithGuid.toByteArray(),
-            String.valueOf(message.getTimestamp()).getBytes(StandardCharsets.UTF_8),
-            guid.toString().getBytes(StandardCharsets.UTF_8))));
+        getQueueIndexKey(destinationUuid, destinationDevice));
+  }
+
+  private List<byte[]> getInsertArgs(final UUID guid, final MessageProtos.Envelope message) {
+    final MessageProtos.Envelope messageWithGuid = message.toBuilder().setServerGuid(guid.toString()).build();
+
+    return List.of(payloadCodec.encodeEnvelope(messageWithGuid.toByteArray()),
+        String.valueOf(message.getTimestamp()).getBytes(StandardCharsets.UTF_8),
+        guid.toString().getBytes(StandardCharsets.UTF_8));
   }
 
   public Optional<OutgoingMessageEntity> remove(final UUID destinationUuid, final long destinationDevice,
       final UUID messageGuid) {
-    return remove(destinationUuid, destinationDevice, List.of(messageGuid)).stream().findFirst();
+    return join(removeAsync(destinationUuid, destinationDevice, messageGuid));
   }
 
-  @SuppressWarnings("unchecked")
   public List<OutgoingMessageEntity> remove(final UUID destinationUuid, final long destinationDevice,
       final List<UUID> messageGuids) {
-    final List<byte[]> serialized = (List<byte[]>) Metrics.timer(REMOVE_TIMER_NAME, REMOVE_METHOD_TAG,
-        REMOVE_METHOD_UUID).record(
-            () -> removeByGuidScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
-                getMessageQueueMetadataKey(destinationUuid, destinationDevice),
-                getQueueIndexKey(destinationUuid, destinationDevice)),
-                messageGuids.stream().map(guid -> guid.toString().getBytes(StandardCharsets.UTF_8))
-                    .collect(Collectors.toList())));
-
-    final List<OutgoingMessageEntity> removedMessages = new ArrayList<>(serialized.size());
-
-    for (final byte[] bytes : serialized) {
-      try {
-        removedMessages.add(constructEntityFromEnvelope(0, MessageProtos.Envelope.parseFrom(bytes)));
-      } catch (final InvalidProtocolBufferException e) {
-        logger.warn("Failed to parse envelope", e);
-      }
-    }
+    return join(removeAsync(destinationUuid, destinationDevice, messageGuids));
+  }
+
+  public CompletableFuture<Optional<OutgoingMessageEntity>> removeAsync(final UUID destinationUuid, final long destinationDevice,
+      final UUID messageGuid) {
+    return removeAsync(destinationUuid, destinationDevice, List.of(messageGuid))
+        .thenApply(removedMessages -> removedMessages.stream().findFirst());
+  }
+
+  @SuppressWarnings("unchecked")
+  public CompletableFuture<List<OutgoingMessageEntity>> removeAsync(final UUID destinationUuid, final long destinationDevice,
+      final List<UUID> messageGuids) {
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+
+    return removeByGuidScript.executeBinaryAsync(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
+        getMessageQueueMetadataKey(destinationUuid, destinationDevice),
+        getQueueIndexKey(destinationUuid, destinationDevice)),
+        messageGuids.stream().map(guid -> guid.toString().getBytes(StandardCharsets.UTF_8))
+            .collect(Collectors.toList()))
+        .thenApply(result -> {
+          final List<byte[]> serialized = (List<byte[]>) result;
+          final List<OutgoingMessageEntity> removedMessages = new ArrayList<>(serialized.size());
+
+          for (final byte[] bytes : serialized) {
+            try {
+              removedMessages.add(constructEntityFromEnvelope(0, MessageProtos.Envelope.parseFrom(payloadCodec.decodeEnvelope(bytes))));
+            } catch (final InvalidProtocolBufferException e) {
+              logger.warn("Failed to parse envelope", e);
+            }
+          }
 
-    return removedMessages;
+          return removedMessages;
+        })
+        .whenComplete((ignored, throwable) -> sample.stop(Metrics.timer(REMOVE_TIMER_NAME, REMOVE_METHOD_TAG, REMOVE_METHOD_UUID)));
+  }
+
+  /**
+   * Stores a payload shared by several queued messages. Shared payloads aren't reference-counted; they expire after
+   * {@link #SHARED_PAYLOAD_TIME_TO_LIVE}.
+   */
+  public CompletableFuture<Void> insertSharedPayloadAsync(final byte[] sharedPayloadId, final byte[] sharedPayload) {
+    return insertCluster.withBinaryClusterAsync(connection ->
+        connection.async().setex(getSharedPayloadKey(sharedPayloadId), SHARED_PAYLOAD_TIME_TO_LIVE.toSeconds(), sharedPayload))
+        .thenAccept(ignored -> {});
+  }
+
+  public CompletableFuture<Optional<ByteString>> getSharedPayloadAsync(final ByteString sharedPayloadId) {
+    return readDeleteCluster.withBinaryClusterAsync(connection ->
+        connection.async().get(getSharedPayloadKey(sharedPayloadId.toByteArray())))
+        .thenApply(sharedPayload -> Optional.ofNullable(sharedPayload).map(UnsafeByteOperations::unsafeWrap));
   }
 
   public boolean hasMessages(final UUID destinationUuid, final long destinationDevice) {
-    return readDeleteCluster.withBinaryCluster(connection -> connection.sync().zcard(getMessageQueueKey(destinationUuid, destinationDevice)) > 0);
+    return join(hasMessagesAsync(destinationUuid, destinationDevice));
+  }
+
+  public CompletableFuture<Boolean> hasMessagesAsync(final UUID destinationUuid, final long destinationDevice) {
+    return readDeleteCluster.withBinaryClusterAsync(connection -> connection.async().zcard(getMessageQueueKey(destinationUuid, destinationDevice)))
+        .thenApply(queueSize -> queueSize > 0);
   }
 
-  @SuppressWarnings("unchecked")
   public List<OutgoingMessageEntity> get(final UUID destinationUuid, final long destinationDevice, final int limit) {
-    return getMessagesTimer.record(() -> {
-      final List<byte[]> queueItems = (List<byte[]>) getItemsScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
-          getPersistInProgressKey(destinationUuid, destinationDevice)),
-          List.of(String.valueOf(limit).getBytes(StandardCharsets.UTF_8)));
+    return join(getAsync(destinationUuid, destinationDevice, limit));
+  }
 
-      final long earliestAllowableEphemeralTimestamp = System.currentTimeMillis() - MAX_EPHEMERAL_MESSAGE_DELAY.toMillis();
+  public CompletableFuture<List<OutgoingMessageEntity>> getAsync(final UUID destinationUuid, final long destinationDevice, final int limit) {
+    return getAsync(destinationUuid, destinationDevice, limit, MessageQueueCursor.start(true));
+  }
 
-      final List<OutgoingMessageEntity> messageEntities;
-      final List<UUID> staleEphemeralMessageGuids = new ArrayList<>();
+  /**
+   * Reads up to {@code limit} messages from the queue, starting just after the last cached message read at the given
+   * cursor's position.
+   */
+  @SuppressWarnings("unchecked")
+  public CompletableFuture<List<OutgoingMessageEntity>> getAsync(final UUID destinationUuid, final long destinationDevice, final int limit,
+      final MessageQueueCursor cursor) {
 
-      if (queueItems.size() % 2 == 0) {
-        messageEntities = new ArrayList<>(queueItems.size() / 2);
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
 
-        for (int i = 0; i < queueItems.size() - 1; i += 2) {
-          try {
-            final MessageProtos.Envelope message = MessageProtos.Envelope.parseFrom(queueItems.get(i));
-            if (message.getEphemeral() && message.getTimestamp() < earliestAllowableEphemeralTimestamp) {
-              staleEphemeralMessageGuids.add(UUID.fromString(message.getServerGuid()));
-              continue;
-            }
+    return getItemsScript.executeBinaryAsync(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
+        getPersistInProgressKey(destinationUuid, destinationDevice)),
+        List.of(String.valueOf(limit).getBytes(StandardCharsets.UTF_8),
+            String.valueOf(cursor.getLastCachedMessageId()).getBytes(StandardCharsets.UTF_8)))
+        .thenCompose(result -> {
+          final List<byte[]> queueItems = (List<byte[]>) result;
+
+          final long earliestAllowableEphemeralTimestamp = System.currentTimeMillis() - MAX_EPHEMERAL_MESSAGE_DELAY.toMillis();
+
+          final List<OutgoingMessageEntity> messageEntities;
+          final List<UUID> staleEphemeralMessageGuids = new ArrayList<>();
+
+          if (queueItems.size() % 2 == 0) {
+            messageEntities = new ArrayList<>(queueItems.size() / 2);
 
-            final long id = Long.parseLong(new String(queueItems.get(i + 1), StandardCharsets.UTF_8));
+            for (int i = 0; i < queueItems.size() - 1; i += 2) {
+              try {
+                final byte[] serializedEnvelope = payloadCodec.decodeEnvelope(queueItems.get(i));
+                final MessageProtos.Envelope message = parseEnvelopeWithoutCopying(serializedEnvelope);
+                if (message.getEphemeral() && message.getTimestamp() < earliestAllowableEphemeralTimestamp) {
+                  staleEphemeralMessageGuids.add(UUID.fromString(message.getServerGuid()));
+                  continue;
+                }
 
-            messageEntities.add(constructEntityFromEnvelope(id, message));
-          } catch (InvalidProtocolBufferException e) {
-            logger.warn("Failed to parse envelope", e);
+                final long id = Long.parseLong(new String(queueItems.get(i + 1), StandardCharsets.UTF_8));
+
+                messageEntities.add(constructEntityFromStoredEnvelope(id, message, serializedEnvelope));
+              } catch (InvalidProtocolBufferException e) {
+                logger.warn("Failed to parse envelope", e);
+              }
+            }
+          } else {
+            logger.error("\"Get messages\" operation returned a list with a non-even number of elements.");
+            messageEntities = Collections.emptyList();
           }
-        }
-      } else {
-        logger.error("\"Get messages\" operation returned a list with a non-even number of elements.");
-        messageEntities = Collections.emptyList();
-      }
 
-      try {
-        remove(destinationUuid, destinationDevice, staleEphemeralMessageGuids);
-        staleEphemeralMessagesCounter.increment(staleEphemeralMessageGuids.size());
-      } catch (final Throwable e) {
-        logger.warn("Could not remove stale ephemeral messages from cache", e);
-      }
+          if (staleEphemeralMessageGuids.isEmpty()) {
+            return CompletableFuture.completedFuture(messageEntities);
+          }
 
-      return messageEntities;
-    });
+          return removeAsync(destinationUuid, destinationDevice, staleEphemeralMessageGuids)
+              .handle((removed, throwable) -> {
+                if (throwable == null) {
+                  staleEphemeralMessagesCounter.increment(staleEphemeralMessageGuids.size());
+                } else {
+                  logger.warn("Could not remove stale ephemeral messages from cache", throwable);
+                }
+
+                return messageEntities;
+              });
+        })
+        .whenComplete((ignored, throwable) -> sample.stop(getMessagesTimer));
   }
 
   @VisibleForTesting
@@ -230,7 +458,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
       for (final ScoredValue<byte[]> scoredMessage : scoredMessages) {
         try {
-          envelopes.add(MessageProtos.Envelope.parseFrom(scoredMessage.getValue()));
+          envelopes.add(MessageProtos.Envelope.parseFrom(payloadCodec.decodeEnvelope(scoredMessage.getValue())));
         } catch (InvalidProtocolBufferException e) {
           logger.warn("Failed to parse envelope", e);
         }
@@ -241,25 +469,72 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   }
 
   public void clear(final UUID destinationUuid) {
+    join(clearAsync(destinationUuid));
+  }
+
+  public void clear(final UUID destinationUuid, final long deviceId) {
+    join(clearAsync(destinationUuid, deviceId));
+  }
+
+  public CompletableFuture<Void> clearAsync(final UUID destinationUuid) {
     // TODO Remove null check in a fully UUID-based world
-    if (destinationUuid != null) {
-      for (int i = 1; i < 256; i++) {
-        clear(destinationUuid, i);
-      }
+    if (destinationUuid == null) {
+      return CompletableFuture.completedFuture(null);
     }
+
+    final CompletableFuture<?>[] clearFutures = new CompletableFuture[255];
+
+    for (int i = 1; i < 256; i++) {
+      clearFutures[i - 1] = clearAsync(destinationUuid, i);
+    }
+
+    return CompletableFuture.allOf(clearFutures);
   }
 
-  public void clear(final UUID destinationUuid, final long deviceId) {
-    clearQueueTimer.record(() -> removeQueueScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, deviceId),
+  public CompletableFuture<Void> clearAsync(final UUID destinationUuid, final long deviceId) {
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+
+    return removeQueueScript.executeBinaryAsync(List.of(getMessageQueueKey(destinationUuid, deviceId),
         getMessageQueueMetadataKey(destinationUuid, deviceId),
         getQueueIndexKey(destinationUuid, deviceId)),
-        Collections.emptyList()));
+        Collections.emptyList())
+        .thenRun(() -> sample.stop(clearQueueTimer));
   }
 
   int getNextSlotToPersist() {
     return (int) (readDeleteCluster.withCluster(connection -> connection.sync().incr(NEXT_SLOT_TO_PERSIST_KEY)) % SlotHash.SLOT_COUNT);
   }
 
+  /**
+   * Removes and returns the first slot from the index of slots with queues to persist if its oldest queue was indexed
+   * at {@code maxTime} or earlier, along with the number of slots in the index before the slot was removed. Whoever
+   * claims a slot is responsible for putting it back in the index (see {@link #reindexSlotToPersist(int)}) if any queues
+   * remain in it.
+   */
+  @SuppressWarnings("unchecked")
+  Optional<Pair<Integer, Long>> claimSlotToPersist(final Instant maxTime) {
+    final List<Long> slotAndIndexedSlotCount = (List<Long>) claimSlotToPersistScript.execute(List.of(PERSIST_SLOT_INDEX_KEY),
+        List.of(String.valueOf(maxTime.toEpochMilli())));
+
+    if (slotAndIndexedSlotCount.isEmpty()) {
+      return Optional.empty();
+    }
+
+    return Optional.of(new Pair<>(slotAndIndexedSlotCount.get(0).intValue(), slotAndIndexedSlotCount.get(1)));
+  }
+
+  /**
+   * Puts a slot back into the index of slots with queues to persist if it still has any queues, scored by its
+   * longest-waiting queue.
+   */
+  void reindexSlotToPersist(final int slot) {
+    readDeleteCluster.withBinaryCluster(connection -> connection.sync().zrangeWithScores(getQueueIndexKey(slot), 0, 0))
+        .stream()
+        .findFirst()
+        .ifPresent(oldestQueue -> readDeleteCluster.useCluster(connection ->
+            connection.sync().zadd(PERSIST_SLOT_INDEX_KEY, oldestQueue.getScore(), String.valueOf(slot))));
+  }
+
   List<String> getQueuesToPersist(final int slot, final Instant maxTime, final int limit) {
     // noinspection unchecked
     return getQueuesToPersistTimer.record(() -> (List<String>) getQueuesToPersistScript.execute(List.of(new String(getQueueIndexKey(slot), StandardCharsets.UTF_8)),
@@ -267,8 +542,31 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
             String.valueOf(limit))));
   }
 
-  void addQueueToPersist(final UUID accountUuid, final long deviceId) {
-    readDeleteCluster.useBinaryCluster(connection -> connection.sync().zadd(getQueueIndexKey(accountUuid, deviceId), ZAddArgs.Builder.nx(), System.currentTimeMillis(), getMessageQueueKey(accountUuid, deviceId)));
+  /**
+   * Returns the number of queues in the given slot that have been waiting for persistence since {@code maxTime} or
+   * earlier, and the time the longest-waiting queue in the slot was indexed, if the slot has any queues at all.
+   */
+  Pair<Long, Optional<Instant>> getPersistBacklog(final int slot, final Instant maxTime) {
+    final byte[] queueIndexKey = getQueueIndexKey(slot);
+
+    return join(readDeleteCluster.withBinaryClusterAsync(connection -> {
+      final CompletableFuture<Long> overdueQueueCount = connection.async().zcount(queueIndexKey, Range.create(0L, maxTime.toEpochMilli())).toCompletableFuture();
+      final CompletableFuture<List<ScoredValue<byte[]>>> oldestQueue = connection.async().zrangeWithScores(queueIndexKey, 0, 0).toCompletableFuture();
+
+      return overdueQueueCount.thenCombine(oldestQueue, (count, oldest) -> new Pair<>(count, oldest.stream()
+          .findFirst()
+          .map(scoredValue -> Instant.ofEpochMilli((long) scoredValue.getScore()))));
+    }));
+  }
+
+  /**
+   * Puts a queue back into the persistence index as though it had been indexed at {@code indexTime}; the queue becomes
+   * eligible for persistence once {@code indexTime} is older than the persist delay.
+   */
+  void addQueueToPersist(final UUID accountUuid, final long deviceId, final Instant indexTime) {
+    readDeleteCluster.useBinaryCluster(connection -> connection.sync().zadd(getQueueIndexKey(accountUuid, deviceId), indexTime.toEpochMilli(), getMessageQueueKey(accountUuid, deviceId)));
+    readDeleteCluster.useCluster(connection -> connection.sync().zadd(PERSIST_SLOT_INDEX_KEY, ZAddArgs.Builder.nx(),
+        indexTime.toEpochMilli(), String.valueOf(getQueueSlot(accountUuid, deviceId))));
   }
 
   void lockQueueForPersistence(final UUID accountUuid, final long deviceId) {
@@ -280,26 +578,23 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   }
 
   public void addMessageAvailabilityListener(final UUID destinationUuid, final long deviceId, final MessageAvailabilityListener listener) {
-    final String queueName = getQueueName(destinationUuid, deviceId);
+    final ListenerKey listenerKey = new ListenerKey(destinationUuid, deviceId);
 
-    synchronized (messageListenersByQueueName) {
-      messageListenersByQueueName.put(queueName, listener);
-      queueNamesByMessageListener.put(listener, queueName);
-    }
+    keysByMessageListener.put(listener, listenerKey);
+    messageListenersByKey.put(listenerKey, listener);
 
-    subscribeForKeyspaceNotifications(queueName);
+    if (!patternSubscriptions) {
+      subscribeForKeyspaceNotifications(listenerKey.getQueueName());
+    }
   }
 
   public void removeMessageAvailabilityListener(final MessageAvailabilityListener listener) {
-    final String queueName = queueNamesByMessageListener.remove(listener);
-
-    unsubscribeFromKeyspaceNotifications(queueName);
-
-    synchronized (messageListenersByQueueName) {
+    final ListenerKey listenerKey = keysByMessageListener.remove(listener);
 
-      if (queueName != null) {
-        messageListenersByQueueName.remove(queueName);
-      }
+    // The queue may already belong to a listener for a newer connection from the same device; leave that one (and its
+    // subscription) alone
+    if (listenerKey != null && messageListenersByKey.remove(listenerKey, listener) && !patternSubscriptions) {
+      unsubscribeFromKeyspaceNotifications(listenerKey.getQueueName());
     }
   }
 
@@ -317,6 +612,12 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         .unsubscribe(getKeyspaceChannels(queueName)));
   }
 
+  private void subscribeForKeyspacePatterns() {
+    pubSubConnection.usePubSubConnection(connection -> connection.sync().upstream()
+        .commands()
+        .psubscribe(KEYSPACE_PATTERNS));
+  }
+
   private static String[] getKeyspaceChannels(final String queueName) {
     return new String[] {
         QUEUE_KEYSPACE_PREFIX + "{" + queueName + "}",
@@ -326,8 +627,23 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
   @Override
   public void message(final RedisClusterNode node, final String channel, final String message) {
+    handleKeyspaceNotification(channel, message);
+  }
+
+  @Override
+  public void message(final RedisClusterNode node, final String pattern, final String channel, final String message) {
+    handleKeyspaceNotification(channel, message);
+  }
+
+  private void handleKeyspaceNotification(final String channel, final String message) {
     pubSubMessageCounter.increment();
 
+    // Pattern subscriptions deliver notifications for every queue in the cluster; drop the ones nobody here is
+    // listening for before they reach the executor
+    if (patternSubscriptions && findListener(channel).isEmpty()) {
+      return;
+    }
+
     if (channel.startsWith(QUEUE_KEYSPACE_PREFIX) && "zadd".equals(message)) {
       newMessageNotificationCounter.increment();
       notificationExecutorService.execute(() -> {
@@ -350,15 +666,38 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   }
 
   private Optional<MessageAvailabilityListener> findListener(final String keyspaceChannel) {
-    final String queueName = getQueueNameFromKeyspaceChannel(keyspaceChannel);
+    return getListenerKeyFromKeyspaceChannel(keyspaceChannel).map(messageListenersByKey::get);
+  }
 
-    synchronized (messageListenersByQueueName) {
-      return Optional.ofNullable(messageListenersByQueueName.get(queueName));
-    }
+  /**
+   * Parses a stored envelope such that its payloads are slices of the given array rather than copies of it. The array
+   * must not be modified afterwards.
+   */
+  @VisibleForTesting
+  static MessageProtos.Envelope parseEnvelopeWithoutCopying(final byte[] serializedEnvelope) throws InvalidProtocolBufferException {
+    final CodedInputStream input = UnsafeByteOperations.unsafeWrap(serializedEnvelope).newCodedInput();
+    input.enableAliasing(true);
+
+    return MessageProtos.Envelope.parseFrom(input);
   }
 
   @VisibleForTesting
   static OutgoingMessageEntity constructEntityFromEnvelope(long id, MessageProtos.Envelope envelope) {
+    return constructEntityFromStoredEnvelope(id, envelope, null);
+  }
+
+  /**
+   * Constructs an entity for a message read from the cache. Stored envelopes already carry their server GUID, so unless
+   * an envelope is marked ephemeral or refers to a shared payload (neither of which recipients ever see), its stored
+   * form is exactly what gets delivered and is attached to the entity as such.
+   */
+  @VisibleForTesting
+  static OutgoingMessageEntity constructEntityFromStoredEnvelope(long id, MessageProtos.Envelope envelope,
+      @Nullable byte[] serializedEnvelope) {
+
+    final boolean deliverableAsStored = serializedEnvelope != null && envelope.hasServerGuid() && !envelope.hasEphemeral()
+        && !envelope.hasSharedPayloadId();
+
     return new OutgoingMessageEntity(id, true,
         envelope.hasServerGuid() ? UUID.fromString(envelope.getServerGuid()) : null,
         envelope.getType().getNumber(),
@@ -367,9 +706,11 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         envelope.getSource(),
         envelope.hasSourceUuid() ? UUID.fromString(envelope.getSourceUuid()) : null,
         envelope.getSourceDevice(),
-        envelope.hasLegacyMessage() ? envelope.getLegacyMessage().toByteArray() : null,
-        envelope.hasContent() ? envelope.getContent().toByteArray() : null,
-        envelope.hasServerTimestamp() ? envelope.getServerTimestamp() : 0);
+        envelope.hasLegacyMessage() ? envelope.getLegacyMessage() : null,
+        envelope.hasContent() ? envelope.getContent() : null,
+        envelope.hasServerTimestamp() ? envelope.getServerTimestamp() : 0,
+        deliverableAsStored ? serializedEnvelope : null,
+        envelope.hasSharedPayloadId() ? envelope.getSharedPayloadId() : null);
   }
 
   @VisibleForTesting
@@ -378,11 +719,21 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   }
 
   @VisibleForTesting
-  static String getQueueNameFromKeyspaceChannel(final String channel) {
+  static Optional<ListenerKey> getListenerKeyFromKeyspaceChannel(final String channel) {
     final int startOfHashTag = channel.indexOf('{');
     final int endOfHashTag = channel.lastIndexOf('}');
+    final int separator = channel.indexOf("::", startOfHashTag);
 
-    return channel.substring(startOfHashTag + 1, endOfHashTag);
+    if (startOfHashTag < 0 || separator < 0 || endOfHashTag < separator) {
+      return Optional.empty();
+    }
+
+    try {
+      return Optional.of(new ListenerKey(UUID.fromString(channel.substring(startOfHashTag + 1, separator)),
+          Long.parseLong(channel, separator + 2, endOfHashTag, 10)));
+    } catch (final IllegalArgumentException e) {
+      return Optional.empty();
+    }
   }
 
   @VisibleForTesting
@@ -395,13 +746,21 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   }
 
   private static byte[] getQueueIndexKey(final UUID accountUuid, final long deviceId) {
-    return getQueueIndexKey(SlotHash.getSlot(accountUuid.toString() + "::" + deviceId));
+    return getQueueIndexKey(getQueueSlot(accountUuid, deviceId));
+  }
+
+  private static int getQueueSlot(final UUID accountUuid, final long deviceId) {
+    return SlotHash.getSlot(accountUuid.toString() + "::" + deviceId);
   }
 
   private static byte[] getQueueIndexKey(final int slot) {
     return ("user_queue_index::{" + RedisClusterUtil.getMinimalHashTag(slot) + "}").getBytes(StandardCharsets.UTF_8);
   }
 
+  private static byte[] getSharedPayloadKey(final byte[] sharedPayloadId) {
+    return ("shared_payload::" + Hex.toStringCondensed(sharedPayloadId)).getBytes(StandardCharsets.UTF_8);
+  }
+
   private static byte[] getPersistInProgressKey(final UUID accountUuid, final long deviceId) {
     return ("user_queue_persisting::{" + accountUuid + "::" + deviceId + "}").getBytes(StandardCharsets.UTF_8);
   }
@@ -415,4 +774,39 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   static long getDeviceIdFromQueueName(final String queueName) {
     return Long.parseLong(queueName.substring(queueName.lastIndexOf("::") + 2, queueName.lastIndexOf('}')));
   }
-}
\ No newline at end of file
+
+  @VisibleForTesting
+  static final class ListenerKey {
+
+    private final UUID accountUuid;
+    private final long deviceId;
+
+    ListenerKey(final UUID accountUuid, final long deviceId) {
+      this.accountUuid = accountUuid;
+      this.deviceId = deviceId;
+    }
+
+    String getQueueName() {
+      return MessagesCache.getQueueName(accountUuid, deviceId);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+
+      if (!(o instanceof ListenerKey)) {
+        return false;
+      }
+
+      final ListenerKey that = (ListenerKey) o;
+      return deviceId == that.deviceId && accountUuid.equals(that.accountUuid);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * accountUuid.hashCode() + Long.hashCode(deviceId);
+    }
+  }
+}
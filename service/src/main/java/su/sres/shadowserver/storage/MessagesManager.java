@@ -8,25 +8,38 @@ package su.sres.shadowserver.storage;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.entities.OutgoingMessageEntityList;
 import su.sres.shadowserver.metrics.PushLatencyManager;
-import su.sres.shadowserver.redis.RedisOperation;
 import su.sres.shadowserver.entities.MessageProtos.Envelope;
 import su.sres.shadowserver.util.Constants;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
 public class MessagesManager {
 
-  private static final int RESULT_SET_CHUNK_SIZE = 100;
+  static final int RESULT_SET_CHUNK_SIZE = 100;
 
   private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private static final Meter cacheHitByGuidMeter = metricRegistry.meter(name(MessagesManager.class, "cacheHitByGuid"));
@@ -34,17 +47,38 @@ public class MessagesManager {
       name(MessagesManager.class, "cacheMissByGuid"));
 
   private static final Meter persistMessageMeter = metricRegistry.meter(name(MessagesManager.class, "persistMessage"));
+  private static final Meter sharedPayloadCacheMissMeter = metricRegistry.meter(name(MessagesManager.class, "sharedPayloadCacheMiss"));
+  private static final Meter missingSharedPayloadMeter = metricRegistry.meter(name(MessagesManager.class, "missingSharedPayload"));
+
+  private static final Logger logger = LoggerFactory.getLogger(MessagesManager.class);
 
   private final MessagesScyllaDb messagesScyllaDb;
   private final MessagesCache messagesCache;
   private final PushLatencyManager pushLatencyManager;
   private final ReportMessageManager reportMessageManager;
+  private final ExecutorService persistedMessageExecutor;
+  private final CoalescingMessageDeleter persistedMessageDeleter;
 
-  public MessagesManager(MessagesScyllaDb messagesScyllaDb, MessagesCache messagesCache, PushLatencyManager pushLatencyManager, final ReportMessageManager reportMessageManager) {
+  public MessagesManager(MessagesScyllaDb messagesScyllaDb, MessagesCache messagesCache, PushLatencyManager pushLatencyManager, final ReportMessageManager reportMessageManager,
+      final ExecutorService persistedMessageExecutor) {
+    this(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager, persistedMessageExecutor, CoalescingMessageDeleter.DEFAULT_WINDOW);
+  }
+
+  /**
+   * @param persistedMessageExecutor runs the blocking ScyllaDB calls on behalf of
+   *                                 the asynchronous read and delete methods, so
+   *                                 that they never block a Redis I/O thread
+   * @param deletionBatchWindow      how long deletions of delivered, persisted
+   *                                 messages may wait to be coalesced into a batch
+   */
+  public MessagesManager(MessagesScyllaDb messagesScyllaDb, MessagesCache messagesCache, PushLatencyManager pushLatencyManager, final ReportMessageManager reportMessageManager,
+      final ExecutorService persistedMessageExecutor, final Duration deletionBatchWindow) {
     this.messagesScyllaDb = messagesScyllaDb;
     this.messagesCache = messagesCache;
     this.pushLatencyManager = pushLatencyManager;
     this.reportMessageManager = reportMessageManager;
+    this.persistedMessageExecutor = persistedMessageExecutor;
+    this.persistedMessageDeleter = new CoalescingMessageDeleter(messagesScyllaDb, deletionBatchWindow, persistedMessageExecutor);
   }
 
   public void insert(UUID destinationUuid, long destinationDevice, Envelope message) {
@@ -55,14 +89,72 @@ public class MessagesManager {
     if (message.hasSource() && !destinationUuid.toString().equals(message.getSourceUuid())) {
       reportMessageManager.store(message.getSource(), messageGuid);
     }
-  }  
+  }
+
+  /**
+   * Inserts a message into each of the given device queues as a single pipelined
+   * batch.
+   *
+   * @return the messages that could not be inserted; all others were inserted
+   */
+  public List<DestinationMessage> insert(final List<DestinationMessage> messages) {
+    final Map<UUID, DestinationMessage> messagesByGuid = new HashMap<>(messages.size());
+
+    for (final DestinationMessage message : messages) {
+      messagesByGuid.put(UUID.randomUUID(), message);
+    }
+
+    final Set<UUID> failedGuids = messagesCache.insert(messagesByGuid);
+    final List<DestinationMessage> failedMessages = new ArrayList<>(failedGuids.size());
+
+    messagesByGuid.forEach((messageGuid, destinationMessage) -> {
+      if (failedGuids.contains(messageGuid)) {
+        failedMessages.add(destinationMessage);
+        return;
+      }
+
+      final Envelope message = destinationMessage.getMessage();
+
+      if (message.hasSource() && !destinationMessage.getDestinationUuid().toString().equals(message.getSourceUuid())) {
+        reportMessageManager.store(message.getSource(), messageGuid);
+      }
+    });
+
+    return failedMessages;
+  }
+
+  /**
+   * Stores a payload common to messages for many devices once, rather than in each of their queues. The returned future
+   * yields the ID under which it's stored once it's stored everywhere it needs to be. Messages refer to it by setting
+   * {@code sharedPayloadId}, and it's appended to their content whenever they're read.
+   *
+   * @param ephemeral if {@code true}, the payload is only shared by ephemeral messages, which are never persisted, so it
+   *                  isn't persisted either
+   */
+  public CompletableFuture<ByteString> storeSharedPayloadAsync(final byte[] sharedPayload, final boolean ephemeral) {
+    final byte[] sharedPayloadId;
+
+    try {
+      sharedPayloadId = MessageDigest.getInstance("SHA-256").digest(sharedPayload);
+    } catch (final NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+
+    final CompletableFuture<Void> insertFuture = messagesCache.insertSharedPayloadAsync(sharedPayloadId, sharedPayload);
+    final CompletableFuture<Void> storeFuture = ephemeral
+        ? CompletableFuture.completedFuture(null)
+        : messagesScyllaDb.storeSharedPayloadAsync(sharedPayloadId, sharedPayload);
+
+    return CompletableFuture.allOf(insertFuture, storeFuture)
+        .thenApply(ignored -> UnsafeByteOperations.unsafeWrap(sharedPayloadId));
+  }
 
   public boolean hasCachedMessages(final UUID destinationUuid, final long destinationDevice) {
     return messagesCache.hasMessages(destinationUuid, destinationDevice);
   }
 
   public OutgoingMessageEntityList getMessagesForDevice(UUID destinationUuid, long destinationDevice, final String userAgent, final boolean cachedMessagesOnly) {
-    RedisOperation.unchecked(() -> pushLatencyManager.recordQueueRead(destinationUuid, destinationDevice, userAgent));
+    pushLatencyManager.recordQueueRead(destinationUuid, destinationDevice, userAgent);
 
     List<OutgoingMessageEntity> messageList = new ArrayList<>();
 
@@ -74,7 +166,101 @@ public class MessagesManager {
       messageList.addAll(messagesCache.get(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE - messageList.size()));
     }
 
-    return new OutgoingMessageEntityList(messageList, messageList.size() >= RESULT_SET_CHUNK_SIZE);
+    final List<OutgoingMessageEntity> resolvedMessages = resolveSharedPayloads(messageList).join();
+
+    // callers read from the start of the queue again, so if nothing in a full page can be delivered, the next read
+    // would return the same page; the withheld messages are retried by the next read of the queue instead
+    return new OutgoingMessageEntityList(resolvedMessages,
+        messageList.size() >= RESULT_SET_CHUNK_SIZE && !resolvedMessages.isEmpty(), messageList);
+  }
+
+  public CompletableFuture<OutgoingMessageEntityList> getMessagesForDeviceAsync(UUID destinationUuid, long destinationDevice, final String userAgent, final boolean cachedMessagesOnly) {
+    return getMessagesForDeviceAsync(destinationUuid, destinationDevice, userAgent, MessageQueueCursor.start(cachedMessagesOnly));
+  }
+
+  /**
+   * Reads the page of messages at the given cursor's position. Callers reading a whole queue should pass
+   * {@code cursor.advance(page.getReadMessages())} to read the next page.
+   */
+  public CompletableFuture<OutgoingMessageEntityList> getMessagesForDeviceAsync(UUID destinationUuid, long destinationDevice, final String userAgent, final MessageQueueCursor cursor) {
+    pushLatencyManager.recordQueueRead(destinationUuid, destinationDevice, userAgent);
+
+    final CompletableFuture<List<OutgoingMessageEntity>> persistedMessagesFuture = cursor.isCachedMessagesOnly()
+        ? CompletableFuture.completedFuture(Collections.emptyList())
+        : CompletableFuture.supplyAsync(() -> messagesScyllaDb.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE, cursor), persistedMessageExecutor);
+
+    return persistedMessagesFuture.thenCompose(persistedMessages -> {
+      if (persistedMessages.size() >= RESULT_SET_CHUNK_SIZE) {
+        return CompletableFuture.completedFuture(persistedMessages);
+      }
+
+      return messagesCache.getAsync(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE - persistedMessages.size(), cursor)
+          .thenApply(cachedMessages -> {
+            final List<OutgoingMessageEntity> messageList = new ArrayList<>(persistedMessages.size() + cachedMessages.size());
+            messageList.addAll(persistedMessages);
+            messageList.addAll(cachedMessages);
+
+            return messageList;
+          });
+    })
+        // the cursor moves past withheld messages too, so whether there's more depends on the page as it was read
+        .thenCompose(messageList -> resolveSharedPayloads(messageList)
+            .thenApply(resolvedMessages -> new OutgoingMessageEntityList(resolvedMessages,
+                messageList.size() >= RESULT_SET_CHUNK_SIZE, messageList)));
+  }
+
+  /**
+   * Appends their shared payloads to any of the given messages that refer to one. Each shared payload is fetched once,
+   * from the cache if it's still there or else from ScyllaDB. Messages whose shared payload can't be found are left out;
+   * they stay queued, so they're retried the next time the queue is read.
+   */
+  private CompletableFuture<List<OutgoingMessageEntity>> resolveSharedPayloads(final List<OutgoingMessageEntity> messages) {
+    final Map<ByteString, CompletableFuture<Optional<ByteString>>> sharedPayloadFutures = new HashMap<>();
+
+    for (final OutgoingMessageEntity message : messages) {
+      message.getSharedPayloadId().ifPresent(sharedPayloadId ->
+          sharedPayloadFutures.computeIfAbsent(sharedPayloadId, this::getSharedPayloadAsync));
+    }
+
+    if (sharedPayloadFutures.isEmpty()) {
+      return CompletableFuture.completedFuture(messages);
+    }
+
+    return CompletableFuture.allOf(sharedPayloadFutures.values().toArray(new CompletableFuture[0]))
+        .thenApply(ignored -> {
+          final List<OutgoingMessageEntity> resolvedMessages = new ArrayList<>(messages.size());
+
+          for (final OutgoingMessageEntity message : messages) {
+            if (message.getSharedPayloadId().isEmpty()) {
+              resolvedMessages.add(message);
+              continue;
+            }
+
+            final Optional<ByteString> maybeSharedPayload = sharedPayloadFutures.get(message.getSharedPayloadId().get()).join();
+
+            if (maybeSharedPayload.isPresent()) {
+              resolvedMessages.add(message.withSharedPayload(maybeSharedPayload.get()));
+            } else {
+              // without its shared payload, the message can't be decrypted; delivering it would lose it for good
+              missingSharedPayloadMeter.mark();
+              logger.warn("Shared payload for message {} not found; withholding message", message.getGuid());
+            }
+          }
+
+          return resolvedMessages;
+        });
+  }
+
+  private CompletableFuture<Optional<ByteString>> getSharedPayloadAsync(final ByteString sharedPayloadId) {
+    return messagesCache.getSharedPayloadAsync(sharedPayloadId)
+        .thenCompose(maybeSharedPayload -> {
+          if (maybeSharedPayload.isPresent()) {
+            return CompletableFuture.completedFuture(maybeSharedPayload);
+          }
+
+          sharedPayloadCacheMissMeter.mark();
+          return CompletableFuture.supplyAsync(() -> messagesScyllaDb.loadSharedPayload(sharedPayloadId), persistedMessageExecutor);
+        });
   }
 
   public void clear(UUID destinationUuid) {
@@ -102,6 +288,43 @@ public class MessagesManager {
     return removed;
   }
 
+  public CompletableFuture<Optional<OutgoingMessageEntity>> deleteAsync(UUID destinationUuid, long destinationDeviceId, UUID guid) {
+    return messagesCache.removeAsync(destinationUuid, destinationDeviceId, guid)
+        .thenCompose(removed -> {
+          if (removed.isPresent()) {
+            cacheHitByGuidMeter.mark();
+            return CompletableFuture.completedFuture(removed);
+          }
+
+          cacheMissByGuidMeter.mark();
+          return CompletableFuture.supplyAsync(() -> messagesScyllaDb.deleteMessageByDestinationAndGuid(destinationUuid, guid),
+              persistedMessageExecutor);
+        });
+  }
+
+  /**
+   * Deletes a message that was loaded by {@link #getMessagesForDeviceAsync} and has since been delivered. Unlike
+   * {@link #deleteAsync(UUID, long, UUID)}, this knows where the message is stored, so persisted messages are deleted
+   * by primary key (without a lookup by GUID) and in batches shared with other deliveries.
+   */
+  public CompletableFuture<Void> deleteAsync(UUID destinationUuid, long destinationDeviceId, OutgoingMessageEntity message) {
+    if (!message.isCached()) {
+      return persistedMessageDeleter.delete(destinationUuid, destinationDeviceId, message.getServerTimestamp(), message.getGuid());
+    }
+
+    return messagesCache.removeAsync(destinationUuid, destinationDeviceId, message.getGuid())
+        .thenCompose(removed -> {
+          if (removed.isPresent()) {
+            cacheHitByGuidMeter.mark();
+            return CompletableFuture.completedFuture(null);
+          }
+
+          // the message may have been persisted after it was read from the cache; persisting keeps its server timestamp
+          cacheMissByGuidMeter.mark();
+          return persistedMessageDeleter.delete(destinationUuid, destinationDeviceId, message.getServerTimestamp(), message.getGuid());
+        });
+  }
+
   public void persistMessages(final UUID destinationUuid, final long destinationDeviceId, final List<Envelope> messages) {
 
     final List<Envelope> nonEphemeralMessages = messages.stream()
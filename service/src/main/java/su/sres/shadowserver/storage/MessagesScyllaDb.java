@@ -1,17 +1,24 @@
 package su.sres.shadowserver.storage;
 
+import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.PutRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
 import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import su.sres.shadowserver.entities.MessageProtos;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
@@ -19,14 +26,19 @@ import su.sres.shadowserver.util.AttributeValues;
 import su.sres.shadowserver.util.UUIDUtil;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import static io.micrometer.core.instrument.Metrics.timer;
@@ -46,35 +58,52 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
   private static final String KEY_SOURCE_DEVICE = "SD";
   private static final String KEY_MESSAGE = "M";
   private static final String KEY_CONTENT = "C";
+  // payloads that were compressed before they were stored; an item has at most one of each payload's attributes
+  private static final String KEY_MESSAGE_COMPRESSED = "MZ";
+  private static final String KEY_CONTENT_COMPRESSED = "CZ";
   private static final String KEY_TTL = "E";
+  private static final String KEY_SHARED_PAYLOAD_ID = "P";
+
+  // shared payloads are stored in the messages table under their (32-byte) IDs, which can't collide with the (16-byte)
+  // account UUIDs that partition queued messages
+  private static final AttributeValue SHARED_PAYLOAD_SORT_KEY = AttributeValues.fromByteArray(new byte[8]);
 
   private final Timer storeTimer = timer(name(getClass(), "store"));
   private final Timer loadTimer = timer(name(getClass(), "load"));
   private final Timer deleteBySourceAndTimestamp = timer(name(getClass(), "delete", "sourceAndTimestamp"));
   private final Timer deleteByGuid = timer(name(getClass(), "delete", "guid"));
+  private final Timer deleteByKey = timer(name(getClass(), "delete", "key"));
   private final Timer deleteByAccount = timer(name(getClass(), "delete", "account"));
   private final Timer deleteByDevice = timer(name(getClass(), "delete", "device"));
+  private final Timer storeSharedPayloadTimer = timer(name(getClass(), "storeSharedPayload"));
+  private final Timer loadSharedPayloadTimer = timer(name(getClass(), "loadSharedPayload"));
+
+  // messages referring to a shared payload are stored (with their own time to live) shortly after it
+  private static final Duration SHARED_PAYLOAD_GRACE_PERIOD = Duration.ofDays(1);
 
   private final String tableName;
   private final Duration timeToLive;
+  private final MessagePayloadCodec payloadCodec;
 
-  public MessagesScyllaDb(DynamoDbClient scyllaDb, String tableName, Duration timeToLive) {
-    super(scyllaDb);
+  public MessagesScyllaDb(DynamoDbClient scyllaDb, DynamoDbAsyncClient scyllaDbAsync, String tableName, Duration timeToLive, int batchWriteParallelism) {
+    this(scyllaDb, scyllaDbAsync, tableName, timeToLive, batchWriteParallelism, MessagePayloadCodec.withoutCompression());
+  }
+
+  public MessagesScyllaDb(DynamoDbClient scyllaDb, DynamoDbAsyncClient scyllaDbAsync, String tableName, Duration timeToLive, int batchWriteParallelism,
+      MessagePayloadCodec payloadCodec) {
+    super(scyllaDb, scyllaDbAsync, batchWriteParallelism);
     this.tableName = tableName;
     this.timeToLive = timeToLive;
+    this.payloadCodec = payloadCodec;
   }
 
   public void store(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
-    storeTimer.record(() -> writeInBatches(messages, (messageBatch) -> storeBatch(messageBatch, destinationAccountUuid, destinationDeviceId)));
+    storeTimer.record(() -> writeAll(tableName, getWriteRequests(messages, destinationAccountUuid, destinationDeviceId)));
   }
 
-  private void storeBatch(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
-    if (messages.size() > DYNAMO_DB_MAX_BATCH_SIZE) {
-      throw new IllegalArgumentException("Maximum batch size of " + DYNAMO_DB_MAX_BATCH_SIZE + " execeeded with " + messages.size() + " messages");
-    }
-
+  private List<WriteRequest> getWriteRequests(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
     final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
-    List<WriteRequest> writeItems = new ArrayList<>();
+    List<WriteRequest> writeItems = new ArrayList<>(messages.size());
     
     for (MessageProtos.Envelope message : messages) {
       final UUID messageUuid = UUID.fromString(message.getServerGuid());
@@ -98,24 +127,80 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
         item.put(KEY_SOURCE_DEVICE, AttributeValues.fromInt(message.getSourceDevice()));
       }
       if (message.hasLegacyMessage()) {
-        item.put(KEY_MESSAGE, AttributeValues.fromByteArray(message.getLegacyMessage().toByteArray()));
+        putPayload(item, KEY_MESSAGE, KEY_MESSAGE_COMPRESSED, message.getLegacyMessage());
       }
       if (message.hasContent()) {
-        item.put(KEY_CONTENT, AttributeValues.fromByteArray(message.getContent().toByteArray()));
+        putPayload(item, KEY_CONTENT, KEY_CONTENT_COMPRESSED, message.getContent());
+      }
+      if (message.hasSharedPayloadId()) {
+        item.put(KEY_SHARED_PAYLOAD_ID, AttributeValues.fromByteArray(message.getSharedPayloadId().toByteArray()));
       }
       writeItems.add(WriteRequest.builder().putRequest(PutRequest.builder()
           .item(item.build())
           .build()).build());
     }
 
-    executeTableWriteItemsUntilComplete(Map.of(tableName, writeItems));
+    return writeItems;
+  }
+
+  private void putPayload(final ImmutableMap.Builder<String, AttributeValue> item, final String key, final String compressedKey,
+      final ByteString payload) {
+
+    final byte[] bytes = payload.toByteArray();
+    final Optional<byte[]> maybeCompressed = payloadCodec.compress(bytes);
+
+    if (maybeCompressed.isPresent()) {
+      item.put(compressedKey, AttributeValues.fromByteArray(maybeCompressed.get()));
+    } else {
+      item.put(key, AttributeValues.fromByteArray(bytes));
+    }
+  }
+
+  /**
+   * Stores a payload shared by several messages. Shared payloads aren't reference-counted; they outlive any message
+   * stored at the same time.
+   */
+  public CompletableFuture<Void> storeSharedPayloadAsync(final byte[] sharedPayloadId, final byte[] sharedPayload) {
+    return recordAsync(storeSharedPayloadTimer, () -> asyncDb().putItem(PutItemRequest.builder()
+        .tableName(tableName)
+        .item(Map.of(
+            KEY_PARTITION, AttributeValues.fromByteArray(sharedPayloadId),
+            KEY_SORT, SHARED_PAYLOAD_SORT_KEY,
+            KEY_CONTENT, AttributeValues.fromByteArray(sharedPayload),
+            KEY_TTL, AttributeValues.fromLong(Instant.now().plus(timeToLive).plus(SHARED_PAYLOAD_GRACE_PERIOD).getEpochSecond())))
+        .build())
+        .thenApply(ignored -> null));
+  }
+
+  public Optional<ByteString> loadSharedPayload(final ByteString sharedPayloadId) {
+    return loadSharedPayloadTimer.record(() -> {
+      final GetItemResponse response = db().getItem(GetItemRequest.builder()
+          .tableName(tableName)
+          .consistentRead(true)
+          .key(Map.of(
+              KEY_PARTITION, AttributeValues.fromByteArray(sharedPayloadId.toByteArray()),
+              KEY_SORT, SHARED_PAYLOAD_SORT_KEY))
+          .build());
+
+      return response.hasItem() ? Optional.ofNullable(getByteStringWithoutCopying(response.item(), KEY_CONTENT)) : Optional.empty();
+    });
   }
 
   public List<OutgoingMessageEntity> load(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch) {
+    return load(destinationAccountUuid, destinationDeviceId, requestedNumberOfMessagesToFetch, MessageQueueCursor.start(false));
+  }
+
+  /**
+   * Loads messages for a device starting just after the last persisted message read at the given cursor's position, so
+   * that reading a long queue page by page doesn't rescan (and skip over the deletion markers of) earlier pages.
+   */
+  public List<OutgoingMessageEntity> load(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch,
+      final MessageQueueCursor cursor) {
+
     return loadTimer.record(() -> {
       final int numberOfMessagesToFetch = Math.min(requestedNumberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE);
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
-      final QueryRequest queryRequest = QueryRequest.builder()
+      final QueryRequest.Builder queryRequestBuilder = QueryRequest.builder()
           .tableName(tableName)
           .consistentRead(true)
           .keyConditionExpression("#part = :part AND begins_with ( #sort , :sortprefix )")
@@ -125,8 +210,15 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
           .expressionAttributeValues(Map.of(
               ":part", partitionKey,
               ":sortprefix", convertDestinationDeviceIdToSortKeyPrefix(destinationDeviceId)))
-          .limit(numberOfMessagesToFetch)
-          .build();
+          .limit(numberOfMessagesToFetch);
+
+      if (cursor.hasLastPersistedMessage()) {
+        queryRequestBuilder.exclusiveStartKey(Map.of(
+            KEY_PARTITION, partitionKey,
+            KEY_SORT, convertSortKey(destinationDeviceId, cursor.getLastPersistedMessageServerTimestamp(), cursor.getLastPersistedMessageGuid())));
+      }
+
+      final QueryRequest queryRequest = queryRequestBuilder.build();
       List<OutgoingMessageEntity> messageEntities = new ArrayList<>(numberOfMessagesToFetch);
       for (Map<String, AttributeValue> message : db().queryPaginator(queryRequest).items()) {
         messageEntities.add(convertItemToOutgoingMessageEntity(message));
@@ -160,6 +252,27 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  /**
+   * Deletes messages whose full primary key is already known (e.g. because they were just loaded for delivery), so no
+   * lookup on the message UUID index is needed. The deletions are issued as {@code BatchWriteItem} requests and may
+   * span several destinations.
+   */
+  public CompletableFuture<Void> deleteMessagesAsync(final List<MessageKey> messageKeys) {
+    final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+
+    final List<WriteRequest> deletes = messageKeys.stream()
+        .map(messageKey -> WriteRequest.builder()
+            .deleteRequest(DeleteRequest.builder().key(Map.of(
+                KEY_PARTITION, convertPartitionKey(messageKey.getDestinationAccountUuid()),
+                KEY_SORT, convertSortKey(messageKey.getDestinationDeviceId(), messageKey.getServerTimestamp(), messageKey.getMessageUuid())))
+                .build())
+            .build())
+        .collect(Collectors.toList());
+
+    return writeAllAsync(tableName, deletes)
+        .whenComplete((ignored, throwable) -> sample.stop(deleteByKey));
+  }
+
   @Nonnull
   private Optional<OutgoingMessageEntity> deleteItemsMatchingQueryAndReturnFirstOneActuallyDeleted(AttributeValue partitionKey, QueryRequest queryRequest) {
     Optional<OutgoingMessageEntity> result = Optional.empty();
@@ -222,24 +335,45 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     final String source = AttributeValues.getString(message, KEY_SOURCE, null);
     final UUID sourceUuid = AttributeValues.getUUID(message, KEY_SOURCE_UUID, null);
     final int sourceDevice = AttributeValues.getInt(message, KEY_SOURCE_DEVICE, 0);
-    final byte[] messageBytes = AttributeValues.getByteArray(message, KEY_MESSAGE, null);
-    final byte[] content = AttributeValues.getByteArray(message, KEY_CONTENT, null);
-    return new OutgoingMessageEntity(-1L, false, messageUuid, type, relay, timestamp, source, sourceUuid, sourceDevice, messageBytes, content, sortKey.getServerTimestamp());
+    final ByteString messageBytes = getPayload(message, KEY_MESSAGE, KEY_MESSAGE_COMPRESSED);
+    final ByteString content = getPayload(message, KEY_CONTENT, KEY_CONTENT_COMPRESSED);
+    final ByteString sharedPayloadId = getByteStringWithoutCopying(message, KEY_SHARED_PAYLOAD_ID);
+    return new OutgoingMessageEntity(-1L, false, messageUuid, type, relay, timestamp, source, sourceUuid, sourceDevice, messageBytes, content,
+        sortKey.getServerTimestamp(), null, sharedPayloadId);
   }
 
-  private void deleteRowsMatchingQuery(AttributeValue partitionKey, QueryRequest querySpec) {
-    writeInBatches(db().queryPaginator(querySpec).items(), itemBatch -> deleteItems(partitionKey, itemBatch));
+  @Nullable
+  private ByteString getPayload(final Map<String, AttributeValue> item, final String key, final String compressedKey) {
+    final Optional<AttributeValue> maybeCompressed = AttributeValues.get(item, compressedKey);
+
+    if (maybeCompressed.isEmpty()) {
+      return getByteStringWithoutCopying(item, key);
+    }
+
+    try {
+      return UnsafeByteOperations.unsafeWrap(payloadCodec.decompress(maybeCompressed.get().b().asByteArrayUnsafe()));
+    } catch (final DataFormatException e) {
+      throw new IllegalStateException("Could not decompress stored message payload", e);
+    }
+  }
+
+  @Nullable
+  private static ByteString getByteStringWithoutCopying(final Map<String, AttributeValue> item, final String key) {
+    // items are never modified once they've been read, so payloads can share their buffers
+    return AttributeValues.get(item, key)
+        .map(attributeValue -> UnsafeByteOperations.unsafeWrap(attributeValue.b().asByteArrayUnsafe()))
+        .orElse(null);
   }
 
-  private void deleteItems(AttributeValue partitionKey, List<Map<String, AttributeValue>> items) {
-    List<WriteRequest> deletes = items.stream()
+  private void deleteRowsMatchingQuery(AttributeValue partitionKey, QueryRequest querySpec) {
+    List<WriteRequest> deletes = db().queryPaginator(querySpec).items().stream()
         .map(item -> WriteRequest.builder()
             .deleteRequest(DeleteRequest.builder().key(Map.of(
                 KEY_PARTITION, partitionKey,
                 KEY_SORT, item.get(KEY_SORT))).build())
             .build())
         .collect(Collectors.toList());
-    executeTableWriteItemsUntilComplete(Map.of(tableName, deletes));
+    writeAll(tableName, deletes);
   }
 
   private long getTtlForMessage(MessageProtos.Envelope message) {
@@ -317,4 +451,52 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
       return messageUuid;
     }
   }
+
+  public static final class MessageKey {
+    private final UUID destinationAccountUuid;
+    private final long destinationDeviceId;
+    private final long serverTimestamp;
+    private final UUID messageUuid;
+
+    public MessageKey(UUID destinationAccountUuid, long destinationDeviceId, long serverTimestamp, UUID messageUuid) {
+      this.destinationAccountUuid = destinationAccountUuid;
+      this.destinationDeviceId = destinationDeviceId;
+      this.serverTimestamp = serverTimestamp;
+      this.messageUuid = messageUuid;
+    }
+
+    public UUID getDestinationAccountUuid() {
+      return destinationAccountUuid;
+    }
+
+    public long getDestinationDeviceId() {
+      return destinationDeviceId;
+    }
+
+    public long getServerTimestamp() {
+      return serverTimestamp;
+    }
+
+    public UUID getMessageUuid() {
+      return messageUuid;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      final MessageKey that = (MessageKey) o;
+      return destinationDeviceId == that.destinationDeviceId && serverTimestamp == that.serverTimestamp
+          && destinationAccountUuid.equals(that.destinationAccountUuid) && messageUuid.equals(that.messageUuid);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(destinationAccountUuid, destinationDeviceId, serverTimestamp, messageUuid);
+    }
+  }
 }
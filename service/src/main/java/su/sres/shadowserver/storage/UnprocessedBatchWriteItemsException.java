@@ -0,0 +1,17 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+/**
+ * Indicates that some items of a batch write were still unprocessed after the maximum number of attempts, so the write
+ * was only partially applied.
+ */
+public class UnprocessedBatchWriteItemsException extends RuntimeException {
+
+  public UnprocessedBatchWriteItemsException(final String message) {
+    super(message);
+  }
+}
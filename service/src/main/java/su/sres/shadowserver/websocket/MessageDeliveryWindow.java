@@ -0,0 +1,70 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.websocket;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Limits the number of stored messages a connection has sent but that the client hasn't yet acknowledged. Unlike a
+ * {@link java.util.concurrent.Semaphore}, acquiring a slot never blocks; callers get a future that completes once a
+ * slot is free, in the order in which they asked.
+ */
+class MessageDeliveryWindow {
+
+  private final int size;
+
+  private int messagesInFlight;
+  private final Queue<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+  MessageDeliveryWindow(final int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Window size must be positive");
+    }
+
+    this.size = size;
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  synchronized int getMessagesInFlight() {
+    return messagesInFlight;
+  }
+
+  CompletableFuture<Void> acquire() {
+    synchronized (this) {
+      if (messagesInFlight < size) {
+        messagesInFlight++;
+        return CompletableFuture.completedFuture(null);
+      }
+
+      final CompletableFuture<Void> waiter = new CompletableFuture<>();
+      waiters.add(waiter);
+
+      return waiter;
+    }
+  }
+
+  void release() {
+    final CompletableFuture<Void> nextWaiter;
+
+    synchronized (this) {
+      nextWaiter = waiters.poll();
+
+      if (nextWaiter == null) {
+        messagesInFlight--;
+      }
+    }
+
+    // the slot passes straight to the next waiter; complete it outside the lock since that sends its message
+    if (nextWaiter != null) {
+      nextWaiter.complete(null);
+    }
+  }
+}
@@ -10,12 +10,12 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.protobuf.ByteString;
 
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
 import su.sres.shadowserver.auth.AuthenticatedAccount;
 import su.sres.shadowserver.controllers.MessageController;
+import su.sres.shadowserver.configuration.MessageDeliveryConfiguration;
 import su.sres.shadowserver.controllers.NoSuchUserException;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.entities.OutgoingMessageEntityList;
@@ -25,6 +25,7 @@ import su.sres.shadowserver.push.ReceiptSender;
 // import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.Device;
 import su.sres.shadowserver.storage.MessageAvailabilityListener;
+import su.sres.shadowserver.storage.MessageQueueCursor;
 import su.sres.shadowserver.storage.MessagesManager;
 import su.sres.shadowserver.util.Constants;
 import su.sres.shadowserver.util.TimestampHeaderUtil;
@@ -105,6 +106,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private final ScheduledExecutorService retrySchedulingExecutor;
 
   private final boolean isDesktopClient;
+  private final MessageDeliveryWindow deliveryWindow;
 
   private final Semaphore processStoredMessagesSemaphore = new Semaphore(1);
   private final AtomicReference<StoredMessageState> storedMessageState = new AtomicReference<>(StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE);
@@ -128,6 +130,16 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       Device device,
       WebSocketClient client,
       ScheduledExecutorService retrySchedulingExecutor) {
+    this(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor, new MessageDeliveryConfiguration());
+  }
+
+  public WebSocketConnection(ReceiptSender receiptSender,
+      MessagesManager messagesManager,
+      AuthenticatedAccount auth,
+      Device device,
+      WebSocketClient client,
+      ScheduledExecutorService retrySchedulingExecutor,
+      MessageDeliveryConfiguration messageDeliveryConfiguration) {
     this.receiptSender = receiptSender;
     this.messagesManager = messagesManager;
     this.auth = auth;
@@ -144,6 +156,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     }
 
     this.isDesktopClient = maybePlatform.map(platform -> platform == ClientPlatform.DESKTOP).orElse(false);
+    this.deliveryWindow = new MessageDeliveryWindow(messageDeliveryConfiguration.getWindowSize(maybePlatform));
   }
 
   public void start() {
@@ -161,28 +174,33 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     client.close(1000, "OK");
   }
 
-  private CompletableFuture<WebSocketResponseMessage> sendMessage(final Envelope message, final Optional<StoredMessageInfo> storedMessageInfo) {
-    // clear ephemeral field from the envelope
-    final Optional<byte[]> body = Optional.ofNullable(message.toBuilder().clearEphemeral().build().toByteArray());
-
+  private CompletableFuture<WebSocketResponseMessage> sendMessage(final OutgoingMessageEntity message, final byte[] serializedEnvelope) {
     sendMessageMeter.mark();
     sentMessageCounter.increment();
-    bytesSentMeter.mark(body.map(bytes -> bytes.length).orElse(0));
+    bytesSentMeter.mark(serializedEnvelope.length);
 
     // X-Signal-Key: false must be sent until Android stops assuming it missing
     // means true
-    return client.sendRequest("PUT", "/api/v1/message", List.of("X-Signal-Key: false", TimestampHeaderUtil.getTimestampHeader()), body).whenComplete((response, throwable) -> {
-      if (throwable == null) {
-        if (isSuccessResponse(response)) {
-          if (storedMessageInfo.isPresent()) {
-            messagesManager.delete(auth.getAccount().getUuid(), device.getId(), storedMessageInfo.get().getGuid());
+    return client.sendRequest("PUT", "/api/v1/message", List.of("X-Signal-Key: false", TimestampHeaderUtil.getTimestampHeader()), Optional.of(serializedEnvelope))
+        .whenComplete((response, throwable) -> {
+          if (throwable != null) {
+            sendFailuresMeter.mark();
           }
+        })
+        .thenCompose(response -> {
+          if (isSuccessResponse(response)) {
+            final CompletableFuture<Void> deleteFuture = messagesManager.deleteAsync(auth.getAccount().getUuid(), device.getId(), message);
+
+            if (message.getType() != Envelope.Type.SERVER_DELIVERY_RECEIPT_VALUE) {
+              recordMessageDeliveryDuration(message.getTimestamp(), device);
+              sendDeliveryReceiptFor(message);
+            }
 
-          if (message.getType() != Envelope.Type.SERVER_DELIVERY_RECEIPT) {
-            recordMessageDeliveryDuration(message.getTimestamp(), device);
-            sendDeliveryReceiptFor(message);
+            // the delivery (and its window slot) isn't settled until the message is gone from the queue, so the drain
+            // can't report the queue as clear while deletes are still pending
+            return deleteFuture.thenApply(ignored -> response);
           }
-        } else {
+
           final List<Tag> tags = new ArrayList<>(
               List.of(Tag.of(STATUS_CODE_TAG, String.valueOf(response.getStatus())),
                   UserAgentTagUtil.getPlatformTag(client.getUserAgent())));
@@ -193,11 +211,9 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
           }
 
           Metrics.counter(NON_SUCCESS_RESPONSE_COUNTER_NAME, tags).increment();
-        }
-      } else {
-        sendFailuresMeter.mark();
-      }
-    });
+
+          return CompletableFuture.completedFuture(response);
+        });
   }
 
   public static void recordMessageDeliveryDuration(long timestamp, Device messageDestinationDevice) {
@@ -208,18 +224,21 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     }
   }
 
-  private void sendDeliveryReceiptFor(Envelope message) {
-    if (!message.hasSource())
+  private void sendDeliveryReceiptFor(OutgoingMessageEntity message) {
+    if (Util.isEmpty(message.getSource()))
       return;
 
+    if (message.getSourceUuid() == null) {
+      logger.error("Message from {} has no source UUID", message.getSource());
+      return;
+    }
+
     try {
-      receiptSender.sendReceipt(auth, UUID.fromString(message.getSourceUuid()), message.getTimestamp());
+      receiptSender.sendReceipt(auth, message.getSourceUuid(), message.getTimestamp());
     } catch (NoSuchUserException e) {
       logger.info("No longer registered: {}", e.getMessage());
     } catch (WebApplicationException e) {
       logger.warn("Bad federated response for receipt: {}", e.getResponse().getStatus());
-    } catch (IllegalArgumentException e) {
-      logger.error("Could not parse UUID: {}", message.getSourceUuid());
     }
   }
 
@@ -233,7 +252,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       final StoredMessageState state = storedMessageState.getAndSet(StoredMessageState.EMPTY);
       final CompletableFuture<Void> queueClearedFuture = new CompletableFuture<>();
 
-      sendNextMessagePage(state != StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE, queueClearedFuture);
+      new StoredMessageDrain(queueClearedFuture).start(MessageQueueCursor.start(state != StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE));
 
       queueClearedFuture.whenComplete((v, cause) -> {
         if (cause == null) {
@@ -284,67 +303,166 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     }
   }
 
-  private void sendNextMessagePage(final boolean cachedMessagesOnly, final CompletableFuture<Void> queueClearedFuture) {
+  private CompletableFuture<OutgoingMessageEntityList> readMessagePage(final MessageQueueCursor cursor) {
     try {
-      final OutgoingMessageEntityList messages = messagesManager
-          .getMessagesForDevice(auth.getAccount().getUuid(), device.getId(), client.getUserAgent(), cachedMessagesOnly);
-
-      final CompletableFuture<?>[] sendFutures = new CompletableFuture[messages.getMessages().size()];
-
-      for (int i = 0; i < messages.getMessages().size(); i++) {
-        final OutgoingMessageEntity message = messages.getMessages().get(i);
-        final Envelope.Builder builder = Envelope.newBuilder()
-            .setType(Envelope.Type.valueOf(message.getType()))
-            .setTimestamp(message.getTimestamp())
-            .setServerTimestamp(message.getServerTimestamp());
-
-        if (!Util.isEmpty(message.getSource())) {
-          builder.setSource(message.getSource())
-              .setSourceDevice(message.getSourceDevice());
-          if (message.getSourceUuid() != null) {
-            builder.setSourceUuid(message.getSourceUuid().toString());
-          }
-        }
+      return messagesManager.getMessagesForDeviceAsync(auth.getAccount().getUuid(), device.getId(), client.getUserAgent(), cursor);
+    } catch (final Exception e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
 
-        if (message.getMessage() != null) {
-          builder.setLegacyMessage(ByteString.copyFrom(message.getMessage()));
-        }
+  private CompletableFuture<?> sendStoredMessage(final OutgoingMessageEntity message) {
+    try {
+      // messages read from the cache can usually be sent exactly as they were stored; everything else is serialized once
+      final byte[] serializedEnvelope = message.getSerializedEnvelope()
+          .orElseGet(() -> buildEnvelope(message).toByteArray());
 
-        if (message.getContent() != null) {
-          builder.setContent(ByteString.copyFrom(message.getContent()));
-        }
+      if (serializedEnvelope.length > MAX_DESKTOP_MESSAGE_SIZE && isDesktopClient) {
+        discardedMessagesMeter.mark();
+        return messagesManager.deleteAsync(auth.getAccount().getUuid(), device.getId(), message);
+      } else {
+        return sendMessage(message, serializedEnvelope);
+      }
+    } catch (final Exception e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
 
-        if (message.getRelay() != null && !message.getRelay().isEmpty()) {
-          builder.setRelay(message.getRelay());
-        }
+  /**
+   * Builds the envelope for a stored message that can't be delivered exactly as it was stored. Payloads are shared with
+   * the given entity rather than copied.
+   */
+  public static Envelope buildEnvelope(final OutgoingMessageEntity message) {
+    final Envelope.Builder builder = Envelope.newBuilder()
+        .setType(Envelope.Type.valueOf(message.getType()))
+        .setTimestamp(message.getTimestamp())
+        .setServerTimestamp(message.getServerTimestamp());
+
+    if (!Util.isEmpty(message.getSource())) {
+      builder.setSource(message.getSource())
+          .setSourceDevice(message.getSourceDevice());
+      if (message.getSourceUuid() != null) {
+        builder.setSourceUuid(message.getSourceUuid().toString());
+      }
+    }
 
-        builder.setServerGuid(message.getGuid().toString());
+    if (message.getMessageBytes() != null) {
+      builder.setLegacyMessage(message.getMessageBytes());
+    }
 
-        final Envelope envelope = builder.build();
+    if (message.getContentBytes() != null) {
+      builder.setContent(message.getContentBytes());
+    }
 
-        if (envelope.getSerializedSize() > MAX_DESKTOP_MESSAGE_SIZE && isDesktopClient) {
-          messagesManager.delete(auth.getAccount().getUuid(), device.getId(), message.getGuid());
-          discardedMessagesMeter.mark();
+    if (message.getRelay() != null && !message.getRelay().isEmpty()) {
+      builder.setRelay(message.getRelay());
+    }
 
-          sendFutures[i] = CompletableFuture.completedFuture(null);
-        } else {
-          sendFutures[i] = sendMessage(builder.build(), Optional.of(new StoredMessageInfo(message.getGuid())));
+    builder.setServerGuid(message.getGuid().toString());
+
+    return builder.build();
+  }
+
+  /**
+   * Drains a device's stored messages through the connection's delivery window. Messages are sent in queue order as
+   * soon as the window has room, so one slow acknowledgement holds up only its own slot rather than the rest of its
+   * page, and the next page is read while the current one is still being delivered.
+   */
+  private final class StoredMessageDrain {
+
+    private final CompletableFuture<Void> queueClearedFuture;
+    private final AtomicReference<Throwable> deliveryFailure = new AtomicReference<>();
+    private final AtomicReference<Throwable> drainFailure = new AtomicReference<>();
+
+    // one count for each delivery in flight plus one for the drain itself, which is released by finish()
+    private final AtomicInteger unsettled = new AtomicInteger(1);
+
+    private StoredMessageDrain(final CompletableFuture<Void> queueClearedFuture) {
+      this.queueClearedFuture = queueClearedFuture;
+    }
+
+    void start(final MessageQueueCursor cursor) {
+      sendPages(readMessagePage(cursor), cursor);
+    }
+
+    private void sendPages(final CompletableFuture<OutgoingMessageEntityList> pageFuture, final MessageQueueCursor cursor) {
+      pageFuture.whenComplete((messages, cause) -> {
+        if (cause != null) {
+          finish(cause);
+          return;
         }
-      }
 
-      CompletableFuture.allOf(sendFutures).whenComplete((v, cause) -> {
-        if (cause == null) {
-          if (messages.hasMore()) {
-            sendNextMessagePage(cachedMessagesOnly, queueClearedFuture);
+        // the cursor doesn't depend on this page having been deleted, so the next page can be read right away
+        final MessageQueueCursor nextCursor = cursor.advance(messages.getReadMessages());
+        final CompletableFuture<OutgoingMessageEntityList> nextPageFuture = messages.hasMore() ? readMessagePage(nextCursor) : null;
+
+        sendPage(messages).whenComplete((ignored, dispatchCause) -> {
+          final Throwable failure = dispatchCause != null ? dispatchCause : deliveryFailure.get();
+
+          if (failure != null) {
+            finish(failure);
+          } else if (nextPageFuture != null) {
+            sendPages(nextPageFuture, nextCursor);
           } else {
-            queueClearedFuture.complete(null);
+            finish(null);
           }
-        } else {
+        });
+      });
+    }
+
+    /**
+     * Sends each message in the page as soon as the delivery window has room for it; the returned future completes
+     * once every message has been sent, not acknowledged.
+     */
+    private CompletableFuture<Void> sendPage(final OutgoingMessageEntityList messages) {
+      CompletableFuture<Void> sentFuture = CompletableFuture.completedFuture(null);
+
+      for (final OutgoingMessageEntity message : messages.getMessages()) {
+        sentFuture = sentFuture
+            .thenCompose(ignored -> deliveryWindow.acquire())
+            .thenRun(() -> {
+              if (deliveryFailure.get() != null) {
+                // the client is probably gone; the whole drain will be retried
+                deliveryWindow.release();
+                return;
+              }
+
+              unsettled.incrementAndGet();
+
+              sendStoredMessage(message).whenComplete((ignored, cause) -> {
+                if (cause != null) {
+                  deliveryFailure.compareAndSet(null, cause);
+                }
+
+                deliveryWindow.release();
+                settle();
+              });
+            });
+      }
+
+      return sentFuture;
+    }
+
+    /**
+     * Called exactly once, after the last message has been handed to the delivery window; nothing is dispatched after
+     * this point, so the drain completes as soon as the deliveries still in flight have settled.
+     */
+    private void finish(final Throwable cause) {
+      drainFailure.set(cause);
+      settle();
+    }
+
+    private void settle() {
+      // the queue isn't clear (and failed messages mustn't be retried) until every message in flight has been settled
+      if (unsettled.decrementAndGet() == 0) {
+        final Throwable cause = drainFailure.get() != null ? drainFailure.get() : deliveryFailure.get();
+
+        if (cause != null) {
           queueClearedFuture.completeExceptionally(cause);
+        } else {
+          queueClearedFuture.complete(null);
         }
-      });
-    } catch (final Exception e) {
-      queueClearedFuture.completeExceptionally(e);
+      }
     }
   }
 
@@ -370,16 +488,4 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     Metrics.counter(DISPLACEMENT_COUNTER_NAME, List.of(UserAgentTagUtil.getPlatformTag(client.getUserAgent()))).increment();
     client.hardDisconnectQuietly();
   }
-
-  private static class StoredMessageInfo {
-    private final UUID guid;
-
-    public StoredMessageInfo(UUID guid) {
-      this.guid = guid;
-    }
-
-    public UUID getGuid() {
-      return guid;
-    }
-  }
 }
@@ -10,6 +10,7 @@ import com.google.common.annotations.VisibleForTesting;
 
 import net.sourceforge.argparse4j.inf.Namespace;
 import net.sourceforge.argparse4j.inf.Subparser;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 
 import org.jdbi.v3.core.Jdbi;
@@ -168,6 +169,7 @@ public class CreatePendingAccountCommand extends EnvironmentCommand<WhisperServe
       ScyllaDbConfiguration scyllaConfig = configuration.getScyllaDbConfiguration();
 
       DynamoDbClient scyllaDbClient = ScyllaDbFromConfig.client(scyllaConfig);
+      DynamoDbAsyncClient scyllaDbAsyncClient = ScyllaDbFromConfig.asyncClient(scyllaConfig, null);
 
       DeletedAccounts deletedAccounts = new DeletedAccounts(scyllaDbClient, scyllaConfig.getDeletedAccountsTableName());
 
@@ -177,6 +179,7 @@ public class CreatePendingAccountCommand extends EnvironmentCommand<WhisperServe
       FaultTolerantRedisCluster metricsCluster = new FaultTolerantRedisCluster("metrics_cluster", configuration.getMetricsClusterConfiguration(), redisClusterClientResources);
 
       ExecutorService keyspaceNotificationDispatchExecutor = environment.lifecycle().executorService(name(getClass(), "keyspaceNotification-%d")).maxThreads(4).build();
+      ExecutorService persistedMessageExecutor = environment.lifecycle().executorService(name(getClass(), "persistedMessage-%d")).maxThreads(4).build();
 
       ReplicatedJedisPool redisClient = new RedisClientFactory("directory_cache_add_command", configuration.getDirectoryConfiguration().getUrl(), configuration.getDirectoryConfiguration().getReplicaUrls(), configuration.getDirectoryConfiguration().getCircuitBreakerConfiguration())
           .getRedisClientPool();
@@ -186,8 +189,9 @@ public class CreatePendingAccountCommand extends EnvironmentCommand<WhisperServe
       Usernames usernames = new Usernames(accountDatabase);
       Profiles profiles = new Profiles(accountDatabase);
       ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
-      KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaConfig.getKeysTableName());
-      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive());
+      KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getKeysTableName(), scyllaConfig.getBatchWriteParallelism());
+      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive(),
+          scyllaConfig.getBatchWriteParallelism());
 
       final int lifetime = configuration.getLocalParametersConfiguration().getAccountLifetime();
       StoredVerificationCodeManager pendingAccountsManager = new StoredVerificationCodeManager(pendingAccounts, lifetime);
@@ -206,7 +210,7 @@ public class CreatePendingAccountCommand extends EnvironmentCommand<WhisperServe
       ReportMessageScyllaDb reportMessageScyllaDb = new ReportMessageScyllaDb(scyllaDbClient, scyllaConfig.getReportMessageTableName());
 
       ReportMessageManager reportMessageManager = new ReportMessageManager(reportMessageScyllaDb, Metrics.globalRegistry);
-      MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager);
+      MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager, persistedMessageExecutor);
 
       AccountsManager accountsManager = new AccountsManager(accounts, directory, cacheCluster, deletedAccounts, keysScyllaDb, messagesManager, usernamesManager, profilesManager, pendingAccountsManager, clientPresenceManager);
 
@@ -8,6 +8,7 @@ package su.sres.shadowserver.workers;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import net.sourceforge.argparse4j.inf.Namespace;
 import net.sourceforge.argparse4j.inf.Subparser;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 
 import org.jdbi.v3.core.Jdbi;
@@ -95,10 +96,12 @@ public class DeleteUserCommand extends EnvironmentCommand<WhisperServerConfigura
       ScyllaDbConfiguration scyllaConfig = configuration.getScyllaDbConfiguration();
                            
       DynamoDbClient scyllaDbClient = ScyllaDbFromConfig.client(scyllaConfig);      
+      DynamoDbAsyncClient scyllaDbAsyncClient = ScyllaDbFromConfig.asyncClient(scyllaConfig, null);
 
       FaultTolerantRedisCluster cacheCluster = new FaultTolerantRedisCluster("main_cache_cluster", configuration.getCacheClusterConfiguration(), redisClusterClientResources);
 
       ExecutorService keyspaceNotificationDispatchExecutor = environment.lifecycle().executorService(name(getClass(), "keyspaceNotification-%d")).maxThreads(4).build();
+      ExecutorService persistedMessageExecutor = environment.lifecycle().executorService(name(getClass(), "persistedMessage-%d")).maxThreads(4).build();
                 
       DeletedAccounts deletedAccounts = new DeletedAccounts(scyllaDbClient, scyllaConfig.getDeletedAccountsTableName());      
       VerificationCodeStore pendingAccounts = new VerificationCodeStore(scyllaDbClient, scyllaConfig.getPendingAccountsTableName());
@@ -107,8 +110,9 @@ public class DeleteUserCommand extends EnvironmentCommand<WhisperServerConfigura
       Usernames usernames = new Usernames(accountDatabase);
       Profiles profiles = new Profiles(accountDatabase);
       ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
-      KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaConfig.getKeysTableName());
-      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive());
+      KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getKeysTableName(), scyllaConfig.getBatchWriteParallelism());
+      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive(),
+          scyllaConfig.getBatchWriteParallelism());
       ReportMessageScyllaDb reportMessageScyllaDb = new ReportMessageScyllaDb(scyllaDbClient, scyllaConfig.getReportMessageTableName());
 
       ReplicatedJedisPool redisClient = new RedisClientFactory("directory_cache_delete_command", configuration.getDirectoryConfiguration().getUrl(), configuration.getDirectoryConfiguration().getReplicaUrls(), configuration.getDirectoryConfiguration().getCircuitBreakerConfiguration())
@@ -126,7 +130,7 @@ public class DeleteUserCommand extends EnvironmentCommand<WhisperServerConfigura
       ProfilesManager profilesManager = new ProfilesManager(profiles, cacheCluster);           
       
       ReportMessageManager reportMessageManager = new ReportMessageManager(reportMessageScyllaDb, Metrics.globalRegistry);
-      MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager);
+      MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager, persistedMessageExecutor);
       DirectoryManager directory = new DirectoryManager(redisClient);
       final int lifetime = configuration.getLocalParametersConfiguration().getAccountLifetime();
       StoredVerificationCodeManager pendingAccountsManager = new StoredVerificationCodeManager(pendingAccounts, lifetime);
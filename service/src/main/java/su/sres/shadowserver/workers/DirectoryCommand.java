@@ -7,6 +7,7 @@ package su.sres.shadowserver.workers;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import net.sourceforge.argparse4j.inf.Namespace;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 
 import static com.codahale.metrics.MetricRegistry.name;
@@ -80,6 +81,7 @@ public class DirectoryCommand extends EnvironmentCommand<WhisperServerConfigurat
       ScyllaDbConfiguration scyllaConfig = configuration.getScyllaDbConfiguration();
                 
       DynamoDbClient scyllaDbClient = ScyllaDbFromConfig.client(scyllaConfig);
+      DynamoDbAsyncClient scyllaDbAsyncClient = ScyllaDbFromConfig.asyncClient(scyllaConfig, null);
            
       DeletedAccounts deletedAccounts = new DeletedAccounts(scyllaDbClient, scyllaConfig.getDeletedAccountsTableName());      
       VerificationCodeStore pendingAccounts = new VerificationCodeStore(scyllaDbClient, scyllaConfig.getPendingAccountsTableName());
@@ -90,6 +92,7 @@ public class DirectoryCommand extends EnvironmentCommand<WhisperServerConfigurat
       FaultTolerantRedisCluster metricsCluster = new FaultTolerantRedisCluster("metrics_cluster", configuration.getMetricsClusterConfiguration(), redisClusterClientResources);
       
       ExecutorService keyspaceNotificationDispatchExecutor = environment.lifecycle().executorService(name(getClass(), "keyspaceNotification-%d")).maxThreads(4).build();
+      ExecutorService persistedMessageExecutor = environment.lifecycle().executorService(name(getClass(), "persistedMessage-%d")).maxThreads(4).build();
       
       FaultTolerantRedisCluster clientPresenceCluster    = new FaultTolerantRedisCluster("client_presence_cluster",
           configuration.getClientPresenceClusterConfiguration(), redisClusterClientResources);
@@ -100,8 +103,9 @@ public class DirectoryCommand extends EnvironmentCommand<WhisperServerConfigurat
       Usernames usernames = new Usernames(accountDatabase);
       Profiles profiles = new Profiles(accountDatabase);
       ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
-      KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaConfig.getKeysTableName());
-      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive());
+      KeysScyllaDb keysScyllaDb = new KeysScyllaDb(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getKeysTableName(), scyllaConfig.getBatchWriteParallelism());
+      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(scyllaDbClient, scyllaDbAsyncClient, scyllaConfig.getMessagesTableName(), scyllaConfig.getTimeToLive(),
+          scyllaConfig.getBatchWriteParallelism());
       ReportMessageScyllaDb reportMessageScyllaDb = new ReportMessageScyllaDb(scyllaDbClient, scyllaConfig.getReportMessageTableName());
 
       ReplicatedJedisPool redisClient = new RedisClientFactory("directory_cache_directory_command",
@@ -118,7 +122,7 @@ public class DirectoryCommand extends EnvironmentCommand<WhisperServerConfigurat
       ProfilesManager profilesManager = new ProfilesManager(profiles, cacheCluster);
             
       ReportMessageManager reportMessageManager = new ReportMessageManager(reportMessageScyllaDb, Metrics.globalRegistry);
-      MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager);
+      MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager, persistedMessageExecutor);
 
       final int lifetime = configuration.getLocalParametersConfiguration().getAccountLifetime();
       StoredVerificationCodeManager pendingAccountsManager = new StoredVerificationCodeManager(pendingAccounts, lifetime);
@@ -85,10 +85,8 @@ public class PlainDirectoryUpdater {
 
     logger.info(String.format("Local directory is updated (%d added or confirmed, %d removed).", contactsAdded, contactsRemoved));
 
-    int backoff = directory.calculateBackoff(accountsManager.getDirectoryVersion());
-
     try (Jedis jedis = directory.accessDirectoryCache().getWriteResource()) {
-      directory.flushIncrementalUpdates(backoff, jedis);
+      directory.flushIncrementalUpdates(jedis);
     }
 
     logger.info("All incremental updates flushed.");
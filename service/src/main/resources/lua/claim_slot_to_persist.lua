@@ -0,0 +1,12 @@
+local persistSlotIndexKey = KEYS[1]
+local maxTime             = ARGV[1]
+
+local indexedSlotCount = redis.call("ZCARD", persistSlotIndexKey)
+local slots = redis.call("ZRANGEBYSCORE", persistSlotIndexKey, 0, maxTime, "LIMIT", 0, 1)
+
+if slots and next(slots) then
+    redis.call("ZREM", persistSlotIndexKey, slots[1])
+    return {tonumber(slots[1]), indexedSlotCount}
+end
+
+return {}
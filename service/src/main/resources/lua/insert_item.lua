@@ -6,7 +6,7 @@ local currentTime        = ARGV[2]
 local guid               = ARGV[3]
 
 if redis.call("HEXISTS", queueMetadataKey, guid) == 1 then
-    return tonumber(redis.call("HGET", queueMetadataKey, guid))
+    return {tonumber(redis.call("HGET", queueMetadataKey, guid)), 0}
 end
 
 local messageId = redis.call("HINCRBY", queueMetadataKey, "counter", 1)
@@ -18,5 +18,14 @@ redis.call("HSET", queueMetadataKey, guid, messageId)
 redis.call("EXPIRE", queueKey, 7776000)         -- 90 days
 redis.call("EXPIRE", queueMetadataKey, 7776000) -- 90 days
 
-redis.call("ZADD", queueTotalIndexKey, "NX", currentTime, queueKey)
-return messageId
\ No newline at end of file
+local queueIndexed = redis.call("ZADD", queueTotalIndexKey, "NX", currentTime, queueKey)
+
+-- the second element tells the caller that this slot's queue index was empty until now, so the slot needs to be added
+-- to the (cross-slot) index of slots with queues to persist
+local slotActivated = 0
+
+if queueIndexed == 1 and redis.call("ZCARD", queueTotalIndexKey) == 1 then
+    slotActivated = 1
+end
+
+return {messageId, slotActivated}
@@ -1,30 +1,57 @@
+-- The leaky bucket is stored as a hash of the space remaining ("s") and the time of its last update in epoch
+-- millis ("t"); a missing bucket is a full one. Returns 0 if the requested amount is (or, when only checking,
+-- would be) available, otherwise the number of millis until it will be.
+
 local bucketId = KEYS[1]
 
 local bucketSize = tonumber(ARGV[1])
 local leakRatePerMillis = tonumber(ARGV[2])
 local currentTimeMillis = tonumber(ARGV[3])
 local amount = tonumber(ARGV[4])
+local takePermits = ARGV[5] == "true"
+
+local SPACE_REMAINING_FIELD = "s"
+local LAST_UPDATE_TIME_FIELD = "t"
+
+local spaceRemaining = bucketSize
+local lastUpdateTimeMillis = currentTimeMillis
+
+local bucketType = redis.call("TYPE", bucketId)["ok"]
+
+if bucketType == "hash" then
+    local bucket = redis.call("HMGET", bucketId, SPACE_REMAINING_FIELD, LAST_UPDATE_TIME_FIELD)
+    spaceRemaining = tonumber(bucket[1])
+    lastUpdateTimeMillis = tonumber(bucket[2])
+elseif bucketType == "string" then
+    -- buckets written before the move to hashes are JSON serialized LeakyBucket entities
+    local legacyBucket = cjson.decode(redis.call("GET", bucketId))
+    spaceRemaining = legacyBucket["spaceRemaining"]
+    lastUpdateTimeMillis = legacyBucket["lastUpdateTimeMillis"]
+    redis.call("DEL", bucketId)
 
-local leakyBucket
-
-if redis.call("EXISTS", bucketId) == 1 then
-    leakyBucket = cjson.decode(redis.call("GET", bucketId))
-else
-    leakyBucket = {
-        bucketSize = bucketSize,
-        leakRatePerMillis = leakRatePerMillis,
-        spaceRemaining = bucketSize,
-        lastUpdateTimeMillis = currentTimeMillis
-    }
+    if spaceRemaining < bucketSize then
+        redis.call("HSET", bucketId, SPACE_REMAINING_FIELD, spaceRemaining, LAST_UPDATE_TIME_FIELD, lastUpdateTimeMillis)
+        redis.call("PEXPIRE", bucketId, math.ceil((bucketSize - spaceRemaining) / leakRatePerMillis))
+    end
 end
 
-local elapsedTime = currentTimeMillis - leakyBucket["lastUpdateTimeMillis"]
-local updatedSpaceRemaining = math.min(leakyBucket["bucketSize"], math.floor(leakyBucket["spaceRemaining"] + (elapsedTime * leakyBucket["leakRatePerMillis"])))
+local elapsedTime = currentTimeMillis - lastUpdateTimeMillis
+local updatedSpaceRemaining = math.min(bucketSize, math.floor(spaceRemaining + (elapsedTime * leakRatePerMillis)))
+
+if updatedSpaceRemaining < amount then
+    return math.ceil((amount - updatedSpaceRemaining) / leakRatePerMillis)
+end
+
+if takePermits then
+    local spaceUsed = bucketSize - (updatedSpaceRemaining - amount)
+
+    if spaceUsed > 0 then
+        redis.call("HSET", bucketId, SPACE_REMAINING_FIELD, updatedSpaceRemaining - amount, LAST_UPDATE_TIME_FIELD, currentTimeMillis)
+        -- once the bucket has leaked back to full it is indistinguishable from a missing one
+        redis.call("PEXPIRE", bucketId, math.ceil(spaceUsed / leakRatePerMillis))
+    else
+        redis.call("DEL", bucketId)
+    end
+end
 
-if updatedSpaceRemaining >= amount then
-    leakyBucket["spaceRemaining"] = updatedSpaceRemaining - amount
-    redis.call("SET", bucketId, cjson.encode(leakyBucket))
-    return true
-else
-    return false
-end
\ No newline at end of file
+return 0
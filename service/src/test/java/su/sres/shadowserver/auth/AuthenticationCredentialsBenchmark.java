@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.auth;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.apache.commons.codec.binary.Hex;
+
+import su.sres.shadowserver.util.Util;
+
+/**
+ * Measures the CPU cost of verifying a device password for each credentials version, and for a repeated
+ * verification served from {@link VerifiedCredentialsCache}. Run with {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AuthenticationCredentialsBenchmark {
+
+  private final UUID uuid = UUID.randomUUID();
+
+  // device passwords are random 16-byte values, hex-encoded by clients
+  private final String password = Hex.encodeHexString(Util.generateSecretBytes(16));
+
+  private AuthenticationCredentials v1Credentials;
+  private AuthenticationCredentials v2Credentials;
+  private VerifiedCredentialsCache verifiedCredentialsCache;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    // as read from storage, i.e. without anything computed up front
+    final AuthenticationCredentials v1 = new AuthenticationCredentials(password, AuthenticationCredentials.Version.V1);
+    final AuthenticationCredentials v2 = new AuthenticationCredentials(password, AuthenticationCredentials.Version.V2);
+
+    v1Credentials = new AuthenticationCredentials(v1.getHashedAuthenticationToken(), v1.getSalt());
+    v2Credentials = new AuthenticationCredentials(v2.getHashedAuthenticationToken(), v2.getSalt());
+
+    verifiedCredentialsCache = new VerifiedCredentialsCache(1_000, Duration.ofMinutes(10));
+    verifiedCredentialsCache.verify(uuid, 1, v2Credentials, password);
+  }
+
+  @Benchmark
+  public boolean verifyV1() {
+    return v1Credentials.verify(password);
+  }
+
+  @Benchmark
+  public boolean verifyV2() {
+    return v2Credentials.verify(password);
+  }
+
+  @Benchmark
+  public boolean verifyCached() {
+    return verifiedCredentialsCache.verify(uuid, 1, v2Credentials, password);
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(AuthenticationCredentialsBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -17,24 +17,54 @@ public class AuthenticationCredentialsTest {
     AuthenticationCredentials credentials = new AuthenticationCredentials("mypassword");
     assertThat(credentials.getSalt()).isNotEmpty();
     assertThat(credentials.getHashedAuthenticationToken()).isNotEmpty();
+    assertThat(credentials.getVersion()).isEqualTo(AuthenticationCredentials.DEFAULT_VERSION);
+  }
+
+  @Test
+  public void testCreatingV2() {
+    AuthenticationCredentials credentials = new AuthenticationCredentials("mypassword", AuthenticationCredentials.Version.V2);
+    assertThat(credentials.getSalt()).isNotEmpty();
+    assertThat(credentials.getHashedAuthenticationToken()).isNotEmpty();
+    assertThat(credentials.getHashedAuthenticationToken().length()).isEqualTo(66);
+    assertThat(credentials.getVersion()).isEqualTo(AuthenticationCredentials.Version.V2);
+  }
+
+  @Test
+  public void testCreatingV1() {
+    AuthenticationCredentials credentials = new AuthenticationCredentials("mypassword", AuthenticationCredentials.Version.V1);
+    assertThat(credentials.getSalt()).isNotEmpty();
+    assertThat(credentials.getHashedAuthenticationToken()).isNotEmpty();
     assertThat(credentials.getHashedAuthenticationToken().length()).isEqualTo(40);
+    assertThat(credentials.getVersion()).isEqualTo(AuthenticationCredentials.Version.V1);
   }
 
   @Test
   public void testMatching() {
-    AuthenticationCredentials credentials = new AuthenticationCredentials("mypassword");
+    for (AuthenticationCredentials.Version version : AuthenticationCredentials.Version.values()) {
+      AuthenticationCredentials credentials = new AuthenticationCredentials("mypassword", version);
+
+      AuthenticationCredentials provided = new AuthenticationCredentials(credentials.getHashedAuthenticationToken(), credentials.getSalt());
+      assertThat(provided.getVersion()).isEqualTo(version);
+      assertThat(provided.verify("mypassword")).isTrue();
+    }
+  }
 
-    AuthenticationCredentials provided = new AuthenticationCredentials(credentials.getHashedAuthenticationToken(), credentials.getSalt());
+  @Test
+  public void testMatchingStoredV1() {
+    // SHA-1 of "1234" + "mypassword"
+    AuthenticationCredentials provided = new AuthenticationCredentials("4c14b2147584f7093a9c19323f8b0fc6576a47d4", "1234");
+    assertThat(provided.getVersion()).isEqualTo(AuthenticationCredentials.Version.V1);
     assertThat(provided.verify("mypassword")).isTrue();
   }
 
   @Test
   public void testMisMatching() {
-    AuthenticationCredentials credentials = new AuthenticationCredentials("mypassword");
+    for (AuthenticationCredentials.Version version : AuthenticationCredentials.Version.values()) {
+      AuthenticationCredentials credentials = new AuthenticationCredentials("mypassword", version);
 
-    AuthenticationCredentials provided = new AuthenticationCredentials(credentials.getHashedAuthenticationToken(), credentials.getSalt());
-    assertThat(provided.verify("wrong")).isFalse();
+      AuthenticationCredentials provided = new AuthenticationCredentials(credentials.getHashedAuthenticationToken(), credentials.getSalt());
+      assertThat(provided.verify("wrong")).isFalse();
+    }
   }
 
-
 }
\ No newline at end of file
@@ -15,15 +15,18 @@ import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.time.Clock;
 import java.time.Instant;
+import java.util.HashSet;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 import io.dropwizard.auth.basic.BasicCredentials;
 import org.junit.jupiter.api.BeforeEach;
@@ -297,6 +300,59 @@ class BaseAccountAuthenticatorTest {
     verify(credentials).verify(incorrectPassword);
   }
 
+  @ParameterizedTest
+  @MethodSource
+  void testAuthenticateMigrateCredentials(final AuthenticationCredentials.Version storedVersion,
+      final boolean migrateCredentials, final boolean expectMigration) {
+
+    final UUID uuid = UUID.randomUUID();
+    final String password = "12345";
+    final AuthenticationCredentials storedCredentials = new AuthenticationCredentials(password, storedVersion);
+
+    final Account account = new Account("+14088675309", uuid, new HashSet<>(), null);
+    account.addDevice(new Device(Device.MASTER_ID, null, storedCredentials.getHashedAuthenticationToken(),
+        storedCredentials.getSalt(), null, null, null, false, 0, null, 0, 0, null, 0, null));
+
+    when(clock.instant()).thenReturn(Instant.now());
+    when(accountsManager.get(uuid)).thenReturn(Optional.of(account));
+
+    // apply updates to the account in place, so the authenticated device reflects any migrated credentials
+    when(accountsManager.updateDevice(any(), anyLong(), any())).thenAnswer(answer -> {
+      final Account updatedAccount = answer.getArgument(0, Account.class);
+      updatedAccount.getDevice(answer.getArgument(1, Long.class)).ifPresent(answer.getArgument(2, Consumer.class));
+
+      return updatedAccount;
+    });
+
+    when(accountsManager.updateDeviceLastSeen(any(), any(), anyLong())).thenAnswer(answer -> {
+      answer.getArgument(1, Device.class).setLastSeen(answer.getArgument(2, Long.class));
+
+      return answer.getArgument(0, Account.class);
+    });
+
+    baseAccountAuthenticator = new BaseAccountAuthenticator(accountsManager, clock, null, migrateCredentials);
+
+    final Optional<AuthenticatedAccount> maybeAuthenticatedAccount =
+        baseAccountAuthenticator.authenticate(new BasicCredentials(uuid.toString(), password), false);
+
+    assertThat(maybeAuthenticatedAccount).isPresent();
+
+    final AuthenticationCredentials credentials =
+        maybeAuthenticatedAccount.get().getAuthenticatedDevice().getAuthenticationCredentials();
+
+    assertThat(credentials.getVersion())
+        .isEqualTo(expectMigration ? AuthenticationCredentials.CURRENT_VERSION : storedVersion);
+    assertThat(credentials.verify(password)).isTrue();
+    verify(accountsManager, expectMigration ? times(1) : never()).updateDevice(eq(account), eq(Device.MASTER_ID), any());
+  }
+
+  private static Stream<Arguments> testAuthenticateMigrateCredentials() {
+    return Stream.of(
+        Arguments.of(AuthenticationCredentials.Version.V1, true, true),
+        Arguments.of(AuthenticationCredentials.Version.V1, false, false),
+        Arguments.of(AuthenticationCredentials.Version.V2, true, false));
+  }
+
   @ParameterizedTest
   @MethodSource
   void testAuthenticateMalformedCredentials(final String username) {
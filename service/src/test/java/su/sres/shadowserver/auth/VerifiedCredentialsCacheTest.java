@@ -0,0 +1,81 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.auth;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class VerifiedCredentialsCacheTest {
+
+  private static final String PASSWORD = "password";
+
+  private VerifiedCredentialsCache verifiedCredentialsCache;
+
+  @BeforeEach
+  void setUp() {
+    verifiedCredentialsCache = new VerifiedCredentialsCache(100, Duration.ofMinutes(10));
+  }
+
+  @Test
+  void testVerifyCached() {
+    final UUID uuid = UUID.randomUUID();
+    final AuthenticationCredentials credentials = spy(new AuthenticationCredentials(PASSWORD));
+
+    assertTrue(verifiedCredentialsCache.verify(uuid, 1, credentials, PASSWORD));
+    assertTrue(verifiedCredentialsCache.verify(uuid, 1, credentials, PASSWORD));
+
+    verify(credentials, times(1)).verify(PASSWORD);
+  }
+
+  @Test
+  void testVerifyIncorrectPassword() {
+    final UUID uuid = UUID.randomUUID();
+    final AuthenticationCredentials credentials = spy(new AuthenticationCredentials(PASSWORD));
+
+    assertFalse(verifiedCredentialsCache.verify(uuid, 1, credentials, "incorrect"));
+    assertTrue(verifiedCredentialsCache.verify(uuid, 1, credentials, PASSWORD));
+
+    // a remembered password doesn't let a different one through
+    assertFalse(verifiedCredentialsCache.verify(uuid, 1, credentials, "incorrect"));
+
+    verify(credentials, times(2)).verify("incorrect");
+  }
+
+  @Test
+  void testVerifyChangedCredentials() {
+    final UUID uuid = UUID.randomUUID();
+
+    assertTrue(verifiedCredentialsCache.verify(uuid, 1, new AuthenticationCredentials(PASSWORD), PASSWORD));
+
+    // e.g. the device was re-linked with a new password
+    final AuthenticationCredentials changedCredentials = spy(new AuthenticationCredentials("new password"));
+
+    assertFalse(verifiedCredentialsCache.verify(uuid, 1, changedCredentials, PASSWORD));
+    verify(changedCredentials).verify(PASSWORD);
+  }
+
+  @Test
+  void testVerifyOtherDevice() {
+    final UUID uuid = UUID.randomUUID();
+    final AuthenticationCredentials credentials = new AuthenticationCredentials(PASSWORD);
+    final AuthenticationCredentials otherCredentials = spy(
+        new AuthenticationCredentials(credentials.getHashedAuthenticationToken(), credentials.getSalt()));
+
+    assertTrue(verifiedCredentialsCache.verify(uuid, 1, credentials, PASSWORD));
+    assertTrue(verifiedCredentialsCache.verify(uuid, 2, otherCredentials, PASSWORD));
+
+    verify(otherCredentials).verify(PASSWORD);
+  }
+}
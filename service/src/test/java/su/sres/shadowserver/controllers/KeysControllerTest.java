@@ -32,6 +32,8 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import io.dropwizard.auth.PolymorphicAuthValueFactoryProvider;
 import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
@@ -46,6 +48,7 @@ import su.sres.shadowserver.limits.PreKeyRateLimiter;
 import su.sres.shadowserver.limits.RateLimitChallengeManager;
 import su.sres.shadowserver.limits.RateLimiter;
 import su.sres.shadowserver.limits.RateLimiters;
+import su.sres.shadowserver.mappers.CompletionExceptionMapper;
 import su.sres.shadowserver.mappers.RateLimitChallengeExceptionMapper;
 import su.sres.shadowserver.mappers.ServerRejectedExceptionMapper;
 import su.sres.shadowserver.storage.Account;
@@ -107,6 +110,7 @@ class KeysControllerTest {
       .setTestContainerFactory(new GrizzlyWebTestContainerFactory())
       .addResource(new RateLimitChallengeExceptionMapper(rateLimitChallengeManager))
       .addResource(new ServerRejectedExceptionMapper())
+      .addResource(new CompletionExceptionMapper())
       .addResource(
           new KeysController(rateLimiters, keysScyllaDb, accounts, preKeyRateLimiter, rateLimitChallengeManager))
       .build();
@@ -164,17 +168,20 @@ class KeysControllerTest {
     
     when(accounts.get(NOT_EXISTS_NUMBER)).thenReturn(Optional.empty());
     when(accounts.get(NOT_EXISTS_UUID)).thenReturn(Optional.empty());
+
+    when(accounts.getAsync(EXISTS_UUID)).thenReturn(CompletableFuture.completedFuture(Optional.of(existsAccount)));
+    when(accounts.getAsync(NOT_EXISTS_UUID)).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
     
     when(rateLimiters.getPreKeysLimiter()).thenReturn(rateLimiter);
 
-    when(keysScyllaDb.take(eq(existsAccount), eq(1L))).thenReturn(Optional.of(SAMPLE_KEY));
+    when(keysScyllaDb.takeAsync(eq(existsAccount), eq(1L))).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY)));
 
-    when(keysScyllaDb.take(existsAccount)).thenReturn(Map.of(1L, SAMPLE_KEY,
+    when(keysScyllaDb.takeAsync(existsAccount)).thenReturn(CompletableFuture.completedFuture(Map.of(1L, SAMPLE_KEY,
         2L, SAMPLE_KEY2,
         3L, SAMPLE_KEY3,
-        4L, SAMPLE_KEY4));
+        4L, SAMPLE_KEY4)));
 
-    when(keysScyllaDb.getCount(eq(AuthHelper.VALID_ACCOUNT), eq(1L))).thenReturn(5);
+    when(keysScyllaDb.getCountAsync(eq(AuthHelper.VALID_ACCOUNT), eq(1L))).thenReturn(CompletableFuture.completedFuture(5));
 
     when(AuthHelper.VALID_DEVICE.getSignedPreKey()).thenReturn(VALID_DEVICE_SIGNED_KEY);
     when(AuthHelper.VALID_ACCOUNT.getIdentityKey()).thenReturn(null);
@@ -202,7 +209,7 @@ class KeysControllerTest {
 
     assertThat(result.getCount()).isEqualTo(4);
 
-    verify(keysScyllaDb).getCount(eq(AuthHelper.VALID_ACCOUNT), eq(1L));
+    verify(keysScyllaDb).getCountAsync(eq(AuthHelper.VALID_ACCOUNT), eq(1L));
   }  
 
   @Test
@@ -251,7 +258,7 @@ class KeysControllerTest {
     assertThat(result.getDevice(1).getPreKey().getPublicKey()).isEqualTo(SAMPLE_KEY.getPublicKey());
     assertThat(result.getDevice(1).getSignedPreKey()).isEqualTo(existsAccount.getDevice(1).get().getSignedPreKey());
 
-    verify(keysScyllaDb).take(eq(existsAccount), eq(1L));
+    verify(keysScyllaDb).takeAsync(eq(existsAccount), eq(1L));
     verifyNoMoreInteractions(keysScyllaDb);
   }
 
@@ -268,7 +275,7 @@ class KeysControllerTest {
     assertThat(result.getDevice(1).getPreKey().getPublicKey()).isEqualTo(SAMPLE_KEY.getPublicKey());
     assertThat(result.getDevice(1).getSignedPreKey()).isEqualTo(existsAccount.getDevice(1).get().getSignedPreKey());
 
-    verify(keysScyllaDb).take(eq(existsAccount), eq(1L));
+    verify(keysScyllaDb).takeAsync(eq(existsAccount), eq(1L));
     verifyNoMoreInteractions(keysScyllaDb);
   }
   
@@ -305,6 +312,33 @@ class KeysControllerTest {
     verifyNoMoreInteractions(keysScyllaDb);
   }
 
+  @Test
+  void testAccessChecksAfterAsynchronousLookup() {
+    // complete the lookup on another thread so the access checks run in a continuation rather than inline
+    when(accounts.getAsync(NOT_EXISTS_UUID))
+        .thenReturn(CompletableFuture.supplyAsync(Optional::empty, CompletableFuture.delayedExecutor(10, TimeUnit.MILLISECONDS)));
+
+    Response unidentifiedResponse = resources.getJerseyTest().target(String.format("/v2/keys/%s/1", NOT_EXISTS_UUID)).request()
+        .header(OptionalAccess.UNIDENTIFIED, AuthHelper.getUnidentifiedAccessHeader("1337".getBytes())).get();
+
+    assertThat(unidentifiedResponse.getStatus()).isEqualTo(401);
+
+    Response identifiedResponse = resources.getJerseyTest().target(String.format("/v2/keys/%s/1", NOT_EXISTS_UUID)).request()
+        .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_UUID, AuthHelper.VALID_PASSWORD)).get();
+
+    assertThat(identifiedResponse.getStatus()).isEqualTo(404);
+    verifyNoMoreInteractions(keysScyllaDb);
+  }
+
+  @Test
+  void testMalformedDeviceId() {
+    Response response = resources.getJerseyTest().target(String.format("/v2/keys/%s/notanumber", EXISTS_UUID)).request()
+        .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_UUID, AuthHelper.VALID_PASSWORD)).get();
+
+    assertThat(response.getStatus()).isEqualTo(422);
+    verifyNoMoreInteractions(keysScyllaDb);
+  }
+
   @Test
   void validMultiRequestTestV2() {
     PreKeyResponse results = resources.getJerseyTest()
@@ -350,7 +384,7 @@ class KeysControllerTest {
     assertThat(signedPreKey).isNull();
     assertThat(deviceId).isEqualTo(4);
 
-    verify(keysScyllaDb).take(eq(existsAccount));
+    verify(keysScyllaDb).takeAsync(eq(existsAccount));
     verifyNoMoreInteractions(keysScyllaDb);
   }
 
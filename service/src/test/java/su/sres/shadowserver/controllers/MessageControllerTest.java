@@ -7,6 +7,7 @@ package su.sres.shadowserver.controllers;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
 import com.vdurmont.semver4j.Semver;
 
 import org.assertj.core.api.Assertions;
@@ -41,6 +42,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
@@ -55,6 +57,7 @@ import io.dropwizard.testing.junit5.ResourceExtension;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import su.sres.shadowserver.entities.IncomingMessageList;
 import su.sres.shadowserver.entities.MismatchedDevices;
+import su.sres.shadowserver.entities.MultiRecipientMessage.Recipient;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.entities.OutgoingMessageEntityList;
 import su.sres.shadowserver.entities.RateLimitChallenge;
@@ -67,6 +70,7 @@ import su.sres.shadowserver.limits.RateLimiter;
 import su.sres.shadowserver.limits.RateLimiters;
 import su.sres.shadowserver.limits.UnsealedSenderRateLimiter;
 import su.sres.shadowserver.mappers.RateLimitChallengeExceptionMapper;
+import su.sres.shadowserver.providers.MultiRecipientMessageProvider;
 import su.sres.shadowserver.push.ApnFallbackManager;
 import su.sres.shadowserver.push.MessageSender;
 import su.sres.shadowserver.push.ReceiptSender;
@@ -627,6 +631,35 @@ class MessageControllerTest {
     }
   }
 
+  @Test
+  void testBuildCommonMessage() {
+    final byte[] perRecipientKeyMaterial = new byte[48];
+    final byte[] commonPayload = new byte[MessageController.SHARED_PAYLOAD_MINIMUM_SIZE];
+    new Random().nextBytes(perRecipientKeyMaterial);
+    new Random().nextBytes(commonPayload);
+
+    final Recipient recipient = new Recipient(UUID.randomUUID(), 1L, 1, perRecipientKeyMaterial);
+
+    final ByteString expectedContent = ByteString.copyFrom(new byte[] { MultiRecipientMessageProvider.VERSION })
+        .concat(ByteString.copyFrom(perRecipientKeyMaterial))
+        .concat(ByteString.copyFrom(commonPayload));
+
+    final Envelope inlineMessage = MessageController.buildCommonMessage(0, recipient, commonPayload, Optional.empty());
+    assertEquals(expectedContent, inlineMessage.getContent());
+    assertFalse(inlineMessage.hasSharedPayloadId());
+
+    final ByteString sharedPayloadId = ByteString.copyFrom(new byte[32]);
+    final Envelope sharedMessage = MessageController.buildCommonMessage(0, recipient, commonPayload, Optional.of(sharedPayloadId));
+    assertEquals(sharedPayloadId, sharedMessage.getSharedPayloadId());
+    assertEquals(1 + perRecipientKeyMaterial.length, sharedMessage.getContent().size());
+
+    final OutgoingMessageEntity sharedMessageEntity = new OutgoingMessageEntity(-1, false, UUID.randomUUID(),
+        sharedMessage.getType().getNumber(), null, sharedMessage.getTimestamp(), null, null, 0, null,
+        sharedMessage.getContent(), sharedMessage.getServerTimestamp(), null, sharedMessage.getSharedPayloadId());
+
+    assertEquals(expectedContent, sharedMessageEntity.withSharedPayload(ByteString.copyFrom(commonPayload)).getContentBytes());
+  }
+
   static Account mockAccountWithDeviceAndEnabled(Object... deviceIdAndEnabled) {
     Account account = mock(Account.class);
     if (deviceIdAndEnabled.length % 2 != 0) {
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.controllers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.google.protobuf.ByteString;
+
+import su.sres.shadowserver.entities.MultiRecipientMessage.Recipient;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+import su.sres.shadowserver.metrics.PushLatencyManager;
+import su.sres.shadowserver.redis.RedisClusterExtension;
+import su.sres.shadowserver.storage.AbstractScyllaDbStore;
+import su.sres.shadowserver.storage.DestinationMessage;
+import su.sres.shadowserver.storage.DynamoDbExtension;
+import su.sres.shadowserver.storage.MessageQueueCursor;
+import su.sres.shadowserver.storage.MessagesCache;
+import su.sres.shadowserver.storage.MessagesManager;
+import su.sres.shadowserver.storage.MessagesScyllaDb;
+import su.sres.shadowserver.storage.ReportMessageManager;
+import su.sres.shadowserver.util.MessagesDynamoDbExtension;
+
+/**
+ * Checks that storing the common payload of a message to a 500-member group once and sharing it takes much less message
+ * cache memory than giving every recipient's queue its own copy. Memory is measured as the growth of
+ * {@code used_memory} across all cluster nodes.
+ */
+class MultiRecipientMessageMemoryTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  @RegisterExtension
+  static final DynamoDbExtension DYNAMO_DB_EXTENSION = MessagesDynamoDbExtension.build();
+
+  private static final int RECIPIENT_COUNT = 500;
+  private static final int PER_RECIPIENT_KEY_MATERIAL_SIZE = 48;
+
+  // inline copies of even the smallest tested payload outweigh the per-recipient overhead many times over
+  private static final int MIN_MEMORY_REDUCTION_FACTOR = 4;
+
+  private ExecutorService notificationExecutorService;
+  private ExecutorService persistedMessageExecutor;
+  private MessagesManager messagesManager;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    notificationExecutorService = Executors.newSingleThreadExecutor();
+    persistedMessageExecutor = Executors.newFixedThreadPool(4);
+
+    final MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(DYNAMO_DB_EXTENSION.getDynamoDbClient(),
+        DYNAMO_DB_EXTENSION.getDynamoDbAsyncClient(), MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(14),
+        AbstractScyllaDbStore.DEFAULT_BATCH_WRITE_PARALLELISM);
+
+    final MessagesCache messagesCache = new MessagesCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(),
+        REDIS_CLUSTER_EXTENSION.getRedisCluster(), notificationExecutorService);
+
+    messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, mock(PushLatencyManager.class),
+        mock(ReportMessageManager.class), persistedMessageExecutor);
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    persistedMessageExecutor.shutdown();
+    notificationExecutorService.shutdown();
+
+    persistedMessageExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    notificationExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {4096, 65536})
+  void testCacheMemory(final int commonPayloadSize) {
+    final byte[] commonPayload = new byte[commonPayloadSize];
+    ThreadLocalRandom.current().nextBytes(commonPayload);
+
+    final long inlineBytes = measureCacheMemory(commonPayload, () -> sendToGroup(commonPayload, Optional.empty()));
+    final long sharedBytes = measureCacheMemory(commonPayload, () ->
+        sendToGroup(commonPayload, Optional.of(messagesManager.storeSharedPayloadAsync(commonPayload, false).join())));
+
+    assertTrue(sharedBytes * MIN_MEMORY_REDUCTION_FACTOR < inlineBytes,
+        String.format("%d KiB inline, %d KiB shared", inlineBytes / 1024, sharedBytes / 1024));
+  }
+
+  private List<UUID> sendToGroup(final byte[] commonPayload, final Optional<ByteString> sharedPayloadId) {
+    final List<UUID> recipientUuids = new ArrayList<>(RECIPIENT_COUNT);
+    final List<DestinationMessage> messages = new ArrayList<>(RECIPIENT_COUNT);
+
+    for (int i = 0; i < RECIPIENT_COUNT; i++) {
+      final byte[] perRecipientKeyMaterial = new byte[PER_RECIPIENT_KEY_MATERIAL_SIZE];
+      ThreadLocalRandom.current().nextBytes(perRecipientKeyMaterial);
+
+      final Recipient recipient = new Recipient(UUID.randomUUID(), 1, 1, perRecipientKeyMaterial);
+
+      recipientUuids.add(recipient.getUuid());
+      messages.add(new DestinationMessage(recipient.getUuid(), recipient.getDeviceId(),
+          MessageController.buildCommonMessage(System.currentTimeMillis(), recipient, commonPayload, sharedPayloadId)));
+    }
+
+    messagesManager.insert(messages);
+
+    return recipientUuids;
+  }
+
+  private long measureCacheMemory(final byte[] commonPayload, final Supplier<List<UUID>> sendToGroup) {
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection -> connection.sync().flushall());
+
+    final long before = getUsedMemory();
+    final List<UUID> recipientUuids = sendToGroup.get();
+    final long after = getUsedMemory();
+
+    // every recipient must still receive the whole common payload
+    final List<OutgoingMessageEntity> messages = messagesManager.getMessagesForDeviceAsync(recipientUuids.get(0), 1,
+        "Test-UA", MessageQueueCursor.start(true)).join().getMessages();
+
+    assertEquals(1, messages.size());
+    assertEquals(ByteString.copyFrom(commonPayload),
+        messages.get(0).getContentBytes().substring(1 + PER_RECIPIENT_KEY_MATERIAL_SIZE));
+
+    return after - before;
+  }
+
+  private static long getUsedMemory() {
+    return REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection -> {
+      long usedMemory = 0;
+
+      for (final String info : connection.sync().upstream().commands().info("memory")) {
+        for (final String line : info.split("\r?\n")) {
+          if (line.startsWith("used_memory:")) {
+            usedMemory += Long.parseLong(line.substring("used_memory:".length()).trim());
+          }
+        }
+      }
+
+      return usedMemory;
+    });
+  }
+}
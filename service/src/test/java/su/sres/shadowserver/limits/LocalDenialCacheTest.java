@@ -0,0 +1,73 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.limits;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LocalDenialCacheTest {
+
+  private static final String KEY = "test";
+
+  private Clock clock;
+  private LocalDenialCache localDenialCache;
+
+  @BeforeEach
+  void setUp() {
+    clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(1_000L);
+
+    localDenialCache = new LocalDenialCache(100, Duration.ofSeconds(30), clock);
+  }
+
+  @Test
+  void testDenyUntilSpaceAvailable() {
+    assertTrue(localDenialCache.getRemainingDenial(KEY, 1).isEmpty());
+
+    localDenialCache.deny(KEY, 1, Duration.ofSeconds(10));
+
+    assertEquals(Optional.of(Duration.ofSeconds(10)), localDenialCache.getRemainingDenial(KEY, 1));
+    assertEquals(Optional.of(Duration.ofSeconds(10)), localDenialCache.getRemainingDenial(KEY, 2));
+
+    when(clock.millis()).thenReturn(6_000L);
+    assertEquals(Optional.of(Duration.ofSeconds(5)), localDenialCache.getRemainingDenial(KEY, 1));
+
+    when(clock.millis()).thenReturn(11_000L);
+    assertTrue(localDenialCache.getRemainingDenial(KEY, 1).isEmpty());
+  }
+
+  @Test
+  void testSmallerAmountNotDenied() {
+    localDenialCache.deny(KEY, 2, Duration.ofSeconds(10));
+
+    assertTrue(localDenialCache.getRemainingDenial(KEY, 1).isEmpty());
+    assertTrue(localDenialCache.getRemainingDenial(KEY, 2).isPresent());
+  }
+
+  @Test
+  void testDenialCappedAtMaxDuration() {
+    localDenialCache.deny(KEY, 1, Duration.ofMinutes(10));
+
+    assertEquals(Optional.of(Duration.ofSeconds(30)), localDenialCache.getRemainingDenial(KEY, 1));
+  }
+
+  @Test
+  void testClear() {
+    localDenialCache.deny(KEY, 1, Duration.ofSeconds(10));
+    localDenialCache.clear(KEY);
+
+    assertTrue(localDenialCache.getRemainingDenial(KEY, 1).isEmpty());
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.limits;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.lettuce.core.ScriptOutputType;
+
+import su.sres.shadowserver.redis.ClusterLuaScript;
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.redis.RedisClusterExtension;
+import su.sres.shadowserver.util.SystemMapper;
+
+/**
+ * Compares the latency of {@link RateLimiter#validate(String)}, which runs as a single Lua script, with the former
+ * validation that read a JSON bucket, updated it in the JVM and wrote it back. Both run against an embedded Redis
+ * cluster started by {@link RedisClusterExtension}, driven here outside of JUnit. Run with {@link #main(String[])}
+ * from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+  private static final String KEY = "benchmark";
+  private static final String LEGACY_BUCKET_NAME = "leaky_bucket::legacy::" + KEY;
+
+  // large and fast-leaking enough that neither path ever runs out of permits during a measurement
+  private static final int BUCKET_SIZE = 100_000_000;
+  private static final double LEAK_RATE_PER_MINUTE = 1_000_000.0;
+
+  private final RedisClusterExtension redisClusterExtension = RedisClusterExtension.builder().build();
+  private final ObjectMapper mapper = SystemMapper.getMapper();
+
+  private FaultTolerantRedisCluster redisCluster;
+  private RateLimiter rateLimiter;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    redisClusterExtension.beforeAll(null);
+    redisClusterExtension.beforeEach(null);
+
+    redisCluster = redisClusterExtension.getRedisCluster();
+    rateLimiter = new RateLimiter(redisCluster,
+        ClusterLuaScript.fromResource(redisCluster, "lua/validate_rate_limit.lua", ScriptOutputType.INTEGER),
+        "benchmark", BUCKET_SIZE, LEAK_RATE_PER_MINUTE);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    redisClusterExtension.afterEach(null);
+    redisClusterExtension.afterAll(null);
+  }
+
+  @Benchmark
+  public void validateScript() throws Exception {
+    rateLimiter.validate(KEY);
+  }
+
+  @Benchmark
+  public boolean validateReadModifyWrite() throws Exception {
+    final String serialized = redisCluster.withCluster(connection -> connection.sync().get(LEGACY_BUCKET_NAME));
+    final LeakyBucket bucket = serialized != null
+        ? LeakyBucket.fromSerialized(mapper, serialized)
+        : new LeakyBucket(BUCKET_SIZE, LEAK_RATE_PER_MINUTE / 60_000);
+
+    if (bucket.add(1)) {
+      final String updated = bucket.serialize(mapper);
+      redisCluster.useCluster(connection -> connection.sync().setex(LEGACY_BUCKET_NAME, 120, updated));
+      return true;
+    }
+
+    return false;
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(RateLimiterBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
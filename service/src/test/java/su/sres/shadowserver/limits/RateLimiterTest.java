@@ -0,0 +1,135 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.limits;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.lettuce.core.ScriptOutputType;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import su.sres.shadowserver.controllers.RateLimitExceededException;
+import su.sres.shadowserver.redis.ClusterLuaScript;
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.redis.RedisClusterExtension;
+import su.sres.shadowserver.util.SystemMapper;
+
+class RateLimiterTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  private static final String KEY = "test";
+  private static final String BUCKET_NAME = "leaky_bucket::test::" + KEY;
+
+  private FaultTolerantRedisCluster redisCluster;
+  private ClusterLuaScript validateScript;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    redisCluster = REDIS_CLUSTER_EXTENSION.getRedisCluster();
+    validateScript = ClusterLuaScript.fromResource(redisCluster, "lua/validate_rate_limit.lua", ScriptOutputType.INTEGER);
+  }
+
+  @Test
+  void testValidate() {
+    final RateLimiter rateLimiter = new RateLimiter(redisCluster, validateScript, "test", 2, 1.0);
+
+    assertDoesNotThrow(() -> rateLimiter.validate(KEY));
+    assertTrue(rateLimiter.hasAvailablePermits(KEY, 1));
+    assertDoesNotThrow(() -> rateLimiter.validate(KEY));
+    assertFalse(rateLimiter.hasAvailablePermits(KEY, 1));
+
+    final RateLimitExceededException exception = assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+    assertTrue(exception.getRetryDuration().compareTo(Duration.ZERO) > 0);
+    assertTrue(exception.getRetryDuration().compareTo(Duration.ofMinutes(1)) <= 0);
+
+    assertEquals("hash", redisCluster.withCluster(connection -> connection.sync().type(BUCKET_NAME)));
+    assertTrue(redisCluster.withCluster(connection -> connection.sync().pttl(BUCKET_NAME)) > 0);
+
+    rateLimiter.clear(KEY);
+    assertDoesNotThrow(() -> rateLimiter.validate(KEY));
+  }
+
+  @Test
+  void testHasAvailablePermitsDoesNotTakePermits() {
+    final RateLimiter rateLimiter = new RateLimiter(redisCluster, validateScript, "test", 1, 1.0);
+
+    assertTrue(rateLimiter.hasAvailablePermits(KEY, 1));
+    assertTrue(rateLimiter.hasAvailablePermits(KEY, 1));
+    assertEquals(0L, (long) redisCluster.withCluster(connection -> connection.sync().exists(BUCKET_NAME)));
+
+    assertDoesNotThrow(() -> rateLimiter.validate(KEY));
+    assertThrows(IllegalArgumentException.class, () -> rateLimiter.validate(KEY, 2));
+  }
+
+  @Test
+  void testLegacyBucketMigrated() throws Exception {
+    final ObjectMapper mapper = SystemMapper.getMapper();
+    final LeakyBucket legacyBucket = new LeakyBucket(2, 1.0 / 60_000);
+    legacyBucket.add(2);
+
+    final String serialized = legacyBucket.serialize(mapper);
+    redisCluster.useCluster(connection -> connection.sync().setex(BUCKET_NAME, 120, serialized));
+
+    final RateLimiter rateLimiter = new RateLimiter(redisCluster, validateScript, "test", 2, 1.0);
+
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+    assertEquals("hash", redisCluster.withCluster(connection -> connection.sync().type(BUCKET_NAME)));
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+  }
+
+  @Test
+  void testConcurrentValidation() throws Exception {
+    final int bucketSize = 50;
+    final RateLimiter rateLimiter = new RateLimiter(redisCluster, validateScript, "test", bucketSize, 0.001);
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    try {
+      final List<Future<Boolean>> futures = new ArrayList<>();
+
+      for (int i = 0; i < bucketSize * 2; i++) {
+        futures.add(executor.submit(() -> {
+          try {
+            rateLimiter.validate(KEY);
+            return true;
+          } catch (final RateLimitExceededException e) {
+            return false;
+          }
+        }));
+      }
+
+      int permitted = 0;
+
+      for (final Future<Boolean> future : futures) {
+        if (future.get(10, TimeUnit.SECONDS)) {
+          permitted++;
+        }
+      }
+
+      // the former read-modify-write sequence could let through more than a bucket's worth of concurrent requests
+      assertEquals(bucketSize, permitted);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -12,6 +12,7 @@ import static org.junit.jupiter.api.Assertions.assertNull;
 
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
@@ -41,4 +42,28 @@ class PushLatencyManagerTest {
           pushLatencyManager.getLatencyAndClearTimestamp(accountUuid, deviceId, System.currentTimeMillis()).get());
     }
   }
+
+  @Test
+  void testRecordQueueRead() throws ExecutionException, InterruptedException, TimeoutException {
+    final PushLatencyManager pushLatencyManager = new PushLatencyManager(REDIS_CLUSTER_EXTENSION.getRedisCluster());
+    final UUID accountUuid = UUID.randomUUID();
+    final long deviceId = 1;
+
+    pushLatencyManager.recordPushSent(accountUuid, deviceId, System.currentTimeMillis());
+    pushLatencyManager.recordQueueRead(accountUuid, deviceId, "Signal-Android/4.68.3");
+
+    // the timestamp is cleared asynchronously
+    final String key = "push_latency::" + accountUuid + "::" + deviceId;
+    final long deadline = System.currentTimeMillis() + 5_000;
+
+    while (REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection -> connection.sync().exists(key)) > 0) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new TimeoutException("Push timestamp not cleared");
+      }
+
+      Thread.sleep(10);
+    }
+
+    assertNull(pushLatencyManager.getLatencyAndClearTimestamp(accountUuid, deviceId, System.currentTimeMillis()).get());
+  }
 }
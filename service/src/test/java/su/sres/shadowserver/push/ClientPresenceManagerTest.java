@@ -10,8 +10,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import su.sres.shadowserver.redis.AbstractRedisClusterTest;
+import su.sres.shadowserver.util.Pair;
 
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -65,6 +67,20 @@ public class ClientPresenceManagerTest extends AbstractRedisClusterTest {
 	assertTrue(clientPresenceManager.isPresent(accountUuid, deviceId));
     }
 
+    @Test
+    public void testIsPresentBatch() {
+	final Pair<UUID, Long> absent = new Pair<>(UUID.randomUUID(), 1L);
+	final Pair<UUID, Long> locallyPresent = new Pair<>(UUID.randomUUID(), 2L);
+	final Pair<UUID, Long> remotelyPresent = new Pair<>(UUID.randomUUID(), 3L);
+
+	clientPresenceManager.setPresent(locallyPresent.first(), locallyPresent.second(), NO_OP);
+	getRedisCluster().useCluster(connection -> connection.sync().set(ClientPresenceManager.getPresenceKey(remotelyPresent.first(), remotelyPresent.second()),
+		UUID.randomUUID().toString()));
+
+	assertEquals(Map.of(absent, false, locallyPresent, true, remotelyPresent, true),
+		clientPresenceManager.isPresent(List.of(absent, locallyPresent, remotelyPresent)));
+    }
+
     @Test
     public void testIsLocallyPresent() {
 	final UUID accountUuid = UUID.randomUUID();
@@ -157,6 +173,44 @@ public class ClientPresenceManagerTest extends AbstractRedisClusterTest {
 	}
     }
 
+    @Test(timeout = 10_000)
+    public void testRemoteDisplacementWithPatternSubscriptions() throws Exception {
+	final UUID accountUuid = UUID.randomUUID();
+	final long deviceId = 1;
+
+	final ClientPresenceManager patternPresenceManager = new ClientPresenceManager(getRedisCluster(), presenceRenewalExecutorService, presenceRenewalExecutorService, true);
+	final AtomicInteger displacementCounter = new AtomicInteger(0);
+
+	patternPresenceManager.start();
+
+	try {
+	    patternPresenceManager.setPresent(accountUuid, deviceId, () -> {
+		synchronized (displacementCounter) {
+		    displacementCounter.incrementAndGet();
+		    displacementCounter.notifyAll();
+		}
+	    });
+
+	    // Setting presence triggers a notification for this manager's own write, which must not displace the client
+	    presenceRenewalExecutorService.submit(() -> {}).get();
+	    assertEquals(0, displacementCounter.get());
+	    assertTrue(patternPresenceManager.isLocallyPresent(accountUuid, deviceId));
+
+	    getRedisCluster().useCluster(connection -> connection.sync().set(ClientPresenceManager.getPresenceKey(accountUuid, deviceId),
+		    UUID.randomUUID().toString()));
+
+	    synchronized (displacementCounter) {
+		while (displacementCounter.get() == 0) {
+		    displacementCounter.wait();
+		}
+	    }
+
+	    assertFalse(patternPresenceManager.isLocallyPresent(accountUuid, deviceId));
+	} finally {
+	    patternPresenceManager.stop();
+	}
+    }
+
     @Test
     public void testClearPresence() {
 	final UUID accountUuid = UUID.randomUUID();
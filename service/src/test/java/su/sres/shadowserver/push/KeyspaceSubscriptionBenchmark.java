@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.push;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import su.sres.shadowserver.redis.RedisClusterExtension;
+import su.sres.shadowserver.storage.MessageAvailabilityListener;
+import su.sres.shadowserver.storage.MessagesCache;
+
+/**
+ * Measures how quickly devices can "connect", i.e. declare their presence and register a message availability listener
+ * the way {@code AuthenticatedConnectListener} does, from 32 concurrent threads, with per-device channel subscriptions
+ * and with per-node pattern subscriptions. Connected devices are never disconnected, so each trial ends with every
+ * device it connected still subscribed. Runs against an embedded Redis cluster started by
+ * {@link RedisClusterExtension}, driven here outside of JUnit. Run with {@link #main(String[])} from the test
+ * classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(32)
+public class KeyspaceSubscriptionBenchmark {
+
+  private static final DisplacedPresenceListener NO_OP_DISPLACEMENT_LISTENER = () -> {
+  };
+
+  private static final MessageAvailabilityListener NO_OP_MESSAGE_LISTENER = new MessageAvailabilityListener() {
+    @Override
+    public void handleNewMessagesAvailable() {
+    }
+
+    @Override
+    public void handleMessagesPersisted() {
+    }
+  };
+
+  @Param({"false", "true"})
+  private boolean patternSubscriptions;
+
+  private final RedisClusterExtension redisClusterExtension = RedisClusterExtension.builder().build();
+
+  private ScheduledExecutorService scheduledExecutorService;
+  private ExecutorService notificationExecutorService;
+  private ClientPresenceManager clientPresenceManager;
+  private MessagesCache messagesCache;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    redisClusterExtension.beforeAll(null);
+    redisClusterExtension.beforeEach(null);
+
+    redisClusterExtension.getRedisCluster().useCluster(connection ->
+        connection.sync().upstream().commands().configSet("notify-keyspace-events", "K$glz"));
+
+    scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+    notificationExecutorService = Executors.newFixedThreadPool(4);
+
+    clientPresenceManager = new ClientPresenceManager(redisClusterExtension.getRedisCluster(), scheduledExecutorService,
+        notificationExecutorService, patternSubscriptions);
+
+    messagesCache = new MessagesCache(redisClusterExtension.getRedisCluster(), redisClusterExtension.getRedisCluster(),
+        notificationExecutorService, patternSubscriptions);
+
+    clientPresenceManager.start();
+    messagesCache.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    messagesCache.stop();
+    clientPresenceManager.stop();
+
+    notificationExecutorService.shutdown();
+    scheduledExecutorService.shutdown();
+
+    notificationExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+    scheduledExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+
+    redisClusterExtension.afterEach(null);
+    redisClusterExtension.afterAll(null);
+  }
+
+  @Benchmark
+  public void connect() {
+    final UUID accountUuid = UUID.randomUUID();
+
+    clientPresenceManager.setPresent(accountUuid, 1, NO_OP_DISPLACEMENT_LISTENER);
+    messagesCache.addMessageAvailabilityListener(accountUuid, 1, NO_OP_MESSAGE_LISTENER);
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(KeyspaceSubscriptionBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -14,11 +14,16 @@ import org.mockito.ArgumentCaptor;
 import su.sres.shadowserver.entities.MessageProtos;
 import su.sres.shadowserver.metrics.PushLatencyManager;
 import su.sres.shadowserver.storage.Account;
+import su.sres.shadowserver.storage.DestinationMessage;
 import su.sres.shadowserver.storage.Device;
 import su.sres.shadowserver.storage.MessagesManager;
+import su.sres.shadowserver.util.Pair;
 
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -153,6 +158,95 @@ class MessageSenderTest {
     verifyNoInteractions(apnSender);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  void testSendMessagesBatch() {
+    final Account unregisteredAccount = mock(Account.class);
+    final Device unregisteredDevice = mock(Device.class);
+    when(unregisteredAccount.getUuid()).thenReturn(UUID.randomUUID());
+    when(unregisteredDevice.getId()).thenReturn(DEVICE_ID);
+
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID))))
+        .thenReturn(Map.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID), false));
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    final MessageSender.Delivery delivery = new MessageSender.Delivery(account, device, message);
+    final MessageSender.Delivery unregisteredDelivery = new MessageSender.Delivery(unregisteredAccount, unregisteredDevice, message);
+
+    final MessageSender.BatchResult result = messageSender.sendMessages(List.of(delivery, unregisteredDelivery), false);
+
+    assertEquals(List.of(unregisteredDelivery), result.getUndeliverable());
+    assertTrue(result.getFailed().isEmpty());
+
+    final ArgumentCaptor<List<DestinationMessage>> messagesCaptor = ArgumentCaptor.forClass(List.class);
+    verify(messagesManager).insert(messagesCaptor.capture());
+
+    assertEquals(1, messagesCaptor.getValue().size());
+    assertEquals(ACCOUNT_UUID, messagesCaptor.getValue().get(0).getDestinationUuid());
+    assertEquals(message, messagesCaptor.getValue().get(0).getMessage());
+    verify(fcmSender).sendMessage(any());
+    verifyNoInteractions(apnSender);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testSendOnlineMessagesBatch() {
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID))))
+        .thenReturn(Map.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID), true));
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    final MessageSender.BatchResult result =
+        messageSender.sendMessages(List.of(new MessageSender.Delivery(account, device, message)), true);
+
+    assertTrue(result.getUndeliverable().isEmpty());
+    assertTrue(result.getFailed().isEmpty());
+
+    final ArgumentCaptor<List<DestinationMessage>> messagesCaptor = ArgumentCaptor.forClass(List.class);
+    verify(messagesManager).insert(messagesCaptor.capture());
+
+    assertEquals(1, messagesCaptor.getValue().size());
+    assertTrue(messagesCaptor.getValue().get(0).getMessage().getEphemeral());
+    verifyNoInteractions(fcmSender);
+    verifyNoInteractions(apnSender);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testSendMessagesBatchPartialFailure() {
+    final UUID failedAccountUuid = UUID.randomUUID();
+    final Account failedAccount = mock(Account.class);
+    final Device failedDevice = mock(Device.class);
+    when(failedAccount.getUuid()).thenReturn(failedAccountUuid);
+    when(failedDevice.getId()).thenReturn(DEVICE_ID);
+    when(failedDevice.getGcmId()).thenReturn("failed-gcm-id");
+
+    when(clientPresenceManager.isPresent(any(List.class))).thenReturn(Map.of(
+        new Pair<>(ACCOUNT_UUID, DEVICE_ID), false,
+        new Pair<>(failedAccountUuid, DEVICE_ID), false));
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    when(messagesManager.insert(any(List.class))).thenAnswer(answer -> {
+      final List<DestinationMessage> messages = answer.getArgument(0);
+
+      return messages.stream()
+          .filter(destinationMessage -> destinationMessage.getDestinationUuid().equals(failedAccountUuid))
+          .collect(Collectors.toList());
+    });
+
+    final MessageSender.Delivery delivery = new MessageSender.Delivery(account, device, message);
+    final MessageSender.Delivery failedDelivery = new MessageSender.Delivery(failedAccount, failedDevice, message);
+
+    final MessageSender.BatchResult result = messageSender.sendMessages(List.of(failedDelivery, delivery), false);
+
+    assertTrue(result.getUndeliverable().isEmpty());
+    assertEquals(List.of(failedDelivery), result.getFailed());
+
+    // only the recipient whose message was queued is notified
+    final ArgumentCaptor<GcmMessage> gcmMessageCaptor = ArgumentCaptor.forClass(GcmMessage.class);
+    verify(fcmSender).sendMessage(gcmMessageCaptor.capture());
+    assertEquals("gcm-id", gcmMessageCaptor.getValue().getGcmId());
+  }
+
   private MessageProtos.Envelope generateRandomMessage() {
     return MessageProtos.Envelope.newBuilder()
         .setTimestamp(System.currentTimeMillis())
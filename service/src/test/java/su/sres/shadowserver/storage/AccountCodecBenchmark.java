@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import su.sres.shadowserver.entities.SignedPreKey;
+import su.sres.shadowserver.util.SystemMapper;
+
+/**
+ * Compares encoding, decoding and copying accounts with {@link AccountCodec} against the JSON form accounts were
+ * stored in before; the encoded sizes are printed during setup. Run with {@link #main(String[])} from the test
+ * classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AccountCodecBenchmark {
+
+  @Param({"1", "5", "10"})
+  private int devices;
+
+  private final ObjectMapper mapper = SystemMapper.getMapper();
+
+  private Account account;
+  private byte[] json;
+  private byte[] binary;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    account = new Account("johndoe", UUID.randomUUID(), new HashSet<>(), randomBytes(16));
+    account.setIdentityKey("identityKey-" + UUID.randomUUID());
+    account.setCurrentProfileVersion("profileVersion-" + UUID.randomUUID());
+    account.setProfileName("profileName-" + UUID.randomUUID());
+    account.setAvatar("profiles/" + UUID.randomUUID());
+    account.setBadges(Clock.systemUTC(), new ArrayList<>(List.of(
+        new AccountBadge("badge", Instant.now().plus(Duration.ofDays(30)), true))));
+
+    for (int id = 1; id <= devices; id++) {
+      final Device device = new Device(id, "deviceName-" + id, "authToken-" + UUID.randomUUID(), "salt-" + id,
+          id % 2 == 0 ? "gcmId-" + UUID.randomUUID() : null, id % 2 == 1 ? "apnId-" + UUID.randomUUID() : null, null,
+          false, ThreadLocalRandom.current().nextInt(16384),
+          new SignedPreKey(id, "publicKey-" + UUID.randomUUID(), "signature-" + UUID.randomUUID()),
+          System.currentTimeMillis(), System.currentTimeMillis(), "OWA", 0,
+          new Device.DeviceCapabilities(true, true, true, true, true, true, true, true, false));
+
+      account.addDevice(device);
+    }
+
+    json = mapper.writeValueAsBytes(account);
+    binary = AccountCodec.encode(account);
+
+    System.out.printf("%n%d devices: json %d bytes, binary %d bytes%n", devices, json.length, binary.length);
+  }
+
+  @Benchmark
+  public byte[] encodeJson() throws IOException {
+    return mapper.writeValueAsBytes(account);
+  }
+
+  @Benchmark
+  public byte[] encodeBinary() {
+    return AccountCodec.encode(account);
+  }
+
+  @Benchmark
+  public Account decodeJson() throws IOException {
+    return mapper.readValue(json, Account.class);
+  }
+
+  @Benchmark
+  public Account decodeBinary() throws IOException {
+    return AccountCodec.decode(binary);
+  }
+
+  @Benchmark
+  public Account copyJson() throws IOException {
+    return mapper.readValue(mapper.writeValueAsBytes(account), Account.class);
+  }
+
+  @Benchmark
+  public Account copyBinary() {
+    return AccountCodec.copy(account);
+  }
+
+  private static byte[] randomBytes(final int length) {
+    final byte[] bytes = new byte[length];
+    ThreadLocalRandom.current().nextBytes(bytes);
+
+    return bytes;
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(AccountCodecBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import su.sres.shadowserver.entities.SignedPreKey;
+import su.sres.shadowserver.util.SystemMapper;
+
+class AccountCodecTest {
+
+  private static final ObjectMapper MAPPER = SystemMapper.getMapper();
+
+  @Test
+  void testEncodeDecode() throws IOException {
+    final Account account = buildAccount();
+    final byte[] encoded = AccountCodec.encode(account);
+
+    assertEquals(AccountCodec.FORMAT_VERSION_1, encoded[0]);
+    assertTrue(encoded.length < MAPPER.writeValueAsBytes(account).length);
+
+    final Account decoded = AccountCodec.decode(encoded);
+
+    assertNull(decoded.getUuid());
+    assertSameFields(account, decoded);
+  }
+
+  @Test
+  void testEncodeDecodeEmptyAccount() throws IOException {
+    final Account account = new Account();
+
+    assertSameFields(account, AccountCodec.decode(AccountCodec.encode(account)));
+  }
+
+  @Test
+  void testDecodeJson() throws IOException {
+    final Account account = buildAccount();
+
+    // accounts stored before the binary format was introduced
+    assertSameFields(account, AccountCodec.decode(MAPPER.writeValueAsBytes(account)));
+  }
+
+  @Test
+  void testEncodeJson() throws IOException {
+    final Account account = buildAccount();
+    final byte[] encoded = AccountCodec.encode(account, AccountCodec.Format.JSON);
+
+    // readable by servers without the codec
+    assertSameFields(account, MAPPER.readValue(encoded, Account.class));
+    assertSameFields(account, AccountCodec.decode(encoded));
+  }
+
+  @Test
+  void testCopy() throws IOException {
+    final Account account = buildAccount();
+    final Account copy = AccountCodec.copy(account);
+
+    assertEquals(account.getUuid(), copy.getUuid());
+    assertSameFields(account, copy);
+
+    assertNotSame(account.getUnidentifiedAccessKey().orElseThrow(), copy.getUnidentifiedAccessKey().orElseThrow());
+
+    // not part of the JSON form, but needed to update the copy
+    assertEquals(3, copy.getDevicesVersion());
+    assertEquals(2, copy.getDevice(Device.MASTER_ID).orElseThrow().getVersion());
+
+    copy.getDevice(Device.MASTER_ID).orElseThrow().setLastSeen(0);
+    assertEquals(1234, account.getDevice(Device.MASTER_ID).orElseThrow().getLastSeen());
+  }
+
+  private static Account buildAccount() {
+    final Account account = new Account("johndoe", UUID.randomUUID(), new HashSet<>(), new byte[] { 1, 2, 3 });
+    account.setIdentityKey("identityKey");
+    account.setCurrentProfileVersion("cpv");
+    account.setProfileName("name");
+    account.setAvatar("avatar");
+    account.setUnrestrictedUnidentifiedAccess(true);
+    account.setDiscoverableByUserLogin(false);
+    account.setVersion(7);
+    account.setDevicesVersion(3);
+
+    // expired badges are only dropped when the account is next modified, not when it's decoded
+    account.getBadges().add(new AccountBadge("expired", Instant.ofEpochSecond(1, 500), false));
+    account.getBadges().add(new AccountBadge("forever", null, true));
+
+    final Device master = new Device(Device.MASTER_ID, "master", "token", "salt", null, "apnId", "voipApnId", false, 17,
+        new SignedPreKey(3, "publicKey", "signature"), 1234, 5678, "OWI", 99,
+        new Device.DeviceCapabilities(true, false, true, false, true, false, true, false, true));
+
+    final Device linked = new Device(2, null, "token2", "salt2", "gcmId", null, null, true, 18, null, 4321, 8765,
+        null, 0, null);
+
+    // sets the push timestamp, which the constructor leaves unset
+    master.setApnId("apnId");
+    master.setVersion(2);
+
+    account.addDevice(master);
+    account.addDevice(linked);
+
+    return account;
+  }
+
+  private static void assertSameFields(final Account expected, final Account actual) throws IOException {
+    // Device#equals only compares IDs, so compare everything that's stored instead
+    assertEquals(MAPPER.readTree(MAPPER.writeValueAsBytes(expected)), MAPPER.readTree(MAPPER.writeValueAsBytes(actual)));
+    assertArrayEquals(expected.getUnidentifiedAccessKey().orElse(null), actual.getUnidentifiedAccessKey().orElse(null));
+  }
+}
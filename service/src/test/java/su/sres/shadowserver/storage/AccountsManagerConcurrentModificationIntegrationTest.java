@@ -8,7 +8,7 @@ package su.sres.shadowserver.storage;
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -39,7 +39,6 @@ import su.sres.shadowserver.entities.AccountAttributes;
 import su.sres.shadowserver.push.ClientPresenceManager;
 import su.sres.shadowserver.entities.SignedPreKey;
 import su.sres.shadowserver.redis.ReplicatedJedisPool;
-import su.sres.shadowserver.util.JsonHelpers;
 import su.sres.shadowserver.util.RedisClusterHelper;
 import su.sres.shadowserver.util.Pair;
 import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
@@ -74,6 +73,8 @@ class AccountsManagerConcurrentModificationIntegrationTest {
 
   private RedisAdvancedClusterCommands<String, String> commands;
 
+  private RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands;
+
   private Executor mutationExecutor = new ThreadPoolExecutor(20, 20, 5, TimeUnit.SECONDS, new LinkedBlockingDeque<>(20));
 
   private DirectoryManager directoryManager = new DirectoryManager(mock(ReplicatedJedisPool.class));
@@ -123,12 +124,14 @@ class AccountsManagerConcurrentModificationIntegrationTest {
     {
       // noinspection unchecked
       commands = mock(RedisAdvancedClusterCommands.class);
+      // noinspection unchecked
+      binaryCommands = mock(RedisAdvancedClusterCommands.class);
       MessagesManager messagesManager = mock(MessagesManager.class);
 
       accountsManager = new AccountsManager(
           accounts,
           directoryManager,
-          RedisClusterHelper.buildMockRedisCluster(commands),
+          RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands),
           mock(DeletedAccounts.class),
           mock(KeysScyllaDb.class),
           messagesManager,
@@ -196,7 +199,7 @@ class AccountsManagerConcurrentModificationIntegrationTest {
     final Account managerAccount = accountsManager.get(uuid).orElseThrow();
     final Account dynamoAccount = accounts.get(uuid).orElseThrow();
 
-    final Account redisAccount = getLastAccountFromRedisMock(commands);
+    final Account redisAccount = getLastAccountFromRedisMock(binaryCommands);
 
     Stream.of(
         new Pair<>("manager", managerAccount),
@@ -207,12 +210,12 @@ class AccountsManagerConcurrentModificationIntegrationTest {
                 unrestrictedUnidentifiedAccess, lastSeen));
   }
 
-  private Account getLastAccountFromRedisMock(RedisAdvancedClusterCommands<String, String> commands) throws IOException {
-    ArgumentCaptor<String> redisSetArgumentCapture = ArgumentCaptor.forClass(String.class);
+  private Account getLastAccountFromRedisMock(RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands) throws IOException {
+    ArgumentCaptor<byte[]> redisSetArgumentCapture = ArgumentCaptor.forClass(byte[].class);
 
-    verify(commands, atLeast(20)).set(anyString(), redisSetArgumentCapture.capture());
+    verify(binaryCommands, atLeast(10)).set(any(byte[].class), redisSetArgumentCapture.capture());
 
-    return JsonHelpers.fromJson(redisSetArgumentCapture.getValue(), Account.class);
+    return AccountCodec.decode(redisSetArgumentCapture.getValue());
   }
 
   private void verifyAccount(final String name, final Account account, final String profileName, final String avatar, final boolean discoverableByPhoneNumber, final String currentProfileVersion, final String identityKey, final byte[] unidentifiedAccessKey, final String pin, final String clientRegistrationLock, final boolean unrestrictedUnidentifiedAcces, final long lastSeen) {
@@ -28,8 +28,10 @@ import su.sres.shadowserver.util.JsonHelpers;
 import su.sres.shadowserver.util.RedisClusterHelper;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
@@ -38,7 +40,9 @@ import static junit.framework.TestCase.assertSame;
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -60,6 +64,7 @@ class AccountsManagerTest {
   private DirectoryManager directory;
   
   private RedisAdvancedClusterCommands<String, String> commands;
+  private RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands;
   private AccountsManager accountsManager;
   private Jedis jedis;
   private KeysScyllaDb keys;
@@ -85,11 +90,13 @@ class AccountsManagerTest {
     
     //noinspection unchecked
     commands = mock(RedisAdvancedClusterCommands.class);
+    //noinspection unchecked
+    binaryCommands = mock(RedisAdvancedClusterCommands.class);
     
     accountsManager = new AccountsManager(        
         accounts,
         directory,
-        RedisClusterHelper.buildMockRedisCluster(commands),
+        RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands),
         mock(DeletedAccounts.class),
         keys,
         messagesManager,        
@@ -105,7 +112,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
         
     when(commands.get(eq("AccountMap::johndoe"))).thenReturn(uuid.toString());
-    when(commands.get(eq("Account3::" + uuid))).thenReturn("{\"userLogin\": \"johndoe\", \"name\": \"test\"}");
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn("{\"userLogin\": \"johndoe\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8));
 
     Optional<Account> account = accountsManager.get("johndoe");
 
@@ -114,8 +121,9 @@ class AccountsManagerTest {
     assertEquals(account.get().getProfileName(), "test");
 
     verify(commands, times(1)).get(eq("AccountMap::johndoe"));
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
         
     verifyNoInteractions(accounts);
   }
@@ -124,8 +132,10 @@ class AccountsManagerTest {
   void testGetAccountByUuidInCache() {
     
     UUID uuid = UUID.randomUUID();
+    Account cachedAccount = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
+    cachedAccount.setProfileName("test");
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn("{\"userLogin\": \"johndoe\", \"name\": \"test\"}");
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(AccountCodec.encode(cachedAccount));
 
     Optional<Account> account = accountsManager.get(uuid);
 
@@ -134,8 +144,9 @@ class AccountsManagerTest {
     assertEquals(account.get().getUuid(), uuid);
     assertEquals(account.get().getProfileName(), "test");
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
     verifyNoMoreInteractions(commands);    
+    verifyNoMoreInteractions(binaryCommands);
     
     verifyNoInteractions(accounts);
   }
@@ -157,8 +168,9 @@ class AccountsManagerTest {
 
     verify(commands, times(1)).get(eq("AccountMap::johndoe"));
     verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any(byte[].class));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq("johndoe"));
     verifyNoMoreInteractions(accounts);
@@ -171,7 +183,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(null);
     when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
 
     Optional<Account> retrieved = accountsManager.get(uuid);
@@ -179,10 +191,11 @@ class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
     verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any(byte[].class));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq(uuid));
     verifyNoMoreInteractions(accounts);
@@ -204,8 +217,9 @@ class AccountsManagerTest {
 
     verify(commands, times(1)).get(eq("AccountMap::johndoe"));
     verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any(byte[].class));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq("johndoe"));
     verifyNoMoreInteractions(accounts);
@@ -217,7 +231,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenThrow(new RedisException("Connection lost!"));
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenThrow(new RedisException("Connection lost!"));
     when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
     
     Optional<Account> retrieved = accountsManager.get(uuid);
@@ -225,22 +239,95 @@ class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
     verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any(byte[].class));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq(uuid));
     verifyNoMoreInteractions(accounts);
   }
     
+    @Test
+    void testUpdateWithLocalAccountCache() {
+      final LocalAccountCache localAccountCache = mock(LocalAccountCache.class);
+
+      accountsManager = new AccountsManager(
+          accounts,
+          directory,
+          RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands),
+          mock(DeletedAccounts.class),
+          keys,
+          messagesManager,
+          mock(UsernamesManager.class),
+          profilesManager,
+          mock(StoredVerificationCodeManager.class),
+          mock(ClientPresenceManager.class),
+          localAccountCache);
+
+      final UUID uuid = UUID.randomUUID();
+      final Account cachedAccount = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+
+      doAnswer(ACCOUNT_UPDATE_ANSWER).when(accounts).update(any());
+
+      final Account updatedAccount = accountsManager.update(cachedAccount, a -> a.setProfileName("name"));
+
+      // the cached instance may be in use by other requests and must not be modified
+      assertEquals("name", updatedAccount.getProfileName());
+      assertEquals(1, updatedAccount.getVersion());
+      assertNull(cachedAccount.getProfileName());
+      assertEquals(0, cachedAccount.getVersion());
+
+      verify(localAccountCache).invalidate(uuid);
+    }
+
+    @Test
+    void testUpdateWithLocalAccountCacheRefreshesSupplier() {
+      final LocalAccountCache localAccountCache = mock(LocalAccountCache.class);
+
+      accountsManager = new AccountsManager(
+          accounts,
+          directory,
+          RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands),
+          mock(DeletedAccounts.class),
+          keys,
+          messagesManager,
+          mock(UsernamesManager.class),
+          profilesManager,
+          mock(StoredVerificationCodeManager.class),
+          mock(ClientPresenceManager.class),
+          localAccountCache);
+
+      final UUID uuid = UUID.randomUUID();
+      final Device device = new Device();
+      device.setId(Device.MASTER_ID);
+
+      final Account cachedAccount = new Account("+14152222222", uuid, new HashSet<>(Set.of(device)), new byte[16]);
+
+      doAnswer(ACCOUNT_UPDATE_ANSWER).when(accounts).update(any());
+
+      final RefreshingAccountAndDeviceSupplier supplier =
+          new RefreshingAccountAndDeviceSupplier(cachedAccount, Device.MASTER_ID, accountsManager);
+
+      assertSame(cachedAccount, supplier.get().first());
+
+      final Account updatedAccount = accountsManager.update(cachedAccount, a -> a.setProfileName("name"));
+
+      when(localAccountCache.get(eq(uuid), any())).thenReturn(Optional.of(updatedAccount));
+
+      assertTrue(cachedAccount.isStale());
+      assertSame(updatedAccount, supplier.get().first());
+      assertEquals("name", supplier.get().first().getProfileName());
+    }
+
     @Test
     void testUpdate_optimisticLockingFailure() {
             
       UUID                                         uuid                = UUID.randomUUID();
       Account                                      account             = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
                   
-      when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+      when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(null);
       when(accounts.get(uuid)).thenReturn(Optional.of(new Account("+14152222222", uuid, new HashSet<>(), new byte[16])));
       doThrow(ContestedOptimisticLockException.class)
           .doAnswer(ACCOUNT_UPDATE_ANSWER)
@@ -267,7 +354,7 @@ class AccountsManagerTest {
       UUID                                         uuid                = UUID.randomUUID();
       Account                                      account             = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
       
-      when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+      when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(null);
       when(accounts.get(uuid)).thenReturn(Optional.empty())
                                       .thenReturn(Optional.of(account));
       when(accounts.create(any(), anyLong())).thenThrow(ContestedOptimisticLockException.class);     
@@ -403,7 +490,8 @@ class AccountsManagerTest {
       accountsManager.updateDeviceLastSeen(account, device, updatedLastSeen);
 
       assertEquals(expectUpdate ? updatedLastSeen : initialLastSeen, device.getLastSeen());
-      verify(accounts, expectUpdate ? times(1) : never()).update(account);
+      verify(accounts, expectUpdate ? times(1) : never()).updateDevice(account, device);
+      verify(accounts, never()).update(any());
     }
 
     @SuppressWarnings("unused")
@@ -414,4 +502,47 @@ class AccountsManagerTest {
           Arguments.of(false, 2, 1)
       );
     }
-}
\ No newline at end of file
+
+    @Test
+    void testUpdateDeviceLastSeenWithWriter() {
+      final DeviceLastSeenWriter deviceLastSeenWriter = mock(DeviceLastSeenWriter.class);
+
+      accountsManager = new AccountsManager(
+          accounts,
+          directory,
+          RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands),
+          mock(DeletedAccounts.class),
+          keys,
+          messagesManager,
+          mock(UsernamesManager.class),
+          profilesManager,
+          mock(StoredVerificationCodeManager.class),
+          mock(ClientPresenceManager.class),
+          null,
+          deviceLastSeenWriter);
+
+      verify(deviceLastSeenWriter).setFlushListener(any());
+
+      final UUID uuid = UUID.randomUUID();
+      final Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+      final Device device = new Device(Device.MASTER_ID, "device", "token", "salt", null, null, null, true, 1,
+          new SignedPreKey(1, "key", "sig"), 1, 0,
+          "OWT", 0, new DeviceCapabilities());
+      account.addDevice(device);
+
+      final Account updatedAccount = accountsManager.updateDeviceLastSeen(account, device, 2);
+
+      assertEquals(2, updatedAccount.getDevice(Device.MASTER_ID).orElseThrow().getLastSeen());
+      assertEquals(1, device.getLastSeen());
+
+      assertSame(account, accountsManager.updateDeviceLastSeen(account, device, 1));
+
+      verify(deviceLastSeenWriter).record(uuid, Device.MASTER_ID, 2);
+      verifyNoMoreInteractions(deviceLastSeenWriter);
+      verify(accounts, never()).update(any());
+    }
+
+  private static byte[] getAccountEntityKey(final UUID uuid) {
+    return ("Account3::" + uuid).getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -14,6 +14,7 @@ import static org.mockito.Mockito.when;
 import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
 import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
@@ -101,7 +102,8 @@ class AccountsTest {
     dynamoDbExtension.getDynamoDbClient().createTable(createMiscTableRequest);    
 
     this.accounts = new Accounts(
-        dynamoDbExtension.getDynamoDbClient(),        
+        dynamoDbExtension.getDynamoDbClient(),
+        dynamoDbExtension.getDynamoDbAsyncClient(),
         dynamoDbExtension.getTableName(),
         NUMBERS_TABLE_NAME,
         MISC_TABLE_NAME,
@@ -140,6 +142,33 @@ class AccountsTest {
     verifyStoredState("+14151112222", account.getUuid(), account);
   }
 
+  @Test
+  void testAccountFormat() {
+    final Account jsonAccount = generateAccount("+14151112222", UUID.randomUUID());
+    accounts.create(jsonAccount, 10L);
+
+    // servers that can't read the binary form parse the account data as JSON
+    assertThat(getStoredAccountData(jsonAccount.getUuid())[0]).isEqualTo((byte) '{');
+
+    final Accounts binaryAccounts = new Accounts(
+        dynamoDbExtension.getDynamoDbClient(),
+        dynamoDbExtension.getDynamoDbAsyncClient(),
+        dynamoDbExtension.getTableName(),
+        NUMBERS_TABLE_NAME,
+        MISC_TABLE_NAME,
+        SCAN_PAGE_SIZE,
+        AccountCodec.Format.BINARY);
+
+    final Account binaryAccount = generateAccount("+14151113333", UUID.randomUUID());
+    binaryAccounts.create(binaryAccount, 11L);
+
+    assertThat(getStoredAccountData(binaryAccount.getUuid())[0]).isEqualTo(AccountCodec.FORMAT_VERSION_1);
+
+    // either form is read whichever one is written
+    verifyStoredState("+14151112222", jsonAccount.getUuid(), binaryAccounts.get(jsonAccount.getUuid()).get(), jsonAccount);
+    verifyStoredState("+14151113333", binaryAccount.getUuid(), accounts.get(binaryAccount.getUuid()).get(), binaryAccount);
+  }
+
   @Test
   void testRetrieve() {
     Set<Device> devicesFirst = new HashSet<>();
@@ -177,6 +206,12 @@ class AccountsTest {
 
     verifyStoredState("+14151112222", uuidFirst, retrievedFirst.get(), accountFirst);
     verifyStoredState("+14152221111", uuidSecond, retrievedSecond.get(), accountSecond);
+
+    retrievedFirst = accounts.getAsync(uuidFirst).join();
+
+    assertThat(retrievedFirst.isPresent()).isTrue();
+    verifyStoredState("+14151112222", uuidFirst, retrievedFirst.get(), accountFirst);
+    assertThat(accounts.getAsync(UUID.randomUUID()).join()).isEmpty();
   }
 
   @Test
@@ -256,6 +291,123 @@ class AccountsTest {
     verifyStoredState("+14151112222", account.getUuid(), account);
   }
   
+  @Test
+  void testUpdateDeviceLastSeen() {
+    final Device device = generateDevice(1);
+    device.setLastSeen(1000);
+
+    final Account account = generateAccount("+14151112222", UUID.randomUUID(), Collections.singleton(device));
+    accounts.create(account, 10L);
+
+    accounts.updateDeviceLastSeen(account.getUuid(), Map.of(1L, 2000L, 2L, 3000L));
+
+    final Account retrieved = accounts.get(account.getUuid()).orElseThrow();
+
+    assertThat(retrieved.getDevice(1).orElseThrow().getLastSeen()).isEqualTo(2000);
+    assertThat(retrieved.getVersion()).isEqualTo(account.getVersion());
+
+    // an update of the account that still carries the earlier timestamp doesn't roll it back
+    account.setProfileName("name");
+    accounts.update(account);
+
+    assertThat(accounts.get(account.getUuid()).orElseThrow().getDevice(1).orElseThrow().getLastSeen()).isEqualTo(2000);
+
+    // nothing is written for accounts that don't exist
+    final UUID unknownUuid = UUID.randomUUID();
+    accounts.updateDeviceLastSeen(unknownUuid, Map.of(1L, 2000L));
+
+    assertThat(accounts.get(unknownUuid)).isNotPresent();
+  }
+
+  @Test
+  void testUpdateDevice() {
+    // devices are only written on their own once every server can read the binary form
+    accounts = new Accounts(
+        dynamoDbExtension.getDynamoDbClient(),
+        dynamoDbExtension.getDynamoDbAsyncClient(),
+        dynamoDbExtension.getTableName(),
+        NUMBERS_TABLE_NAME,
+        MISC_TABLE_NAME,
+        SCAN_PAGE_SIZE,
+        AccountCodec.Format.BINARY);
+
+    final Device firstDevice = generateDevice(1);
+    final Device secondDevice = generateDevice(2);
+
+    final Account account = generateAccount("+14151112222", UUID.randomUUID(), Set.of(firstDevice, secondDevice));
+    accounts.create(account, 10L);
+
+    final Account staleAccount = accounts.get(account.getUuid()).orElseThrow();
+
+    account.getDevice(1).orElseThrow().setName("first");
+    accounts.updateDevice(account, account.getDevice(1).orElseThrow());
+
+    assertThat(account.getVersion()).isEqualTo(0);
+    assertThat(account.getDevicesVersion()).isEqualTo(1);
+
+    // updates of other devices don't conflict
+    staleAccount.getDevice(2).orElseThrow().setName("second");
+    accounts.updateDevice(staleAccount, staleAccount.getDevice(2).orElseThrow());
+
+    Account retrieved = accounts.get(account.getUuid()).orElseThrow();
+
+    assertThat(retrieved.getVersion()).isEqualTo(0);
+    assertThat(retrieved.getDevicesVersion()).isEqualTo(2);
+    assertThat(retrieved.getDevice(1).orElseThrow().getName()).isEqualTo("first");
+    assertThat(retrieved.getDevice(2).orElseThrow().getName()).isEqualTo("second");
+
+    // ...but updates of the same device and of the whole account do
+    staleAccount.getDevice(1).orElseThrow().setName("conflict");
+    assertThatThrownBy(() -> accounts.updateDevice(staleAccount, staleAccount.getDevice(1).orElseThrow()))
+        .isInstanceOfAny(ContestedOptimisticLockException.class);
+
+    assertThatThrownBy(() -> accounts.update(account)).isInstanceOfAny(ContestedOptimisticLockException.class);
+
+    // a whole account update folds in the devices' own attributes
+    retrieved.setProfileName("name");
+    accounts.update(retrieved);
+
+    assertThat(retrieved.getDevicesVersion()).isEqualTo(0);
+
+    retrieved = accounts.get(account.getUuid()).orElseThrow();
+
+    assertThat(retrieved.getVersion()).isEqualTo(1);
+    assertThat(retrieved.getDevicesVersion()).isEqualTo(0);
+    assertThat(retrieved.getProfileName()).isEqualTo("name");
+    assertThat(retrieved.getDevice(1).orElseThrow().getName()).isEqualTo("first");
+    assertThat(retrieved.getDevice(2).orElseThrow().getName()).isEqualTo("second");
+
+    // and devices can be updated on their own again afterwards
+    retrieved.getDevice(1).orElseThrow().setName("again");
+    accounts.updateDevice(retrieved, retrieved.getDevice(1).orElseThrow());
+
+    assertThat(accounts.get(account.getUuid()).orElseThrow().getDevice(1).orElseThrow().getName()).isEqualTo("again");
+  }
+
+  @Test
+  void testUpdateDeviceWithoutBinaryFormat() {
+    final Account account = generateAccount("+14151112222", UUID.randomUUID(), Set.of(generateDevice(1), generateDevice(2)));
+    accounts.create(account, 10L);
+
+    account.getDevice(1).orElseThrow().setName("first");
+    accounts.updateDevice(account, account.getDevice(1).orElseThrow());
+
+    // the whole account is rewritten, as by servers that don't know about devices written on their own
+    assertThat(account.getVersion()).isEqualTo(1);
+    assertThat(account.getDevicesVersion()).isEqualTo(0);
+
+    final Map<String, AttributeValue> item = dynamoDbExtension.getDynamoDbClient().getItem(GetItemRequest.builder()
+        .tableName(dynamoDbExtension.getTableName())
+        .key(Map.of(Accounts.KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
+        .consistentRead(true)
+        .build())
+        .item();
+
+    assertThat(item).doesNotContainKeys(Accounts.ATTR_DEVICE_DATA_PREFIX + 1, Accounts.ATTR_DEVICE_VERSION_PREFIX + 1,
+        Accounts.ATTR_DEVICES_VERSION);
+    assertThat(accounts.get(account.getUuid()).orElseThrow().getDevice(1).orElseThrow().getName()).isEqualTo("first");
+  }
+
   @Test
   void testUpdateWithMockTransactionConflictException() {
 
@@ -443,6 +595,15 @@ class AccountsTest {
     return new Account(number, uuid, devices, unidentifiedAccessKey);
   }
 
+  private byte[] getStoredAccountData(UUID uuid) {
+    return dynamoDbExtension.getDynamoDbClient().getItem(GetItemRequest.builder()
+        .tableName(dynamoDbExtension.getTableName())
+        .key(Map.of(Accounts.KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid)))
+        .consistentRead(true)
+        .build())
+        .item().get(Accounts.ATTR_ACCOUNT_DATA).b().asByteArray();
+  }
+
   private void verifyStoredState(String number, UUID uuid, Account expecting) {
     final DynamoDbClient db = dynamoDbExtension.getDynamoDbClient();
 
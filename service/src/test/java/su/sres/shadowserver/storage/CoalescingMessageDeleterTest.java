@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+class CoalescingMessageDeleterTest {
+
+  private MessagesScyllaDb messagesScyllaDb;
+
+  @BeforeEach
+  void setUp() {
+    messagesScyllaDb = mock(MessagesScyllaDb.class);
+    when(messagesScyllaDb.deleteMessagesAsync(any())).thenReturn(CompletableFuture.completedFuture(null));
+  }
+
+  @Test
+  void testFullBatchWrittenImmediately() {
+    final CoalescingMessageDeleter deleter = new CoalescingMessageDeleter(messagesScyllaDb, Duration.ofHours(1),
+        MoreExecutors.directExecutor());
+
+    final UUID destinationUuid = UUID.randomUUID();
+    final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+    for (int i = 0; i < AbstractScyllaDbStore.DYNAMO_DB_MAX_BATCH_SIZE - 1; i++) {
+      futures.add(deleter.delete(destinationUuid, 1, i, UUID.randomUUID()));
+    }
+
+    assertTrue(futures.stream().noneMatch(CompletableFuture::isDone));
+
+    futures.add(deleter.delete(destinationUuid, 1, 0, UUID.randomUUID()));
+
+    assertTrue(futures.stream().allMatch(CompletableFuture::isDone));
+
+    @SuppressWarnings("unchecked") final ArgumentCaptor<List<MessagesScyllaDb.MessageKey>> keysCaptor = ArgumentCaptor.forClass(List.class);
+    verify(messagesScyllaDb).deleteMessagesAsync(keysCaptor.capture());
+    assertEquals(AbstractScyllaDbStore.DYNAMO_DB_MAX_BATCH_SIZE, keysCaptor.getValue().size());
+  }
+
+  @Test
+  void testPartialBatchWrittenAfterWindow() {
+    final CoalescingMessageDeleter deleter = new CoalescingMessageDeleter(messagesScyllaDb, Duration.ofMillis(50),
+        MoreExecutors.directExecutor());
+
+    final UUID firstDestinationUuid = UUID.randomUUID();
+    final UUID secondDestinationUuid = UUID.randomUUID();
+    final UUID firstGuid = UUID.randomUUID();
+    final UUID secondGuid = UUID.randomUUID();
+
+    final CompletableFuture<Void> firstFuture = deleter.delete(firstDestinationUuid, 1, 1234, firstGuid);
+    final CompletableFuture<Void> secondFuture = deleter.delete(secondDestinationUuid, 2, 5678, secondGuid);
+
+    assertFalse(firstFuture.isDone());
+
+    firstFuture.join();
+    secondFuture.join();
+
+    verify(messagesScyllaDb).deleteMessagesAsync(List.of(
+        new MessagesScyllaDb.MessageKey(firstDestinationUuid, 1, 1234, firstGuid),
+        new MessagesScyllaDb.MessageKey(secondDestinationUuid, 2, 5678, secondGuid)));
+  }
+
+  @Test
+  void testDuplicateDeletions() {
+    final CoalescingMessageDeleter deleter = new CoalescingMessageDeleter(messagesScyllaDb, Duration.ofMillis(50),
+        MoreExecutors.directExecutor());
+
+    final UUID destinationUuid = UUID.randomUUID();
+    final UUID guid = UUID.randomUUID();
+
+    final CompletableFuture<Void> firstFuture = deleter.delete(destinationUuid, 1, 1234, guid);
+    final CompletableFuture<Void> retriedFuture = deleter.delete(destinationUuid, 1, 1234, guid);
+
+    firstFuture.join();
+    retriedFuture.join();
+
+    verify(messagesScyllaDb).deleteMessagesAsync(List.of(new MessagesScyllaDb.MessageKey(destinationUuid, 1, 1234, guid)));
+  }
+
+  @Test
+  void testZeroWindow() {
+    final CoalescingMessageDeleter deleter = new CoalescingMessageDeleter(messagesScyllaDb, Duration.ZERO,
+        MoreExecutors.directExecutor());
+
+    deleter.delete(UUID.randomUUID(), 1, 1234, UUID.randomUUID()).join();
+    deleter.delete(UUID.randomUUID(), 1, 1234, UUID.randomUUID()).join();
+
+    verify(messagesScyllaDb, times(2)).deleteMessagesAsync(any());
+  }
+
+  @Test
+  void testFailedBatch() {
+    when(messagesScyllaDb.deleteMessagesAsync(any())).thenReturn(CompletableFuture.failedFuture(new RuntimeException("OH NO")));
+
+    final CoalescingMessageDeleter deleter = new CoalescingMessageDeleter(messagesScyllaDb, Duration.ofMillis(10),
+        MoreExecutors.directExecutor());
+
+    final CompletableFuture<Void> first = deleter.delete(UUID.randomUUID(), 1, 1234, UUID.randomUUID());
+    final CompletableFuture<Void> second = deleter.delete(UUID.randomUUID(), 1, 1234, UUID.randomUUID());
+
+    assertThrows(CompletionException.class, first::join);
+    assertThrows(CompletionException.class, second::join);
+  }
+}
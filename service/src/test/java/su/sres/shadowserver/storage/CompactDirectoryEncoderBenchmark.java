@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import su.sres.shadowserver.storage.protos.CompactDirectoryEntries.Compression;
+import su.sres.shadowserver.storage.protos.DirectoryResponse;
+import su.sres.shadowserver.storage.protos.DirectoryUpdate;
+
+/**
+ * Compares the encode time of a full {@link DirectoryResponse} with the JSON map
+ * entries against the compact ones; the resulting sizes on the wire are printed
+ * during setup. Run with {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CompactDirectoryEncoderBenchmark {
+
+  @Param({"10000", "100000", "1000000"})
+  private int entries;
+
+  private HashMap<String, String> directory;
+  private CompactDirectoryEncoder encoder;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    directory = new HashMap<>(entries * 2);
+    encoder = new CompactDirectoryEncoder();
+
+    for (int i = 0; i < entries; i++) {
+      directory.put(String.format("user%08d", i), "{\"uuid\":\"" + UUID.randomUUID() + "\"}");
+    }
+
+    System.out.printf("%n%d entries: json map %d bytes, compact %d bytes, compact+deflate %d bytes%n",
+        entries,
+        jsonMap().length,
+        compact(Compression.NONE).getSerializedSize(),
+        compact(Compression.DEFLATE).getSerializedSize());
+  }
+
+  @Benchmark
+  public byte[] jsonMap() {
+    return response(DirectoryUpdate.newBuilder().putAllDirectoryEntry(directory)).toByteArray();
+  }
+
+  @Benchmark
+  public byte[] compact() {
+    return compact(Compression.NONE).toByteArray();
+  }
+
+  @Benchmark
+  public byte[] compactDeflate() {
+    return compact(Compression.DEFLATE).toByteArray();
+  }
+
+  private DirectoryResponse compact(final Compression compression) {
+    return response(DirectoryUpdate.newBuilder().setCompactEntries(encoder.encode(directory, compression)));
+  }
+
+  private static DirectoryResponse response(final DirectoryUpdate.Builder update) {
+    return DirectoryResponse.newBuilder()
+        .setVersion(1)
+        .setDirectoryUpdate(update.setType(DirectoryUpdate.Type.FULL))
+        .build();
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(CompactDirectoryEncoderBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
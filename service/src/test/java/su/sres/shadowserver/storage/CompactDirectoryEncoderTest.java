@@ -0,0 +1,77 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import su.sres.shadowserver.storage.protos.CompactDirectoryEntries;
+import su.sres.shadowserver.storage.protos.CompactDirectoryEntries.Compression;
+
+class CompactDirectoryEncoderTest {
+
+  private final CompactDirectoryEncoder encoder = new CompactDirectoryEncoder();
+
+  @ParameterizedTest
+  @EnumSource(value = Compression.class, names = {"NONE", "DEFLATE"})
+  void testRoundTrip(final Compression compression) throws Exception {
+    final UUID aliceUuid = UUID.randomUUID();
+    final UUID aliceSmithUuid = UUID.randomUUID();
+    final UUID zoeUuid = UUID.randomUUID();
+
+    final Map<String, String> entries = new HashMap<>();
+    entries.put("zoë", entry(zoeUuid));
+    entries.put("alice", entry(aliceUuid));
+    entries.put("alice.smith", entry(aliceSmithUuid));
+    entries.put("bob", CompactDirectoryEncoder.REMOVED_ENTRY);
+
+    final CompactDirectoryEntries compactEntries = encoder.encode(entries, compression);
+
+    assertEquals(compression, compactEntries.getCompression());
+    assertEquals(4, compactEntries.getCount());
+
+    assertEquals(Map.of(
+        "alice", Optional.of(aliceUuid),
+        "alice.smith", Optional.of(aliceSmithUuid),
+        "bob", Optional.empty(),
+        "zoë", Optional.of(zoeUuid)),
+        CompactDirectoryEncoder.decode(compactEntries));
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = Compression.class, names = {"NONE", "DEFLATE"})
+  void testEmptyUpdateFiller(final Compression compression) throws Exception {
+    final CompactDirectoryEntries compactEntries = encoder.encode(Map.of("", ""), compression);
+
+    assertEquals(0, compactEntries.getCount());
+    assertTrue(CompactDirectoryEncoder.decode(compactEntries).isEmpty());
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = Compression.class, names = {"NONE", "DEFLATE"})
+  void testMalformedEntrySkipped(final Compression compression) throws Exception {
+    final UUID aliceUuid = UUID.randomUUID();
+
+    final CompactDirectoryEntries compactEntries = encoder.encode(Map.of(
+        "alice", entry(aliceUuid),
+        "mallory", "not json",
+        "trudy", "{}"), compression);
+
+    assertEquals(Map.of("alice", Optional.of(aliceUuid)), CompactDirectoryEncoder.decode(compactEntries));
+  }
+
+  private static String entry(final UUID uuid) {
+    return "{\"uuid\":\"" + uuid + "\"}";
+  }
+}
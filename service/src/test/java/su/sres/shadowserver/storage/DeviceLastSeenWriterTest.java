@@ -0,0 +1,107 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DeviceLastSeenWriterTest {
+
+  private Accounts accounts;
+  private DeviceLastSeenWriter deviceLastSeenWriter;
+  private List<UUID> flushedUuids;
+
+  @BeforeEach
+  void setUp() {
+    accounts = mock(Accounts.class);
+    deviceLastSeenWriter = new DeviceLastSeenWriter(accounts, mock(ScheduledExecutorService.class), Duration.ofSeconds(5), 2);
+    flushedUuids = new ArrayList<>();
+
+    deviceLastSeenWriter.setFlushListener(flushedUuids::add);
+  }
+
+  @Test
+  void testFlushCoalesced() {
+    final UUID uuid = UUID.randomUUID();
+
+    deviceLastSeenWriter.record(uuid, 1, 2000);
+    deviceLastSeenWriter.record(uuid, 1, 1000);
+    deviceLastSeenWriter.record(uuid, 2, 3000);
+
+    assertEquals(1, deviceLastSeenWriter.flush());
+    assertEquals(0, deviceLastSeenWriter.flush());
+
+    verify(accounts).updateDeviceLastSeen(uuid, Map.of(1L, 2000L, 2L, 3000L));
+    verifyNoMoreInteractions(accounts);
+
+    assertEquals(List.of(uuid), flushedUuids);
+  }
+
+  @Test
+  void testFlushBatchSize() {
+    for (int i = 0; i < 3; i++) {
+      deviceLastSeenWriter.record(UUID.randomUUID(), 1, 1000);
+    }
+
+    assertEquals(2, deviceLastSeenWriter.flush());
+    assertEquals(1, deviceLastSeenWriter.flush());
+
+    verify(accounts, times(3)).updateDeviceLastSeen(any(), any());
+  }
+
+  @Test
+  void testFlushFailure() {
+    final UUID uuid = UUID.randomUUID();
+
+    doThrow(new RuntimeException("OH NO"))
+        .doNothing()
+        .when(accounts).updateDeviceLastSeen(eq(uuid), any());
+
+    deviceLastSeenWriter.record(uuid, 1, 1000);
+
+    assertEquals(0, deviceLastSeenWriter.flush());
+    assertTrue(deviceLastSeenWriter.isPending(uuid));
+    assertTrue(flushedUuids.isEmpty());
+
+    deviceLastSeenWriter.record(uuid, 2, 2000);
+
+    assertEquals(1, deviceLastSeenWriter.flush());
+    assertFalse(deviceLastSeenWriter.isPending(uuid));
+
+    verify(accounts).updateDeviceLastSeen(uuid, Map.of(1L, 1000L, 2L, 2000L));
+    assertEquals(List.of(uuid), flushedUuids);
+  }
+
+  @Test
+  void testStopFlushesEverything() {
+    for (int i = 0; i < 5; i++) {
+      deviceLastSeenWriter.record(UUID.randomUUID(), 1, 1000);
+    }
+
+    deviceLastSeenWriter.stop();
+
+    verify(accounts, times(5)).updateDeviceLastSeen(any(), any());
+    assertEquals(5, flushedUuids.size());
+  }
+}
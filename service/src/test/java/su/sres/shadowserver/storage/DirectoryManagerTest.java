@@ -0,0 +1,171 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.embedded.RedisServer;
+import su.sres.shadowserver.configuration.CircuitBreakerConfiguration;
+import su.sres.shadowserver.redis.RedisClusterExtension;
+import su.sres.shadowserver.redis.ReplicatedJedisPool;
+
+class DirectoryManagerTest {
+
+  private static RedisServer redisServer;
+
+  private JedisPool jedisPool;
+  private DirectoryManager directoryManager;
+
+  @BeforeAll
+  static void setUpBeforeAll() throws Exception {
+    assumeFalse(SystemUtils.IS_OS_WINDOWS);
+
+    redisServer = RedisServer.builder()
+        .setting("appendonly no")
+        .setting("save \"\"")
+        .setting("dir " + System.getProperty("java.io.tmpdir"))
+        .port(RedisClusterExtension.getNextRedisClusterPort())
+        .build();
+
+    redisServer.start();
+  }
+
+  @BeforeEach
+  void setUp() {
+    jedisPool = new JedisPool("127.0.0.1", redisServer.ports().get(0));
+    directoryManager = new DirectoryManager(new ReplicatedJedisPool("directory_test", jedisPool, List.of(jedisPool), new CircuitBreakerConfiguration()));
+  }
+
+  @AfterEach
+  void tearDown() {
+    try (Jedis jedis = jedisPool.getResource()) {
+      jedis.flushAll();
+    }
+
+    jedisPool.close();
+  }
+
+  @AfterAll
+  static void tearDownAfterAll() {
+    if (redisServer != null) {
+      redisServer.stop();
+    }
+  }
+
+  @Test
+  void testIncrementalUpdates() {
+    final String aliceEntry = entry(UUID.randomUUID());
+    final String bobEntry = entry(UUID.randomUUID());
+    final String bobReregisteredEntry = entry(UUID.randomUUID());
+
+    // version 1: alice and bob join
+    addToDirectory(1, Map.of("alice", aliceEntry, "bob", bobEntry));
+
+    // version 2: bob leaves
+    directoryManager.setDirectoryVersion(2);
+    directoryManager.redisRemoveFromPlainDirectory("bob");
+    directoryManager.recordDirectoryChanges(2, List.of("bob"));
+
+    assertEquals(Map.of("bob", "-1"), directoryManager.retrieveIncrementalUpdate(2, 1));
+
+    // version 3: bob comes back with a new UUID, carol joins
+    addToDirectory(3, Map.of("bob", bobReregisteredEntry, "carol", entry(UUID.randomUUID())));
+
+    assertEquals(Set.of("bob", "carol"), directoryManager.retrieveIncrementalUpdate(3, 1).keySet());
+    assertEquals(bobReregisteredEntry, directoryManager.retrieveIncrementalUpdate(3, 2).get("bob"));
+    assertEquals(Set.of("alice", "bob", "carol"), directoryManager.retrieveIncrementalUpdate(3, 3).keySet());
+    assertEquals(aliceEntry, directoryManager.retrieveIncrementalUpdate(3, 3).get("alice"));
+  }
+
+  @Test
+  void testIncrementalUpdateBeyondLogStart() {
+    addToDirectory(5, Map.of("alice", entry(UUID.randomUUID())));
+
+    assertEquals(Set.of("alice"), directoryManager.retrieveIncrementalUpdate(5, 1).keySet());
+
+    // the log started at version 4, so nothing is known about the changes between 3 and 4
+    assertTrue(directoryManager.retrieveIncrementalUpdate(5, 2).isEmpty());
+  }
+
+  @Test
+  void testEmptyIncrementalUpdate() {
+    addToDirectory(1, Map.of("alice", entry(UUID.randomUUID())));
+    directoryManager.recordDirectoryChanges(2, List.of());
+
+    assertEquals(Map.of("", ""), directoryManager.retrieveIncrementalUpdate(2, 1));
+  }
+
+  @Test
+  void testChangeLogTrimmed() {
+    for (int version = 1; version <= DirectoryManager.INCREMENTAL_UPDATES_TO_HOLD + 10; version++) {
+      addToDirectory(version, Map.of("user" + version, entry(UUID.randomUUID())));
+    }
+
+    try (Jedis jedis = jedisPool.getResource()) {
+      assertEquals(DirectoryManager.INCREMENTAL_UPDATES_TO_HOLD, (long) jedis.zcard("DirectoryChangeLog"));
+    }
+
+    assertEquals(DirectoryManager.INCREMENTAL_UPDATES_TO_HOLD,
+        directoryManager.retrieveIncrementalUpdate(DirectoryManager.INCREMENTAL_UPDATES_TO_HOLD + 10, DirectoryManager.INCREMENTAL_UPDATES_TO_HOLD).size());
+  }
+
+  @Test
+  void testFlushIncrementalUpdates() {
+    addToDirectory(1, Map.of("alice", entry(UUID.randomUUID())));
+
+    try (Jedis jedis = jedisPool.getResource()) {
+      directoryManager.flushIncrementalUpdates(jedis);
+    }
+
+    assertTrue(directoryManager.retrieveIncrementalUpdate(1, 1).isEmpty());
+    assertTrue(directoryManager.isInPlainDirectory("alice"));
+  }
+
+  @Test
+  void testLegacyIncrementalUpdatesRemoved() {
+    try (Jedis jedis = jedisPool.getResource()) {
+      jedis.set("CurrentUpdate", "{}");
+      jedis.set("UpdateDiff::1", "{}");
+      jedis.set("DirectoryHistoric::" + DirectoryManager.INCREMENTAL_UPDATES_TO_HOLD, "{}");
+    }
+
+    addToDirectory(1, Map.of("alice", entry(UUID.randomUUID())));
+
+    try (Jedis jedis = jedisPool.getResource()) {
+      assertEquals(0L, (long) jedis.exists("CurrentUpdate", "UpdateDiff::1", "DirectoryHistoric::" + DirectoryManager.INCREMENTAL_UPDATES_TO_HOLD));
+    }
+  }
+
+  private void addToDirectory(final long version, final Map<String, String> entries) {
+    directoryManager.setDirectoryVersion(version);
+
+    final DirectoryManager.BatchOperationHandle handle = directoryManager.startBatchOperation();
+    entries.forEach((userLogin, entry) -> directoryManager.redisUpdatePlainDirectory(handle, userLogin, entry));
+    directoryManager.stopBatchOperation(handle);
+
+    directoryManager.recordDirectoryChanges(version, entries.keySet());
+  }
+
+  private static String entry(final UUID uuid) {
+    return "{\"uuid\":\"" + uuid + "\"}";
+  }
+}
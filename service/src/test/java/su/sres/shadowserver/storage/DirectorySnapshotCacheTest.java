@@ -0,0 +1,162 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import su.sres.shadowserver.storage.protos.DirectoryResponse;
+import su.sres.shadowserver.storage.protos.DirectoryUpdate;
+
+class DirectorySnapshotCacheTest {
+
+  private DirectorySnapshotCache snapshotCache;
+
+  @BeforeEach
+  void setUp() {
+    snapshotCache = new DirectorySnapshotCache(DirectorySnapshotCache.DEFAULT_MAX_SNAPSHOT_BYTES);
+  }
+
+  @Test
+  void testFullSnapshotBuiltOncePerVersion() {
+    final AtomicInteger builds = new AtomicInteger();
+
+    final byte[] first = snapshotCache.getFull(7, DirectoryEntryFormat.JSON_MAP, () -> {
+      builds.incrementAndGet();
+      return response(7, DirectoryUpdate.Type.FULL, Map.of("alice", "{}"));
+    }, () -> true);
+
+    final byte[] second = snapshotCache.getFull(7, DirectoryEntryFormat.JSON_MAP, () -> {
+      builds.incrementAndGet();
+      return response(7, DirectoryUpdate.Type.FULL, Map.of("bob", "{}"));
+    }, () -> true);
+
+    assertEquals(1, builds.get());
+    assertSame(first, second);
+    assertArrayEquals(response(7, DirectoryUpdate.Type.FULL, Map.of("alice", "{}")).toByteArray(), second);
+
+    snapshotCache.getFull(8, DirectoryEntryFormat.JSON_MAP, () -> {
+      builds.incrementAndGet();
+      return response(8, DirectoryUpdate.Type.FULL, Map.of("bob", "{}"));
+    }, () -> true);
+
+    assertEquals(2, builds.get());
+  }
+
+  @Test
+  void testSnapshotsKeyedByFormat() {
+    final AtomicInteger builds = new AtomicInteger();
+
+    for (final DirectoryEntryFormat format : DirectoryEntryFormat.values()) {
+      snapshotCache.getFull(7, format, () -> {
+        builds.incrementAndGet();
+        return response(7, DirectoryUpdate.Type.FULL, Map.of("alice", "{}"));
+      }, () -> true);
+    }
+
+    assertEquals(DirectoryEntryFormat.values().length, builds.get());
+  }
+
+  @Test
+  void testInvalidSnapshotNotRetained() {
+    final AtomicInteger builds = new AtomicInteger();
+
+    for (int i = 0; i < 3; i++) {
+      snapshotCache.getFull(7, DirectoryEntryFormat.JSON_MAP, () -> {
+        builds.incrementAndGet();
+        return response(7, DirectoryUpdate.Type.FULL, Map.of("alice", "{}"));
+      }, () -> false);
+    }
+
+    assertEquals(3, builds.get());
+    assertEquals(0, snapshotCache.size());
+  }
+
+  @Test
+  void testUnavailableIncrementalUpdate() {
+    final AtomicInteger builds = new AtomicInteger();
+
+    assertTrue(snapshotCache.getIncremental(7, 2, DirectoryEntryFormat.JSON_MAP, () -> {
+      builds.incrementAndGet();
+      return null;
+    }, () -> true).isEmpty());
+
+    assertTrue(snapshotCache.getIncremental(7, 2, DirectoryEntryFormat.JSON_MAP, () -> {
+      builds.incrementAndGet();
+      return null;
+    }, () -> true).isEmpty());
+
+    assertEquals(1, builds.get());
+
+    final DirectoryResponse incremental = response(7, DirectoryUpdate.Type.INCREMENTAL, Map.of("alice", "-1"));
+
+    assertArrayEquals(incremental.toByteArray(),
+        snapshotCache.getIncremental(7, 1, DirectoryEntryFormat.JSON_MAP, () -> incremental, () -> true).orElseThrow());
+  }
+
+  @Test
+  void testConcurrentRequestsShareBuild() throws Exception {
+    final int threads = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final CountDownLatch buildStarted = new CountDownLatch(1);
+    final CountDownLatch releaseBuild = new CountDownLatch(1);
+    final AtomicInteger builds = new AtomicInteger();
+
+    try {
+      final List<Future<byte[]>> futures = new ArrayList<>();
+
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(() -> snapshotCache.getFull(9, DirectoryEntryFormat.JSON_MAP, () -> {
+          builds.incrementAndGet();
+          buildStarted.countDown();
+
+          try {
+            releaseBuild.await(5, TimeUnit.SECONDS);
+          } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+
+          return response(9, DirectoryUpdate.Type.FULL, Map.of("alice", "{}"));
+        }, () -> true)));
+      }
+
+      assertTrue(buildStarted.await(5, TimeUnit.SECONDS));
+      releaseBuild.countDown();
+
+      for (final Future<byte[]> future : futures) {
+        assertArrayEquals(response(9, DirectoryUpdate.Type.FULL, Map.of("alice", "{}")).toByteArray(), future.get(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(1, builds.get());
+  }
+
+  private static DirectoryResponse response(final long version, final DirectoryUpdate.Type type, final Map<String, String> entries) {
+    return DirectoryResponse.newBuilder()
+        .setVersion(version)
+        .setDirectoryUpdate(DirectoryUpdate.newBuilder()
+            .setType(type)
+            .putAllDirectoryEntry(entries))
+        .build();
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+
+import su.sres.shadowserver.entities.MessageProtos.Envelope;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+import su.sres.shadowserver.websocket.WebSocketConnection;
+import su.sres.websocket.messages.WebSocketMessageFactory;
+import su.sres.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
+
+/**
+ * Measures the work done to turn a stored message into a websocket frame: from the envelope bytes read from Redis (or
+ * the payload read from ScyllaDB) to the serialized request that's written to the socket. {@code legacyCachedMessage}
+ * reproduces the copies made before stored envelopes were carried through to the frame. The interesting figure is
+ * {@code gc.alloc.rate.norm}, the bytes allocated per delivered message, which {@link #main(String[])} reports by
+ * running with the GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EnvelopeDeliveryBenchmark {
+
+  @Param({"1024", "262144"})
+  private int payloadSize;
+
+  private final WebSocketMessageFactory messageFactory = new ProtobufWebSocketMessageFactory();
+
+  private byte[] storedEnvelope;
+  private byte[] persistedContent;
+  private Envelope envelope;
+
+  private static final List<String> HEADERS = List.of("X-Signal-Key: false", "X-Signal-Timestamp: 1633738643701");
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    final byte[] content = new byte[payloadSize];
+    ThreadLocalRandom.current().nextBytes(content);
+
+    envelope = Envelope.newBuilder()
+        .setType(Envelope.Type.CIPHERTEXT)
+        .setSource("+18005551234")
+        .setSourceUuid(UUID.randomUUID().toString())
+        .setSourceDevice(1)
+        .setTimestamp(System.currentTimeMillis())
+        .setServerTimestamp(System.currentTimeMillis())
+        .setServerGuid(UUID.randomUUID().toString())
+        .setContent(ByteString.copyFrom(content))
+        .build();
+
+    storedEnvelope = envelope.toByteArray();
+    persistedContent = content;
+  }
+
+  @Benchmark
+  public byte[] legacyCachedMessage() throws InvalidProtocolBufferException {
+    final Envelope storedMessage = Envelope.parseFrom(storedEnvelope);
+
+    final byte[] content = storedMessage.getContent().toByteArray();
+
+    final Envelope rebuiltMessage = Envelope.newBuilder()
+        .setType(storedMessage.getType())
+        .setTimestamp(storedMessage.getTimestamp())
+        .setServerTimestamp(storedMessage.getServerTimestamp())
+        .setSource(storedMessage.getSource())
+        .setSourceDevice(storedMessage.getSourceDevice())
+        .setSourceUuid(storedMessage.getSourceUuid())
+        .setContent(ByteString.copyFrom(content))
+        .setServerGuid(storedMessage.getServerGuid())
+        .build();
+
+    final byte[] body = rebuiltMessage.toBuilder().clearEphemeral().build().toByteArray();
+
+    // the message factory used to copy request bodies
+    return messageFactory.createRequest(Optional.of(1L), "PUT", "/api/v1/message", HEADERS, Optional.of(body.clone())).toByteArray();
+  }
+
+  @Benchmark
+  public byte[] cachedMessage() throws InvalidProtocolBufferException {
+    final OutgoingMessageEntity message = MessagesCache.constructEntityFromStoredEnvelope(1,
+        MessagesCache.parseEnvelopeWithoutCopying(storedEnvelope), storedEnvelope);
+
+    final byte[] body = message.getSerializedEnvelope()
+        .orElseGet(() -> WebSocketConnection.buildEnvelope(message).toByteArray());
+
+    return messageFactory.createRequest(Optional.of(1L), "PUT", "/api/v1/message", HEADERS, Optional.of(body)).toByteArray();
+  }
+
+  @Benchmark
+  public byte[] persistedMessage() {
+    final OutgoingMessageEntity message = new OutgoingMessageEntity(-1, false, UUID.fromString(envelope.getServerGuid()),
+        envelope.getType().getNumber(), null, envelope.getTimestamp(), envelope.getSource(),
+        UUID.fromString(envelope.getSourceUuid()), envelope.getSourceDevice(), null,
+        UnsafeByteOperations.unsafeWrap(persistedContent), envelope.getServerTimestamp(), null);
+
+    final byte[] body = message.getSerializedEnvelope()
+        .orElseGet(() -> WebSocketConnection.buildEnvelope(message).toByteArray());
+
+    return messageFactory.createRequest(Optional.of(1L), "PUT", "/api/v1/message", HEADERS, Optional.of(body)).toByteArray();
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(EnvelopeDeliveryBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build())
+        .run();
+  }
+}
@@ -37,7 +37,8 @@ public class KeysScyllaDbTest {
 
   @Before
   public void setup() {
-    keysDynamoDb = new KeysScyllaDb(dynamoDbRule.getDynamoDbClient(), KeysScyllaDbRule.TABLE_NAME);
+    keysDynamoDb = new KeysScyllaDb(dynamoDbRule.getDynamoDbClient(), dynamoDbRule.getDynamoDbAsyncClient(), KeysScyllaDbRule.TABLE_NAME,
+        AbstractScyllaDbStore.DEFAULT_BATCH_WRITE_PARALLELISM);
 
     account = mock(Account.class);
     when(account.getUserLogin()).thenReturn(ACCOUNT_NUMBER);
@@ -101,6 +102,33 @@ public class KeysScyllaDbTest {
     assertEquals(1, keysDynamoDb.getCount(account, DEVICE_ID));
   }
 
+  @Test
+  public void testTakeAsync() {
+    final Device firstDevice = mock(Device.class);
+    final Device secondDevice = mock(Device.class);
+
+    when(firstDevice.getId()).thenReturn(DEVICE_ID);
+    when(secondDevice.getId()).thenReturn(DEVICE_ID + 1);
+    when(account.getDevices()).thenReturn(Set.of(firstDevice, secondDevice));
+
+    assertEquals(Collections.emptyMap(), keysDynamoDb.takeAsync(account).join());
+    assertEquals(Optional.empty(), keysDynamoDb.takeAsync(account, DEVICE_ID).join());
+
+    final PreKey firstDevicePreKey = new PreKey(1, "public-key");
+    final PreKey secondDevicePreKey = new PreKey(2, "second-key");
+
+    keysDynamoDb.store(account, DEVICE_ID, List.of(firstDevicePreKey, new PreKey(3, "third-key")));
+    keysDynamoDb.store(account, DEVICE_ID + 1, List.of(secondDevicePreKey));
+
+    assertEquals(Optional.of(firstDevicePreKey), keysDynamoDb.takeAsync(account, DEVICE_ID).join());
+    assertEquals(1, (int) keysDynamoDb.getCountAsync(account, DEVICE_ID).join());
+
+    assertEquals(Map.of(DEVICE_ID, new PreKey(3, "third-key"), DEVICE_ID + 1, secondDevicePreKey),
+        keysDynamoDb.takeAsync(account).join());
+    assertEquals(0, (int) keysDynamoDb.getCountAsync(account, DEVICE_ID).join());
+    assertEquals(0, (int) keysDynamoDb.getCountAsync(account, DEVICE_ID + 1).join());
+  }
+
   @Test
   public void testGetCount() {
     assertEquals(0, keysDynamoDb.getCount(account, DEVICE_ID));
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import su.sres.shadowserver.redis.RedisClusterExtension;
+
+class LocalAccountCacheTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  private LocalAccountCache localAccountCache;
+  private LocalAccountCache peerAccountCache;
+
+  @BeforeEach
+  void setUp() {
+    localAccountCache = new LocalAccountCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(), 100, Duration.ofMinutes(1), Clock.systemUTC());
+    peerAccountCache = new LocalAccountCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(), 100, Duration.ofMinutes(1), Clock.systemUTC());
+
+    localAccountCache.start();
+    peerAccountCache.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    localAccountCache.stop();
+    peerAccountCache.stop();
+  }
+
+  @Test
+  void testGet() {
+    final UUID uuid = UUID.randomUUID();
+    final Account account = mock(Account.class);
+    final AtomicInteger loads = new AtomicInteger();
+
+    assertEquals(Optional.empty(), localAccountCache.get(uuid, () -> {
+      loads.incrementAndGet();
+      return Optional.empty();
+    }));
+
+    assertSame(account, localAccountCache.get(uuid, () -> {
+      loads.incrementAndGet();
+      return Optional.of(account);
+    }).orElseThrow());
+
+    assertSame(account, localAccountCache.get(uuid, () -> {
+      loads.incrementAndGet();
+      return Optional.empty();
+    }).orElseThrow());
+
+    assertSame(account, localAccountCache.getAsync(uuid, () -> {
+      loads.incrementAndGet();
+      return CompletableFuture.completedFuture(Optional.empty());
+    }).join().orElseThrow());
+
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void testInvalidate() throws InterruptedException {
+    final UUID uuid = UUID.randomUUID();
+
+    localAccountCache.get(uuid, () -> Optional.of(mock(Account.class)));
+    peerAccountCache.get(uuid, () -> Optional.of(mock(Account.class)));
+
+    localAccountCache.invalidate(uuid);
+
+    assertFalse(localAccountCache.isCached(uuid));
+
+    for (int i = 0; i < 100 && peerAccountCache.isCached(uuid); i++) {
+      Thread.sleep(50);
+    }
+
+    assertFalse(peerAccountCache.isCached(uuid));
+  }
+
+  @Test
+  void testLoadRacingInvalidation() {
+    final UUID uuid = UUID.randomUUID();
+
+    // the load may have read the previous version of the account, so it must not be cached
+    assertTrue(localAccountCache.get(uuid, () -> {
+      localAccountCache.invalidate(uuid);
+      return Optional.of(mock(Account.class));
+    }).isPresent());
+
+    assertFalse(localAccountCache.isCached(uuid));
+
+    localAccountCache.get(uuid, () -> Optional.of(mock(Account.class)));
+
+    assertTrue(localAccountCache.isCached(uuid));
+  }
+}
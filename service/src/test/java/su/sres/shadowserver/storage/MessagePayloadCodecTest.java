@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import su.sres.shadowserver.entities.MessageProtos;
+
+class MessagePayloadCodecTest {
+
+  private final MessagePayloadCodec codec = new MessagePayloadCodec(true, 256, 1);
+
+  @Test
+  void testCompressDecompress() throws DataFormatException {
+    final byte[] payload = "compressible ".repeat(100).getBytes(StandardCharsets.UTF_8);
+    final byte[] compressed = codec.compress(payload).orElseThrow();
+
+    assertTrue(compressed.length < payload.length);
+    assertArrayEquals(payload, codec.decompress(compressed));
+    assertArrayEquals(payload, MessagePayloadCodec.withoutCompression().decompress(compressed));
+  }
+
+  @Test
+  void testSmallAndIncompressiblePayloads() {
+    assertTrue(codec.compress(new byte[255]).isEmpty());
+
+    final byte[] random = new byte[4096];
+    ThreadLocalRandom.current().nextBytes(random);
+
+    assertTrue(codec.compress(random).isEmpty());
+    assertTrue(MessagePayloadCodec.withoutCompression().compress(new byte[4096]).isEmpty());
+  }
+
+  @Test
+  void testEncodeDecodeEnvelope() throws InvalidProtocolBufferException {
+    final MessageProtos.Envelope envelope = MessageProtos.Envelope.newBuilder()
+        .setType(MessageProtos.Envelope.Type.CIPHERTEXT)
+        .setServerGuid(UUID.randomUUID().toString())
+        .setContent(ByteString.copyFrom(new byte[4096]))
+        .build();
+
+    final byte[] serializedEnvelope = envelope.toByteArray();
+    final byte[] encodedEnvelope = codec.encodeEnvelope(serializedEnvelope);
+
+    assertEquals(MessagePayloadCodec.COMPRESSED_ENVELOPE_MARKER, encodedEnvelope[0]);
+    assertTrue(encodedEnvelope.length < serializedEnvelope.length);
+    assertEquals(envelope, MessageProtos.Envelope.parseFrom(codec.decodeEnvelope(encodedEnvelope)));
+
+    // envelopes stored without compression are read back as they are
+    assertSame(serializedEnvelope, MessagePayloadCodec.withoutCompression().encodeEnvelope(serializedEnvelope));
+    assertSame(serializedEnvelope, codec.decodeEnvelope(serializedEnvelope));
+  }
+
+  @Test
+  void testDecodeTruncatedEnvelope() {
+    final byte[] encodedEnvelope = codec.encodeEnvelope(MessageProtos.Envelope.newBuilder()
+        .setContent(ByteString.copyFrom(new byte[4096]))
+        .build()
+        .toByteArray());
+
+    assertThrows(InvalidProtocolBufferException.class,
+        () -> codec.decodeEnvelope(Arrays.copyOf(encodedEnvelope, encodedEnvelope.length / 2)));
+  }
+}
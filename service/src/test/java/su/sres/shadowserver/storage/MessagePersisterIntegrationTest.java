@@ -5,6 +5,7 @@
  */
 package su.sres.shadowserver.storage;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 import io.lettuce.core.cluster.SlotHash;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
@@ -67,7 +68,8 @@ class MessagePersisterIntegrationTest {
     });
 
     final MessagesScyllaDb messagesDynamoDb = new MessagesScyllaDb(dynamoDbExtension.getDynamoDbClient(),
-        MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(14));
+        dynamoDbExtension.getDynamoDbAsyncClient(), MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(14),
+        AbstractScyllaDbStore.DEFAULT_BATCH_WRITE_PARALLELISM);
     final AccountsManager accountsManager = mock(AccountsManager.class);
     final DynamicConfiguration dynamicConfiguration = mock(DynamicConfiguration.class);
 
@@ -75,7 +77,7 @@ class MessagePersisterIntegrationTest {
     messagesCache = new MessagesCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(),
         REDIS_CLUSTER_EXTENSION.getRedisCluster(), notificationExecutorService);
     messagesManager = new MessagesManager(messagesDynamoDb, messagesCache, mock(PushLatencyManager.class),
-        mock(ReportMessageManager.class));
+        mock(ReportMessageManager.class), MoreExecutors.newDirectExecutorService());
     messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager,
         dynamicConfiguration, PERSIST_DELAY);
 
@@ -119,6 +119,29 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
     assertEquals(messageCount, messagesCaptor.getAllValues().stream().mapToInt(List::size).sum());
   }
 
+  @Test
+  public void testPersistNextQueuesIndexedSlot() {
+    final String queueName = new String(MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+    final int slot = SlotHash.getSlot(queueName);
+    final int messageCount = 7;
+    final Instant now = Instant.now();
+
+    insertMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, messageCount, now);
+
+    // a sweep would visit an empty slot, so the queue can only be found through the slot index
+    setNextSlotToPersist((slot + 1) % SlotHash.SLOT_COUNT);
+
+    assertEquals(1, messagePersister.persistNextQueues(now.plus(messagePersister.getPersistDelay())));
+
+    final ArgumentCaptor<List<MessageProtos.Envelope>> messagesCaptor = ArgumentCaptor.forClass(List.class);
+
+    verify(messagesScyllaDb, atLeastOnce()).store(messagesCaptor.capture(), eq(DESTINATION_ACCOUNT_UUID), eq(DESTINATION_DEVICE_ID));
+    assertEquals(messageCount, messagesCaptor.getAllValues().stream().mapToInt(List::size).sum());
+
+    // nothing is left in the slot, so it isn't put back in the index
+    assertEquals(Optional.empty(), messagesCache.claimSlotToPersist(now.plus(messagePersister.getPersistDelay())));
+  }
+
   @Test
   public void testPersistNextQueuesSingleQueueTooSoon() {
     final String queueName = new String(MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
@@ -183,6 +206,48 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
         messagesCache.getQueuesToPersist(SlotHash.getSlot(queueName), Instant.now().plus(messagePersister.getPersistDelay()), 1));
   }
 
+  @Test
+  public void testPersistQueueRetryDoesNotBlockOtherQueues() {
+    final int slot = 7;
+    final String failingQueueName = generateRandomQueueNameForSlot(slot);
+    final String healthyQueueName = generateRandomQueueNameForSlot(slot);
+    final UUID failingAccountUuid = MessagesCache.getAccountUuidFromQueueName(failingQueueName);
+    final UUID healthyAccountUuid = MessagesCache.getAccountUuidFromQueueName(healthyQueueName);
+    final long failingDeviceId = MessagesCache.getDeviceIdFromQueueName(failingQueueName);
+    final long healthyDeviceId = MessagesCache.getDeviceIdFromQueueName(healthyQueueName);
+    final Instant now = Instant.now();
+
+    for (final UUID accountUuid : List.of(failingAccountUuid, healthyAccountUuid)) {
+      final Account account = mock(Account.class);
+      when(accountsManager.get(accountUuid)).thenReturn(Optional.of(account));
+    }
+
+    insertMessages(failingAccountUuid, failingDeviceId, 10, now);
+    insertMessages(healthyAccountUuid, healthyDeviceId, 10, now);
+    setNextSlotToPersist(slot);
+
+    doAnswer((Answer<Void>) invocation -> {
+      throw new RuntimeException("OH NO.");
+    }).when(messagesScyllaDb).store(any(), eq(failingAccountUuid), eq(failingDeviceId));
+
+    assertEquals(2, messagePersister.persistNextQueues(now.plus(messagePersister.getPersistDelay())));
+
+    verify(messagesScyllaDb, atLeastOnce()).store(any(), eq(healthyAccountUuid), eq(healthyDeviceId));
+
+    // The failing queue is back in the index, but only becomes eligible again once its backoff has passed
+    assertEquals(List.of(), messagesCache.getQueuesToPersist(slot, Instant.now().minus(messagePersister.getPersistDelay()), 1));
+    assertEquals(List.of(failingQueueName),
+        messagesCache.getQueuesToPersist(slot, Instant.now().minus(messagePersister.getPersistDelay()).plus(messagePersister.getRetryBackoff(1)), 1));
+  }
+
+  @Test
+  public void testGetRetryBackoff() {
+    assertEquals(Duration.ofSeconds(3), messagePersister.getRetryBackoff(1));
+    assertEquals(Duration.ofSeconds(6), messagePersister.getRetryBackoff(2));
+    assertEquals(Duration.ofSeconds(12), messagePersister.getRetryBackoff(3));
+    assertEquals(PERSIST_DELAY, messagePersister.getRetryBackoff(100));
+  }
+
   @SuppressWarnings("SameParameterValue")
   private static String generateRandomQueueNameForSlot(final int slot) {
     final UUID uuid = UUID.randomUUID();
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static org.mockito.Mockito.mock;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.protobuf.ByteString;
+
+import su.sres.shadowserver.entities.MessageProtos;
+import su.sres.shadowserver.entities.OutgoingMessageEntityList;
+import su.sres.shadowserver.metrics.PushLatencyManager;
+import su.sres.shadowserver.redis.RedisClusterExtension;
+import su.sres.shadowserver.util.MessagesDynamoDbExtension;
+
+/**
+ * Measures how long it takes to drain a 10,000-message persisted queue page by page the way
+ * {@code WebSocketConnection} does, deleting each page before reading the next one, both by advancing a
+ * {@link MessageQueueCursor} and by reading every page from the start of the queue. Note that the local DynamoDB
+ * emulator doesn't keep deletion markers, so it understates the cost of rescanning on ScyllaDB. Runs against the
+ * embedded servers started by {@link DynamoDbExtension} and {@link RedisClusterExtension}, driven here outside of
+ * JUnit. Run with {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MessageQueueDrainBenchmark {
+
+  private static final int MESSAGE_COUNT = 10_000;
+  private static final long DESTINATION_DEVICE_ID = 1;
+
+  @Param({"false", "true"})
+  private boolean advanceCursor;
+
+  private final RedisClusterExtension redisClusterExtension = RedisClusterExtension.builder().build();
+  private final DynamoDbExtension dynamoDbExtension = MessagesDynamoDbExtension.build();
+
+  private ExecutorService notificationExecutorService;
+  private ExecutorService persistedMessageExecutor;
+  private MessagesScyllaDb messagesScyllaDb;
+  private MessagesManager messagesManager;
+
+  private UUID destinationUuid;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    redisClusterExtension.beforeAll(null);
+    redisClusterExtension.beforeEach(null);
+    dynamoDbExtension.beforeEach(null);
+
+    notificationExecutorService = Executors.newSingleThreadExecutor();
+    persistedMessageExecutor = Executors.newFixedThreadPool(4);
+
+    messagesScyllaDb = new MessagesScyllaDb(dynamoDbExtension.getDynamoDbClient(), dynamoDbExtension.getDynamoDbAsyncClient(),
+        MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(14), AbstractScyllaDbStore.DEFAULT_BATCH_WRITE_PARALLELISM);
+
+    final MessagesCache messagesCache = new MessagesCache(redisClusterExtension.getRedisCluster(),
+        redisClusterExtension.getRedisCluster(), notificationExecutorService);
+
+    messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, mock(PushLatencyManager.class),
+        mock(ReportMessageManager.class), persistedMessageExecutor);
+  }
+
+  @Setup(Level.Iteration)
+  public void storeMessages() {
+    destinationUuid = UUID.randomUUID();
+
+    final long serverTimestamp = System.currentTimeMillis();
+    final List<MessageProtos.Envelope> messages = new ArrayList<>(MESSAGE_COUNT);
+
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      messages.add(MessageProtos.Envelope.newBuilder()
+          .setType(MessageProtos.Envelope.Type.UNIDENTIFIED_SENDER)
+          .setTimestamp(serverTimestamp + i)
+          .setServerTimestamp(serverTimestamp + i)
+          .setServerGuid(UUID.randomUUID().toString())
+          .setContent(ByteString.copyFrom(new byte[256]))
+          .build());
+    }
+
+    messagesScyllaDb.store(messages, destinationUuid, DESTINATION_DEVICE_ID);
+  }
+
+  @TearDown(Level.Iteration)
+  public void checkDrained() {
+    if (!messagesScyllaDb.load(destinationUuid, DESTINATION_DEVICE_ID, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE).isEmpty()) {
+      throw new IllegalStateException("Queue was not drained");
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    persistedMessageExecutor.shutdown();
+    notificationExecutorService.shutdown();
+
+    persistedMessageExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    notificationExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+
+    dynamoDbExtension.afterEach(null);
+    redisClusterExtension.afterEach(null);
+    redisClusterExtension.afterAll(null);
+  }
+
+  @Benchmark
+  public int drain() {
+    int drainedMessages = 0;
+    MessageQueueCursor cursor = MessageQueueCursor.start(false);
+    OutgoingMessageEntityList page;
+
+    do {
+      page = messagesManager.getMessagesForDeviceAsync(destinationUuid, DESTINATION_DEVICE_ID, "Test-UA", cursor).join();
+
+      CompletableFuture.allOf(page.getMessages().stream()
+          .map(message -> messagesManager.deleteAsync(destinationUuid, DESTINATION_DEVICE_ID, message))
+          .toArray(CompletableFuture[]::new))
+          .join();
+
+      drainedMessages += page.getMessages().size();
+      cursor = advanceCursor ? cursor.advance(page.getReadMessages()) : MessageQueueCursor.start(false);
+    } while (page.hasMore());
+
+    return drainedMessages;
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(MessageQueueDrainBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+
+/**
+ * Measures keyspace notification dispatch through the {@link MessagesCache} listener registry from 16 concurrent
+ * notifier threads, alongside listener churn from connecting and disconnecting devices. Notifications are dispatched on
+ * the calling thread and the cache uses pattern subscriptions, so no Redis server is involved. Run with
+ * {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(16)
+public class MessagesCacheNotificationBenchmark {
+
+  @Param({"10000", "100000"})
+  private int listeners;
+
+  private MessagesCache messagesCache;
+  private String[] keyspaceChannels;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    messagesCache = new MessagesCache(mock(FaultTolerantRedisCluster.class), mock(FaultTolerantRedisCluster.class),
+        MoreExecutors.newDirectExecutorService(), true);
+
+    keyspaceChannels = new String[listeners];
+
+    for (int i = 0; i < listeners; i++) {
+      final UUID accountUuid = UUID.randomUUID();
+
+      messagesCache.addMessageAvailabilityListener(accountUuid, 1, new MessageAvailabilityListener() {
+        @Override
+        public void handleNewMessagesAvailable() {
+        }
+
+        @Override
+        public void handleMessagesPersisted() {
+        }
+      });
+
+      keyspaceChannels[i] = "__keyspace@0__:user_queue::{" + MessagesCache.getQueueName(accountUuid, 1) + "}";
+    }
+  }
+
+  @Benchmark
+  public void notifyNewMessages() {
+    final String channel = keyspaceChannels[ThreadLocalRandom.current().nextInt(keyspaceChannels.length)];
+    messagesCache.message(null, "__keyspace@0__:user_queue::{*", channel, "zadd");
+  }
+
+  @Benchmark
+  public void notifyUnknownQueue() {
+    messagesCache.message(null, "__keyspace@0__:user_queue::{*", "__keyspace@0__:user_queue::{" + UUID.randomUUID() + "::1}", "zadd");
+  }
+
+  @Benchmark
+  public void connectAndDisconnect() {
+    final MessageAvailabilityListener listener = new MessageAvailabilityListener() {
+      @Override
+      public void handleNewMessagesAvailable() {
+      }
+
+      @Override
+      public void handleMessagesPersisted() {
+      }
+    };
+
+    messagesCache.addMessageAvailabilityListener(UUID.randomUUID(), 1, listener);
+    messagesCache.removeMessageAvailabilityListener(listener);
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(MessagesCacheNotificationBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
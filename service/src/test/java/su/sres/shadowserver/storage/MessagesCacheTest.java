@@ -9,6 +9,7 @@ import junitparams.Parameters;
 import su.sres.shadowserver.entities.MessageProtos;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.redis.AbstractRedisClusterTest;
+import su.sres.shadowserver.util.Pair;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Before;
@@ -25,7 +26,9 @@ import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
 import java.util.UUID;
@@ -92,6 +95,25 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
     assertEquals(firstId, secondId);
   }
 
+  @Test
+  public void testInsertBatch() {
+    final Map<UUID, DestinationMessage> messagesByGuid = new HashMap<>();
+
+    for (int i = 0; i < 100; i++) {
+      final UUID messageGuid = UUID.randomUUID();
+      messagesByGuid.put(messageGuid, new DestinationMessage(UUID.randomUUID(), DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, true)));
+    }
+
+    assertTrue(messagesCache.insert(messagesByGuid).isEmpty());
+
+    messagesByGuid.forEach((messageGuid, destinationMessage) -> {
+      final List<OutgoingMessageEntity> messages = messagesCache.get(destinationMessage.getDestinationUuid(), DESTINATION_DEVICE_ID, 10);
+
+      assertEquals(1, messages.size());
+      assertEquals(messageGuid, messages.get(0).getGuid());
+    });
+  }
+
   @Test
   @Parameters({ "true", "false" })
   public void testRemoveByUUID(final boolean sealedSender) {
@@ -170,6 +192,107 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
     assertEquals(expectedMessages, messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, messageCount));
   }
 
+  @Test
+  public void testGetMessagesWithCursor() {
+    final int messageCount = 25;
+    final int pageSize = 10;
+
+    final List<OutgoingMessageEntity> expectedMessages = new ArrayList<>(messageCount);
+
+    for (int i = 0; i < messageCount; i++) {
+      final UUID messageGuid = UUID.randomUUID();
+      final MessageProtos.Envelope message = generateRandomMessage(messageGuid, true);
+      final long messageId = messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, message);
+
+      expectedMessages.add(MessagesCache.constructEntityFromEnvelope(messageId, message));
+    }
+
+    final List<OutgoingMessageEntity> retrievedMessages = new ArrayList<>(messageCount);
+    MessageQueueCursor cursor = MessageQueueCursor.start(true);
+    List<OutgoingMessageEntity> page;
+
+    do {
+      // nothing is removed between pages, so only the cursor keeps pages from overlapping
+      page = messagesCache.getAsync(DESTINATION_UUID, DESTINATION_DEVICE_ID, pageSize, cursor).join();
+      retrievedMessages.addAll(page);
+      cursor = cursor.advance(page);
+    } while (page.size() == pageSize);
+
+    assertEquals(expectedMessages, retrievedMessages);
+  }
+
+  @Test
+  public void testGetMessagesDeliverableAsStored() throws Exception {
+    final UUID messageGuid = UUID.randomUUID();
+    final MessageProtos.Envelope message = generateRandomMessage(messageGuid, false);
+
+    final UUID ephemeralMessageGuid = UUID.randomUUID();
+    final MessageProtos.Envelope ephemeralMessage = generateRandomMessage(ephemeralMessageGuid, false).toBuilder()
+        .setTimestamp(System.currentTimeMillis())
+        .setEphemeral(true)
+        .build();
+
+    messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, message);
+    messagesCache.insert(ephemeralMessageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, ephemeralMessage);
+
+    final List<OutgoingMessageEntity> messages = messagesCache.getAsync(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10).join();
+    assertEquals(2, messages.size());
+
+    assertTrue(messages.get(0).getSerializedEnvelope().isPresent());
+    assertEquals(message, MessageProtos.Envelope.parseFrom(messages.get(0).getSerializedEnvelope().get()));
+    assertEquals(message.getContent(), messages.get(0).getContentBytes());
+
+    // recipients never see the ephemeral flag, so ephemeral messages can't be delivered exactly as stored
+    assertFalse(messages.get(1).getSerializedEnvelope().isPresent());
+    assertEquals(ephemeralMessage.getContent(), messages.get(1).getContentBytes());
+  }
+
+  @Test
+  public void testInsertCompressed() throws Exception {
+    final MessagesCache compressingMessagesCache = new MessagesCache(getRedisCluster(), getRedisCluster(),
+        notificationExecutorService, false, new MessagePayloadCodec(true, 256, 1));
+
+    final UUID messageGuid = UUID.randomUUID();
+    final MessageProtos.Envelope message = generateRandomMessage(messageGuid, false).toBuilder()
+        .setContent(ByteString.copyFromUtf8("compressible ".repeat(200)))
+        .build();
+
+    compressingMessagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, message);
+
+    final byte[] storedEnvelope = getRedisCluster().withBinaryCluster(connection ->
+        connection.sync().zrange(MessagesCache.getMessageQueueKey(DESTINATION_UUID, DESTINATION_DEVICE_ID), 0, 0)).get(0);
+
+    assertEquals(MessagePayloadCodec.COMPRESSED_ENVELOPE_MARKER, storedEnvelope[0]);
+    assertTrue(storedEnvelope.length < message.getSerializedSize());
+
+    // compressed envelopes are readable whether or not the reader compresses envelopes itself
+    final List<OutgoingMessageEntity> messages = messagesCache.getAsync(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10).join();
+    assertEquals(1, messages.size());
+    assertEquals(message, MessageProtos.Envelope.parseFrom(messages.get(0).getSerializedEnvelope().orElseThrow()));
+
+    assertEquals(List.of(message), messagesCache.getMessagesToPersist(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10));
+
+    assertEquals(Optional.of(MessagesCache.constructEntityFromEnvelope(0, message)),
+        messagesCache.removeAsync(DESTINATION_UUID, DESTINATION_DEVICE_ID, messageGuid).join());
+  }
+
+  @Test
+  public void testGetAndRemoveAsync() {
+    final UUID messageGuid = UUID.randomUUID();
+    final MessageProtos.Envelope message = generateRandomMessage(messageGuid, true);
+
+    messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, message);
+    assertTrue(messagesCache.hasMessagesAsync(DESTINATION_UUID, DESTINATION_DEVICE_ID).join());
+
+    final List<OutgoingMessageEntity> messages = messagesCache.getAsync(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10).join();
+    assertEquals(1, messages.size());
+    assertEquals(messageGuid, messages.get(0).getGuid());
+
+    assertEquals(Optional.of(MessagesCache.constructEntityFromEnvelope(0, message)),
+        messagesCache.removeAsync(DESTINATION_UUID, DESTINATION_DEVICE_ID, messageGuid).join());
+    assertFalse(messagesCache.hasMessagesAsync(DESTINATION_UUID, DESTINATION_DEVICE_ID).join());
+  }
+
   @Test
   @Parameters({ "true", "false" })
   public void testClearQueueForDevice(final boolean sealedSender) {
@@ -249,9 +372,11 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
   }
 
   @Test
-  public void testGetQueueNameFromKeyspaceChannel() {
-    assertEquals("1b363a31-a429-4fb6-8959-984a025e72ff::7",
-        MessagesCache.getQueueNameFromKeyspaceChannel("__keyspace@0__:user_queue::{1b363a31-a429-4fb6-8959-984a025e72ff::7}"));
+  public void testGetListenerKeyFromKeyspaceChannel() {
+    assertEquals(Optional.of(new MessagesCache.ListenerKey(UUID.fromString("1b363a31-a429-4fb6-8959-984a025e72ff"), 7)),
+        MessagesCache.getListenerKeyFromKeyspaceChannel("__keyspace@0__:user_queue::{1b363a31-a429-4fb6-8959-984a025e72ff::7}"));
+
+    assertEquals(Optional.empty(), MessagesCache.getListenerKeyFromKeyspaceChannel("__keyspace@0__:user_queue::{not-a-queue}"));
   }
 
   @Test
@@ -271,6 +396,32 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
     assertEquals(DESTINATION_DEVICE_ID, MessagesCache.getDeviceIdFromQueueName(queues.get(0)));
   }
 
+  @Test
+  public void testClaimSlotToPersist() {
+    final UUID messageGuid = UUID.randomUUID();
+    final long timestamp = 1234;
+    final int slot = SlotHash.getSlot(DESTINATION_UUID.toString() + "::" + DESTINATION_DEVICE_ID);
+
+    messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, true, timestamp));
+
+    // a second message for the same queue doesn't index the slot again
+    final UUID secondMessageGuid = UUID.randomUUID();
+    messagesCache.insert(secondMessageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(secondMessageGuid, true, timestamp + 1));
+
+    assertEquals(Optional.empty(), messagesCache.claimSlotToPersist(Instant.ofEpochMilli(timestamp - 1)));
+    assertEquals(Optional.of(new Pair<>(slot, 1L)), messagesCache.claimSlotToPersist(Instant.ofEpochMilli(timestamp)));
+    assertEquals(Optional.empty(), messagesCache.claimSlotToPersist(Instant.ofEpochMilli(timestamp)));
+
+    // the queue hasn't been persisted, so its slot goes back into the index
+    messagesCache.reindexSlotToPersist(slot);
+    assertEquals(Optional.of(new Pair<>(slot, 1L)), messagesCache.claimSlotToPersist(Instant.ofEpochMilli(timestamp)));
+
+    assertEquals(1, messagesCache.getQueuesToPersist(slot, Instant.ofEpochMilli(timestamp), 100).size());
+
+    messagesCache.reindexSlotToPersist(slot);
+    assertEquals(Optional.empty(), messagesCache.claimSlotToPersist(Instant.now()));
+  }
+
   @Test(timeout = 5_000L)
   public void testNotifyListenerNewMessage() throws InterruptedException {
     final AtomicBoolean notified = new AtomicBoolean(false);
@@ -302,6 +453,50 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
     assertTrue(notified.get());
   }
 
+  @Test(timeout = 5_000L)
+  public void testRemoveReplacedListener() throws InterruptedException {
+    final AtomicBoolean notified = new AtomicBoolean(false);
+    final UUID messageGuid = UUID.randomUUID();
+
+    final MessageAvailabilityListener replacedListener = new MessageAvailabilityListener() {
+      @Override
+      public void handleNewMessagesAvailable() {
+      }
+
+      @Override
+      public void handleMessagesPersisted() {
+      }
+    };
+
+    final MessageAvailabilityListener listener = new MessageAvailabilityListener() {
+      @Override
+      public void handleNewMessagesAvailable() {
+        synchronized (notified) {
+          notified.set(true);
+          notified.notifyAll();
+        }
+      }
+
+      @Override
+      public void handleMessagesPersisted() {
+      }
+    };
+
+    messagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, replacedListener);
+    messagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, listener);
+    messagesCache.removeMessageAvailabilityListener(replacedListener);
+
+    messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, true));
+
+    synchronized (notified) {
+      while (!notified.get()) {
+        notified.wait();
+      }
+    }
+
+    assertTrue(notified.get());
+  }
+
   @Test(timeout = 5_000L)
   public void testNotifyListenerPersisted() throws InterruptedException {
     final AtomicBoolean notified = new AtomicBoolean(false);
@@ -333,4 +528,56 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
 
     assertTrue(notified.get());
   }
+
+  @Test(timeout = 5_000L)
+  public void testNotifyListenerWithPatternSubscriptions() throws Exception {
+    final MessagesCache patternMessagesCache =
+        new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService, true);
+
+    final AtomicBoolean newMessagesNotified = new AtomicBoolean(false);
+    final AtomicBoolean persistedNotified = new AtomicBoolean(false);
+    final UUID messageGuid = UUID.randomUUID();
+
+    final MessageAvailabilityListener listener = new MessageAvailabilityListener() {
+      @Override
+      public void handleNewMessagesAvailable() {
+        synchronized (newMessagesNotified) {
+          newMessagesNotified.set(true);
+          newMessagesNotified.notifyAll();
+        }
+      }
+
+      @Override
+      public void handleMessagesPersisted() {
+        synchronized (persistedNotified) {
+          persistedNotified.set(true);
+          persistedNotified.notifyAll();
+        }
+      }
+    };
+
+    patternMessagesCache.start();
+
+    try {
+      patternMessagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, listener);
+      patternMessagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, true));
+
+      synchronized (newMessagesNotified) {
+        while (!newMessagesNotified.get()) {
+          newMessagesNotified.wait();
+        }
+      }
+
+      patternMessagesCache.lockQueueForPersistence(DESTINATION_UUID, DESTINATION_DEVICE_ID);
+      patternMessagesCache.unlockQueueForPersistence(DESTINATION_UUID, DESTINATION_DEVICE_ID);
+
+      synchronized (persistedNotified) {
+        while (!persistedNotified.get()) {
+          persistedNotified.wait();
+        }
+      }
+    } finally {
+      patternMessagesCache.stop();
+    }
+  }
 }
@@ -1,14 +1,28 @@
 package su.sres.shadowserver.storage;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import org.junit.jupiter.api.Test;
 import su.sres.shadowserver.entities.MessageProtos.Envelope;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+import su.sres.shadowserver.entities.OutgoingMessageEntityList;
 import su.sres.shadowserver.metrics.PushLatencyManager;
 
 class MessagesManagerTest {
@@ -19,7 +33,7 @@ class MessagesManagerTest {
   private final ReportMessageManager reportMessageManager = mock(ReportMessageManager.class);
 
   private final MessagesManager messagesManager = new MessagesManager(messagesDynamoDb, messagesCache,
-      pushLatencyManager, reportMessageManager);
+      pushLatencyManager, reportMessageManager, MoreExecutors.newDirectExecutorService());
 
   @Test
   void insert() {
@@ -43,4 +57,154 @@ class MessagesManagerTest {
 
     verifyNoMoreInteractions(reportMessageManager);
   }
+
+  @Test
+  void deleteAsyncFallsBackToPersistedMessages() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final UUID messageGuid = UUID.randomUUID();
+    final OutgoingMessageEntity persistedMessage = mock(OutgoingMessageEntity.class);
+
+    when(messagesCache.removeAsync(destinationUuid, 1L, messageGuid)).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+    when(messagesDynamoDb.deleteMessageByDestinationAndGuid(destinationUuid, messageGuid)).thenReturn(Optional.of(persistedMessage));
+
+    assertEquals(Optional.of(persistedMessage), messagesManager.deleteAsync(destinationUuid, 1L, messageGuid).join());
+  }
+
+  @Test
+  void deleteAsyncDeletesDeliveredPersistedMessageByKey() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final OutgoingMessageEntity persistedMessage = new OutgoingMessageEntity(-1L, false, UUID.randomUUID(), 1, null, 1234L, null, null, 0,
+        null, null, 5678L);
+
+    when(messagesDynamoDb.deleteMessagesAsync(any())).thenReturn(CompletableFuture.completedFuture(null));
+
+    messagesManager.deleteAsync(destinationUuid, 1L, persistedMessage).join();
+
+    verify(messagesDynamoDb).deleteMessagesAsync(List.of(new MessagesScyllaDb.MessageKey(destinationUuid, 1L, 5678L, persistedMessage.getGuid())));
+    verify(messagesDynamoDb, never()).deleteMessageByDestinationAndGuid(any(), any());
+    verify(messagesCache, never()).removeAsync(any(), anyLong(), any());
+  }
+
+  @Test
+  void deleteAsyncFallsBackToPersistedMessageKey() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final OutgoingMessageEntity cachedMessage = new OutgoingMessageEntity(7L, true, UUID.randomUUID(), 1, null, 1234L, null, null, 0,
+        null, null, 5678L);
+
+    when(messagesCache.removeAsync(destinationUuid, 1L, cachedMessage.getGuid())).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+    when(messagesDynamoDb.deleteMessagesAsync(any())).thenReturn(CompletableFuture.completedFuture(null));
+
+    messagesManager.deleteAsync(destinationUuid, 1L, cachedMessage).join();
+
+    verify(messagesDynamoDb).deleteMessagesAsync(List.of(new MessagesScyllaDb.MessageKey(destinationUuid, 1L, 5678L, cachedMessage.getGuid())));
+    verify(messagesDynamoDb, never()).deleteMessageByDestinationAndGuid(any(), any());
+  }
+
+  @Test
+  void getMessagesForDeviceAsyncResolvesSharedPayloads() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final ByteString cachedSharedPayloadId = ByteString.copyFromUtf8("cached");
+    final ByteString persistedSharedPayloadId = ByteString.copyFromUtf8("persisted");
+
+    final OutgoingMessageEntity persistedMessage = new OutgoingMessageEntity(-1L, false, UUID.randomUUID(), 6, null, 1234L, null, null, 0,
+        null, ByteString.copyFromUtf8("persisted message "), 5678L, null, persistedSharedPayloadId);
+    final OutgoingMessageEntity cachedMessage = new OutgoingMessageEntity(7L, true, UUID.randomUUID(), 6, null, 1235L, null, null, 0,
+        null, ByteString.copyFromUtf8("cached message "), 5679L, null, cachedSharedPayloadId);
+    final OutgoingMessageEntity otherCachedMessage = new OutgoingMessageEntity(8L, true, UUID.randomUUID(), 6, null, 1236L, null, null, 0,
+        null, ByteString.copyFromUtf8("another cached message "), 5680L, null, cachedSharedPayloadId);
+
+    when(messagesDynamoDb.load(eq(destinationUuid), eq(1L), anyInt(), any())).thenReturn(List.of(persistedMessage));
+    when(messagesCache.getAsync(eq(destinationUuid), eq(1L), anyInt(), any()))
+        .thenReturn(CompletableFuture.completedFuture(List.of(cachedMessage, otherCachedMessage)));
+
+    when(messagesCache.getSharedPayloadAsync(cachedSharedPayloadId))
+        .thenReturn(CompletableFuture.completedFuture(Optional.of(ByteString.copyFromUtf8("shared payload"))));
+    when(messagesCache.getSharedPayloadAsync(persistedSharedPayloadId))
+        .thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+    when(messagesDynamoDb.loadSharedPayload(persistedSharedPayloadId))
+        .thenReturn(Optional.of(ByteString.copyFromUtf8("older shared payload")));
+
+    final List<OutgoingMessageEntity> messages = messagesManager.getMessagesForDeviceAsync(destinationUuid, 1L, "Test-UA",
+        MessageQueueCursor.start(false)).join().getMessages();
+
+    assertEquals(3, messages.size());
+    assertEquals(ByteString.copyFromUtf8("persisted message older shared payload"), messages.get(0).getContentBytes());
+    assertEquals(ByteString.copyFromUtf8("cached message shared payload"), messages.get(1).getContentBytes());
+    assertEquals(ByteString.copyFromUtf8("another cached message shared payload"), messages.get(2).getContentBytes());
+    assertTrue(messages.stream().allMatch(message -> message.getSharedPayloadId().isEmpty()));
+
+    // each shared payload is only fetched once per page
+    verify(messagesCache).getSharedPayloadAsync(cachedSharedPayloadId);
+    verify(messagesDynamoDb, never()).loadSharedPayload(cachedSharedPayloadId);
+  }
+
+  @Test
+  void getMessagesForDeviceAsyncWithholdsMessagesWithMissingSharedPayloads() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final ByteString missingSharedPayloadId = ByteString.copyFromUtf8("missing");
+
+    final OutgoingMessageEntity message = new OutgoingMessageEntity(7L, true, UUID.randomUUID(), 6, null, 1235L, null, null, 0,
+        null, ByteString.copyFromUtf8("message"), 5679L, null, null);
+    final OutgoingMessageEntity truncatedMessage = new OutgoingMessageEntity(8L, true, UUID.randomUUID(), 6, null, 1236L, null, null, 0,
+        null, ByteString.copyFromUtf8("truncated message "), 5680L, null, missingSharedPayloadId);
+
+    when(messagesCache.getAsync(eq(destinationUuid), eq(1L), anyInt(), any()))
+        .thenReturn(CompletableFuture.completedFuture(List.of(message, truncatedMessage)));
+    when(messagesCache.getSharedPayloadAsync(missingSharedPayloadId))
+        .thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+    when(messagesDynamoDb.loadSharedPayload(missingSharedPayloadId)).thenReturn(Optional.empty());
+
+    final List<OutgoingMessageEntity> messages = messagesManager.getMessagesForDeviceAsync(destinationUuid, 1L, "Test-UA",
+        MessageQueueCursor.start(true)).join().getMessages();
+
+    // the message is kept in its queue rather than delivered without the payload it needs
+    assertEquals(List.of(message), messages);
+    verify(messagesCache, never()).removeAsync(any(), anyLong(), any());
+  }
+
+  @Test
+  void getMessagesForDeviceAsyncAdvancesPastWithheldMessages() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final ByteString missingSharedPayloadId = ByteString.copyFromUtf8("missing");
+
+    final List<OutgoingMessageEntity> truncatedMessages = new ArrayList<>();
+
+    for (int i = 0; i < MessagesManager.RESULT_SET_CHUNK_SIZE; i++) {
+      truncatedMessages.add(new OutgoingMessageEntity(i + 1, true, UUID.randomUUID(), 6, null, 1235L + i, null, null, 0,
+          null, ByteString.copyFromUtf8("truncated message "), 5679L + i, null, missingSharedPayloadId));
+    }
+
+    when(messagesCache.getAsync(eq(destinationUuid), eq(1L), anyInt(), any()))
+        .thenReturn(CompletableFuture.completedFuture(truncatedMessages));
+    when(messagesCache.getSharedPayloadAsync(missingSharedPayloadId))
+        .thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+    when(messagesDynamoDb.loadSharedPayload(missingSharedPayloadId)).thenReturn(Optional.empty());
+
+    final MessageQueueCursor cursor = MessageQueueCursor.start(true);
+    final OutgoingMessageEntityList page = messagesManager.getMessagesForDeviceAsync(destinationUuid, 1L, "Test-UA", cursor).join();
+
+    // nothing can be delivered, but the messages after the withheld ones still have to be read
+    assertTrue(page.getMessages().isEmpty());
+    assertTrue(page.hasMore());
+    assertEquals(truncatedMessages, page.getReadMessages());
+    assertEquals(MessagesManager.RESULT_SET_CHUNK_SIZE, cursor.advance(page.getReadMessages()).getLastCachedMessageId());
+  }
+
+  @Test
+  void storeSharedPayloadAsync() {
+    final byte[] sharedPayload = "shared payload".getBytes();
+
+    when(messagesCache.insertSharedPayloadAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+    when(messagesDynamoDb.storeSharedPayloadAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+
+    final ByteString sharedPayloadId = messagesManager.storeSharedPayloadAsync(sharedPayload, false).join();
+
+    verify(messagesCache).insertSharedPayloadAsync(sharedPayloadId.toByteArray(), sharedPayload);
+    verify(messagesDynamoDb).storeSharedPayloadAsync(sharedPayloadId.toByteArray(), sharedPayload);
+
+    messagesManager.storeSharedPayloadAsync(sharedPayload, true).join();
+
+    // ephemeral payloads are never persisted
+    verify(messagesDynamoDb).storeSharedPayloadAsync(any(), any());
+  }
 }
@@ -5,22 +5,34 @@
 
 package su.sres.shadowserver.storage;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
 import su.sres.shadowserver.entities.MessageProtos;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.util.MessagesDynamoDbExtension;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.mockito.AdditionalAnswers;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 
 class MessagesScyllaDbTest {
   private static final Random random = new Random();
@@ -67,8 +79,8 @@ class MessagesScyllaDbTest {
 
   @BeforeEach
   void setup() {
-    messagesScyllaDb = new MessagesScyllaDb(dynamoDbExtension.getDynamoDbClient(), MessagesDynamoDbExtension.TABLE_NAME,
-        Duration.ofDays(14));
+    messagesScyllaDb = new MessagesScyllaDb(dynamoDbExtension.getDynamoDbClient(), dynamoDbExtension.getDynamoDbAsyncClient(),
+        MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(14), AbstractScyllaDbStore.DEFAULT_BATCH_WRITE_PARALLELISM);
   }
 
   @Test
@@ -90,6 +102,72 @@ class MessagesScyllaDbTest {
     assertThat(messagesStored).element(2).satisfies(verify(MESSAGE2));
   }
 
+  @Test
+  void testStoreAndDeleteManyBatches() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final int messageCount = AbstractScyllaDbStore.DYNAMO_DB_MAX_BATCH_SIZE * 10 + 7;
+    final List<MessageProtos.Envelope> messages = new ArrayList<>(messageCount);
+
+    for (int i = 0; i < messageCount; i++) {
+      messages.add(MESSAGE1.toBuilder()
+          .setServerGuid(UUID.randomUUID().toString())
+          .setServerTimestamp(MESSAGE1.getServerTimestamp() + i)
+          .build());
+    }
+
+    messagesScyllaDb.store(messages, destinationUuid, 1);
+
+    final List<OutgoingMessageEntity> messagesStored = messagesScyllaDb.load(destinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE);
+    assertThat(messagesStored).hasSize(MessagesScyllaDb.RESULT_SET_CHUNK_SIZE);
+    assertThat(messagesStored).element(0).satisfies(verify(messages.get(0)));
+
+    messagesScyllaDb.deleteAllMessagesForDevice(destinationUuid, 1);
+
+    assertThat(messagesScyllaDb.load(destinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE)).isNotNull().isEmpty();
+  }
+
+  @Test
+  void testLoadWithCursor() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final int messageCount = MessagesScyllaDb.RESULT_SET_CHUNK_SIZE * 2 + 17;
+    final List<MessageProtos.Envelope> messages = new ArrayList<>(messageCount);
+
+    for (int i = 0; i < messageCount; i++) {
+      messages.add(MESSAGE1.toBuilder()
+          .setServerGuid(UUID.randomUUID().toString())
+          .setServerTimestamp(MESSAGE1.getServerTimestamp() + i)
+          .build());
+    }
+
+    messagesScyllaDb.store(messages, destinationUuid, 1);
+    messagesScyllaDb.store(List.of(MESSAGE2), destinationUuid, 2);
+
+    final List<OutgoingMessageEntity> loadedMessages = new ArrayList<>(messageCount);
+    MessageQueueCursor cursor = MessageQueueCursor.start(false);
+    List<OutgoingMessageEntity> page;
+
+    do {
+      page = messagesScyllaDb.load(destinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE, cursor);
+      loadedMessages.addAll(page);
+      cursor = cursor.advance(page);
+    } while (page.size() == MessagesScyllaDb.RESULT_SET_CHUNK_SIZE);
+
+    assertThat(loadedMessages).hasSize(messageCount);
+
+    for (int i = 0; i < messageCount; i++) {
+      assertThat(loadedMessages).element(i).satisfies(verify(messages.get(i)));
+    }
+  }
+
+  @Test
+  void testGetRetryBackoffMillis() {
+    for (int attempt = 0; attempt < 30; attempt++) {
+      assertThat(AbstractScyllaDbStore.getRetryBackoffMillis(attempt)).isBetween(0L, 1_000L);
+    }
+
+    assertThat(AbstractScyllaDbStore.getRetryBackoffMillis(0)).isBetween(0L, 25L);
+  }
+
   @Test
   void testDeleteForDestination() {
     final UUID destinationUuid = UUID.randomUUID();
@@ -147,6 +225,78 @@ class MessagesScyllaDbTest {
     assertThat(messagesScyllaDb.load(secondDestinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE)).isNotNull().isEmpty();
   }
 
+  @Test
+  void testStoreAndLoadCompressed() {
+    final MessagesScyllaDb compressingMessagesScyllaDb = new MessagesScyllaDb(dynamoDbExtension.getDynamoDbClient(),
+        dynamoDbExtension.getDynamoDbAsyncClient(), MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(14),
+        AbstractScyllaDbStore.DEFAULT_BATCH_WRITE_PARALLELISM, new MessagePayloadCodec(true, 16, 1));
+
+    final UUID destinationUuid = UUID.randomUUID();
+    final MessageProtos.Envelope compressibleMessage = MESSAGE2.toBuilder()
+        .setServerGuid(UUID.randomUUID().toString())
+        .setContent(ByteString.copyFrom(new byte[4096]))
+        .setLegacyMessage(ByteString.copyFrom(new byte[2048]))
+        .build();
+
+    compressingMessagesScyllaDb.store(List.of(compressibleMessage, MESSAGE1), destinationUuid, 1);
+
+    // messages are readable whether or not the reader compresses payloads itself
+    assertThat(messagesScyllaDb.load(destinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE)).hasSize(2)
+        .satisfiesExactly(verify(MESSAGE1), verify(compressibleMessage));
+
+    assertThat(compressingMessagesScyllaDb.deleteMessageByDestinationAndGuid(destinationUuid,
+        UUID.fromString(compressibleMessage.getServerGuid()))).hasValueSatisfying(verify(compressibleMessage));
+  }
+
+  @Test
+  void testScyllaOperationsPerDeliveredMessage() {
+    final DynamoDbClient countingClient = mock(DynamoDbClient.class, AdditionalAnswers.delegatesTo(dynamoDbExtension.getDynamoDbClient()));
+    final DynamoDbAsyncClient countingAsyncClient = mock(DynamoDbAsyncClient.class,
+        AdditionalAnswers.delegatesTo(dynamoDbExtension.getDynamoDbAsyncClient()));
+    final MessagesScyllaDb countingMessagesScyllaDb = new MessagesScyllaDb(countingClient, countingAsyncClient,
+        MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(14), AbstractScyllaDbStore.DEFAULT_BATCH_WRITE_PARALLELISM);
+
+    final UUID destinationUuid = UUID.randomUUID();
+    final int messageCount = AbstractScyllaDbStore.DYNAMO_DB_MAX_BATCH_SIZE * 4;
+    final List<MessageProtos.Envelope> messages = new ArrayList<>(messageCount);
+
+    for (int i = 0; i < messageCount; i++) {
+      messages.add(MESSAGE1.toBuilder()
+          .setServerGuid(UUID.randomUUID().toString())
+          .setServerTimestamp(MESSAGE1.getServerTimestamp() + i)
+          .build());
+    }
+
+    messagesScyllaDb.store(messages, destinationUuid, 1);
+
+    final List<OutgoingMessageEntity> deliveredMessages = messagesScyllaDb.load(destinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE);
+    assertThat(deliveredMessages).hasSize(messageCount);
+
+    final List<OutgoingMessageEntity> deletedByGuid = deliveredMessages.subList(0, messageCount / 2);
+    final List<OutgoingMessageEntity> deletedByKey = deliveredMessages.subList(messageCount / 2, messageCount);
+
+    // by GUID: one query on the message UUID index plus one DeleteItem per message
+    deletedByGuid.forEach(message -> countingMessagesScyllaDb.deleteMessageByDestinationAndGuid(destinationUuid, message.getGuid()));
+
+    org.mockito.Mockito.verify(countingClient, times(deletedByGuid.size())).queryPaginator(any(QueryRequest.class));
+    org.mockito.Mockito.verify(countingClient, times(deletedByGuid.size())).deleteItem(any(DeleteItemRequest.class));
+
+    // by key, coalesced: one BatchWriteItem per full batch and no reads
+    final CoalescingMessageDeleter deleter = new CoalescingMessageDeleter(countingMessagesScyllaDb, Duration.ofSeconds(10),
+        MoreExecutors.directExecutor());
+
+    CompletableFuture.allOf(deletedByKey.stream()
+        .map(message -> deleter.delete(destinationUuid, 1, message.getServerTimestamp(), message.getGuid()))
+        .toArray(CompletableFuture[]::new))
+        .join();
+
+    org.mockito.Mockito.verify(countingAsyncClient, times(deletedByKey.size() / AbstractScyllaDbStore.DYNAMO_DB_MAX_BATCH_SIZE))
+        .batchWriteItem(any(BatchWriteItemRequest.class));
+    org.mockito.Mockito.verify(countingClient, times(deletedByGuid.size())).queryPaginator(any(QueryRequest.class));
+
+    assertThat(messagesScyllaDb.load(destinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE)).isNotNull().isEmpty();
+  }
+
   private static void verify(OutgoingMessageEntity retrieved, MessageProtos.Envelope inserted) {
     assertThat(retrieved.getTimestamp()).isEqualTo(inserted.getTimestamp());
     assertThat(retrieved.getSource()).isEqualTo(inserted.hasSource() ? inserted.getSource() : null);
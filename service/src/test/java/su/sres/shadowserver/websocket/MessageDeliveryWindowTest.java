@@ -0,0 +1,51 @@
+/*
+ * Copyright 2023 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+class MessageDeliveryWindowTest {
+
+  @Test
+  void testAcquireRelease() {
+    final MessageDeliveryWindow window = new MessageDeliveryWindow(2);
+
+    assertTrue(window.acquire().isDone());
+    assertTrue(window.acquire().isDone());
+    assertEquals(2, window.getMessagesInFlight());
+
+    final CompletableFuture<Void> firstWaiter = window.acquire();
+    final CompletableFuture<Void> secondWaiter = window.acquire();
+
+    assertFalse(firstWaiter.isDone());
+    assertFalse(secondWaiter.isDone());
+
+    window.release();
+
+    assertTrue(firstWaiter.isDone());
+    assertFalse(secondWaiter.isDone());
+    assertEquals(2, window.getMessagesInFlight());
+
+    window.release();
+    assertTrue(secondWaiter.isDone());
+
+    window.release();
+    window.release();
+    assertEquals(0, window.getMessagesInFlight());
+  }
+
+  @Test
+  void testInvalidSize() {
+    assertThrows(IllegalArgumentException.class, () -> new MessageDeliveryWindow(0));
+  }
+}
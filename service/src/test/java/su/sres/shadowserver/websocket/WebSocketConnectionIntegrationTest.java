@@ -5,6 +5,7 @@
  */
 package su.sres.shadowserver.websocket;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.apache.commons.lang3.RandomStringUtils;
@@ -21,6 +22,7 @@ import su.sres.shadowserver.metrics.PushLatencyManager;
 import su.sres.shadowserver.push.ReceiptSender;
 import su.sres.shadowserver.redis.AbstractRedisClusterTest;
 import su.sres.shadowserver.redis.RedisClusterExtension;
+import su.sres.shadowserver.storage.AbstractScyllaDbStore;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.Device;
 import su.sres.shadowserver.storage.DynamoDbExtension;
@@ -88,8 +90,8 @@ class WebSocketConnectionIntegrationTest {
     executorService = Executors.newSingleThreadExecutor();
     messagesCache = new MessagesCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(),
         REDIS_CLUSTER_EXTENSION.getRedisCluster(), executorService);
-    messagesDynamoDb = new MessagesScyllaDb(dynamoDbExtension.getDynamoDbClient(), MessagesDynamoDbExtension.TABLE_NAME,
-        Duration.ofDays(7));
+    messagesDynamoDb = new MessagesScyllaDb(dynamoDbExtension.getDynamoDbClient(), dynamoDbExtension.getDynamoDbAsyncClient(),
+        MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(7), AbstractScyllaDbStore.DEFAULT_BATCH_WRITE_PARALLELISM);
     reportMessageManager = mock(ReportMessageManager.class);
     account = mock(Account.class);
     device = mock(Device.class);
@@ -102,7 +104,8 @@ class WebSocketConnectionIntegrationTest {
 
     webSocketConnection = new WebSocketConnection(
         mock(ReceiptSender.class),
-        new MessagesManager(messagesDynamoDb, messagesCache, mock(PushLatencyManager.class), reportMessageManager),
+        new MessagesManager(messagesDynamoDb, messagesCache, mock(PushLatencyManager.class), reportMessageManager,
+            MoreExecutors.newDirectExecutorService()),
         new AuthenticatedAccount(() -> new Pair<>(account, device)),
         device,
         webSocketClient,
@@ -8,7 +8,6 @@ package su.sres.shadowserver.websocket;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
-import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
@@ -38,6 +37,7 @@ import su.sres.websocket.messages.WebSocketResponseMessage;
 import su.sres.websocket.session.WebSocketSessionContext;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -63,9 +63,11 @@ import su.sres.shadowserver.push.ClientPresenceManager;
 import su.sres.shadowserver.push.MessageSender;
 import su.sres.shadowserver.push.ReceiptSender;
 import io.lettuce.core.RedisException;
+import su.sres.shadowserver.configuration.MessageDeliveryConfiguration;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.AccountsManager;
 import su.sres.shadowserver.storage.Device;
+import su.sres.shadowserver.storage.MessageQueueCursor;
 import su.sres.shadowserver.storage.MessagesManager;
 import su.sres.shadowserver.util.Pair;
 
@@ -102,7 +104,7 @@ public class WebSocketConnectionTest {
 
   @Test
   public void testCredentials() throws Exception {
-    MessagesManager storedMessages = mock(MessagesManager.class);
+    MessagesManager storedMessages = mockMessagesManager();
     WebSocketAccountAuthenticator webSocketAuthenticator = new WebSocketAccountAuthenticator(accountAuthenticator);
     AuthenticatedConnectListener connectListener = new AuthenticatedConnectListener(receiptSender, storedMessages, mock(MessageSender.class), apnFallbackManager, mock(ClientPresenceManager.class), retrySchedulingExecutor);
     WebSocketSessionContext sessionContext = mock(WebSocketSessionContext.class);
@@ -158,7 +160,7 @@ public class WebSocketConnectionTest {
 
   @Test
   public void testOpen() throws Exception {
-    MessagesManager storedMessages = mock(MessagesManager.class);
+    MessagesManager storedMessages = mockMessagesManager();
 
     UUID accountUuid = UUID.randomUUID();
     UUID senderOneUuid = UUID.randomUUID();
@@ -195,8 +197,8 @@ public class WebSocketConnectionTest {
 
     String userAgent = "user-agent";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
-        .thenReturn(outgoingMessagesList);
+    when(storedMessages.getMessagesForDeviceAsync(eq(account.getUuid()), eq(device.getId()), eq(userAgent), includingPersisted()))
+        .thenReturn(CompletableFuture.completedFuture(outgoingMessagesList));
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
     final WebSocketClient client = mock(WebSocketClient.class);
@@ -228,7 +230,7 @@ public class WebSocketConnectionTest {
     futures.get(0).completeExceptionally(new IOException());
     futures.get(2).completeExceptionally(new IOException());
 
-    verify(storedMessages, times(1)).delete(eq(accountUuid), eq(2L), eq(outgoingMessages.get(1).getGuid()));
+    verify(storedMessages, times(1)).deleteAsync(eq(accountUuid), eq(2L), eq(outgoingMessages.get(1)));
     verify(receiptSender, times(1)).sendReceipt(eq(auth), eq(senderOneUuid), eq(2222L));
 
     connection.stop();
@@ -237,7 +239,7 @@ public class WebSocketConnectionTest {
 
   @Test(timeout = 5_000L)
   public void testOnlineSend() throws Exception {
-    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final MessagesManager messagesManager = mockMessagesManager();
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor);
 
@@ -248,10 +250,10 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false))
-        .thenReturn(new OutgoingMessageEntityList(List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first")), false))
-        .thenReturn(new OutgoingMessageEntityList(List.of(createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second")), false));
+    when(messagesManager.getMessagesForDeviceAsync(eq(accountUuid), eq(1L), eq("Test-UA"), any(MessageQueueCursor.class)))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false)))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first")), false)))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(List.of(createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second")), false)));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -298,7 +300,7 @@ public class WebSocketConnectionTest {
 
   @Test
   public void testPendingSend() throws Exception {
-    MessagesManager storedMessages = mock(MessagesManager.class);
+    MessagesManager storedMessages = mockMessagesManager();
 
     final UUID senderTwoUuid = UUID.randomUUID();
 
@@ -356,8 +358,8 @@ public class WebSocketConnectionTest {
 
     String userAgent = "user-agent";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
-        .thenReturn(pendingMessagesList);
+    when(storedMessages.getMessagesForDeviceAsync(eq(account.getUuid()), eq(device.getId()), eq(userAgent), includingPersisted()))
+        .thenReturn(CompletableFuture.completedFuture(pendingMessagesList));
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
     final WebSocketClient client = mock(WebSocketClient.class);
@@ -395,7 +397,7 @@ public class WebSocketConnectionTest {
 
   @Test(timeout = 5000L)
   public void testProcessStoredMessageConcurrency() throws InterruptedException {
-    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final MessagesManager messagesManager = mockMessagesManager();
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor);
 
@@ -407,7 +409,7 @@ public class WebSocketConnectionTest {
     final AtomicBoolean threadWaiting = new AtomicBoolean(false);
     final AtomicBoolean returnMessageList = new AtomicBoolean(false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false)).thenAnswer((Answer<OutgoingMessageEntityList>) invocation -> {
+    when(messagesManager.getMessagesForDeviceAsync(eq(account.getUuid()), eq(1L), eq(client.getUserAgent()), includingPersisted())).thenAnswer((Answer<CompletableFuture<OutgoingMessageEntityList>>) invocation -> {
       synchronized (threadWaiting) {
         threadWaiting.set(true);
         threadWaiting.notifyAll();
@@ -419,7 +421,7 @@ public class WebSocketConnectionTest {
         }
       }
 
-      return new OutgoingMessageEntityList(Collections.emptyList(), false);
+      return CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false));
     });
 
     final Thread[] threads = new Thread[10];
@@ -451,12 +453,12 @@ public class WebSocketConnectionTest {
       thread.join();
     }
 
-    verify(messagesManager).getMessagesForDevice(any(UUID.class), anyLong(), anyString(), eq(false));
+    verify(messagesManager).getMessagesForDeviceAsync(any(UUID.class), anyLong(), anyString(), includingPersisted());
   }
 
   @Test(timeout = 5000L)
   public void testProcessStoredMessagesMultiplePages() throws InterruptedException {
-    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final MessagesManager messagesManager = mockMessagesManager();
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor);
 
@@ -473,9 +475,9 @@ public class WebSocketConnectionTest {
     final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(firstPageMessages, true);
     final OutgoingMessageEntityList secondPage = new OutgoingMessageEntityList(secondPageMessages, false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false))
-        .thenReturn(firstPage)
-        .thenReturn(secondPage);
+    when(messagesManager.getMessagesForDeviceAsync(eq(account.getUuid()), eq(1L), eq(client.getUserAgent()), includingPersisted()))
+        .thenReturn(CompletableFuture.completedFuture(firstPage))
+        .thenReturn(CompletableFuture.completedFuture(secondPage));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -495,9 +497,71 @@ public class WebSocketConnectionTest {
     verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
   }
 
+  @Test
+  public void testSlowAcknowledgementDoesNotStallDelivery() {
+    final MessagesManager messagesManager = mockMessagesManager();
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final MessageDeliveryConfiguration messageDeliveryConfiguration = mock(MessageDeliveryConfiguration.class);
+    when(messageDeliveryConfiguration.getWindowSize(any())).thenReturn(2);
+
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor,
+        messageDeliveryConfiguration);
+
+    when(account.getUserLogin()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(List.of(
+        createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"),
+        createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second"),
+        createMessage(3L, false, "sender1", UUID.randomUUID(), 3333, false, "third")), true);
+
+    final OutgoingMessageEntityList secondPage = new OutgoingMessageEntityList(List.of(
+        createMessage(4L, false, "sender1", UUID.randomUUID(), 4444, false, "fourth")), false);
+
+    when(messagesManager.getMessagesForDeviceAsync(eq(account.getUuid()), eq(1L), eq(client.getUserAgent()), includingPersisted()))
+        .thenReturn(CompletableFuture.completedFuture(firstPage))
+        .thenReturn(CompletableFuture.completedFuture(secondPage));
+
+    final List<CompletableFuture<WebSocketResponseMessage>> sendFutures = new ArrayList<>();
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class))).thenAnswer((Answer<CompletableFuture<WebSocketResponseMessage>>) invocation -> {
+      final CompletableFuture<WebSocketResponseMessage> sendFuture = new CompletableFuture<>();
+      sendFutures.add(sendFuture);
+
+      return sendFuture;
+    });
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    connection.processStoredMessages();
+
+    // the window is full, but the next page has already been read
+    assertEquals(2, sendFutures.size());
+    verify(messagesManager, times(2)).getMessagesForDeviceAsync(any(UUID.class), anyLong(), anyString(), any(MessageQueueCursor.class));
+
+    // the first message's acknowledgement is slow, but the second one's frees a slot for the third message...
+    sendFutures.get(1).complete(successResponse);
+    assertEquals(3, sendFutures.size());
+
+    // ...and the third one's frees a slot for the first message of the next page
+    sendFutures.get(2).complete(successResponse);
+    assertEquals(4, sendFutures.size());
+
+    verify(client, never()).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), any(Optional.class));
+
+    sendFutures.get(0).complete(successResponse);
+    sendFutures.get(3).complete(successResponse);
+
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
+    verify(messagesManager, times(4)).deleteAsync(any(UUID.class), anyLong(), any(OutgoingMessageEntity.class));
+  }
+
   @Test(timeout = 5000L)
   public void testProcessStoredMessagesContainsSenderUuid() throws InterruptedException {
-    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final MessagesManager messagesManager = mockMessagesManager();
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor);
 
@@ -510,7 +574,7 @@ public class WebSocketConnectionTest {
     final List<OutgoingMessageEntity> messages = List.of(createMessage(1L, false, "senderE164", senderUuid, 1111L, false, "message the first"));
     final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(messages, false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false)).thenReturn(firstPage);
+    when(messagesManager.getMessagesForDeviceAsync(eq(account.getUuid()), eq(1L), eq(client.getUserAgent()), includingPersisted())).thenReturn(CompletableFuture.completedFuture(firstPage));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -545,9 +609,73 @@ public class WebSocketConnectionTest {
     verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
   }
 
+  @Test
+  public void testProcessStoredMessagesSendsSerializedEnvelope() {
+    final MessagesManager messagesManager = mockMessagesManager();
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor);
+
+    when(account.getUserLogin()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final UUID senderUuid = UUID.randomUUID();
+    final UUID messageGuid = UUID.randomUUID();
+
+    final Envelope envelope = Envelope.newBuilder()
+        .setType(Envelope.Type.CIPHERTEXT)
+        .setSource("senderE164")
+        .setSourceUuid(senderUuid.toString())
+        .setSourceDevice(1)
+        .setTimestamp(1111L)
+        .setServerTimestamp(2222L)
+        .setServerGuid(messageGuid.toString())
+        .setContent(ByteString.copyFromUtf8("message the first"))
+        .build();
+
+    final byte[] serializedEnvelope = envelope.toByteArray();
+
+    final OutgoingMessageEntity message = new OutgoingMessageEntity(1L, true, messageGuid, envelope.getType().getNumber(), null,
+        envelope.getTimestamp(), envelope.getSource(), senderUuid, envelope.getSourceDevice(), null, envelope.getContent(),
+        envelope.getServerTimestamp(), serializedEnvelope);
+
+    when(messagesManager.getMessagesForDeviceAsync(eq(account.getUuid()), eq(1L), eq(client.getUserAgent()), includingPersisted()))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(List.of(message), false)));
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class)))
+        .thenReturn(CompletableFuture.completedFuture(successResponse));
+
+    connection.processStoredMessages();
+
+    // the stored envelope goes out as-is rather than being rebuilt from the entity
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class),
+        argThat(body -> body.isPresent() && body.get() == serializedEnvelope));
+
+    verify(receiptSender).sendReceipt(eq(auth), eq(senderUuid), eq(1111L));
+    verify(messagesManager).deleteAsync(any(UUID.class), eq(1L), eq(message));
+  }
+
+  @Test
+  public void testBuildEnvelope() {
+    final UUID senderUuid = UUID.randomUUID();
+    final OutgoingMessageEntity message = createMessage(1L, false, "sender1", senderUuid, 1111L, false, "first");
+
+    final Envelope envelope = WebSocketConnection.buildEnvelope(message);
+
+    assertEquals(message.getGuid().toString(), envelope.getServerGuid());
+    assertEquals(senderUuid.toString(), envelope.getSourceUuid());
+    assertEquals(1111L, envelope.getTimestamp());
+    assertEquals(message.getMessageBytes(), envelope.getLegacyMessage());
+    assertFalse(envelope.hasEphemeral());
+  }
+
   @Test
   public void testProcessStoredMessagesSingleEmptyCall() {
-    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final MessagesManager messagesManager = mockMessagesManager();
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor);
     final UUID accountUuid = UUID.randomUUID();
@@ -557,8 +685,8 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getMessagesForDeviceAsync(eq(accountUuid), eq(1L), eq("Test-UA"), any(MessageQueueCursor.class)))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false)));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -578,7 +706,7 @@ public class WebSocketConnectionTest {
 
   @Test(timeout = 5000L)
   public void testRequeryOnStateMismatch() throws InterruptedException {
-    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final MessagesManager messagesManager = mockMessagesManager();
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor);
     final UUID accountUuid = UUID.randomUUID();
@@ -596,10 +724,10 @@ public class WebSocketConnectionTest {
     final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(firstPageMessages, false);
     final OutgoingMessageEntityList secondPage = new OutgoingMessageEntityList(secondPageMessages, false);
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(firstPage)
-        .thenReturn(secondPage)
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getMessagesForDeviceAsync(eq(accountUuid), eq(1L), eq("Test-UA"), any(MessageQueueCursor.class)))
+        .thenReturn(CompletableFuture.completedFuture(firstPage))
+        .thenReturn(CompletableFuture.completedFuture(secondPage))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false)));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -623,7 +751,7 @@ public class WebSocketConnectionTest {
 
   @Test
   public void testProcessCachedMessagesOnly() {
-    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final MessagesManager messagesManager = mockMessagesManager();
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor);
 
@@ -634,8 +762,8 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getMessagesForDeviceAsync(eq(accountUuid), eq(1L), eq("Test-UA"), any(MessageQueueCursor.class)))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false)));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -649,16 +777,16 @@ public class WebSocketConnectionTest {
     // anything.
     connection.processStoredMessages();
 
-    verify(messagesManager).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), false);
+    verify(messagesManager).getMessagesForDeviceAsync(eq(account.getUuid()), eq(device.getId()), eq(client.getUserAgent()), includingPersisted());
 
     connection.handleNewMessagesAvailable();
 
-    verify(messagesManager).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), true);
+    verify(messagesManager).getMessagesForDeviceAsync(eq(account.getUuid()), eq(device.getId()), eq(client.getUserAgent()), cachedOnly());
   }
 
   @Test
   public void testProcessDatabaseMessagesAfterPersist() {
-    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final MessagesManager messagesManager = mockMessagesManager();
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor);
 
@@ -669,8 +797,8 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getMessagesForDeviceAsync(eq(accountUuid), eq(1L), eq("Test-UA"), any(MessageQueueCursor.class)))
+        .thenReturn(CompletableFuture.completedFuture(new OutgoingMessageEntityList(Collections.emptyList(), false)));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -685,12 +813,12 @@ public class WebSocketConnectionTest {
     connection.processStoredMessages();
     connection.handleMessagesPersisted();
 
-    verify(messagesManager, times(2)).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), false);
+    verify(messagesManager, times(2)).getMessagesForDeviceAsync(eq(account.getUuid()), eq(device.getId()), eq(client.getUserAgent()), includingPersisted());
   }
 
   @Test
   public void testDiscardOversizedMessagesForDesktop() {
-    MessagesManager storedMessages = mock(MessagesManager.class);
+    MessagesManager storedMessages = mockMessagesManager();
 
     UUID accountUuid = UUID.randomUUID();
     UUID senderOneUuid = UUID.randomUUID();
@@ -727,8 +855,8 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Shadow-Desktop/1.2.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
-        .thenReturn(outgoingMessagesList);
+    when(storedMessages.getMessagesForDeviceAsync(eq(account.getUuid()), eq(device.getId()), eq(userAgent), includingPersisted()))
+        .thenReturn(CompletableFuture.completedFuture(outgoingMessagesList));
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
     final WebSocketClient client = mock(WebSocketClient.class);
@@ -761,7 +889,7 @@ public class WebSocketConnectionTest {
     // We should delete all three messages even though we only sent two; one got
     // discarded because it was too big for
     // desktop clients.
-    verify(storedMessages, times(3)).delete(eq(accountUuid), eq(2L), any(UUID.class));
+    verify(storedMessages, times(3)).deleteAsync(eq(accountUuid), eq(2L), any(OutgoingMessageEntity.class));
 
     connection.stop();
     verify(client).close(anyInt(), anyString());
@@ -769,7 +897,7 @@ public class WebSocketConnectionTest {
 
   @Test
   public void testSendOversizedMessagesForNonDesktop() throws Exception {
-    MessagesManager storedMessages = mock(MessagesManager.class);
+    MessagesManager storedMessages = mockMessagesManager();
 
     UUID accountUuid = UUID.randomUUID();
     UUID senderOneUuid = UUID.randomUUID();
@@ -806,8 +934,8 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Signal-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
-        .thenReturn(outgoingMessagesList);
+    when(storedMessages.getMessagesForDeviceAsync(eq(account.getUuid()), eq(device.getId()), eq(userAgent), includingPersisted()))
+        .thenReturn(CompletableFuture.completedFuture(outgoingMessagesList));
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
     final WebSocketClient client = mock(WebSocketClient.class);
@@ -836,7 +964,7 @@ public class WebSocketConnectionTest {
     futures.get(1).complete(response);
     futures.get(2).complete(response);
 
-    verify(storedMessages, times(3)).delete(eq(accountUuid), eq(2L), any(UUID.class));
+    verify(storedMessages, times(3)).deleteAsync(eq(accountUuid), eq(2L), any(OutgoingMessageEntity.class));
 
     connection.stop();
     verify(client).close(anyInt(), anyString());
@@ -844,7 +972,7 @@ public class WebSocketConnectionTest {
 
   @Test
   public void testRetrieveMessageException() {
-    MessagesManager storedMessages = mock(MessagesManager.class);
+    MessagesManager storedMessages = mockMessagesManager();
 
     UUID accountUuid = UUID.randomUUID();
 
@@ -855,8 +983,8 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Shadow-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
-        .thenThrow(new RedisException("OH NO"));
+    when(storedMessages.getMessagesForDeviceAsync(eq(account.getUuid()), eq(device.getId()), eq(userAgent), includingPersisted()))
+        .thenReturn(CompletableFuture.failedFuture(new RedisException("OH NO")));
 
     when(retrySchedulingExecutor.schedule(any(Runnable.class), anyLong(), any())).thenAnswer((Answer<ScheduledFuture<?>>) invocation -> {
       invocation.getArgument(0, Runnable.class).run();
@@ -875,7 +1003,7 @@ public class WebSocketConnectionTest {
 
   @Test
   public void testRetrieveMessageExceptionClientDisconnected() {
-    MessagesManager storedMessages = mock(MessagesManager.class);
+    MessagesManager storedMessages = mockMessagesManager();
 
     UUID accountUuid = UUID.randomUUID();
 
@@ -886,8 +1014,8 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Signal-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
-        .thenThrow(new RedisException("OH NO"));
+    when(storedMessages.getMessagesForDeviceAsync(eq(account.getUuid()), eq(device.getId()), eq(userAgent), includingPersisted()))
+        .thenReturn(CompletableFuture.failedFuture(new RedisException("OH NO")));
 
     final WebSocketClient client = mock(WebSocketClient.class);
     when(client.isOpen()).thenReturn(false);
@@ -905,4 +1033,18 @@ public class WebSocketConnectionTest {
         null, timestamp, sender, senderUuid, 1, content.getBytes(), null, 0);
   }
 
+  private static MessageQueueCursor includingPersisted() {
+    return argThat(cursor -> !cursor.isCachedMessagesOnly());
+  }
+
+  private static MessageQueueCursor cachedOnly() {
+    return argThat(MessageQueueCursor::isCachedMessagesOnly);
+  }
+
+  private static MessagesManager mockMessagesManager() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    when(messagesManager.deleteAsync(any(), anyLong(), any(OutgoingMessageEntity.class))).thenReturn(CompletableFuture.completedFuture(null));
+
+    return messagesManager;
+  }
 }
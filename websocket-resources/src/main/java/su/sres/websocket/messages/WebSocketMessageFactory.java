@@ -14,11 +14,19 @@ public interface WebSocketMessageFactory {
   public WebSocketMessage parseMessage(byte[] serialized, int offset, int len)
       throws InvalidMessageException;
 
+  /**
+   * Creates a request message. Implementations may refer to {@code body} rather than copy it, so callers must not
+   * modify it afterwards.
+   */
   public WebSocketMessage createRequest(Optional<Long> requestId,
                                         String verb, String path,
                                         List<String> headers,
                                         Optional<byte[]> body);
 
+  /**
+   * Creates a response message. Implementations may refer to {@code body} rather than copy it, so callers must not
+   * modify it afterwards.
+   */
   public WebSocketMessage createResponse(long requestId, int status, String message,
                                          List<String> headers,
                                          Optional<byte[]> body);
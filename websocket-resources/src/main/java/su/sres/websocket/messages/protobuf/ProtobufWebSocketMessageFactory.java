@@ -5,7 +5,7 @@
 
 package su.sres.websocket.messages.protobuf;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import su.sres.websocket.messages.InvalidMessageException;
 import su.sres.websocket.messages.WebSocketMessage;
 import su.sres.websocket.messages.WebSocketMessageFactory;
@@ -38,7 +38,7 @@ public class ProtobufWebSocketMessageFactory implements WebSocketMessageFactory
     }
 
     if (body.isPresent()) {
-      requestMessage.setBody(ByteString.copyFrom(body.get()));
+      requestMessage.setBody(UnsafeByteOperations.unsafeWrap(body.get()));
     }
 
     if (headers != null) {
@@ -63,7 +63,7 @@ public class ProtobufWebSocketMessageFactory implements WebSocketMessageFactory
                                             .setMessage(messageString);
 
     if (body.isPresent()) {
-      responseMessage.setBody(ByteString.copyFrom(body.get()));
+      responseMessage.setBody(UnsafeByteOperations.unsafeWrap(body.get()));
     }
 
     if (headers != null) {